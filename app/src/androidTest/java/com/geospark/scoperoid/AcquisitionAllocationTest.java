@@ -0,0 +1,86 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid;
+
+import android.os.Debug;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Runs the acquisition thread flat out against a canned transport and checks that, once warmed
+ * up, fetching and handing over a waveform allocates nothing.
+ */
+public class AcquisitionAllocationTest extends TestCase {
+    private static final String TAG = "ALLOC_TEST";
+    private static final int POINTS = 1200;
+
+    static class CannedTransport implements Transport {
+        private final ByteBuffer _response;
+
+        CannedTransport() {
+            byte[] header = String.format("#9%09d", POINTS).getBytes();
+            _response = ByteBuffer.allocateDirect(header.length + POINTS + 1);
+            _response.put(header);
+
+            for (int i = 0; i < POINTS; ++i) {
+                _response.put((byte) i);
+            }
+
+            _response.put((byte) '\n');
+        }
+
+        @Override
+        public boolean write(String command) {
+            _response.rewind();
+            return true;
+        }
+
+        @Override
+        public boolean read(ByteBuffer bytes) {
+            bytes.put(_response);
+            return false;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    public void testSteadyStateAllocatesNothing() throws InterruptedException {
+        Scope scope = new Scope();
+
+        // Consume on the acquisition thread itself, the way the GL thread would.
+        scope.setWaveformSink(new Scope.WaveformSink() {
+            @Override
+            public boolean frame(WaveformFrame frame) {
+                assertEquals(POINTS, frame.size());
+                frame.recycle();
+                return true;
+            }
+        });
+
+        Debug.startAllocCounting();
+
+        try {
+            scope.connect(new CannedTransport());
+            scope.setPollCommands(Scpi.WAV_DATA_Q);
+
+            // The first interval covers thread start-up, so judge the ones after it.
+            Thread.sleep(3500);
+            scope.disconnect();
+        } finally {
+            Debug.stopAllocCounting();
+        }
+
+        Log.i(TAG, String.format("%.0f frames/s, %.5f allocations per frame",
+                scope.getFrameRate(), scope.getAllocationsPerFrame()));
+        assertTrue(scope.getFrameRate() > 0.0f);
+        assertTrue(scope.getAllocationsPerFrame() < 0.001f);
+    }
+}
@@ -0,0 +1,271 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid;
+
+import android.os.Debug;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Records frames flat out to see what the writer sustains, and checks that segments cut short at
+ * any point still read back up to the last whole frame.
+ */
+public class FrameRecorderTest extends TestCase {
+    private static final String TAG = "RECORDER_TEST";
+    private static final int POINTS = 1200;
+
+    private File _directory;
+
+    @Override
+    protected void setUp() {
+        _directory = new File(System.getProperty("java.io.tmpdir"), "recorder-test");
+        delete(_directory);
+    }
+
+    @Override
+    protected void tearDown() {
+        delete(_directory);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+
+        file.delete();
+    }
+
+    private static Preamble preamble(double xIncrement) {
+        return new Preamble(0, 0, POINTS, 1, xIncrement, -6.0e-6, 0.0, 0.04, 0.0, 127.0);
+    }
+
+    // A frame whose samples are a function of its sequence number, so they can be checked later.
+    private static void fill(WaveformFrame frame, int sequence, Preamble preamble) {
+        frame.begin();
+        ByteBuffer samples = frame.samples();
+
+        for (int i = 0; i < POINTS; ++i) {
+            samples.put((byte) (sequence + i));
+        }
+
+        frame.setChannel(1 + sequence % 2);
+        frame.setPreamble(preamble);
+        frame.complete(sequence);
+    }
+
+    private static void check(WaveformFrame frame, int sequence) {
+        ByteBuffer samples = frame.samples();
+        assertEquals(POINTS, samples.remaining());
+        assertEquals(sequence, frame.getTimestamp());
+        assertEquals(1 + sequence % 2, frame.getChannel());
+
+        for (int i = 0; i < POINTS; ++i) {
+            assertEquals((byte) (sequence + i), samples.get(samples.position() + i));
+        }
+    }
+
+    private int record(FrameRecorder recorder, int frames) throws IOException {
+        FramePool pool = new FramePool(1, POINTS);
+        WaveformFrame frame = pool.acquire();
+        recorder.start(_directory);
+
+        for (int i = 0; i < frames; ++i) {
+            fill(frame, i, preamble(i < frames / 2 ? 1.0e-8 : 2.0e-8));
+            recorder.frame(frame);
+
+            // Gives the writer a chance, as the 'scope would, so none are dropped.
+            if (i % 128 == 127) {
+                Thread.yield();
+
+                while (recorder.getRecordedFrames() + recorder.getDroppedFrames() < i - 64) {
+                    Thread.yield();
+                }
+            }
+        }
+
+        recorder.stop();
+        return (int) recorder.getRecordedFrames();
+    }
+
+    public void testSealedSegmentsReadBack() throws IOException {
+        FrameRecorder recorder = new FrameRecorder(null, 1 << 20, POINTS);
+        int frames = record(recorder, 5000);
+
+        assertFalse(recorder.hasFailed());
+        assertEquals(0, recorder.getDroppedFrames());
+        assertEquals(5000, frames);
+
+        File[] segments = CaptureReader.segments(_directory);
+        assertEquals(recorder.getSegmentCount(), segments.length);
+        assertTrue(segments.length > 1);
+
+        FramePool pool = new FramePool(1, POINTS);
+        WaveformFrame frame = pool.acquire();
+        int sequence = 0;
+
+        for (File segment : segments) {
+            CaptureReader reader = new CaptureReader(segment);
+            assertTrue(reader.isSealed());
+
+            for (int i = 0; i < reader.getFrameCount(); ++i) {
+                reader.read(i, frame);
+                check(frame, sequence);
+                assertEquals(preamble(sequence < 2500 ? 1.0e-8 : 2.0e-8), frame.getPreamble());
+                ++sequence;
+            }
+
+            reader.close();
+        }
+
+        assertEquals(5000, sequence);
+    }
+
+    public void testTruncatedSegmentReadsUpToLastCompleteFrame() throws IOException {
+        FrameRecorder recorder = new FrameRecorder(null, 1 << 20, POINTS);
+        record(recorder, 300);
+
+        File segment = CaptureReader.segments(_directory)[0];
+        CaptureReader sealed = new CaptureReader(segment);
+        byte[] bytes = new byte[(int) segment.length()];
+        FileInputStream in = new FileInputStream(segment);
+
+        try {
+            assertEquals(bytes.length, in.read(bytes));
+        } finally {
+            in.close();
+        }
+
+        FramePool pool = new FramePool(1, POINTS);
+        WaveformFrame frame = pool.acquire();
+        Random random = new Random(4);
+        File cut = new File(_directory, "cut.cap");
+
+        for (int round = 0; round < 50; ++round) {
+            int length = CaptureReader.HEADER_SIZE + random.nextInt(bytes.length - CaptureReader.HEADER_SIZE);
+            // Half the time the tail is left as zeroes, as it is when the app dies mid-segment.
+            int padding = random.nextBoolean() ? 0 : 4096;
+
+            FileOutputStream out = new FileOutputStream(cut);
+
+            try {
+                out.write(bytes, 0, length);
+                out.write(new byte[padding]);
+            } finally {
+                out.close();
+            }
+
+            int expected = 0;
+
+            while (expected < sealed.getFrameCount() && sealed.recordEnd(expected) <= length) {
+                ++expected;
+            }
+
+            CaptureReader reader = new CaptureReader(cut);
+            assertFalse(reader.isSealed());
+            assertEquals(expected, reader.getFrameCount());
+
+            for (int i = 0; i < reader.getFrameCount(); ++i) {
+                reader.read(i, frame);
+                check(frame, i);
+                assertEquals(preamble(i < 150 ? 1.0e-8 : 2.0e-8), frame.getPreamble());
+            }
+
+            reader.close();
+        }
+
+        sealed.close();
+    }
+
+    public void testRecordsAgainAfterFailing() throws IOException {
+        FrameRecorder recorder = new FrameRecorder(null, 1 << 20, POINTS);
+        FramePool pool = new FramePool(1, POINTS);
+        WaveformFrame frame = pool.acquire();
+        recorder.start(_directory);
+        // The first segment can't be opened once its directory has gone.
+        delete(_directory);
+
+        // Enough to fill the queue, which the failed writer has to empty.
+        for (int i = 0; i < 1000; ++i) {
+            fill(frame, i, preamble(1.0e-8));
+            recorder.frame(frame);
+        }
+
+        long deadline = System.currentTimeMillis() + 5000;
+
+        while (!recorder.hasFailed() && System.currentTimeMillis() < deadline) {
+            Thread.yield();
+        }
+
+        assertTrue(recorder.hasFailed());
+        assertFalse(recorder.isRecording());
+
+        // Every pooled frame has to be back, or some of these would be dropped.
+        assertEquals(1000, record(recorder, 1000));
+        assertFalse(recorder.hasFailed());
+        assertEquals(0, recorder.getDroppedFrames());
+    }
+
+    public void testSustainedWrite() throws IOException {
+        FrameRecorder recorder = new FrameRecorder(null);
+        FramePool pool = new FramePool(1, POINTS);
+        WaveformFrame frame = pool.acquire();
+        Preamble preamble = preamble(1.0e-8);
+        fill(frame, 0, preamble);
+
+        recorder.start(_directory);
+        Debug.startAllocCounting();
+        int allocations = Debug.getGlobalAllocCount();
+        long start = System.nanoTime();
+        int offered = 0;
+
+        // Offers frames at about 20000/s, well beyond what USB manages, for five seconds.
+        while (System.nanoTime() - start < 5000000000L) {
+            recorder.frame(frame);
+            frame.samples().rewind();
+            ++offered;
+
+            if (offered % 20 == 0) {
+                while (System.nanoTime() - start < offered * 50000L) {
+                    Thread.yield();
+                }
+            }
+        }
+
+        allocations = Debug.getGlobalAllocCount() - allocations;
+        Debug.stopAllocCounting();
+        recorder.stop();
+        long elapsed = System.nanoTime() - start;
+
+        Log.i(TAG, String.format("%d frames offered, %d recorded, %d dropped, %d segments, %.1f MB/s, %d allocations",
+                offered, recorder.getRecordedFrames(), recorder.getDroppedFrames(), recorder.getSegmentCount(),
+                recorder.getBytesWritten() * 1.0e3 / elapsed, allocations));
+
+        assertFalse(recorder.hasFailed());
+        assertEquals(offered, recorder.getRecordedFrames() + recorder.getDroppedFrames());
+
+        int read = 0;
+
+        for (File segment : CaptureReader.segments(_directory)) {
+            CaptureReader reader = new CaptureReader(segment);
+            read += reader.getFrameCount();
+            reader.close();
+        }
+
+        assertEquals(recorder.getRecordedFrames(), read);
+    }
+}
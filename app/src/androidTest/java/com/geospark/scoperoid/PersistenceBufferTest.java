@@ -0,0 +1,57 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The parts of the persistence display that are worked out on the CPU.
+ */
+public class PersistenceBufferTest extends TestCase {
+    public void testDecayFactor() {
+        assertEquals(1.0f, PersistenceBuffer.decayFactor(0, 1.0f), 1e-6f);
+        assertEquals((float) Math.exp(-1.0), PersistenceBuffer.decayFactor(1000000000L, 1.0f), 1e-6f);
+        assertEquals((float) Math.exp(-0.5), PersistenceBuffer.decayFactor(1000000000L, 2.0f), 1e-6f);
+        assertEquals(1.0f, PersistenceBuffer.decayFactor(Long.MAX_VALUE, PersistenceBuffer.INFINITE));
+
+        // One display refresh at a second's decay is too little to show in 8 bits, so is saved up.
+        assertTrue(PersistenceBuffer.decayFactor(16666667L, 1.0f) > PersistenceBuffer.MAX_DECAY_STEP);
+    }
+
+    public void testGradient() {
+        float[] colour = {1.0f, 0.5f, 0.0f};
+        ByteBuffer gradient = ByteBuffer.allocate(PersistenceBuffer.GRADIENT_SIZE * 4);
+        PersistenceBuffer.fillGradient(gradient, colour);
+        assertFalse(gradient.hasRemaining());
+
+        // No hits is black, so compositing it adds nothing over the grid.
+        assertEquals(0, gradient.get(0));
+        assertEquals(0, gradient.get(1));
+        assertEquals(0, gradient.get(2));
+
+        // A single hit is already visible.
+        int hit = 4 * PersistenceBuffer.HIT_LEVELS;
+        assertTrue((gradient.get(hit) & 0xff) > 32);
+
+        // Brightening through the trace's colour to white.
+        int last = 0;
+
+        for (int level = 0; level < PersistenceBuffer.GRADIENT_SIZE; ++level) {
+            int green = gradient.get(4 * level + 1) & 0xff;
+            assertTrue(green >= last);
+            last = green;
+        }
+
+        int middle = 4 * (PersistenceBuffer.GRADIENT_SIZE / 2);
+        assertEquals(127, gradient.get(middle + 1) & 0xff, 2);
+        int top = 4 * (PersistenceBuffer.GRADIENT_SIZE - 1);
+        assertEquals(255, gradient.get(top) & 0xff);
+        assertEquals(255, gradient.get(top + 1) & 0xff);
+        assertEquals(255, gradient.get(top + 2) & 0xff);
+    }
+}
@@ -0,0 +1,222 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid;
+
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Plays a recording made a millisecond per frame back into a sink that notes what it gets, and
+ * times seeking about in it.
+ */
+public class PlaybackSourceTest extends TestCase {
+    private static final String TAG = "PLAYBACK_TEST";
+    private static final int POINTS = 1200;
+    private static final long FRAME_INTERVAL = 1000000L;
+
+    private File _directory;
+    private Capture _capture;
+
+    // Keeps the timestamps of frames it is given, in order.
+    static class Collector implements Scope.WaveformSink {
+        final long[] timestamps = new long[100000];
+        final AtomicLong count = new AtomicLong();
+
+        @Override
+        public boolean frame(WaveformFrame frame) {
+            int i = (int) count.get();
+
+            if (i < timestamps.length) {
+                timestamps[i] = frame.getTimestamp();
+                count.set(i + 1);
+            }
+
+            frame.recycle();
+            return true;
+        }
+    }
+
+    @Override
+    protected void setUp() {
+        _directory = new File(System.getProperty("java.io.tmpdir"), "playback-test");
+        delete(_directory);
+    }
+
+    @Override
+    protected void tearDown() {
+        if (_capture != null) {
+            _capture.close();
+        }
+
+        delete(_directory);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+
+        file.delete();
+    }
+
+    private Capture record(int frames) throws IOException {
+        return record(frames, FRAME_INTERVAL);
+    }
+
+    private Capture record(int frames, long interval) throws IOException {
+        FrameRecorder recorder = new FrameRecorder(null, 1 << 20, POINTS);
+        WaveformFrame frame = new FramePool(1, POINTS).acquire();
+        recorder.start(_directory);
+
+        for (int i = 0; i < frames; ++i) {
+            frame.begin();
+            frame.samples().position(POINTS);
+            frame.setChannel(1 + i % 2);
+            frame.complete(i * interval);
+
+            recorder.frame(frame);
+
+            // Keeps the writer's queue from filling, so nothing is dropped.
+            while (recorder.getRecordedFrames() < i - 128) {
+                Thread.yield();
+            }
+        }
+
+        recorder.stop();
+        assertEquals(0, recorder.getDroppedFrames());
+        _capture = new Capture(_directory);
+        assertEquals(frames, _capture.getFrameCount());
+        return _capture;
+    }
+
+    private static void waitUntilPaused(PlaybackSource playback, long timeout) throws InterruptedException {
+        long end = System.currentTimeMillis() + timeout;
+
+        while (!playback.isPaused() && System.currentTimeMillis() < end) {
+            Thread.sleep(5);
+        }
+
+        assertTrue(playback.isPaused());
+    }
+
+    public void testForwardPlaysEveryFrameOnTime() throws IOException, InterruptedException {
+        // About as fast as two channels come over USB.
+        Capture capture = record(100, 5 * FRAME_INTERVAL);
+        Collector collector = new Collector();
+        PlaybackSource playback = new PlaybackSource(capture, collector);
+
+        long start = System.nanoTime();
+        playback.start();
+        waitUntilPaused(playback, 5000);
+        long elapsed = System.nanoTime() - start;
+        playback.stop();
+
+        assertEquals(100, collector.count.get());
+
+        for (int i = 0; i < 100; ++i) {
+            assertEquals(i * 5 * FRAME_INTERVAL, collector.timestamps[i]);
+        }
+
+        // 99 intervals of five milliseconds each.
+        assertTrue(elapsed > 480 * FRAME_INTERVAL);
+        assertTrue(elapsed < 1000 * FRAME_INTERVAL);
+    }
+
+    public void testReverseAtSpeed() throws IOException, InterruptedException {
+        Capture capture = record(3000);
+        Collector collector = new Collector();
+        PlaybackSource playback = new PlaybackSource(capture, collector);
+
+        playback.setPaused(true);
+        playback.setReverse(true);
+        playback.setSpeed(10.0f);
+        playback.start();
+        playback.seekFrame(2999);
+
+        long start = System.nanoTime();
+        playback.setPaused(false);
+        waitUntilPaused(playback, 5000);
+        long elapsed = System.nanoTime() - start;
+        playback.stop();
+
+        int count = (int) collector.count.get();
+        Log.i(TAG, String.format("3s backwards at 10x in %.0f ms, %d frames", elapsed / 1.0e6, count));
+
+        assertEquals(2999 * FRAME_INTERVAL, collector.timestamps[0]);
+        assertEquals(0, collector.timestamps[count - 1]);
+
+        for (int i = 1; i < count; ++i) {
+            assertTrue(collector.timestamps[i] < collector.timestamps[i - 1]);
+        }
+
+        assertTrue(elapsed > 250 * FRAME_INTERVAL);
+        assertTrue(elapsed < 1000 * FRAME_INTERVAL);
+    }
+
+    public void testFastForwardSkipsToStayOnTime() throws IOException, InterruptedException {
+        Capture capture = record(20000);
+        Collector collector = new Collector();
+        PlaybackSource playback = new PlaybackSource(capture, collector);
+
+        playback.setSpeed(1000.0f);
+        assertEquals(PlaybackSource.MAX_SPEED, playback.getSpeed());
+
+        long start = System.nanoTime();
+        playback.start();
+        waitUntilPaused(playback, 5000);
+        long elapsed = System.nanoTime() - start;
+        playback.stop();
+
+        int count = (int) collector.count.get();
+        Log.i(TAG, String.format("20s at 100x in %.0f ms, %d frames", elapsed / 1.0e6, count));
+
+        assertEquals(19999 * FRAME_INTERVAL, collector.timestamps[count - 1]);
+        assertTrue(elapsed < 1000 * FRAME_INTERVAL);
+    }
+
+    public void testSeekTime() throws IOException, InterruptedException {
+        Capture capture = record(1000);
+        Collector collector = new Collector();
+        PlaybackSource playback = new PlaybackSource(capture, collector);
+
+        playback.setPaused(true);
+        playback.start();
+        playback.seekTime(500 * FRAME_INTERVAL + FRAME_INTERVAL / 2);
+        Thread.sleep(100);
+        playback.stop();
+
+        assertEquals(500, playback.getPosition());
+        assertEquals(500 * FRAME_INTERVAL, playback.getPositionTime());
+        assertEquals(1, collector.count.get());
+    }
+
+    public void testRandomSeeks() throws IOException {
+        Capture capture = record(40000);
+        WaveformFrame frame = new FramePool(1, POINTS).acquire();
+        Random random = new Random(5);
+        long start = System.nanoTime();
+
+        for (int i = 0; i < 10000; ++i) {
+            int index = capture.frameAt(random.nextInt(40000) * FRAME_INTERVAL);
+            capture.read(index, frame);
+            assertEquals(index * FRAME_INTERVAL, frame.getTimestamp());
+            assertEquals(POINTS, frame.size());
+        }
+
+        long elapsed = System.nanoTime() - start;
+        Log.i(TAG, String.format("%.1f us per random seek and read", elapsed / 1.0e7));
+    }
+}
@@ -0,0 +1,214 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid;
+
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks that acquiring against the simulated 'scope asks for a preamble far less often than for
+ * a waveform, that a stopped 'scope is left alone, and that no frame arrives once polling has
+ * been stopped.
+ */
+public class ScopePollingTest extends TestCase {
+    private static final String TAG = "SCOPE_POLLING";
+
+    static class CountingTransport implements Transport {
+        private final Transport _transport;
+        final AtomicInteger preambles = new AtomicInteger();
+        final AtomicInteger waveforms = new AtomicInteger();
+
+        CountingTransport(Transport transport) {
+            _transport = transport;
+        }
+
+        @Override
+        public boolean write(String command) {
+            if (command.endsWith(Scpi.WAV_PREAMBLE_Q)) {
+                preambles.incrementAndGet();
+            } else if (command.endsWith(Scpi.WAV_DATA_Q)) {
+                waveforms.incrementAndGet();
+            }
+
+            return _transport.write(command);
+        }
+
+        @Override
+        public boolean read(ByteBuffer bytes) {
+            return _transport.read(bytes);
+        }
+
+        @Override
+        public void close() {
+            _transport.close();
+        }
+    }
+
+    public void testPreambleQueriesAgainstSimulatedScope() throws IOException, InterruptedException {
+        SimulatedScopeServer server = new SimulatedScopeServer(0);
+        server.start();
+
+        final AtomicInteger changes = new AtomicInteger();
+        Scope scope = new Scope();
+        scope.setCallbackExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+        scope.setStateListener(new ScopeState.Listener() {
+            @Override
+            public void preambleChanged(int channel, Preamble preamble) {
+                changes.incrementAndGet();
+            }
+
+            @Override
+            public void triggerStatusChanged(int status) {
+            }
+        });
+        scope.setWaveformSink(new Scope.WaveformSink() {
+            @Override
+            public boolean frame(WaveformFrame frame) {
+                frame.recycle();
+                return true;
+            }
+        });
+
+        CountingTransport transport = new CountingTransport(new TcpTransport("127.0.0.1", server.getPort()));
+
+        try {
+            scope.connect(transport);
+            scope.setChannels(1, 2);
+            scope.setPollCommands(Scpi.WAV_DATA_Q);
+            Thread.sleep(2500);
+
+            // A setting sent means both channels are asked again, but nothing has changed.
+            scope.postCommand(Scpi.WAV_FORMAT, "BYTE");
+            Thread.sleep(200);
+        } finally {
+            scope.disconnect();
+            server.stop();
+        }
+
+        Log.i(TAG, String.format("%d waveforms, %d preambles, %d changes",
+                transport.waveforms.get(), transport.preambles.get(), changes.get()));
+        assertEquals(2, changes.get());
+        assertNotNull(scope.getState().getPreamble(1));
+        assertNotNull(scope.getState().getPreamble(2));
+        assertTrue(transport.preambles.get() >= 6);
+        assertTrue(transport.preambles.get() <= 12);
+        assertTrue(transport.waveforms.get() > 10 * transport.preambles.get());
+    }
+
+    public void testStoppedScopeIsNotPolled() throws IOException, InterruptedException {
+        SimulatedScopeServer server = new SimulatedScopeServer(0);
+        server.start();
+
+        final AtomicInteger statuses = new AtomicInteger(Scpi.TRIG_UNKNOWN);
+        final AtomicInteger frames = new AtomicInteger();
+        Scope scope = new Scope();
+        scope.setCallbackExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+        scope.setStateListener(new ScopeState.Listener() {
+            @Override
+            public void preambleChanged(int channel, Preamble preamble) {
+            }
+
+            @Override
+            public void triggerStatusChanged(int status) {
+                statuses.set(status);
+            }
+        });
+        scope.setWaveformSink(new Scope.WaveformSink() {
+            @Override
+            public boolean frame(WaveformFrame frame) {
+                frames.incrementAndGet();
+                frame.recycle();
+                return true;
+            }
+        });
+
+        CountingTransport transport = new CountingTransport(new TcpTransport("127.0.0.1", server.getPort()));
+        int running;
+        int stopped;
+        int waveforms;
+
+        try {
+            scope.connect(transport);
+            scope.setChannels(1, 2);
+            scope.setPollCommands(Scpi.WAV_DATA_Q);
+            Thread.sleep(500);
+            assertEquals(Scpi.TRIG_TRIGGERED, statuses.get());
+
+            scope.postCommand(Scpi.STOP);
+            Thread.sleep(200);
+            running = frames.get();
+            waveforms = transport.waveforms.get();
+            Thread.sleep(1000);
+            stopped = frames.get() - running;
+            waveforms = transport.waveforms.get() - waveforms;
+            assertEquals(Scpi.TRIG_STOP, statuses.get());
+        } finally {
+            scope.disconnect();
+            server.stop();
+        }
+
+        Log.i(TAG, String.format("%d frames running, %d waveforms and %d frames stopped", running, waveforms, stopped));
+        assertTrue(running > 100);
+        assertEquals(0, stopped);
+        assertTrue(waveforms <= 2);
+    }
+
+    public void testNoFramesAfterPollingStops() throws IOException, InterruptedException {
+        SimulatedScopeServer server = new SimulatedScopeServer(0);
+        server.start();
+
+        final AtomicInteger frames = new AtomicInteger();
+        Scope scope = new Scope();
+        scope.setWaveformSink(new Scope.WaveformSink() {
+            @Override
+            public boolean frame(WaveformFrame frame) {
+                frames.incrementAndGet();
+                frame.recycle();
+                return true;
+            }
+        });
+
+        int running;
+        int stopped;
+
+        try {
+            scope.connect(new TcpTransport("127.0.0.1", server.getPort()));
+            scope.setChannels(1, 2);
+            // Flat out, with a request always in flight.
+            scope.setScheduled(false);
+            scope.setPipelined(true);
+            scope.setPollCommands(Scpi.WAV_DATA_Q);
+            Thread.sleep(500);
+
+            assertTrue(scope.stopPolling());
+            running = frames.get();
+            Thread.sleep(500);
+            stopped = frames.get() - running;
+        } finally {
+            scope.disconnect();
+            server.stop();
+        }
+
+        assertTrue(running > 100);
+        assertEquals(0, stopped);
+    }
+}
@@ -0,0 +1,144 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid;
+
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times Scope's acquisition thread, and screen mirroring, over loopback against the simulated
+ * 'scope. Compare with the frames/s Scope logs for a real USB connection.
+ */
+public class ScopeTcpBenchmark extends TestCase {
+    private static final String TAG = "TCP_BENCH";
+    private static final int FRAMES = 500;
+
+    private SimulatedScopeServer _server;
+    private TcpTransport _transport;
+
+    @Override
+    protected void setUp() throws Exception {
+        _server = new SimulatedScopeServer(0);
+        _server.start();
+        _transport = new TcpTransport("127.0.0.1", _server.getPort());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        _transport.close();
+        _server.stop();
+    }
+
+    public void testAcquisitionThreadGap() throws InterruptedException {
+        final CountDownLatch frames = new CountDownLatch(FRAMES);
+        Scope scope = new Scope();
+
+        scope.setCallbackExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+
+        scope.register(new Scope.ScopeCallback() {
+            @Override
+            public void result(String command, byte[] data) {
+                frames.countDown();
+            }
+        });
+
+        scope.connectTCP("127.0.0.1", _server.getPort());
+        scope.setPollCommands(Scpi.WAV_DATA_Q);
+        assertTrue(frames.await(10, TimeUnit.SECONDS));
+        Thread.sleep(1100);
+        scope.disconnect();
+
+        Log.i(TAG, String.format("Scope over %s: %.0f frames/s, %d ns between transfers",
+                _transport, scope.getFrameRate(), scope.getTransferGap()));
+        assertTrue(scope.getFrameRate() > 0.0f);
+    }
+
+    private void runChannels(boolean pipelined) throws InterruptedException {
+        final CountDownLatch frames = new CountDownLatch(FRAMES);
+        final int[] order = {0};
+        final boolean[] inOrder = {true};
+        Scope scope = new Scope();
+
+        scope.setWaveformSink(new Scope.WaveformSink() {
+            @Override
+            public boolean frame(WaveformFrame frame) {
+                // The channels must come back in the order they were asked for.
+                inOrder[0] &= frame.getChannel() == order[0] % Scpi.CHANNEL_COUNT + 1;
+                ++order[0];
+                frame.recycle();
+                frames.countDown();
+                return true;
+            }
+        });
+
+        scope.setChannels(1, 2, 3, 4);
+        scope.setPipelined(pipelined);
+        scope.connectTCP("127.0.0.1", _server.getPort());
+        scope.setPollCommands(Scpi.WAV_DATA_Q);
+        assertTrue(frames.await(10, TimeUnit.SECONDS));
+        Thread.sleep(1100);
+        scope.disconnect();
+
+        Log.i(TAG, String.format("4 channels, %s: %.0f frames/s (%.0f/%.0f/%.0f/%.0f), %d ns between transfers",
+                pipelined ? "pipelined" : "one at a time", scope.getFrameRate(), scope.getFrameRate(1),
+                scope.getFrameRate(2), scope.getFrameRate(3), scope.getFrameRate(4), scope.getTransferGap()));
+        Log.i(TAG, scope.getStats().format());
+        assertTrue(inOrder[0]);
+        assertTrue(scope.getStats().getStage(PipelineStats.TRANSFER).getCount() >= FRAMES);
+
+        for (int channel = 1; channel <= Scpi.CHANNEL_COUNT; ++channel) {
+            assertTrue(scope.getFrameRate(channel) > 0.0f);
+        }
+    }
+
+    public void testFourChannelsOneAtATime() throws InterruptedException {
+        runChannels(false);
+    }
+
+    public void testFourChannelsPipelined() throws InterruptedException {
+        runChannels(true);
+    }
+
+    public void testMirror() throws InterruptedException {
+        final CountDownLatch screens = new CountDownLatch(20);
+        final boolean[] decoded = {true};
+        Scope scope = new Scope();
+
+        scope.setScreenSink(new Scope.ScreenSink() {
+            @Override
+            public boolean screen(ScreenFrame frame) {
+                decoded[0] &= frame.getWidth() == 800 && frame.getHeight() == 480
+                        && frame.pixels().remaining() == 800 * 480 * 3;
+                frame.recycle();
+                screens.countDown();
+                return true;
+            }
+        });
+
+        scope.connectTCP("127.0.0.1", _server.getPort());
+        scope.setPollCommands(Scpi.DISP_DATA_Q);
+        assertTrue(screens.await(10, TimeUnit.SECONDS));
+        Thread.sleep(1100);
+        scope.disconnect();
+
+        Log.i(TAG, String.format("Mirror over %s: %.1f frames/s, %d KB held",
+                _transport, scope.getScreenFrameRate(), scope.getScreenMemory() / 1024));
+        assertTrue(decoded[0]);
+        assertTrue(scope.getScreenFrameRate() > 0.0f);
+        // Recycled straight away, so one frame is all it should take.
+        assertTrue(scope.getScreenMemory() < 2 * 800 * 480 * 3);
+    }
+}
@@ -0,0 +1,50 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid;
+
+import junit.framework.TestCase;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+public class SpectrumLineTest extends TestCase {
+    private static final int COLUMNS = WaveformRenderer.COLUMNS;
+
+    public void testFewBinsAreJoinedUp() {
+        // DC at the top of the grid, Nyquist at the bottom.
+        float[] decibels = {SpectrumLine.TOP_DECIBELS, -1000.0f};
+        FloatBuffer out = FloatBuffer.allocate(COLUMNS);
+
+        assertEquals(COLUMNS, SpectrumLine.heights(decibels, 2, out));
+        assertEquals(SampleConversion.GRID_HEIGHT, out.get(0), 1.0e-3f);
+        assertEquals(0.0f, out.get(COLUMNS - 1), 1.0e-3f);
+
+        for (int column = 1; column < COLUMNS; ++column) {
+            assertTrue(out.get(column) <= out.get(column - 1));
+        }
+
+        out.clear();
+        assertEquals(0, SpectrumLine.heights(decibels, 1, out));
+        assertEquals(0, out.position());
+    }
+
+    public void testNarrowToneSurvivesManyBins() {
+        int bins = 65537;
+        float[] decibels = new float[bins];
+        Arrays.fill(decibels, -60.0f);
+        decibels[12345] = 0.0f;
+        FloatBuffer out = FloatBuffer.allocate(COLUMNS);
+
+        SpectrumLine.heights(decibels, bins, out);
+        float highest = 0.0f;
+
+        for (int column = 0; column < COLUMNS; ++column) {
+            highest = Math.max(highest, out.get(column));
+        }
+
+        assertEquals(SpectrumLine.toGrid(0.0f), highest);
+    }
+}
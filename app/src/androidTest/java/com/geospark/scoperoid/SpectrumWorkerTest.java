@@ -0,0 +1,106 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+
+public class SpectrumWorkerTest extends TestCase {
+    private static final int POINTS = 1200;
+    private static final Preamble PREAMBLE = new Preamble(0, 0, POINTS, 1, 1.0e-8, -6.0e-6, 0.0, 0.04, 0.0, 127.0);
+
+    private static ByteBuffer sine(int points) {
+        ByteBuffer samples = ByteBuffer.allocateDirect(points);
+
+        for (int i = 0; i < points; ++i) {
+            samples.put((byte) (127 + 75 * Math.sin(i * 2.0 * Math.PI / 40)));
+        }
+
+        samples.flip();
+        return samples;
+    }
+
+    // Waits for the next spectrum of a slot, handing back any others.
+    private static SpectrumWorker.Spectrum next(SpectrumWorker worker, int slot) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+
+        while (System.currentTimeMillis() < deadline) {
+            SpectrumWorker.Spectrum spectrum = worker.poll();
+
+            if (spectrum == null) {
+                Thread.sleep(1);
+            } else if (spectrum.slot == slot) {
+                return spectrum;
+            } else {
+                worker.release(spectrum);
+            }
+        }
+
+        fail();
+        return null;
+    }
+
+    public void testFramesComeBackAsHeights() throws InterruptedException {
+        SpectrumWorker worker = new SpectrumWorker();
+        worker.start();
+        worker.setWindow(SpectrumAnalyzer.HANN);
+        worker.setPeakHold(true);
+
+        ByteBuffer samples = sine(POINTS);
+        assertTrue(worker.add(2, samples, PREAMBLE));
+        assertEquals(0, samples.position());
+
+        SpectrumWorker.Spectrum spectrum = next(worker, 2);
+
+        while (!spectrum.heights.hasRemaining()) {
+            worker.release(spectrum);
+            spectrum = next(worker, 2);
+        }
+
+        assertEquals(WaveformRenderer.COLUMNS, spectrum.heights.remaining());
+        assertEquals(WaveformRenderer.COLUMNS, spectrum.peaks.remaining());
+        worker.release(spectrum);
+    }
+
+    public void testDeepMemoryIsCopiedAndRedoneForANewWindow() throws InterruptedException {
+        SpectrumWorker worker = new SpectrumWorker();
+        worker.start();
+        worker.setWindow(SpectrumAnalyzer.HANN);
+
+        SampleStore store = new SampleStore();
+        store.append(sine(SampleStore.SEGMENT_SIZE + 1000));
+        // Spanning two segments of the store.
+        assertTrue(worker.analyze(store, SampleStore.SEGMENT_SIZE - 1000, store.size(), PREAMBLE, 7));
+        // The store can be refilled straight away.
+        store.clear();
+
+        SpectrumWorker.Spectrum spectrum = next(worker, SpectrumWorker.ENVELOPE);
+
+        while (!spectrum.heights.hasRemaining()) {
+            worker.release(spectrum);
+            spectrum = next(worker, SpectrumWorker.ENVELOPE);
+        }
+
+        assertEquals(7, spectrum.generation);
+        assertFalse(spectrum.peaks.hasRemaining());
+        float before = spectrum.heights.get(0);
+        worker.release(spectrum);
+
+        // Done again from the copy the worker kept.
+        worker.setWindow(SpectrumAnalyzer.FLAT_TOP);
+        spectrum = next(worker, SpectrumWorker.ENVELOPE);
+
+        while (spectrum.heights.get(0) == before) {
+            worker.release(spectrum);
+            spectrum = next(worker, SpectrumWorker.ENVELOPE);
+        }
+
+        assertEquals(7, spectrum.generation);
+        assertEquals(WaveformRenderer.COLUMNS, spectrum.heights.remaining());
+        worker.release(spectrum);
+    }
+}
@@ -0,0 +1,63 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+/**
+ * The parts of the trace batch that are worked out on the CPU.
+ */
+public class TraceBatchTest extends TestCase {
+    private static ShortBuffer indices() {
+        return ByteBuffer.allocateDirect(TraceBatch.TRACE_COUNT * TraceBatch.SLOT * 4)
+                .order(ByteOrder.nativeOrder()).asShortBuffer();
+    }
+
+    public void testJoinsStripsOfVisibleTraces() {
+        int[] counts = new int[TraceBatch.TRACE_COUNT];
+        boolean[] visible = new boolean[TraceBatch.TRACE_COUNT];
+        counts[0] = 3;
+        counts[1] = 5;
+        counts[TraceBatch.REFERENCE_TRACES] = 2;
+        visible[0] = true;
+        visible[TraceBatch.REFERENCE_TRACES] = true;
+
+        ShortBuffer out = indices();
+        assertEquals(6, TraceBatch.buildIndices(counts, visible, out));
+
+        // Each strip starts at its own slot, and no segment joins one trace to the next.
+        int reference = TraceBatch.REFERENCE_TRACES * TraceBatch.SLOT;
+        short[] expected = {0, 1, 1, 2, (short) reference, (short) (reference + 1)};
+
+        for (short index : expected) {
+            assertEquals(index, out.get());
+        }
+    }
+
+    public void testEveryTraceFitsShortIndices() {
+        int[] counts = new int[TraceBatch.TRACE_COUNT];
+        boolean[] visible = new boolean[TraceBatch.TRACE_COUNT];
+
+        for (int trace = 0; trace < TraceBatch.TRACE_COUNT; ++trace) {
+            counts[trace] = TraceBatch.SLOT;
+            visible[trace] = true;
+        }
+
+        ShortBuffer out = indices();
+        int count = TraceBatch.buildIndices(counts, visible, out);
+        assertEquals(TraceBatch.TRACE_COUNT * (TraceBatch.SLOT - 1) * 2, count);
+        assertEquals(TraceBatch.TRACE_COUNT * TraceBatch.SLOT - 1, out.get(count - 1) & 0xffff);
+
+        // A point on its own draws nothing.
+        counts[0] = 1;
+        visible[1] = false;
+        assertEquals(count - 2 * 2 * (TraceBatch.SLOT - 1), TraceBatch.buildIndices(counts, visible, out));
+    }
+}
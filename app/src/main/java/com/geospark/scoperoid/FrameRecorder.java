@@ -0,0 +1,356 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+/**
+ * Records every frame that passes through it to a directory of memory-mapped segment files, and
+ * hands the frame on to another sink untouched.
+ *
+ * The acquisition thread only copies the samples into one of the recorder's own pooled frames and
+ * queues it; a writer thread appends it to the current segment. If the writer falls behind, frames
+ * are dropped and counted rather than holding up acquisition. Nothing is allocated per frame.
+ *
+ * A segment is a header followed by records, each a length, a body and a CRC32 of the body. A
+ * preamble record comes before the first frame of each channel in a segment and again whenever
+ * the preamble changes. Sealing a segment appends an index of every record and truncates the file
+ * to fit; a segment that never got sealed can still be read by walking the records up to the
+ * first one that is incomplete. See {@link CaptureReader}.
+ */
+public class FrameRecorder implements Scope.WaveformSink {
+    private static final String TAG = "RECORDER";
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 << 20;
+    private static final int QUEUE_SIZE = 256;
+    private static final int MAX_INDEX_ENTRIES = 65536;
+    private static final long IDLE_WAIT = 1000000L;
+
+    private final Scope.WaveformSink _downstream;
+    private final int _segment_size;
+    private final int _frame_capacity;
+    private final FramePool _pool;
+    private final SpscQueue<WaveformFrame> _queue = new SpscQueue<>(QUEUE_SIZE);
+    // Belongs to the acquisition thread.
+    private WaveformFrame _spare = null;
+
+    private volatile WriterThread _writer = null;
+    // The last writer started, which may have stopped by itself after failing.
+    private WriterThread _thread = null;
+    private volatile boolean _failed = false;
+    private volatile long _dropped = 0;
+    private volatile long _recorded = 0;
+    private volatile long _bytes_written = 0;
+    private volatile int _segments = 0;
+
+    /**
+     * @param downstream gets every frame after it has been copied, and may be null.
+     */
+    public FrameRecorder(Scope.WaveformSink downstream) {
+        this(downstream, DEFAULT_SEGMENT_SIZE, Scope.RESULT_BUFFER_SIZE);
+    }
+
+    public FrameRecorder(Scope.WaveformSink downstream, int segmentSize, int frameCapacity) {
+        _downstream = downstream;
+        _segment_size = segmentSize;
+        _frame_capacity = frameCapacity;
+        _pool = new FramePool(QUEUE_SIZE, frameCapacity);
+    }
+
+    /**
+     * Starts a new recording in directory, which is created if need be. Segments already there
+     * are overwritten.
+     */
+    public synchronized void start(File directory) throws IOException {
+        if (_writer != null) {
+            return;
+        }
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+
+        // A writer that failed puts back what it had queued before it exits.
+        if (_thread != null) {
+            join(_thread);
+        }
+
+        _failed = false;
+        _dropped = 0;
+        _recorded = 0;
+        _bytes_written = 0;
+        _segments = 0;
+        _thread = new WriterThread(directory);
+        _writer = _thread;
+        _thread.start();
+    }
+
+    /**
+     * Writes out whatever is queued, seals the last segment and waits for the writer to finish.
+     */
+    public synchronized void stop() {
+        WriterThread writer = _writer;
+
+        if (writer == null) {
+            return;
+        }
+
+        _writer = null;
+        writer.finish();
+        join(writer);
+    }
+
+    private static void join(Thread thread) {
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public boolean isRecording() {
+        return _writer != null;
+    }
+
+    /**
+     * @return true if the last recording stopped because a segment could not be written.
+     */
+    public boolean hasFailed() {
+        return _failed;
+    }
+
+    public long getRecordedFrames() {
+        return _recorded;
+    }
+
+    /**
+     * @return frames that arrived while the writer had every pooled frame queued.
+     */
+    public long getDroppedFrames() {
+        return _dropped;
+    }
+
+    public long getBytesWritten() {
+        return _bytes_written;
+    }
+
+    public int getSegmentCount() {
+        return _segments;
+    }
+
+    @Override
+    public boolean frame(WaveformFrame frame) {
+        if (_writer != null) {
+            copy(frame);
+        }
+
+        return _downstream != null && _downstream.frame(frame);
+    }
+
+    private void copy(WaveformFrame frame) {
+        // Only the writer thread may put a frame back in the pool, so size is checked first.
+        WaveformFrame copy = null;
+
+        if (frame.size() <= _frame_capacity) {
+            copy = _spare != null ? _spare : _pool.acquire();
+            _spare = null;
+        }
+
+        if (copy == null) {
+            ++_dropped;
+            return;
+        }
+
+        ByteBuffer samples = frame.samples();
+        int position = samples.position();
+        copy.begin();
+        copy.payload(samples);
+        samples.position(position);
+        copy.setChannel(frame.getChannel());
+        copy.setPreamble(frame.getPreamble());
+        copy.complete(frame.getTimestamp());
+
+        // For the same reason, a copy the queue has no room for is kept for the next frame.
+        if (!_queue.offer(copy)) {
+            _spare = copy;
+            ++_dropped;
+        }
+    }
+
+    private class WriterThread extends Thread {
+        private final File _directory;
+        private volatile boolean _finishing = false;
+
+        private final byte[] _record;
+        private final ByteBuffer _record_buffer;
+        private final CRC32 _crc = new CRC32();
+        private final ByteBuffer _index =
+                ByteBuffer.allocateDirect(MAX_INDEX_ENTRIES * CaptureReader.INDEX_ENTRY_SIZE);
+        private final Preamble[] _written_preambles = new Preamble[Scpi.CHANNEL_COUNT + 1];
+
+        private RandomAccessFile _file = null;
+        private FileChannel _channel = null;
+        private MappedByteBuffer _segment = null;
+        private int _segment_number = 0;
+
+        WriterThread(File directory) {
+            super("FrameRecorder");
+            _directory = directory;
+            _record = new byte[CaptureReader.FRAME_HEADER_SIZE
+                    + Math.max(_frame_capacity, CaptureReader.PREAMBLE_SIZE)];
+            _record_buffer = ByteBuffer.wrap(_record);
+        }
+
+        void finish() {
+            _finishing = true;
+            LockSupport.unpark(this);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    WaveformFrame frame = _queue.poll();
+
+                    if (frame == null) {
+                        if (_finishing) {
+                            break;
+                        }
+
+                        LockSupport.parkNanos(IDLE_WAIT);
+                        continue;
+                    }
+
+                    try {
+                        write(frame);
+                    } finally {
+                        frame.recycle();
+                    }
+                }
+
+                seal();
+            } catch (IOException e) {
+                Log.w(TAG, "Recording stopped", e);
+                _failed = true;
+                _writer = null;
+                close();
+
+                // Only this thread may put frames back in the pool.
+                WaveformFrame frame;
+
+                while ((frame = _queue.poll()) != null) {
+                    frame.recycle();
+                }
+            }
+        }
+
+        private void write(WaveformFrame frame) throws IOException {
+            int channel = frame.getChannel();
+            int size = frame.size();
+            Preamble preamble = frame.getPreamble();
+            boolean new_preamble = preamble != null && preamble != _written_preambles[channel];
+            int needed = CaptureReader.RECORD_OVERHEAD + CaptureReader.FRAME_HEADER_SIZE + size
+                    + CaptureReader.INDEX_ENTRY_SIZE + (new_preamble ? CaptureReader.RECORD_OVERHEAD
+                    + CaptureReader.PREAMBLE_SIZE + CaptureReader.INDEX_ENTRY_SIZE : 0);
+
+            if (_segment == null || _index.remaining() < 2 * CaptureReader.INDEX_ENTRY_SIZE
+                    || _segment.remaining() < needed + _index.position() + CaptureReader.TRAILER_SIZE) {
+                seal();
+                open();
+                new_preamble = preamble != null;
+            }
+
+            if (new_preamble) {
+                _record_buffer.clear();
+                _record_buffer.put(CaptureReader.PREAMBLE).put((byte) channel).putShort((short) 0)
+                        .putInt(preamble.format).putInt(preamble.type).putInt(preamble.points).putInt(preamble.count)
+                        .putDouble(preamble.xIncrement).putDouble(preamble.xOrigin).putDouble(preamble.xReference)
+                        .putDouble(preamble.yIncrement).putDouble(preamble.yOrigin).putDouble(preamble.yReference);
+                writeRecord(CaptureReader.PREAMBLE, channel, 0);
+                _written_preambles[channel] = preamble;
+            }
+
+            _record_buffer.clear();
+            _record_buffer.put(CaptureReader.FRAME).put((byte) channel).putShort((short) 0)
+                    .putLong(frame.getTimestamp());
+            frame.samples().get(_record, CaptureReader.FRAME_HEADER_SIZE, size);
+            _record_buffer.position(CaptureReader.FRAME_HEADER_SIZE + size);
+            writeRecord(CaptureReader.FRAME, channel, frame.getTimestamp());
+            ++_recorded;
+        }
+
+        // The body is whatever has been put in the record buffer.
+        private void writeRecord(byte type, int channel, long timestamp) {
+            int length = _record_buffer.position();
+            int offset = _segment.position();
+
+            _crc.reset();
+            _crc.update(_record, 0, length);
+            _segment.putInt(length);
+            _segment.put(_record, 0, length);
+            _segment.putInt((int) _crc.getValue());
+
+            _index.putLong(timestamp).putInt(offset).put(type).put((byte) channel).putShort((short) 0);
+            _bytes_written += length + CaptureReader.RECORD_OVERHEAD;
+        }
+
+        private void open() throws IOException {
+            File file = new File(_directory, String.format(CaptureReader.SEGMENT_NAME, _segment_number));
+            _file = new RandomAccessFile(file, "rw");
+            _file.setLength(0);
+            _channel = _file.getChannel();
+            _segment = _channel.map(FileChannel.MapMode.READ_WRITE, 0, _segment_size);
+
+            _segment.putInt(CaptureReader.SEGMENT_MAGIC).putInt(CaptureReader.VERSION)
+                    .putInt(_segment_number).putInt(0);
+            _segment.putLong(System.currentTimeMillis()).putLong(System.nanoTime());
+
+            _index.clear();
+            Arrays.fill(_written_preambles, null);
+            ++_segment_number;
+            ++_segments;
+        }
+
+        private void seal() throws IOException {
+            if (_segment == null) {
+                return;
+            }
+
+            int count = _index.position() / CaptureReader.INDEX_ENTRY_SIZE;
+            _index.flip();
+            _segment.put(_index);
+            _segment.putInt(count);
+            _segment.putInt(CaptureReader.INDEX_MAGIC);
+            _channel.truncate(_segment.position());
+            close();
+        }
+
+        private void close() {
+            _segment = null;
+            _channel = null;
+
+            if (_file != null) {
+                try {
+                    _file.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not close a segment", e);
+                }
+
+                _file = null;
+            }
+        }
+    }
+}
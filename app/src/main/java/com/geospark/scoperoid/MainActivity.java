@@ -5,9 +5,11 @@
 
 package com.geospark.scoperoid;
 
+import android.app.AlertDialog;
 import android.app.PendingIntent;
 import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.pm.ActivityInfo;
@@ -15,33 +17,95 @@ import android.hardware.usb.UsbDevice;
 import android.hardware.usb.UsbManager;
 import android.support.v7.app.ActionBarActivity;
 import android.os.Bundle;
+import android.os.Handler;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
+import android.widget.Button;
+import android.widget.EditText;
+import android.widget.SeekBar;
 import android.widget.TextView;
 
-import java.math.BigDecimal;
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 
-public class MainActivity extends ActionBarActivity implements Scope.ScopeCallback {
+public class MainActivity extends ActionBarActivity implements Scope.ScopeCallback, ScopeState.Listener, DeepMemoryFetch.Listener {
     private static final String ACTION_USB_PERMISSION = "com.geospark.scoperoid.USB_PERMISSION";
     private static final String TAG = "MAIN";
 
-    private static final BigDecimal NANO =  new BigDecimal("0.000000001");
-    private static final BigDecimal MICRO = new BigDecimal("0.000001");
-    private static final BigDecimal MILLI = new BigDecimal("0.001");
-    private static final BigDecimal TIMEBASE_SCALAR = new BigDecimal("100");
-    private static final BigDecimal VERTICAL_SCALE_SCALAR = new BigDecimal("25");
-    private static final BigDecimal HORIZONTAL_DIVISIONS = new BigDecimal("6");
+    private static final double HORIZONTAL_DIVISIONS = 6.0;
+    private static final long FRAME_RATE_REFRESH_MS = 1000;
+    private static final float[] PLAYBACK_SPEEDS = {0.1f, 0.2f, 0.5f, 1.0f, 2.0f, 5.0f, 10.0f, 20.0f, 50.0f, 100.0f};
+    private static final int NORMAL_SPEED = 3;
+    private static final int SEEK_STEPS = 1000;
+    // In the order of R.array.persistence_options, which ends with Clear.
+    private static final float[] PERSISTENCE_TIMES = {0.0f, 0.1f, 0.5f, 1.0f, 5.0f, PersistenceBuffer.INFINITE};
+    private static final int[] SPECTRUM_WINDOWS = {
+            WaveformRenderer.SPECTRUM_OFF, SpectrumAnalyzer.HANN, SpectrumAnalyzer.BLACKMAN_HARRIS, SpectrumAnalyzer.FLAT_TOP
+    };
+    private static final int SPECTRUM_AVERAGES = 16;
+    private static final int[] AVERAGING_MODES = {
+            FrameAverager.BOXCAR, FrameAverager.BOXCAR, FrameAverager.BOXCAR, FrameAverager.BOXCAR,
+            FrameAverager.EXPONENTIAL, FrameAverager.EXPONENTIAL, FrameAverager.EXPONENTIAL
+    };
+    private static final int[] AVERAGING_FRAMES = {1, 4, 16, 64, 4, 16, 64};
+
+    private static final int[] CHANNEL_BUTTONS = {R.id.ch1Btn, R.id.ch2Btn, R.id.ch3Btn, R.id.ch4Btn};
+    private static final int[] CHANNEL_ON_COLOURS = {
+            R.color.channel1High, R.color.channel2High, R.color.channel3High, R.color.channel4High
+    };
+    private static final int[] CHANNEL_OFF_COLOURS = {
+            R.color.channel1Med, R.color.channel2Med, R.color.channel3Med, R.color.channel4Med
+    };
 
     private UsbManager mUsbManager;
     private WaveformView waveformView;
     private Scope _scope;
 
     private PendingIntent mPermissionIntent = null;
+    private SimulatedScopeServer _simulated_scope = null;
+    private String _lan_host = "";
+    private final SampleStore _deep_memory = new SampleStore();
+    private final MinMaxPyramid _deep_memory_pyramid = new MinMaxPyramid(_deep_memory);
+    private DeepMemoryFetch _deep_memory_fetch = null;
+    private ExecutorService _deep_memory_executor = null;
+    private MeasurementEngine _deep_memory_engine = null;
+    private final Measurements _deep_memory_measurements = new Measurements();
+    private boolean _showing_deep_memory = false;
+    private boolean _references_saved = false;
+    private FrameRecorder _recorder;
+    // Read on the acquisition thread, which publishes every frame to it while set.
+    private volatile FrameStreamServer _streamer = null;
+    private Capture _capture = null;
+    private PlaybackSource _playback = null;
+    private int _playback_speed = NORMAL_SPEED;
+    private SeekBar _playback_position;
+
+    private TextView _vscale_view;
+    private TextView _timebase_view;
+    private TextView _timeoffset_view;
+    private double _shown_vscale = Double.NaN;
+    private double _shown_timebase = Double.NaN;
+    private double _shown_timeoffset = Double.NaN;
 
     private boolean _scopeRunning = true;
+    private final boolean[] _channels_enabled = {true, false, false, false};
+
+    private final Handler _refresh_handler = new Handler();
+    private final Runnable _frame_rate_refresh = new Runnable() {
+        @Override
+        public void run() {
+            showFrameRates();
+            _refresh_handler.postDelayed(this, FRAME_RATE_REFRESH_MS);
+        }
+    };
 
     private final BroadcastReceiver mUsbReceiver = new BroadcastReceiver() {
         public void onReceive(Context context, Intent intent) {
@@ -56,11 +120,9 @@ public class MainActivity extends ActionBarActivity implements Scope.ScopeCallba
                         decorView.setSystemUiVisibility(uiOptions);
 
                         if (device != null) {
+                            _scope.setPipelined(false);
                             _scope.connectUSB(mUsbManager, device);
-                            _scope.postCommand(Scope.WAV_SOURCE, "CHAN1");
-                            _scope.postCommand(Scope.WAV_MODE, "NORM");
-                            _scope.postCommand(Scope.WAV_FORMAT, "BYTE");
-                            _scope.postCommand(Scope.WAV_DATA_Q);
+                            startAcquisition();
                         }
                     }
                 }
@@ -88,7 +150,7 @@ public class MainActivity extends ActionBarActivity implements Scope.ScopeCallba
                 synchronized (this) {
                     UsbDevice device = intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
                     if (device != null && device.getVendorId() == 6833 && device.getProductId() == 1230) {
-                        _scope.disconnectUSB();
+                        _scope.disconnect();
                     }
                 }
             }
@@ -97,6 +159,7 @@ public class MainActivity extends ActionBarActivity implements Scope.ScopeCallba
 
     @Override
     protected void onPause() {
+        _refresh_handler.removeCallbacks(_frame_rate_refresh);
         waveformView.onPause();
         super.onPause();
     }
@@ -105,6 +168,7 @@ public class MainActivity extends ActionBarActivity implements Scope.ScopeCallba
     protected void onResume() {
         super.onResume();
         waveformView.onResume();
+        _refresh_handler.postDelayed(_frame_rate_refresh, FRAME_RATE_REFRESH_MS);
     }
 
     @Override
@@ -117,9 +181,45 @@ public class MainActivity extends ActionBarActivity implements Scope.ScopeCallba
         decorView.setSystemUiVisibility(uiOptions);
 
         waveformView = (WaveformView) findViewById(R.id.waveformView);
+        _vscale_view = (TextView) findViewById(R.id.verticalScale);
+        _timebase_view = (TextView) findViewById(R.id.timebase);
+        _timeoffset_view = (TextView) findViewById(R.id.timeoffset);
+        _playback_position = (SeekBar) findViewById(R.id.playbackPosition);
+        _playback_position.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
+            @Override
+            public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
+                if (fromUser && _playback != null) {
+                    _playback.seekTime(progress * _playback.getDuration() / SEEK_STEPS);
+                }
+            }
+
+            @Override
+            public void onStartTrackingTouch(SeekBar seekBar) {
+            }
+
+            @Override
+            public void onStopTrackingTouch(SeekBar seekBar) {
+            }
+        });
 
         _scope = new Scope();
         _scope.register(this);
+        _scope.setStateListener(this);
+        _recorder = new FrameRecorder(new Scope.WaveformSink() {
+            @Override
+            public boolean frame(WaveformFrame frame) {
+                FrameStreamServer streamer = _streamer;
+
+                if (streamer != null) {
+                    streamer.publish(frame);
+                }
+
+                return waveformView.frame(frame);
+            }
+        });
+        _scope.setWaveformSink(_recorder);
+        _scope.setScreenSink(waveformView);
+        waveformView.setStats(_scope.getStats());
 
         mUsbManager = (UsbManager) getSystemService(Context.USB_SERVICE);
 
@@ -138,9 +238,511 @@ public class MainActivity extends ActionBarActivity implements Scope.ScopeCallba
 //        }
     }
 
+    private void startAcquisition() {
+        if (_playback != null) {
+            stopPlayback();
+        }
+
+        applyChannels();
+        _scope.postCommand(Scpi.WAV_MODE, "NORM");
+        _scope.postCommand(Scpi.WAV_FORMAT, "BYTE");
+        _scope.setPollCommands(pollCommand());
+    }
+
+    // Mirroring polls screenshots instead of waveforms.
+    private String pollCommand() {
+        return waveformView.isMirroring() ? Scpi.DISP_DATA_Q : Scpi.WAV_DATA_Q;
+    }
+
+    private void toggleMirror() {
+        if (_playback != null) {
+            stopPlayback();
+        }
+
+        waveformView.setMirroring(!waveformView.isMirroring());
+        _scope.setPollCommands(pollCommand());
+    }
+
+    private void toggleReferences() {
+        if (_references_saved) {
+            waveformView.clearReferences();
+        } else {
+            waveformView.saveReferences();
+        }
+
+        _references_saved = !_references_saved;
+    }
+
+    private void connectLAN() {
+        final EditText hostView = new EditText(this);
+        hostView.setSingleLine();
+        hostView.setHint(R.string.lan_host_hint);
+        hostView.setText(_lan_host);
+
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.action_connect_lan)
+                .setView(hostView)
+                .setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        _lan_host = hostView.getText().toString().trim();
+
+                        if (!_lan_host.isEmpty()) {
+                            _scope.setPipelined(true);
+                            _scope.connectTCP(_lan_host, TcpTransport.DEFAULT_PORT);
+                            startAcquisition();
+                        }
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+
+    // Serves canned waveforms on localhost so the LAN path can be timed without a 'scope.
+    private void connectSimulatedLAN() {
+        try {
+            if (_simulated_scope == null) {
+                _simulated_scope = new SimulatedScopeServer(TcpTransport.DEFAULT_PORT);
+                _simulated_scope.start();
+            }
+
+            _scope.setPipelined(true);
+            _scope.connectTCP("127.0.0.1", _simulated_scope.getPort());
+            startAcquisition();
+        } catch (IOException e) {
+            Log.w(TAG, "Could not start the simulated 'scope", e);
+        }
+    }
+
+    private void applyChannels() {
+        int count = 0;
+
+        for (boolean enabled : _channels_enabled) {
+            count += enabled ? 1 : 0;
+        }
+
+        int[] channels = new int[count];
+        count = 0;
+
+        for (int i = 0; i < _channels_enabled.length; ++i) {
+            if (_channels_enabled[i]) {
+                channels[count++] = i + 1;
+            }
+
+            Button button = (Button) findViewById(CHANNEL_BUTTONS[i]);
+            button.setTextColor(getResources().getColor(_channels_enabled[i] ? CHANNEL_ON_COLOURS[i] : CHANNEL_OFF_COLOURS[i]));
+        }
+
+        _scope.setChannels(channels);
+        waveformView.setChannels(channels);
+
+        Preamble preamble = _scope.getState().getPreamble(lowestChannel());
+
+        if (preamble != null) {
+            showLabels(preamble);
+        }
+    }
+
+    public void onChannelButton(View v) {
+        for (int i = 0; i < CHANNEL_BUTTONS.length; ++i) {
+            if (v.getId() == CHANNEL_BUTTONS[i]) {
+                _channels_enabled[i] = !_channels_enabled[i];
+            }
+        }
+
+        applyChannels();
+    }
+
+    private void showFrameRates() {
+        if (_playback != null) {
+            showPlayback();
+            return;
+        }
+
+        StringBuilder sb = new StringBuilder();
+
+        if (waveformView.isMirroring()) {
+            sb.append(String.format(getString(R.string.mirror_status), _scope.getScreenFrameRate(),
+                    _scope.getScreenMemory() / 1.0e6));
+            ((TextView) findViewById(R.id.frameRates)).setText(sb.toString());
+            return;
+        }
+
+        for (int i = 0; i < _channels_enabled.length; ++i) {
+            if (_channels_enabled[i]) {
+                sb.append(String.format(getString(R.string.channel_frame_rate), i + 1, _scope.getFrameRate(i + 1)));
+            }
+        }
+
+        sb.append(String.format(getString(R.string.total_frame_rate), _scope.getFrameRate()));
+
+        if (_recorder.isRecording()) {
+            sb.append(String.format(getString(R.string.recording_status),
+                    _recorder.getRecordedFrames(), _recorder.getDroppedFrames()));
+        } else if (_recorder.hasFailed()) {
+            sb.append(getString(R.string.recording_failed));
+        }
+
+        FrameStreamServer streamer = _streamer;
+
+        if (streamer != null) {
+            sb.append(String.format(getString(R.string.streaming_status), streamer.getPort(),
+                    streamer.getClientCount(), streamer.getBytesSent() / 1.0e6));
+        }
+
+        ((TextView) findViewById(R.id.frameRates)).setText(sb.toString());
+        showLatency();
+        showMeasurements();
+    }
+
+    private void showLatency() {
+        TextView hud = (TextView) findViewById(R.id.latencyHud);
+
+        if (hud.getVisibility() == View.VISIBLE) {
+            hud.setText(_scope.getStats().format() + "\n"
+                    + String.format(getString(R.string.traces_drawn), waveformView.getTracesDrawn()));
+        }
+    }
+
+    private void showMeasurements() {
+        TextView hud = (TextView) findViewById(R.id.measurementsHud);
+
+        if (hud.getVisibility() != View.VISIBLE) {
+            return;
+        }
+
+        StringBuilder sb = new StringBuilder();
+
+        if (_showing_deep_memory) {
+            sb.append(getString(R.string.deep_memory_measurements));
+            sb.append('\n');
+            sb.append(_deep_memory_measurements.format());
+        } else {
+            for (int i = 0; i < _channels_enabled.length; ++i) {
+                if (_channels_enabled[i]) {
+                    if (sb.length() > 0) {
+                        sb.append("\n\n");
+                    }
+
+                    sb.append(String.format(getString(R.string.channel_measurements), i + 1));
+                    sb.append('\n');
+                    sb.append(_scope.getMeasurements(i + 1).format());
+                }
+            }
+        }
+
+        hud.setText(sb.toString());
+    }
+
+    private void toggleMeasurements() {
+        TextView hud = (TextView) findViewById(R.id.measurementsHud);
+        boolean show = hud.getVisibility() != View.VISIBLE;
+        hud.setVisibility(show ? View.VISIBLE : View.GONE);
+        _scope.setMeasuring(show);
+
+        if (show) {
+            for (int channel = 1; channel <= Scpi.CHANNEL_COUNT; ++channel) {
+                _scope.getMeasurements(channel).reset();
+            }
+        }
+
+        showMeasurements();
+    }
+
+    private void toggleLatencyHud() {
+        TextView hud = (TextView) findViewById(R.id.latencyHud);
+        boolean show = hud.getVisibility() != View.VISIBLE;
+        hud.setVisibility(show ? View.VISIBLE : View.GONE);
+        waveformView.setGpuTiming(show);
+        showLatency();
+    }
+
+    // For a field report: everything the HUD shows, plus the rates, in the log. Starts the
+    // stats afresh so the next dump covers only what happens after it.
+    private void dumpStats() {
+        Log.i(TAG, String.format(Locale.US, "%.1f frames/s, %d us between transfers, %d dropped of %d",
+                _scope.getFrameRate(), _scope.getTransferGap() / 1000, waveformView.getFramesDropped(),
+                waveformView.getFramesReceived()));
+
+        for (String line : _scope.getStats().format().split("\n")) {
+            Log.i(TAG, line);
+        }
+
+        _scope.getStats().reset();
+        showLatency();
+    }
+
+    private void choosePersistence() {
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.action_persistence)
+                .setItems(R.array.persistence_options, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        if (which < PERSISTENCE_TIMES.length) {
+                            waveformView.setPersistence(PERSISTENCE_TIMES[which]);
+                        } else {
+                            waveformView.clearPersistence();
+                        }
+                    }
+                })
+                .show();
+    }
+
+    // Windows first, then toggles for averaging and peak hold, then clearing both.
+    private void chooseAveraging() {
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.action_averaging)
+                .setItems(R.array.averaging_options, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        if (which < AVERAGING_MODES.length) {
+                            waveformView.setAveraging(AVERAGING_MODES[which], AVERAGING_FRAMES[which]);
+                        } else {
+                            waveformView.setHiRes(!waveformView.isHiRes());
+                        }
+                    }
+                })
+                .show();
+    }
+
+    private void chooseSpectrum() {
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.action_spectrum)
+                .setItems(R.array.spectrum_options, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        if (which < SPECTRUM_WINDOWS.length) {
+                            waveformView.setSpectrum(SPECTRUM_WINDOWS[which]);
+                        } else if (which == SPECTRUM_WINDOWS.length) {
+                            waveformView.setSpectrumAverages(waveformView.getSpectrumAverages() > 1 ? 1 : SPECTRUM_AVERAGES);
+                        } else if (which == SPECTRUM_WINDOWS.length + 1) {
+                            waveformView.setSpectrumPeakHold(!waveformView.isSpectrumPeakHold());
+                        } else {
+                            waveformView.resetSpectrum();
+                        }
+                    }
+                })
+                .show();
+    }
+
+    private void toggleRecording() {
+        if (_recorder.isRecording()) {
+            _recorder.stop();
+            return;
+        }
+
+        String session = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date());
+
+        try {
+            _recorder.start(new File(capturesDirectory(), session));
+        } catch (IOException e) {
+            Log.w(TAG, "Could not start recording", e);
+        }
+    }
+
+    private void toggleStreaming() {
+        FrameStreamServer streamer = _streamer;
+
+        if (streamer != null) {
+            _streamer = null;
+            streamer.stop();
+            return;
+        }
+
+        try {
+            streamer = new FrameStreamServer(FrameStreamServer.DEFAULT_PORT,
+                    FrameStreamServer.DEFAULT_QUEUE_SIZE, Scope.RESULT_BUFFER_SIZE);
+            streamer.start();
+            _streamer = streamer;
+        } catch (IOException e) {
+            Log.w(TAG, "Could not start streaming", e);
+        }
+    }
+
+    private File capturesDirectory() {
+        File captures = getExternalFilesDir("captures");
+        return captures != null ? captures : new File(getFilesDir(), "captures");
+    }
+
+    private void togglePlayback() {
+        if (_playback != null) {
+            stopPlayback();
+            return;
+        }
+
+        // Recordings are named by when they started, so the last in order is the newest.
+        File[] recordings = capturesDirectory().listFiles();
+        File latest = null;
+
+        for (int i = 0; recordings != null && i < recordings.length; ++i) {
+            if (recordings[i].isDirectory() && (latest == null || recordings[i].getName().compareTo(latest.getName()) > 0)) {
+                latest = recordings[i];
+            }
+        }
+
+        if (latest == null) {
+            return;
+        }
+
+        _recorder.stop();
+
+        try {
+            _capture = new Capture(latest);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not open " + latest, e);
+            return;
+        }
+
+        // Live frames would fight the recorded ones for the display, and the renderer takes
+        // frames from one thread at a time, so the transfer in flight has to land first.
+        _scope.setWaveformSink(null);
+
+        if (!_scope.stopPolling()) {
+            Log.w(TAG, "Acquisition did not stop for playback");
+            _scope.setWaveformSink(_recorder);
+            _scope.setPollCommands(pollCommand());
+            _capture.close();
+            _capture = null;
+            return;
+        }
+
+        waveformView.setMirroring(false);
+
+        if (_showing_deep_memory) {
+            _showing_deep_memory = false;
+            waveformView.clearEnvelope();
+        }
+
+        _playback = new PlaybackSource(_capture, waveformView);
+        _playback_speed = NORMAL_SPEED;
+        findViewById(R.id.playbackBar).setVisibility(View.VISIBLE);
+        _playback.start();
+        showPlayback();
+    }
+
+    private void stopPlayback() {
+        _playback.stop();
+        _playback = null;
+        _capture.close();
+        _capture = null;
+        findViewById(R.id.playbackBar).setVisibility(View.GONE);
+        _scope.setWaveformSink(_recorder);
+        _scope.setPollCommands(pollCommand());
+    }
+
+    public void onPlaybackButton(View v) {
+        if (_playback == null) {
+            return;
+        }
+
+        int id = v.getId();
+
+        if (id == R.id.playbackReverse) {
+            _playback.setReverse(!_playback.isReverse());
+        } else if (id == R.id.playbackSlower) {
+            _playback_speed = Math.max(0, _playback_speed - 1);
+        } else if (id == R.id.playbackFaster) {
+            _playback_speed = Math.min(PLAYBACK_SPEEDS.length - 1, _playback_speed + 1);
+        }
+
+        _playback.setSpeed(PLAYBACK_SPEEDS[_playback_speed]);
+        showPlayback();
+    }
+
+    private void showPlayback() {
+        double position = _playback.getPositionTime() / 1.0e9;
+        double duration = _playback.getDuration() / 1.0e9;
+        TextView status = (TextView) findViewById(R.id.frameRates);
+
+        if (_playback.isPaused()) {
+            status.setText(String.format(getString(R.string.playback_paused), position, duration));
+        } else {
+            status.setText(String.format(getString(R.string.playback_status), _playback.isReverse() ? "-" : "",
+                    PLAYBACK_SPEEDS[_playback_speed], position, duration));
+        }
+
+        if (duration > 0.0) {
+            _playback_position.setProgress((int) (SEEK_STEPS * position / duration));
+        }
+    }
+
+    private void toggleDeepMemoryFetch() {
+        if (_deep_memory_fetch != null) {
+            _deep_memory_fetch.cancel();
+            return;
+        }
+
+        if (_showing_deep_memory) {
+            _showing_deep_memory = false;
+            waveformView.clearEnvelope();
+            ((TextView) findViewById(R.id.deepMemoryStatus)).setText("");
+            return;
+        }
+
+        if (_deep_memory_engine == null) {
+            _deep_memory_executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+            _deep_memory_engine = new MeasurementEngine(_deep_memory_executor);
+        }
+
+        _deep_memory_fetch = new DeepMemoryFetch("CHAN1", _deep_memory, this);
+        _deep_memory_fetch.setPyramid(_deep_memory_pyramid);
+        _deep_memory_fetch.setMeasurements(_deep_memory_engine, _deep_memory_measurements);
+        _scope.submit(_deep_memory_fetch);
+    }
+
+    @Override
+    public void onProgress(long points, long total, float bytesPerSecond) {
+        TextView status = (TextView) findViewById(R.id.deepMemoryStatus);
+        status.setText(String.format(getString(R.string.deep_memory_progress), 100 * points / total, bytesPerSecond / 1.0e6f));
+    }
+
+    @Override
+    public void onFinished(SampleStore store, Preamble preamble) {
+        _deep_memory_fetch = null;
+        TextView status = (TextView) findViewById(R.id.deepMemoryStatus);
+        double bits = HiResDecimator.effectiveBits((double) store.size() / WaveformRenderer.COLUMNS);
+        status.setText(String.format(getString(R.string.deep_memory_done), store.size(), bits));
+        waveformView.showEnvelope(_deep_memory_pyramid, 0, store.size(), preamble);
+        _showing_deep_memory = true;
+        showMeasurements();
+    }
+
+    @Override
+    public void onCancelled() {
+        _deep_memory_fetch = null;
+        TextView status = (TextView) findViewById(R.id.deepMemoryStatus);
+        status.setText(R.string.deep_memory_cancelled);
+    }
+
+    @Override
+    public void onFailed() {
+        _deep_memory_fetch = null;
+        TextView status = (TextView) findViewById(R.id.deepMemoryStatus);
+        status.setText(R.string.deep_memory_failed);
+    }
+
     @Override
     protected void onDestroy() {
         _scope.unregister();
+        _scope.disconnect();
+        _recorder.stop();
+
+        if (_streamer != null) {
+            _streamer.stop();
+        }
+
+        if (_playback != null) {
+            stopPlayback();
+        }
+
+        if (_simulated_scope != null) {
+            _simulated_scope.stop();
+        }
+
+        if (_deep_memory_executor != null) {
+            _deep_memory_executor.shutdown();
+        }
+
         unregisterReceiver(mUsbConnectedReceiver);
         unregisterReceiver(mUsbReceiver);
         super.onDestroy();
@@ -163,88 +765,151 @@ public class MainActivity extends ActionBarActivity implements Scope.ScopeCallba
         //noinspection SimplifiableIfStatement
         if (id == R.id.action_settings) {
             return true;
+        } else if (id == R.id.action_connect_lan) {
+            connectLAN();
+            return true;
+        } else if (id == R.id.action_simulated_lan) {
+            connectSimulatedLAN();
+            return true;
+        } else if (id == R.id.action_deep_memory) {
+            toggleDeepMemoryFetch();
+            return true;
+        } else if (id == R.id.action_record) {
+            toggleRecording();
+            return true;
+        } else if (id == R.id.action_stream) {
+            toggleStreaming();
+            return true;
+        } else if (id == R.id.action_playback) {
+            togglePlayback();
+            return true;
+        } else if (id == R.id.action_persistence) {
+            choosePersistence();
+            return true;
+        } else if (id == R.id.action_spectrum) {
+            chooseSpectrum();
+            return true;
+        } else if (id == R.id.action_mirror) {
+            toggleMirror();
+            return true;
+        } else if (id == R.id.action_reference) {
+            toggleReferences();
+            return true;
+        } else if (id == R.id.action_averaging) {
+            chooseAveraging();
+            return true;
+        } else if (id == R.id.action_measurements) {
+            toggleMeasurements();
+            return true;
+        } else if (id == R.id.action_latency_hud) {
+            toggleLatencyHud();
+            return true;
+        } else if (id == R.id.action_dump_stats) {
+            dumpStats();
+            return true;
         }
 
         return super.onOptionsItemSelected(item);
     }
 
     public void onStartStopButton(View v) {
-        // We appear to have no way of determining the run/stop state of the scope, so we'll have to assume it's running when we start the app.
+        if (_playback != null) {
+            // Run/Stop pauses playback, and starts it over once it has reached the end.
+            int end = _playback.isReverse() ? 0 : _capture.getFrameCount() - 1;
+
+            if (_playback.isPaused() && _playback.getPosition() == end) {
+                _playback.seekFrame(_playback.isReverse() ? _capture.getFrameCount() - 1 : 0);
+            }
+
+            _playback.setPaused(!_playback.isPaused());
+            showPlayback();
+            return;
+        }
+
+        // The state comes back through triggerStatusChanged, so the button only changes once
+        // the 'scope has.
         if (_scope != null) {
             if (_scopeRunning) {
-                _scope.postCommand(Scope.STOP);
+                _scope.postCommand(Scpi.STOP);
             } else {
-                _scope.postCommand(Scope.RUN);
+                _scope.postCommand(Scpi.RUN);
+            }
+        }
+    }
+
+    private int lowestChannel() {
+        for (int i = 0; i < _channels_enabled.length; ++i) {
+            if (_channels_enabled[i]) {
+                return i + 1;
             }
-            _scopeRunning = !_scopeRunning;
         }
+
+        return 1;
     }
 
     @Override
     public void result(String command, byte[] data) {
-        if (Scope.WAV_DATA_Q.equals(command) && data.length > 11) {
-            waveformView.setWaveformData(data);
-            _scope.postCommand(Scope.WAV_PREAMBLE_Q);
-            _scope.postCommand(Scope.WAV_DATA_Q);
-        } else if (Scope.WAV_PREAMBLE_Q.equals(command)) {
-            try {
-                String sdata = new String(data);
-                String[] params = sdata.split(",");
-
-                // The documentation says that YIncrement is the vertical scale divided by 25, so we factor that out. The lower limit is 5mV.
-                BigDecimal vscale = new BigDecimal(params[Scope.WAV_PREAMBLE_YINCREMENT]).setScale(4, BigDecimal.ROUND_HALF_UP).multiply(VERTICAL_SCALE_SCALAR);
-                TextView vscaleView = (TextView) findViewById(R.id.verticalScale);
-
-                if (vscale.compareTo(BigDecimal.ONE) < 0.0) {
-                    String s = String.format(getString(R.string.vscale), vscale.scaleByPowerOfTen(3), getString(R.string.millivolts));
-                    vscaleView.setText(s);
-                } else {
-                    String s = String.format(getString(R.string.vscale), vscale, getString(R.string.volts));
-                    vscaleView.setText(s);
-                }
+        // Preambles arrive through preambleChanged, and nothing else is polled for yet.
+    }
 
-                // The documentation says that the XIncrement parameter is the timescale divided by 100, so we factor that out. The lower
-                // limit is 5ns.
-                BigDecimal hscale = new BigDecimal(params[Scope.WAV_PREAMBLE_XINCREMENT]).setScale(11, BigDecimal.ROUND_HALF_UP).multiply(TIMEBASE_SCALAR);
-                TextView hscaleView = (TextView) findViewById(R.id.timebase);
-
-                if (hscale.compareTo(MICRO) < 0) {
-                    String s = String.format(getString(R.string.timebase), hscale.scaleByPowerOfTen(9), getString(R.string.nanoseconds));
-                    hscaleView.setText(s);
-                } else if (hscale.compareTo(MILLI) < 0) {
-                    String s = String.format(getString(R.string.timebase), hscale.scaleByPowerOfTen(6), getString(R.string.microseconds));
-                    hscaleView.setText(s);
-                } else if (hscale.compareTo(BigDecimal.ONE) < 0) {
-                    String s = String.format(getString(R.string.timebase), hscale.scaleByPowerOfTen(3), getString(R.string.milliseconds));
-                    hscaleView.setText(s);
-                } else {
-                    String s = String.format(getString(R.string.timebase), hscale, getString(R.string.seconds));
-                    hscaleView.setText(s);
-                }
+    @Override
+    public void preambleChanged(int channel, Preamble preamble) {
+        waveformView.setPreamble(channel, preamble);
 
-                BigDecimal XStart = hscale.multiply(HORIZONTAL_DIVISIONS);
-                BigDecimal hoffset = new BigDecimal(params[Scope.WAV_PREAMBLE_XORIGIN]).setScale(12, BigDecimal.ROUND_HALF_UP).add(XStart);
-                TextView hoffsetView = (TextView) findViewById(R.id.timeoffset);
-
-                if (hoffset.abs().compareTo(NANO) < 0) {
-                    String s = String.format(getString(R.string.timeoffset), hoffset.scaleByPowerOfTen(12), getString(R.string.picoseconds));
-                    hoffsetView.setText(s);
-                } else if (hoffset.abs().compareTo(MICRO) < 0) {
-                    String s = String.format(getString(R.string.timeoffset), hoffset.scaleByPowerOfTen(9), getString(R.string.nanoseconds));
-                    hoffsetView.setText(s);
-                } else if (hoffset.abs().compareTo(MILLI) < 0) {
-                    String s = String.format(getString(R.string.timeoffset), hoffset.scaleByPowerOfTen(6), getString(R.string.microseconds));
-                    hoffsetView.setText(s);
-                } else if (hoffset.abs().compareTo(BigDecimal.ONE) < 0) {
-                    String s = String.format(getString(R.string.timeoffset), hoffset.scaleByPowerOfTen(3), getString(R.string.milliseconds));
-                    hoffsetView.setText(s);
-                } else {
-                    String s = String.format(getString(R.string.timeoffset), hoffset, getString(R.string.seconds));
-                    hoffsetView.setText(s);
-                }
-            } catch (ArrayIndexOutOfBoundsException e) {
-                Log.w(TAG, "Incomplete data packet. Has the USB cable been unplugged?");
+        // The labels follow the lowest channel on screen, as they only have room for one.
+        if (channel == lowestChannel()) {
+            showLabels(preamble);
+        }
+    }
+
+    @Override
+    public void triggerStatusChanged(int status) {
+        // Lit like the 'scope's own key: green while running, red when stopped.
+        _scopeRunning = status != Scpi.TRIG_STOP;
+        int colour = status == Scpi.TRIG_UNKNOWN ? R.color.rigolText : _scopeRunning ? R.color.running : R.color.stopped;
+        ((Button) findViewById(R.id.startStop)).setTextColor(getResources().getColor(colour));
+    }
+
+    // Only touches the views whose values have actually changed.
+    private void showLabels(Preamble preamble) {
+        double vscale = preamble.getVerticalScale();
+        double timebase = preamble.getTimebase();
+        double timeoffset = preamble.xOrigin + timebase * HORIZONTAL_DIVISIONS;
+
+        if (vscale != _shown_vscale) {
+            _shown_vscale = vscale;
+
+            if (Math.abs(vscale) < 1.0) {
+                _vscale_view.setText(String.format(getString(R.string.vscale), vscale * 1.0e3, getString(R.string.millivolts)));
+            } else {
+                _vscale_view.setText(String.format(getString(R.string.vscale), vscale, getString(R.string.volts)));
             }
         }
+
+        if (timebase != _shown_timebase) {
+            _shown_timebase = timebase;
+            _timebase_view.setText(formatTime(R.string.timebase, timebase));
+        }
+
+        if (timeoffset != _shown_timeoffset) {
+            _shown_timeoffset = timeoffset;
+            _timeoffset_view.setText(formatTime(R.string.timeoffset, timeoffset));
+        }
+    }
+
+    private String formatTime(int format, double seconds) {
+        double magnitude = Math.abs(seconds);
+
+        if (magnitude < 1.0e-9) {
+            return String.format(getString(format), seconds * 1.0e12, getString(R.string.picoseconds));
+        } else if (magnitude < 1.0e-6) {
+            return String.format(getString(format), seconds * 1.0e9, getString(R.string.nanoseconds));
+        } else if (magnitude < 1.0e-3) {
+            return String.format(getString(format), seconds * 1.0e6, getString(R.string.microseconds));
+        } else if (magnitude < 1.0) {
+            return String.format(getString(format), seconds * 1.0e3, getString(R.string.milliseconds));
+        }
+
+        return String.format(getString(format), seconds, getString(R.string.seconds));
     }
 }
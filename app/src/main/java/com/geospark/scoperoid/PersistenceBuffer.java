@@ -0,0 +1,396 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid;
+
+import android.opengl.GLES20;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Accumulates every frame into an offscreen texture that fades over time, like the phosphor of an
+ * analogue scope, and puts it on screen graded by how often each pixel has been hit.
+ *
+ * Each channel keeps its hit count in one component of an RGBA texture. Frames are drawn into it
+ * with additive blending, and fading is a blend pass that scales the whole texture down, so the
+ * CPU never touches a pixel. A gradient texture per channel turns counts into colours when the
+ * result is composited over the grid. Only to be used on the GL thread.
+ */
+public class PersistenceBuffer {
+    public static final float INFINITE = Float.POSITIVE_INFINITY;
+
+    // Levels added per hit, out of 255, so a pixel goes white after 32 hits.
+    static final int HIT_LEVELS = 8;
+    // Fading by less than this in one go is lost to rounding in 8 bits, so short steps are saved
+    // up until they add up to this much.
+    static final float MAX_DECAY_STEP = 0.95f;
+    static final int GRADIENT_SIZE = 256;
+
+    private static final int COLUMNS = 1200;
+    // Frames staged before they are uploaded and drawn in one go.
+    private static final int BATCH = 64;
+
+    private static final String quadShaderCode =
+            "uniform mat4 uMVPMatrix;" +
+            "attribute vec2 vPosition;" +
+            "varying vec2 vTexcoord;" +
+            "void main() {" +
+            "  gl_Position = uMVPMatrix * vec4(vPosition, 0.2, 1.0);" +
+            "  vTexcoord = vPosition / vec2(" + (float) COLUMNS + ", " + SampleConversion.GRID_HEIGHT + ");" +
+            "}";
+
+    // Reverse subtracted from the scaled texture, so that counts too small to scale down in 8
+    // bits still fade out in the end.
+    private static final String decayShaderCode =
+            "precision mediump float;" +
+            "void main() {" +
+            "  gl_FragColor = vec4(1.0 / 255.0);" +
+            "}";
+
+    private static final String compositeShaderCode =
+            "precision mediump float;" +
+            "uniform sampler2D uHits;" +
+            "uniform sampler2D uGradient;" +
+            "uniform vec4 uShown;" +
+            "varying vec2 vTexcoord;" +
+            "vec4 grade(float hits, float row) {" +
+            "  return texture2D(uGradient, vec2(hits * 255.0 / 256.0 + 0.5 / 256.0, row));" +
+            "}" +
+            "void main() {" +
+            "  vec4 hits = texture2D(uHits, vTexcoord) * uShown;" +
+            "  gl_FragColor = grade(hits.r, 0.125) + grade(hits.g, 0.375)" +
+            "      + grade(hits.b, 0.625) + grade(hits.a, 0.875);" +
+            "}";
+
+    private final int hitProgram;
+    private final int decayProgram;
+    private final int compositeProgram;
+
+    // Locations, looked up once.
+    private final int hitMatrixHandle;
+    private final int offsetHandle;
+    private final int incrementHandle;
+    private final int unitsHandle;
+    private final int colorHandle;
+    private final int indexHandle;
+    private final int sampleHandle;
+    private final int decayMatrixHandle;
+    private final int decayPositionHandle;
+    private final int compositeMatrixHandle;
+    private final int compositePositionHandle;
+    private final int hitsHandle;
+    private final int gradientHandle;
+    private final int shownHandle;
+
+    // [0] holds the x coordinates, [1] a batch of frames' samples.
+    private final int[] buffers = new int[2];
+    // [0] holds the hit counts, [1] the gradients.
+    private final int[] textures = new int[2];
+    private final int[] framebuffer = new int[1];
+    private int width = 0;
+    private int height = 0;
+
+    private final FloatBuffer quad;
+    private final ByteBuffer batch = ByteBuffer.allocateDirect(BATCH * COLUMNS);
+    private final int[] batchChannels = new int[BATCH];
+    private final int[] batchCounts = new int[BATCH];
+    private final float[] batchOffsets = new float[BATCH];
+    private final float[] batchIncrements = new float[BATCH];
+    private final float[] batchUnits = new float[BATCH];
+    private int batchSize = 0;
+
+    private float[] matrix;
+    private long lastDecay = 0;
+
+    /**
+     * @param colours red, green and blue of each channel's trace, from 0 to 1.
+     */
+    public PersistenceBuffer(float[][] colours) {
+        hitProgram = WaveformRenderer.loadShader(TraceBatch.rawSampleShaderCode, TraceBatch.fragmentShaderCode);
+        decayProgram = WaveformRenderer.loadShader(quadShaderCode, decayShaderCode);
+        compositeProgram = WaveformRenderer.loadShader(quadShaderCode, compositeShaderCode);
+
+        hitMatrixHandle = GLES20.glGetUniformLocation(hitProgram, "uMVPMatrix");
+        offsetHandle = GLES20.glGetUniformLocation(hitProgram, "uSampleOffset");
+        incrementHandle = GLES20.glGetUniformLocation(hitProgram, "uYIncrement");
+        unitsHandle = GLES20.glGetUniformLocation(hitProgram, "uUnitsPerVolt");
+        colorHandle = GLES20.glGetUniformLocation(hitProgram, "vColor");
+        indexHandle = GLES20.glGetAttribLocation(hitProgram, "aIndex");
+        sampleHandle = GLES20.glGetAttribLocation(hitProgram, "aSample");
+        decayMatrixHandle = GLES20.glGetUniformLocation(decayProgram, "uMVPMatrix");
+        decayPositionHandle = GLES20.glGetAttribLocation(decayProgram, "vPosition");
+        compositeMatrixHandle = GLES20.glGetUniformLocation(compositeProgram, "uMVPMatrix");
+        compositePositionHandle = GLES20.glGetAttribLocation(compositeProgram, "vPosition");
+        hitsHandle = GLES20.glGetUniformLocation(compositeProgram, "uHits");
+        gradientHandle = GLES20.glGetUniformLocation(compositeProgram, "uGradient");
+        shownHandle = GLES20.glGetUniformLocation(compositeProgram, "uShown");
+
+        ByteBuffer bb = ByteBuffer.allocateDirect(COLUMNS * 4);
+        bb.order(ByteOrder.nativeOrder());
+        FloatBuffer columns = bb.asFloatBuffer();
+
+        for (int i = 0; i < COLUMNS; ++i) {
+            columns.put((float) i);
+        }
+
+        columns.flip();
+
+        GLES20.glGenBuffers(2, buffers, 0);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, buffers[0]);
+        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, COLUMNS * 4, columns, GLES20.GL_STATIC_DRAW);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, buffers[1]);
+        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, BATCH * COLUMNS, null, GLES20.GL_STREAM_DRAW);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+
+        bb = ByteBuffer.allocateDirect(4 * 2 * 4);
+        bb.order(ByteOrder.nativeOrder());
+        quad = bb.asFloatBuffer();
+        quad.put(0.0f).put(SampleConversion.GRID_HEIGHT).put(0.0f).put(0.0f);
+        quad.put(COLUMNS).put(SampleConversion.GRID_HEIGHT).put(COLUMNS).put(0.0f);
+        quad.flip();
+
+        ByteBuffer gradients = ByteBuffer.allocateDirect(GRADIENT_SIZE * 4 * Scpi.CHANNEL_COUNT);
+
+        for (int i = 0; i < Scpi.CHANNEL_COUNT; ++i) {
+            fillGradient(gradients, colours[i]);
+        }
+
+        gradients.flip();
+
+        GLES20.glGenTextures(2, textures, 0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[1]);
+        setTextureParameters();
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, GRADIENT_SIZE, Scpi.CHANNEL_COUNT, 0,
+                GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, gradients);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+
+        GLES20.glGenFramebuffers(1, framebuffer, 0);
+    }
+
+    /**
+     * @return how much is left of a count after elapsed nanoseconds, for a decay time in seconds.
+     */
+    static float decayFactor(long elapsed, float decayTime) {
+        if (decayTime == INFINITE) {
+            return 1.0f;
+        }
+
+        return (float) Math.exp(-elapsed / (decayTime * 1.0e9));
+    }
+
+    /**
+     * Appends one row of the gradient texture: black for no hits, rising through the trace's
+     * colour to white at full count.
+     */
+    static void fillGradient(ByteBuffer into, float[] colour) {
+        for (int level = 0; level < GRADIENT_SIZE; ++level) {
+            float t = level / (float) (GRADIENT_SIZE - 1);
+
+            for (int c = 0; c < 3; ++c) {
+                float value;
+
+                if (level == 0) {
+                    value = 0.0f;
+                } else if (t < 0.5f) {
+                    value = colour[c] * (0.2f + 1.6f * t);
+                } else {
+                    value = colour[c] + (1.0f - colour[c]) * (2.0f * t - 1.0f);
+                }
+
+                into.put((byte) Math.round(255.0f * Math.min(1.0f, value)));
+            }
+
+            into.put((byte) 255);
+        }
+    }
+
+    private static void setTextureParameters() {
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+    }
+
+    /**
+     * Matches the hit texture to the surface, one texel per pixel, which empties it.
+     */
+    public void resize(int width, int height) {
+        if (width == this.width && height == this.height) {
+            return;
+        }
+
+        this.width = width;
+        this.height = height;
+
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[0]);
+        setTextureParameters();
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0,
+                GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffer[0]);
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                GLES20.GL_TEXTURE_2D, textures[0], 0);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+
+        clear();
+    }
+
+    public void clear() {
+        batchSize = 0;
+
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffer[0]);
+        GLES20.glClearColor(0.0f, 0.0f, 0.0f, 0.0f);
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+        GLES20.glClearColor(0.0f, 0.0f, 0.0f, 1.0f);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+    }
+
+    /**
+     * Fades what has built up since the last call, before this draw's frames are added.
+     *
+     * @param now System.nanoTime().
+     * @param decayTime seconds for a count to fall to 1/e, or {@link #INFINITE} to keep it.
+     */
+    public void begin(float[] matrix, long now, float decayTime) {
+        this.matrix = matrix;
+        float decay = decayFactor(now - lastDecay, decayTime);
+
+        if (decay > MAX_DECAY_STEP) {
+            if (decayTime == INFINITE) {
+                lastDecay = now;
+            }
+
+            return;
+        }
+
+        lastDecay = now;
+
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffer[0]);
+        GLES20.glBlendEquation(GLES20.GL_FUNC_REVERSE_SUBTRACT);
+        GLES20.glBlendFunc(GLES20.GL_ONE, GLES20.GL_CONSTANT_ALPHA);
+        GLES20.glBlendColor(0.0f, 0.0f, 0.0f, decay);
+
+        GLES20.glUseProgram(decayProgram);
+        drawQuad(decayMatrixHandle, decayPositionHandle);
+
+        GLES20.glBlendEquation(GLES20.GL_FUNC_ADD);
+        GLES20.glBlendFunc(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+    }
+
+    /**
+     * Stages a frame to be drawn in by {@link #end()}. The frame can be recycled straight after.
+     *
+     * @param channel numbered from 1.
+     */
+    public void add(int channel, ByteBuffer samples, Preamble preamble) {
+        if (batchSize == BATCH) {
+            flush();
+        }
+
+        int position = samples.position();
+        int limit = samples.limit();
+        int count = Math.min(COLUMNS, samples.remaining());
+
+        batch.limit(batch.capacity());
+        batch.position(batchSize * COLUMNS);
+        samples.limit(position + count);
+        batch.put(samples);
+        samples.limit(limit);
+        samples.position(position);
+
+        batchChannels[batchSize] = channel - 1;
+        batchCounts[batchSize] = count;
+        batchOffsets[batchSize] = SampleConversion.sampleOffset(preamble);
+        batchIncrements[batchSize] = (float) preamble.yIncrement;
+        batchUnits[batchSize] = SampleConversion.unitsPerVolt(preamble);
+        ++batchSize;
+    }
+
+    public void end() {
+        flush();
+    }
+
+    // Uploads the batch once and draws each frame in it as its own line strip.
+    private void flush() {
+        if (batchSize == 0) {
+            return;
+        }
+
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffer[0]);
+        GLES20.glBlendFunc(GLES20.GL_ONE, GLES20.GL_ONE);
+        GLES20.glUseProgram(hitProgram);
+        GLES20.glUniformMatrix4fv(hitMatrixHandle, 1, false, matrix, 0);
+
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, buffers[0]);
+        GLES20.glEnableVertexAttribArray(indexHandle);
+        GLES20.glVertexAttribPointer(indexHandle, 1, GLES20.GL_FLOAT, false, 4, 0);
+
+        // Orphaning the old contents means no waiting on draws that still read them.
+        batch.position(0);
+        batch.limit(batchSize * COLUMNS);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, buffers[1]);
+        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, BATCH * COLUMNS, null, GLES20.GL_STREAM_DRAW);
+        GLES20.glBufferSubData(GLES20.GL_ARRAY_BUFFER, 0, batch.remaining(), batch);
+        GLES20.glEnableVertexAttribArray(sampleHandle);
+
+        float hit = HIT_LEVELS / 255.0f;
+
+        for (int i = 0; i < batchSize; ++i) {
+            int channel = batchChannels[i];
+            GLES20.glUniform1f(offsetHandle, batchOffsets[i]);
+            GLES20.glUniform1f(incrementHandle, batchIncrements[i]);
+            GLES20.glUniform1f(unitsHandle, batchUnits[i]);
+            GLES20.glUniform4f(colorHandle, channel == 0 ? hit : 0.0f, channel == 1 ? hit : 0.0f,
+                    channel == 2 ? hit : 0.0f, channel == 3 ? hit : 0.0f);
+            GLES20.glVertexAttribPointer(sampleHandle, 1, GLES20.GL_UNSIGNED_BYTE, false, 1, i * COLUMNS);
+            GLES20.glDrawArrays(GLES20.GL_LINE_STRIP, 0, batchCounts[i]);
+        }
+
+        GLES20.glDisableVertexAttribArray(indexHandle);
+        GLES20.glDisableVertexAttribArray(sampleHandle);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        GLES20.glBlendFunc(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        batchSize = 0;
+    }
+
+    /**
+     * Adds the graded hits to whatever is on screen.
+     *
+     * @param shown indexed from 0; channels left out are not drawn, though they stay in the buffer.
+     */
+    public void draw(boolean[] shown) {
+        GLES20.glBlendFunc(GLES20.GL_ONE, GLES20.GL_ONE);
+        GLES20.glUseProgram(compositeProgram);
+
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[0]);
+        GLES20.glUniform1i(hitsHandle, 0);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[1]);
+        GLES20.glUniform1i(gradientHandle, 1);
+        GLES20.glUniform4f(shownHandle, shown[0] ? 1.0f : 0.0f,
+                shown[1] ? 1.0f : 0.0f, shown[2] ? 1.0f : 0.0f, shown[3] ? 1.0f : 0.0f);
+
+        drawQuad(compositeMatrixHandle, compositePositionHandle);
+
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBlendFunc(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA);
+    }
+
+    private void drawQuad(int matrixHandle, int positionHandle) {
+        GLES20.glUniformMatrix4fv(matrixHandle, 1, false, matrix, 0);
+
+        GLES20.glEnableVertexAttribArray(positionHandle);
+        GLES20.glVertexAttribPointer(positionHandle, 2, GLES20.GL_FLOAT, false, 8, quad);
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+        GLES20.glDisableVertexAttribArray(positionHandle);
+    }
+}
@@ -0,0 +1,340 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays a {@link Capture} back into a waveform sink, such as the {@link WaveformView}, in place of
+ * a live {@link Scope}.
+ *
+ * Frames go out at the pace they were recorded, scaled by the speed, forwards or in reverse. A
+ * playback thread reads the next frames in the direction of play ahead of time into pooled frames,
+ * so only the index and a few frames are ever in memory. If the sink cannot keep up, as at 100x,
+ * frames are skipped to stay on time rather than falling behind. Long pauses in the recording are
+ * skipped over too.
+ */
+public class PlaybackSource {
+    private static final String TAG = "PLAYBACK";
+
+    public static final float MIN_SPEED = 0.1f;
+    public static final float MAX_SPEED = 100.0f;
+
+    private static final int PREFETCH = 32;
+    private static final int POOL_SIZE = PREFETCH + 32;
+    // More frames than this overdue, and play jumps ahead to the latest of them.
+    private static final int MAX_BURST = 2 * Scpi.CHANNEL_COUNT;
+    private static final long MAX_GAP = 1000000000L;
+    private static final long MAX_WAIT = 10000000L;
+
+    private final Capture _capture;
+    private final Scope.WaveformSink _sink;
+    private final FramePool _pool = new FramePool(POOL_SIZE, Scope.RESULT_BUFFER_SIZE);
+
+    private volatile PlayerThread _player = null;
+    private volatile float _speed = 1.0f;
+    private volatile boolean _reverse = false;
+    private volatile boolean _paused = false;
+    private volatile int _position = -1;
+    private final AtomicInteger _seek = new AtomicInteger(-1);
+
+    public PlaybackSource(Capture capture, Scope.WaveformSink sink) {
+        _capture = capture;
+        _sink = sink;
+    }
+
+    public synchronized void start() {
+        if (_player == null && _capture.getFrameCount() > 0) {
+            _player = new PlayerThread();
+            _player.start();
+        }
+    }
+
+    public synchronized void stop() {
+        PlayerThread player = _player;
+
+        if (player == null) {
+            return;
+        }
+
+        _player = null;
+        LockSupport.unpark(player);
+
+        try {
+            player.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public boolean isPaused() {
+        return _paused;
+    }
+
+    public void setPaused(boolean paused) {
+        _paused = paused;
+        wake();
+    }
+
+    /**
+     * @param speed clamped to between {@link #MIN_SPEED} and {@link #MAX_SPEED}.
+     */
+    public void setSpeed(float speed) {
+        _speed = Math.max(MIN_SPEED, Math.min(MAX_SPEED, speed));
+        wake();
+    }
+
+    public float getSpeed() {
+        return _speed;
+    }
+
+    public boolean isReverse() {
+        return _reverse;
+    }
+
+    public void setReverse(boolean reverse) {
+        _reverse = reverse;
+        wake();
+    }
+
+    /**
+     * Shows the given frame next and carries on from there.
+     */
+    public void seekFrame(int frame) {
+        _seek.set(Math.max(0, Math.min(_capture.getFrameCount() - 1, frame)));
+        wake();
+    }
+
+    /**
+     * @param nanos from the start of the capture.
+     */
+    public void seekTime(long nanos) {
+        seekFrame(_capture.frameAt(_capture.getStartTime() + nanos));
+    }
+
+    /**
+     * @return the frame last handed to the sink, or -1 if there has not been one yet.
+     */
+    public int getPosition() {
+        return _position;
+    }
+
+    /**
+     * @return how far into the capture the last frame handed to the sink was.
+     */
+    public long getPositionTime() {
+        int position = _position;
+        return position < 0 ? 0 : _capture.getTimestamp(position) - _capture.getStartTime();
+    }
+
+    public long getDuration() {
+        return _capture.getEndTime() - _capture.getStartTime();
+    }
+
+    private void wake() {
+        PlayerThread player = _player;
+
+        if (player != null) {
+            LockSupport.unpark(player);
+        }
+    }
+
+    private class PlayerThread extends Thread {
+        private final int _count = _capture.getFrameCount();
+
+        // Frames read ahead, _ahead_first onwards in the direction of _ahead_step, in a ring.
+        private final WaveformFrame[] _ahead = new WaveformFrame[PREFETCH];
+        private int _ahead_head = 0;
+        private int _ahead_count = 0;
+        private int _ahead_first = 0;
+        private int _ahead_step = 1;
+
+        // Frames taken from the pool that the sink has not got.
+        private final WaveformFrame[] _spare = new WaveformFrame[POOL_SIZE];
+        private int _spare_count = 0;
+
+        private int _step = 1;
+        private int _next = 0;
+        private double _clock;
+        private long _last_wall;
+
+        PlayerThread() {
+            super("PlaybackSource");
+        }
+
+        @Override
+        public void run() {
+            _clock = _capture.getTimestamp(0);
+            _last_wall = System.nanoTime();
+
+            try {
+                while (_player == this) {
+                    play();
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Playback stopped", e);
+                _paused = true;
+            }
+        }
+
+        private void play() throws IOException {
+            long now = System.nanoTime();
+            long elapsed = now - _last_wall;
+            _last_wall = now;
+
+            int step = _reverse ? -1 : 1;
+
+            if (step != _step) {
+                _step = step;
+                _next = _position + step;
+            }
+
+            int seek = _seek.getAndSet(-1);
+
+            if (seek >= 0) {
+                _next = seek;
+                _clock = _capture.getTimestamp(seek);
+                emit(seek);
+                _next = seek + step;
+            }
+
+            if (_next < 0 || _next >= _count) {
+                _paused = true;
+            }
+
+            if (_paused) {
+                prefetch();
+                LockSupport.parkNanos(MAX_WAIT);
+                return;
+            }
+
+            long due = _capture.getTimestamp(_next);
+
+            if ((due - _clock) * step > MAX_GAP) {
+                _clock = due;
+            }
+
+            _clock += step * elapsed * (double) _speed;
+
+            // The last frame that is due, in the direction of play.
+            int target = _capture.frameAt((long) _clock);
+
+            if (step < 0 && _capture.getTimestamp(target) < _clock) {
+                ++target;
+            }
+
+            if ((target - _next) * step >= MAX_BURST) {
+                _next = target - step * (MAX_BURST - 1);
+            }
+
+            while ((target - _next) * step >= 0 && _next >= 0 && _next < _count) {
+                if (!emit(_next)) {
+                    break;
+                }
+
+                _next += step;
+            }
+
+            prefetch();
+
+            if (_next >= 0 && _next < _count) {
+                long wait = (long) (Math.abs(_capture.getTimestamp(_next) - _clock) / _speed);
+                LockSupport.parkNanos(Math.max(0, Math.min(MAX_WAIT, wait)));
+            }
+        }
+
+        // Returns false if every pooled frame is still with the sink.
+        private boolean emit(int index) throws IOException {
+            WaveformFrame frame = take(index);
+
+            if (frame == null) {
+                return false;
+            }
+
+            _position = index;
+
+            if (!_sink.frame(frame)) {
+                _spare[_spare_count++] = frame;
+            }
+
+            return true;
+        }
+
+        private WaveformFrame take(int index) throws IOException {
+            if (_ahead_count > 0 && _ahead_first == index && _ahead_step == _step) {
+                WaveformFrame frame = _ahead[_ahead_head];
+                _ahead[_ahead_head] = null;
+                _ahead_head = (_ahead_head + 1) % PREFETCH;
+                --_ahead_count;
+                _ahead_first += _ahead_step;
+                return frame;
+            }
+
+            flush();
+            WaveformFrame frame = obtain();
+
+            if (frame != null) {
+                _capture.read(index, frame);
+            }
+
+            return frame;
+        }
+
+        // Reads ahead of _next in the direction of play.
+        private void prefetch() throws IOException {
+            if (_ahead_count > 0 && (_ahead_first != _next || _ahead_step != _step)) {
+                flush();
+            }
+
+            if (_ahead_count == 0) {
+                _ahead_first = _next;
+                _ahead_step = _step;
+            }
+
+            while (_ahead_count < PREFETCH) {
+                int index = _ahead_first + _ahead_count * _ahead_step;
+
+                if (index < 0 || index >= _count) {
+                    break;
+                }
+
+                WaveformFrame frame = obtain();
+
+                if (frame == null) {
+                    break;
+                }
+
+                _capture.read(index, frame);
+                _ahead[(_ahead_head + _ahead_count) % PREFETCH] = frame;
+                ++_ahead_count;
+            }
+        }
+
+        private void flush() {
+            while (_ahead_count > 0) {
+                _spare[_spare_count++] = _ahead[_ahead_head];
+                _ahead[_ahead_head] = null;
+                _ahead_head = (_ahead_head + 1) % PREFETCH;
+                --_ahead_count;
+            }
+        }
+
+        // Frames only go back to the pool from the sink's side, so ours are kept here.
+        private WaveformFrame obtain() {
+            if (_spare_count > 0) {
+                WaveformFrame frame = _spare[--_spare_count];
+                _spare[_spare_count] = null;
+                return frame;
+            }
+
+            return _pool.acquire();
+        }
+    }
+}
@@ -6,84 +6,93 @@
 package com.geospark.scoperoid;
 
 import android.hardware.usb.UsbDevice;
-import android.hardware.usb.UsbDeviceConnection;
-import android.hardware.usb.UsbEndpoint;
-import android.hardware.usb.UsbInterface;
 import android.hardware.usb.UsbManager;
-import android.os.AsyncTask;
+import android.os.Debug;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.util.ArrayDeque;
-import java.util.Arrays;
 import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 public class Scope {
     public static final String TAG = "USBTMC";
 
-    public static final String IEEE4882_CLS = "*CLS";
-    public static final String IEEE4882_ESE = "*ESE";
-    public static final String IEEE4882_ESE_Q = "*ESE?";
-    public static final String IEEE4882_ESR_Q = "*ESR?";
-    public static final String IEEE4882_IDN_Q = "*IDN?";
-    public static final String IEEE4882_OPC = "*OPC";
-    public static final String IEEE4882_OPC_Q = "*OPC?";
-    public static final String IEEE4882_RST = "*RST";
-    public static final String IEEE4882_SRE = "*SRE";
-    public static final String IEEE4882_SRE_Q = "*SRE?";
-    public static final String IEEE4882_STB_Q = "*STB?";
-    public static final String IEEE4882_TST_Q = "*TST?";
-    public static final String IEEE4882_WAI = "*WAI";
-
-    public static final String RUN = ":RUN";
-    public static final String STOP = ":STOP";
-
-    public static final String WAV_SOURCE = ":WAV:SOUR";
-    public static final String WAV_MODE = ":WAV:MODE";
-    public static final String WAV_FORMAT = ":WAV:FORM";
-    public static final String WAV_DATA_Q = ":WAV:DATA?";
-    public static final String WAV_XINCREMENT_Q = ":WAV:XINC?";
-    public static final String WAV_XORIGIN_Q = ":WAV:XOR?";
-    public static final String WAV_XREFERENCE_Q = ":WAV:XREF?";
-    public static final String WAV_YINCREMENT_Q = ":WAV:YINC?";
-    public static final String WAV_YORIGIN_Q = ":WAV:YOR?";
-    public static final String WAV_YREFERENCE_Q = ":WAV:YREF?";
-    public static final String WAV_START = ":WAV:STAR";
-    public static final String WAV_STOP = ":WAV:STOP";
-    public static final String WAV_PREAMBLE_Q = ":WAV:PRE?";
-
-    public static final String DISP_GBR = ":DISP:GBR";
-
-    public static final int WAV_PREAMBLE_FORMAT = 0;
-    public static final int WAV_PREAMBLE_TYPE = 1;
-    public static final int WAV_PREAMBLE_POINTS = 2;
-    public static final int WAV_PREAMBLE_COUNT = 3;
-    public static final int WAV_PREAMBLE_XINCREMENT = 4;
-    public static final int WAV_PREAMBLE_XORIGIN = 5;
-    public static final int WAV_PREAMBLE_XREFERENCE = 6;
-    public static final int WAV_PREAMBLE_YINCREMENT = 7;
-    public static final int WAV_PREAMBLE_YORIGIN = 8;
-    public static final int WAV_PREAMBLE_YREFERENCE = 9;
-
-    private static final byte USBTMC_MSGID_DEV_DEP_MSG_OUT = 1;
-    private static final byte USBTMC_MSGID_DEV_DEP_MSG_IN = 2;
+    // One message per channel, so switching the source costs no extra round trip. Built once so
+    // polling never has to build strings.
+    private static final String[] CHANNEL_DATA_Q = new String[Scpi.CHANNEL_COUNT + 1];
+    private static final String[] CHANNEL_PREAMBLE_Q = new String[Scpi.CHANNEL_COUNT + 1];
+
+    static {
+        for (int channel = 1; channel <= Scpi.CHANNEL_COUNT; ++channel) {
+            CHANNEL_DATA_Q[channel] = Scpi.WAV_SOURCE + " " + Scpi.channelSource(channel) + ";" + Scpi.WAV_DATA_Q;
+            CHANNEL_PREAMBLE_Q[channel] = Scpi.WAV_SOURCE + " " + Scpi.channelSource(channel) + ";" + Scpi.WAV_PREAMBLE_Q;
+        }
+    }
 
     public interface ScopeCallback {
         void result(String command, byte[] data);
     }
 
-    private UsbDeviceConnection _connection = null;
-    private UsbEndpoint _endpoint_in = null;
-    private UsbEndpoint _endpoint_out = null;
-    private int _max_packet_size = 64;
-    private byte _mbtag = 0;
-    private ByteBuffer _packet_buffer;
-    private ByteBuffer _result_buffer;
+    /**
+     * Takes waveform frames straight from the acquisition thread. The sink becomes the frame's
+     * owner if it accepts it, and must recycle it when done.
+     */
+    public interface WaveformSink {
+        boolean frame(WaveformFrame frame);
+    }
 
-    private Queue<String> _command_queue = new ArrayDeque<>();
+    /**
+     * Takes :DISP:DATA? screenshots straight from the acquisition thread, on the same terms as
+     * a {@link WaveformSink}.
+     */
+    public interface ScreenSink {
+        boolean screen(ScreenFrame frame);
+    }
 
-    ScopeCallback _result_callback = null;
+    static final int RESULT_BUFFER_SIZE = 4096;
+    private static final int RECEIVE_CHUNK_SIZE = 16384;
+    private static final int FRAME_POOL_SIZE = 24;
+    private static final long FRAME_RATE_INTERVAL = 1000000000L;
+    // Long enough for a command's worth of transfers to time out.
+    private static final long SHUTDOWN_TIMEOUT = 5000;
+    // Screenshots are big, so only as many as it takes to keep one filling, one queued and one
+    // drawn, and only once mirroring starts. The DS1000Z screen is 800x480.
+    private static final int SCREEN_POOL_SIZE = 3;
+    private static final int SCREEN_FRAME_CAPACITY = 800 * 480 * 3;
+
+    private int _transfer_size = UsbtmcTransfer.DEFAULT_TRANSFER_SIZE;
+    private final BlockingQueue<String> _command_queue = new LinkedBlockingQueue<>();
+    private final Queue<Transport.Job> _jobs = new ConcurrentLinkedQueue<>();
+    private volatile String[] _poll_commands = new String[0];
+    private volatile int[] _channels = new int[0];
+    private volatile boolean _pipelined = false;
+    private volatile boolean _scheduled = true;
+    private final ScopeState _state = new ScopeState();
+    private final PipelineStats _stats = new PipelineStats();
+    private final Measurements[] _measurements = new Measurements[Scpi.CHANNEL_COUNT + 1];
+    private volatile boolean _measuring = false;
+    private AcquisitionThread _worker = null;
+    private AcquisitionThread _stopping = null;
+
+    private volatile float _frame_rate = 0.0f;
+    private final float[] _channel_frame_rates = new float[Scpi.CHANNEL_COUNT + 1];
+    private volatile long _transfer_gap = 0;
+    private volatile float _screen_rate = 0.0f;
+    private volatile long _screen_memory = 0;
+    private volatile float _allocations_per_frame = 0.0f;
+
+    volatile ScopeCallback _result_callback = null;
+    private volatile Executor _callback_executor;
+    private volatile WaveformSink _waveform_sink = null;
+    private volatile ScreenSink _screen_sink = null;
+    private volatile ScopeState.Listener _state_listener = null;
 
     public void register(ScopeCallback cb) {
         _result_callback = cb;
@@ -94,30 +103,283 @@ public class Scope {
     }
 
     public Scope() {
+        for (int i = 0; i <= Scpi.CHANNEL_COUNT; ++i) {
+            _measurements[i] = new Measurements();
+        }
+
+        final Handler handler = new Handler(Looper.getMainLooper());
+
+        _callback_executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                handler.post(command);
+            }
+        };
+    }
+
+    /**
+     * Results are handed to the callback on the UI thread unless told otherwise. The acquisition
+     * thread never waits for the callback to run.
+     */
+    public void setCallbackExecutor(Executor executor) {
+        _callback_executor = executor;
+    }
+
+    /**
+     * Sends :WAV:DATA? responses to the sink as pooled frames instead of through the callback.
+     */
+    public void setWaveformSink(WaveformSink sink) {
+        _waveform_sink = sink;
+    }
+
+    /**
+     * Sends :DISP:DATA? responses to the sink, decoded into pooled frames as they stream in.
+     */
+    public void setScreenSink(ScreenSink sink) {
+        _screen_sink = sink;
+    }
+
+    /**
+     * Hears about preambles that have changed, on the callback executor. Preambles are read
+     * before a channel's waveform whenever the cached one is stale, so there is no need to poll
+     * :WAV:PRE? as well.
+     */
+    public void setStateListener(ScopeState.Listener listener) {
+        _state_listener = listener;
+    }
+
+    public ScopeState getState() {
+        return _state;
+    }
+
+    /**
+     * @return timings of each stage a waveform goes through, which the acquisition thread fills
+     * in as far as the sink; pass them on to the sink for the rest.
+     */
+    public PipelineStats getStats() {
+        return _stats;
+    }
+
+    /**
+     * Measures every waveform received while on, on the acquisition thread, as it comes in.
+     */
+    public void setMeasuring(boolean measuring) {
+        _measuring = measuring;
+    }
+
+    public boolean isMeasuring() {
+        return _measuring;
+    }
+
+    /**
+     * @return the measurements of a channel, numbered from 1, which start afresh whenever its
+     * preamble changes.
+     */
+    public Measurements getMeasurements(int channel) {
+        return _measurements[channel];
     }
 
     public void connectUSB(UsbManager mgr, UsbDevice device) {
-        UsbInterface device_interface = device.getInterface(0);
-        _connection = mgr.openDevice(device);
+        UsbTransport transport = UsbTransport.open(mgr, device);
+
+        if (transport != null) {
+            transport.setTransferSize(_transfer_size);
+            connect(transport);
+        }
+    }
+
+    /**
+     * Talks raw SCPI to a LAN-connected 'scope. The socket is opened by the first command, on the
+     * acquisition thread.
+     */
+    public void connectTCP(String host, int port) {
+        connect(new TcpTransport(host, port));
+    }
+
+    /**
+     * Hands the transport to a new acquisition thread, which owns it from then on and closes it
+     * when we disconnect.
+     */
+    public synchronized void connect(Transport transport) {
+        disconnect();
+
+        // Interrupting doesn't abort a USB transfer, so the old thread may still be finishing a
+        // command, and would write to the state or deliver a frame after we start afresh.
+        if (!joinStopping()) {
+            Log.w(TAG, "Acquisition thread still running after " + SHUTDOWN_TIMEOUT + "ms");
+        }
+
+        _state.clear();
+        _worker = new AcquisitionThread(transport);
+        _worker.start();
+    }
+
+    /**
+     * Asks the acquisition thread to stop, without waiting for it; the next connection waits.
+     */
+    public synchronized void disconnect() {
+        if (_worker != null) {
+            _worker.shutdown();
+            _stopping = _worker;
+            _worker = null;
+        }
+
+        _command_queue.clear();
+        _jobs.clear();
+        _poll_commands = new String[0];
+    }
+
+    /**
+     * Stops polling and waits for the command in flight to finish, so that once this returns no
+     * more frames reach the sink until polling starts again or a command is posted.
+     *
+     * @return false if the acquisition thread was still busy after waiting a while.
+     */
+    public boolean stopPolling() {
+        setPollCommands();
+        final CountDownLatch idle = new CountDownLatch(1);
+
+        synchronized (this) {
+            if (_worker == null) {
+                return joinStopping();
+            }
+
+            submit(new Transport.Job() {
+                @Override
+                public void run(Transport transport, Executor callbacks) {
+                    idle.countDown();
+                }
+            });
+        }
+
+        try {
+            return idle.await(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private synchronized boolean joinStopping() {
+        if (_stopping == null) {
+            return true;
+        }
 
-        if (_connection != null) {
-            _connection.claimInterface(device_interface, true);
-            _endpoint_in = device_interface.getEndpoint(1);
-            _endpoint_out = device_interface.getEndpoint(2);
-            _max_packet_size = _endpoint_in.getMaxPacketSize();
-            _packet_buffer = ByteBuffer.allocate(_max_packet_size);
-            _packet_buffer.order(ByteOrder.LITTLE_ENDIAN);
-            _result_buffer = ByteBuffer.allocate(4096);
+        try {
+            _stopping.join(SHUTDOWN_TIMEOUT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
+
+        boolean stopped = !_stopping.isAlive();
+        _stopping = null;
+        return stopped;
+    }
+
+    /**
+     * Sets the largest payload asked for in one USBTMC DEV_DEP_MSG_IN request. The default asks
+     * for the whole response in one go. Takes effect on the next connection.
+     */
+    public void setTransferSize(int size) {
+        _transfer_size = size;
+    }
+
+    /**
+     * @return waveforms received per second over the last second or so, all channels together.
+     */
+    public float getFrameRate() {
+        return _frame_rate;
+    }
+
+    /**
+     * @return waveforms received per second for one channel, numbered from 1.
+     */
+    public float getFrameRate(int channel) {
+        // Reading the volatile first makes the per-channel rates written before it visible.
+        float total = _frame_rate;
+        return total > 0.0f ? _channel_frame_rates[channel] : 0.0f;
+    }
+
+    /**
+     * @return the mean time in nanoseconds between one transfer finishing and the next
+     * :WAV:DATA? going out, over the last second or so.
+     */
+    public long getTransferGap() {
+        return _transfer_gap;
+    }
+
+    /**
+     * @return screenshots received per second over the last second or so.
+     */
+    public float getScreenFrameRate() {
+        return _screen_rate;
     }
 
-    public void disconnectUSB() {
-        if (_connection != null) {
-            _connection.close();
-            _connection = null;
+    /**
+     * @return the most bytes mirroring has held at once: the screenshot frames, which are reused,
+     * and the chunk each whole BMP streams through.
+     */
+    public long getScreenMemory() {
+        return _screen_memory;
+    }
+
+    /**
+     * @return objects allocated by the acquisition thread per waveform, over the last second or
+     * so. Only counted while {@link Debug#startAllocCounting()} is in effect.
+     */
+    public float getAllocationsPerFrame() {
+        return _allocations_per_frame;
+    }
+
+    /**
+     * Sets the commands the acquisition thread cycles through, back to back, whenever nothing
+     * has been posted. Posted commands always go first.
+     */
+    public void setPollCommands(String... commands) {
+        _poll_commands = commands.clone();
+
+        if (_command_queue.isEmpty()) {
+            // Wake the worker up if it is waiting for something to do.
+            _command_queue.offer("");
         }
     }
 
+    /**
+     * Has every :WAV:DATA? in the poll commands fetch each of these channels, numbered from 1,
+     * in turn. Frames are tagged with their channel, and :WAV:PRE? cycles through the channels
+     * the same way. With no channels the 'scope's current source is fetched as channel 1.
+     */
+    public void setChannels(int... channels) {
+        _channels = channels.clone();
+    }
+
+    /**
+     * When on, each channel's request goes out before the response in front of it has been
+     * read, and the first request of the next batch goes out with the last of this one, so the
+     * 'scope never waits on us between transfers. Only for transports where the 'scope buffers
+     * its input, such as LAN; over USBTMC a new message discards the response still pending.
+     */
+    public void setPipelined(boolean pipelined) {
+        _pipelined = pipelined;
+    }
+
+    /**
+     * When on, which it is by default, :WAV:DATA? is only polled when :TRIG:STAT? says a new
+     * acquisition may be ready, no faster than the timebase allows, and frames that are the
+     * same acquisition read again never reach the sink. When off it is polled flat out.
+     */
+    public void setScheduled(boolean scheduled) {
+        _scheduled = scheduled;
+    }
+
+    /**
+     * Runs the job on the acquisition thread once the command in flight has finished.
+     */
+    public void submit(Transport.Job job) {
+        _jobs.add(job);
+        _command_queue.offer("");
+    }
+
     void postCommand(String command, String... params) {
         StringBuilder sb = new StringBuilder();
         sb.append(command);
@@ -129,116 +391,514 @@ public class Scope {
 
         _command_queue.add(sb.toString());
 //        Log.d("USBTMC >>>", command);
+    }
+
+    private class AcquisitionThread extends Thread {
+        private final Transport _transport;
+        private final ByteBuffer _result_buffer = ByteBuffer.allocateDirect(RESULT_BUFFER_SIZE);
+        private final ByteBuffer _receive_chunk = ByteBuffer.allocateDirect(RECEIVE_CHUNK_SIZE);
+        private final BlockParser _parser = new BlockParser();
+        private long _result_overflow = 0;
+        private final FramePool _pool = new FramePool(FRAME_POOL_SIZE, RESULT_BUFFER_SIZE);
+        private WaveformFrame _spare = null;
+        private final MeasurementEngine[] _engines = new MeasurementEngine[Scpi.CHANNEL_COUNT + 1];
+        private final AcquisitionScheduler _scheduler = new AcquisitionScheduler();
+        private final SpscQueue<ScreenFrame> _screen_free = new SpscQueue<>(SCREEN_POOL_SIZE);
+        private int _screen_frames = 0;
+        private ScreenFrame _screen_spare = null;
+        private int _screen_count = 0;
+        private long _screen_count_start = System.nanoTime();
+        private volatile boolean _running = true;
+        private int _poll_index = 0;
+        private int _preamble_index = 0;
+
+        // The channel whose :WAV:DATA? has been sent ahead but not read yet, or 0.
+        private int _in_flight = 0;
+
+        private int _frame_count = 0;
+        private final int[] _channel_frame_counts = new int[Scpi.CHANNEL_COUNT + 1];
+        private long _frame_count_start = System.nanoTime();
+        private long _last_transfer_end = 0;
+        private long _gap_total = 0;
+        private int _alloc_count_start = 0;
+
+        // Keeps what fits of a reply to hand to the callback, and counts the rest.
+        private final BlockParser.Sink _result_sink = new BlockParser.Sink() {
+            @Override
+            public void payload(ByteBuffer bytes) {
+                int count = Math.min(bytes.remaining(), _result_buffer.remaining());
+                int limit = bytes.limit();
+
+                bytes.limit(bytes.position() + count);
+                _result_buffer.put(bytes);
+                bytes.limit(limit);
+
+                _result_overflow += bytes.remaining();
+                bytes.position(limit);
+            }
+        };
 
-        if (_command_queue.size() == 1) {
-            new GetDataTask().execute();
+        AcquisitionThread(Transport transport) {
+            super("Acquisition");
+            _transport = transport;
         }
-    }
 
-    private class GetDataTask extends AsyncTask<Void, Void, byte[]> {
-        private static final int USB_TIMEOUT = 1000;
+        void shutdown() {
+            _running = false;
+            interrupt();
+        }
+
+        @Override
+        public void run() {
+            _alloc_count_start = Debug.getThreadAllocCount();
+
+            try {
+                while (_running) {
+                    Transport.Job job = _jobs.poll();
+
+                    if (job != null) {
+                        finishInFlight();
+                        job.run(_transport, _callback_executor);
+                        _state.invalidate();
+                        _scheduler.invalidate();
+                        _last_transfer_end = 0;
+                        continue;
+                    }
+
+                    String command = nextCommand();
+
+                    if (!command.isEmpty()) {
+                        execute(command);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // We've been asked to stop.
+            } finally {
+                _transport.close();
+            }
+        }
+
+        private String nextCommand() throws InterruptedException {
+            String command = _command_queue.poll();
+
+            if (command != null) {
+                return command;
+            }
+
+            String[] poll = _poll_commands;
+
+            if (poll.length == 0) {
+                return _command_queue.take();
+            }
+
+            command = poll[_poll_index % poll.length];
+
+            if (_scheduled && Scpi.WAV_DATA_Q.equals(command)) {
+                long delay = scheduleAcquisition();
 
-        // Assumes for now command <= 52 bytes long.
-        protected void send_command(String command) {
-            _mbtag = (byte) ((_mbtag % 255) + 1);
-            _packet_buffer.clear();
-            _packet_buffer.put(USBTMC_MSGID_DEV_DEP_MSG_OUT);
-            _packet_buffer.put(_mbtag);
-            _packet_buffer.put((byte) (_mbtag ^ 0xff));
-            _packet_buffer.put((byte) 0x00);
+                if (delay > 0) {
+                    // Posted commands still go straight away, and come back here after.
+                    command = _command_queue.poll(delay, TimeUnit.NANOSECONDS);
+                    return command != null ? command : "";
+                }
+            }
+
+            _poll_index = (_poll_index + 1) % poll.length;
+            return command;
+        }
 
-            _packet_buffer.putInt(command.length());
-            _packet_buffer.put((byte) 0x01); // EoM
-            _packet_buffer.put((byte) 0x00);
-            _packet_buffer.put((byte) 0x00);
-            _packet_buffer.put((byte) 0x00);
+        // Asks for the trigger status if it is due, and returns how long to wait before
+        // fetching, or 0 to fetch now.
+        private long scheduleAcquisition() {
+            int[] channels = _channels;
+            _scheduler.setPreamble(_state.getPreamble(channels.length > 0 ? channels[0] : 1));
+            long now = System.nanoTime();
+
+            // A batch already started ahead was judged ready when it was sent, and the status can
+            // wait for the next.
+            if (_in_flight != 0) {
+                _scheduler.fetching(now);
+                return 0;
+            }
+
+            if (_scheduler.isStatusDue(now)) {
+                queryTriggerStatus(now);
+                now = System.nanoTime();
+            }
 
-            _packet_buffer.put(command.getBytes());
-            int length_padded = (_packet_buffer.position() + 3) - ((_packet_buffer.position() - 1) % 4);
+            long delay = _scheduler.delay(now);
 
-            if (_connection != null) {
-                _connection.bulkTransfer(_endpoint_out, _packet_buffer.array(), length_padded, USB_TIMEOUT);
+            if (delay == 0) {
+                _scheduler.fetching(now);
             }
+
+            return delay;
         }
 
-        protected void request_data(int size) {
-            _mbtag = (byte) ((_mbtag % 255) + 1);
-            _packet_buffer.clear();
-            _packet_buffer.put(USBTMC_MSGID_DEV_DEP_MSG_IN);
-            _packet_buffer.put(_mbtag);
-            _packet_buffer.put((byte) (_mbtag ^ 0xff));
-            _packet_buffer.put((byte) 0x00);
+        private void queryTriggerStatus(long now) {
+            _result_buffer.clear();
+            _result_overflow = 0;
+
+            boolean complete = _transport.write(Scpi.TRIG_STATUS_Q)
+                    && _parser.receive(_transport, _receive_chunk, _result_sink);
+
+            _result_buffer.flip();
+            final int status = complete ? Scpi.triggerStatus(_result_buffer) : Scpi.TRIG_UNKNOWN;
+            _scheduler.setStatus(status, now);
 
-            _packet_buffer.putInt(size);
-            _packet_buffer.put((byte) 0x01);
-            _packet_buffer.put((byte) 0x00);
-            _packet_buffer.put((byte) 0x00);
-            _packet_buffer.put((byte) 0x00);
+            if (_state.updateTriggerStatus(status)) {
+                _callback_executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        ScopeState.Listener listener = _state_listener;
 
-            if (_connection != null) {
-                _connection.bulkTransfer(_endpoint_out, _packet_buffer.array(), 12, USB_TIMEOUT);
+                        if (listener != null) {
+                            listener.triggerStatusChanged(status);
+                        }
+                    }
+                });
             }
         }
 
-        protected boolean receive_buffer(ByteBuffer bytes) {
-            request_data(_max_packet_size - 12);
+        private void execute(String poll_command) {
+            boolean data = Scpi.WAV_DATA_Q.equals(poll_command);
+            WaveformSink sink = _waveform_sink;
+            int[] channels = _channels;
+            ScreenSink screen_sink = _screen_sink;
+
+            if (screen_sink != null && Scpi.DISP_DATA_Q.equals(poll_command)) {
+                finishInFlight();
+                receiveScreen(screen_sink);
+                return;
+            }
+
+            if (data && sink != null && channels.length > 0) {
+                acquireChannels(channels, sink);
+                return;
+            }
+
+            finishInFlight();
+
+            if (data) {
+                refreshPreamble(1, Scpi.WAV_PREAMBLE_Q);
+            }
+
+            if (channels.length > 0 && Scpi.WAV_PREAMBLE_Q.equals(poll_command)) {
+                poll_command = CHANNEL_PREAMBLE_Q[channels[_preamble_index % channels.length]];
+                _preamble_index = (_preamble_index + 1) % channels.length;
+            }
+
+            final String command = poll_command;
+
+            if (data) {
+                countGap();
+            }
 
-            _packet_buffer.clear();
+            boolean sent = data ? send(command) : _transport.write(command);
 
-            if (_connection == null) {
-                return false;
+            if (data && sink != null) {
+                receiveFrame(sent, sink, 1);
+                return;
             }
 
-            int ret_size = _connection.bulkTransfer(_endpoint_in, _packet_buffer.array(), _max_packet_size, USB_TIMEOUT);
+            final byte[] result;
+            boolean complete = false;
+
+            if (command.endsWith("?")) {
+                _result_buffer.clear();
+                _result_overflow = 0;
 
-            if (ret_size > 0) {
-                _packet_buffer.position(ret_size);
-                _packet_buffer.flip();
-                byte msgid = _packet_buffer.get();
-                byte btag = _packet_buffer.get();
-                byte btaginv = _packet_buffer.get();
-                byte unused = _packet_buffer.get();
+                complete = sent && _parser.receive(_transport, _receive_chunk, _result_sink);
 
-                int xfer_size = _packet_buffer.getInt();
-                byte xfer_attr = _packet_buffer.get();
-                unused = _packet_buffer.get();
-                unused = _packet_buffer.get();
-                unused = _packet_buffer.get();
-                boolean eom = (xfer_attr & 0x01) == 1;
+                if (_result_overflow > 0) {
+                    Log.w(TAG, "Dropped the last " + _result_overflow + " bytes of the reply to " + command);
+                }
 
-                bytes.put(_packet_buffer);
-                return !eom;
+                _result_buffer.flip();
+                result = new byte[_result_buffer.remaining()];
+                _result_buffer.get(result);
             } else {
-                return false;
+                // Any setting may move the preamble or start or stop the 'scope, so check
+                // before the next waveform.
+                _state.invalidate();
+                _scheduler.invalidate();
+                result = null;
+            }
+
+            _last_transfer_end = System.nanoTime();
+//            Log.d("USBTMC <<<", command);
+
+            if (data) {
+                countFrame(1, complete);
+            }
+
+            _callback_executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    ScopeCallback callback = _result_callback;
+
+                    if (callback != null) {
+                        callback.result(command, result);
+                    }
+                }
+            });
+        }
+
+        private void acquireChannels(int[] channels, WaveformSink sink) {
+            int first = 0;
+            long now = System.nanoTime();
+
+            for (int channel : channels) {
+                if (_state.needsRefresh(channel, now)) {
+                    // A preamble went stale after the first channel was sent ahead, so that
+                    // frame has to be taken first and counts as this batch's.
+                    if (_in_flight == channels[0]) {
+                        first = 1;
+                    }
+
+                    finishInFlight();
+                    refreshPreamble(channel, CHANNEL_PREAMBLE_Q[channel]);
+                }
+            }
+
+            for (int i = first; i < channels.length; ++i) {
+                int channel = channels[i];
+                boolean sent = true;
+
+                if (_in_flight != channel) {
+                    finishInFlight();
+                    countGap();
+                    sent = send(CHANNEL_DATA_Q[channel]);
+                }
+
+                _in_flight = 0;
+
+                if (sent && _pipelined) {
+                    int next = i + 1 < channels.length ? channels[i + 1] : nextBatchChannel(channels);
+
+                    if (next != 0 && send(CHANNEL_DATA_Q[next])) {
+                        _in_flight = next;
+                    }
+                }
+
+                receiveFrame(sent, sink, channel);
             }
         }
 
-        @Override
-        protected byte[] doInBackground(Void... params) {
-            String command = _command_queue.peek();
-            send_command(command);
+        // Only start on the next batch early if it is what would run next anyway.
+        private int nextBatchChannel(int[] channels) {
+            String[] poll = _poll_commands;
 
-            if (command.endsWith("?")) {
+            if (!_command_queue.isEmpty() || !_jobs.isEmpty() || poll.length == 0
+                    || !Scpi.WAV_DATA_Q.equals(poll[_poll_index % poll.length])) {
+                return 0;
+            }
+
+            long now = System.nanoTime();
+
+            if (_scheduled && !_scheduler.isReady(now)) {
+                return 0;
+            }
+
+            for (int channel : channels) {
+                if (_state.needsRefresh(channel, now)) {
+                    return 0;
+                }
+            }
+
+            return channels[0];
+        }
+
+        // Only asks for the preamble when the cached one is stale, and only tells anyone if it
+        // has actually changed.
+        private void refreshPreamble(final int channel, String query) {
+            long now = System.nanoTime();
+
+            if (!_state.needsRefresh(channel, now)) {
+                return;
+            }
+
+            finishInFlight();
+            int generation = _state.generation();
+            _result_buffer.clear();
+            _result_overflow = 0;
+
+            boolean complete = _transport.write(query) && _parser.receive(_transport, _receive_chunk, _result_sink);
+
+            _result_buffer.flip();
+            byte[] reply = new byte[_result_buffer.remaining()];
+            _result_buffer.get(reply);
+            final Preamble preamble = complete ? Preamble.parse(reply) : null;
+
+            if (_state.update(channel, preamble, now, generation)) {
+                _measurements[channel].reset();
+                engine(channel).reset();
+
+                _callback_executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        ScopeState.Listener listener = _state_listener;
+
+                        if (listener != null) {
+                            listener.preambleChanged(channel, preamble);
+                        }
+                    }
+                });
+            }
+        }
+
+        // Something else wants the transport, so take delivery of the request sent ahead.
+        private void finishInFlight() {
+            if (_in_flight != 0) {
+                int channel = _in_flight;
+                _in_flight = 0;
+                receiveFrame(true, _waveform_sink, channel);
+            }
+        }
+
+        private boolean send(String command) {
+            long start = System.nanoTime();
+            boolean sent = _transport.write(command);
+            _stats.record(PipelineStats.SEND, System.nanoTime() - start);
+            return sent;
+        }
+
+        private void countGap() {
+            if (_last_transfer_end != 0) {
+                _gap_total += System.nanoTime() - _last_transfer_end;
+            }
+        }
+
+        // Streams the samples into a pooled frame, with no garbage.
+        private void receiveFrame(boolean sent, WaveformSink sink, int channel) {
+            WaveformFrame frame = _spare != null ? _spare : _pool.acquire();
+            _spare = null;
+
+            if (frame != null) {
+                frame.begin();
+            }
+
+            // If the consumer is sitting on every frame we still have to drain the response.
+            long start = System.nanoTime();
+            boolean complete = sent && _parser.receive(_transport, _receive_chunk, frame);
+
+            _last_transfer_end = System.nanoTime();
+            countFrame(channel, complete);
+
+            if (sent) {
+                long read_time = _parser.getReadTime();
+                _stats.record(PipelineStats.TRANSFER, read_time);
+                _stats.record(PipelineStats.PARSE, _last_transfer_end - start - read_time);
+            }
+
+            if (frame != null) {
+                Preamble preamble = _state.getPreamble(channel);
+                frame.setChannel(channel);
+                frame.setPreamble(preamble);
+
+                complete = complete && frame.complete(_last_transfer_end);
+
+                // The same acquisition read again is nothing new to draw or measure.
+                if (complete && _scheduled && _scheduler.isDuplicate(channel, frame.samples(), preamble)) {
+                    complete = false;
+                }
+
+                // Before the sink has it, as the frame is the sink's once handed over.
+                if (complete && _measuring && preamble != null) {
+                    engine(channel).measure(frame.samples(), preamble, _measurements[channel]);
+                }
+
+                if (!(complete && sink != null && sink.frame(frame))) {
+                    _spare = frame;
+                }
+            }
+        }
+
+        // Decodes the BMP into a pooled frame as it arrives, so the file is never held whole.
+        private void receiveScreen(ScreenSink sink) {
+            ScreenFrame frame = _screen_spare != null ? _screen_spare : _screen_free.poll();
+            _screen_spare = null;
+
+            if (frame == null && _screen_frames < SCREEN_POOL_SIZE) {
+                frame = new ScreenFrame(_screen_free, SCREEN_FRAME_CAPACITY);
+                ++_screen_frames;
+                _screen_memory = (long) _screen_frames * SCREEN_FRAME_CAPACITY + RECEIVE_CHUNK_SIZE;
+            }
+
+            BlockParser.Sink target = frame;
+
+            if (frame != null) {
+                frame.begin();
+            } else {
+                // The sink is sitting on every frame, but the response still has to be drained.
                 _result_buffer.clear();
-                while (receive_buffer(_result_buffer)) {}
+                target = _result_sink;
+            }
 
-                return Arrays.copyOf(_result_buffer.array(), _result_buffer.position());
+            boolean complete = _transport.write(Scpi.DISP_DATA_Q) && _parser.receive(_transport, _receive_chunk, target);
+            long now = System.nanoTime();
+            countScreen(now, complete);
+
+            if (frame != null) {
+                complete = frame.complete(now) && complete;
+
+                if (!(complete && sink.screen(frame))) {
+                    _screen_spare = frame;
+                }
+            }
+        }
+
+        // Only screens that came through whole count towards the rate.
+        private void countScreen(long now, boolean complete) {
+            if (complete) {
+                ++_screen_count;
             }
 
-            return null;
+            long elapsed = now - _screen_count_start;
+
+            if (elapsed >= FRAME_RATE_INTERVAL) {
+                _screen_rate = _screen_count * 1e9f / elapsed;
+                _screen_count = 0;
+                _screen_count_start = now;
+//                Log.d(TAG, _transport + ": " + _screen_rate + " screens/s, " + _screen_memory / 1024 + "KB held");
+            }
         }
 
-        @Override
-        protected void onPostExecute(byte[] result) {
-            String command = _command_queue.remove();
-//            Log.d("USBTMC <<<", command);
+        private MeasurementEngine engine(int channel) {
+            if (_engines[channel] == null) {
+                _engines[channel] = new MeasurementEngine();
+            }
+
+            return _engines[channel];
+        }
 
-            if (_command_queue.size() > 0) {
-                new GetDataTask().execute();
+        // Only frames that came through whole count towards the rates; failed transfers still
+        // move the interval on.
+        private void countFrame(int channel, boolean complete) {
+            if (complete) {
+                ++_frame_count;
+                ++_channel_frame_counts[channel];
             }
 
-            if (_result_callback != null) {
-                _result_callback.result(command, result);
+            long elapsed = _last_transfer_end - _frame_count_start;
+
+            if (elapsed >= FRAME_RATE_INTERVAL) {
+                int alloc_count = Debug.getThreadAllocCount();
+
+                for (int i = 1; i <= Scpi.CHANNEL_COUNT; ++i) {
+                    _channel_frame_rates[i] = _channel_frame_counts[i] * 1e9f / elapsed;
+                    _channel_frame_counts[i] = 0;
+                }
+
+                int frames = Math.max(1, _frame_count);
+                _frame_rate = _frame_count * 1e9f / elapsed;
+                _transfer_gap = _gap_total / frames;
+                _allocations_per_frame = (float) (alloc_count - _alloc_count_start) / frames;
+                _frame_count = 0;
+                _gap_total = 0;
+                _frame_count_start = _last_transfer_end;
+//                Log.d(TAG, _transport + ": " + _frame_rate + " frames/s, " + _transfer_gap / 1000 + "us between transfers");
+                _alloc_count_start = Debug.getThreadAllocCount();
             }
         }
     }
@@ -0,0 +1,170 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid;
+
+import android.opengl.GLES20;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * The 'scope's own screen, drawn as a textured quad the same way as the grid, centred and at
+ * its own aspect ratio. Screenshots are uploaded straight from their decoded rows, which are in
+ * BMP's blue, green, red order, and swapped back in the shader.
+ */
+public class ScreenMirror {
+    private static final String vertexShaderCode =
+            "uniform mat4 uMVPMatrix;" +
+            "attribute vec2 vPosition;" +
+            "attribute vec2 aTexcoord;" +
+            "varying vec2 vTexcoord;" +
+            "void main() {" +
+            "  gl_Position = uMVPMatrix * vec4(vPosition, 0.3, 1.0);" +
+            "  vTexcoord = aTexcoord;" +
+            "}";
+
+    private static final String fragmentShaderCode =
+            "precision mediump float;" +
+            "uniform sampler2D texture;" +
+            "varying vec2 vTexcoord;" +
+            "void main() {" +
+            "  gl_FragColor = vec4(texture2D(texture, vTexcoord).bgr, 1.0);" +
+            "}";
+    private final int COORDS_PER_VERTEX = 2;
+    private final int program;
+    private final int matrixHandle;
+    private final int textureHandle;
+    private final int positionHandle;
+    private final int coordHandle;
+    private final int vertexCount = 4;
+    private final int vertexStride = COORDS_PER_VERTEX * 4;
+    private FloatBuffer vertexBuffer;
+    private FloatBuffer coordBuffer;
+    private final int[] texture = new int[1];
+    private int textureWidth = 0;
+    private int textureHeight = 0;
+    private int viewWidth = 1;
+    private int viewHeight = 1;
+
+    public ScreenMirror() {
+        program = WaveformRenderer.loadShader(vertexShaderCode, fragmentShaderCode);
+        matrixHandle = GLES20.glGetUniformLocation(program, "uMVPMatrix");
+        textureHandle = GLES20.glGetUniformLocation(program, "texture");
+        positionHandle = GLES20.glGetAttribLocation(program, "vPosition");
+        coordHandle = GLES20.glGetAttribLocation(program, "aTexcoord");
+
+        GLES20.glGenTextures(1, texture, 0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture[0]);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        // Not a power of two, which GLES 2 only allows clamped.
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+
+        ByteBuffer bb = ByteBuffer.allocateDirect(vertexCount * vertexStride);
+        bb.order(ByteOrder.nativeOrder());
+        vertexBuffer = bb.asFloatBuffer();
+
+        // Rows arrive bottom first, so the first row is at t = 0 along the bottom of the quad.
+        ByteBuffer bbtex = ByteBuffer.allocateDirect(vertexCount * vertexStride);
+        bbtex.order(ByteOrder.nativeOrder());
+        coordBuffer = bbtex.asFloatBuffer();
+        coordBuffer.put(new float[] {0.0f, 1.0f, 0.0f, 0.0f, 1.0f, 1.0f, 1.0f, 0.0f});
+        coordBuffer.flip();
+        placeQuad();
+    }
+
+    public void setViewport(int width, int height) {
+        viewWidth = Math.max(1, width);
+        viewHeight = Math.max(1, height);
+        placeQuad();
+    }
+
+    /**
+     * Uploads a complete screenshot, which the caller still owns afterwards.
+     */
+    public void setFrame(ScreenFrame frame) {
+        int width = frame.getWidth();
+        int height = frame.getHeight();
+
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture[0]);
+        // Rows of 3 byte pixels needn't start on a 4 byte boundary.
+        GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 1);
+
+        if (width != textureWidth || height != textureHeight) {
+            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGB, width, height, 0,
+                    GLES20.GL_RGB, GLES20.GL_UNSIGNED_BYTE, frame.pixels());
+            textureWidth = width;
+            textureHeight = height;
+            placeQuad();
+        } else {
+            GLES20.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, width, height,
+                    GLES20.GL_RGB, GLES20.GL_UNSIGNED_BYTE, frame.pixels());
+        }
+
+        GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 4);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+    }
+
+    // As big as fits in the 1200x255 grid space without stretching the screenshot.
+    private void placeQuad() {
+        float width = 1200.0f;
+        float height = 255.0f;
+
+        if (textureWidth > 0 && textureHeight > 0) {
+            float aspect = (float) textureWidth / textureHeight;
+            float viewAspect = (float) viewWidth / viewHeight;
+
+            if (aspect < viewAspect) {
+                width = 1200.0f * aspect / viewAspect;
+            } else {
+                height = 255.0f * viewAspect / aspect;
+            }
+        }
+
+        float left = (1200.0f - width) / 2.0f;
+        float bottom = (255.0f - height) / 2.0f;
+
+        vertexBuffer.clear();
+        vertexBuffer.put(new float[] {
+                left, bottom + height, left, bottom, left + width, bottom + height, left + width, bottom
+        });
+        vertexBuffer.flip();
+    }
+
+    public boolean hasFrame() {
+        return textureWidth > 0;
+    }
+
+    public void draw(float[] matrix) {
+        if (!hasFrame()) {
+            return;
+        }
+
+        GLES20.glUseProgram(program);
+
+        GLES20.glUniformMatrix4fv(matrixHandle, 1, false, matrix, 0);
+
+        GLES20.glEnableVertexAttribArray(positionHandle);
+        GLES20.glVertexAttribPointer(positionHandle, COORDS_PER_VERTEX,
+                GLES20.GL_FLOAT, false, vertexStride, vertexBuffer);
+
+        GLES20.glEnableVertexAttribArray(coordHandle);
+        GLES20.glVertexAttribPointer(coordHandle, COORDS_PER_VERTEX,
+                GLES20.GL_FLOAT, false, vertexStride, coordBuffer);
+
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture[0]);
+        GLES20.glUniform1i(textureHandle, 0);
+
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, vertexCount);
+
+        GLES20.glDisableVertexAttribArray(positionHandle);
+        GLES20.glDisableVertexAttribArray(coordHandle);
+    }
+}
@@ -0,0 +1,63 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Lays a log-magnitude trace of a {@link SpectrumAnalyzer}'s bins across the grid, from DC on the
+ * left to Nyquist on the right, as one grid height per column for a {@link TraceBatch} to draw.
+ * When there are more bins than columns, each column shows the highest of its bins so narrow
+ * tones are not lost; when there are fewer, the columns between bins are joined by straight lines.
+ */
+public final class SpectrumLine {
+    // dBV at the top of the grid, and per vertical division, so the grid spans +20 to -60dBV.
+    public static final float TOP_DECIBELS = 20.0f;
+    public static final float DECIBELS_PER_DIVISION = 10.0f;
+
+    private static final int COLUMNS = WaveformRenderer.COLUMNS;
+
+    private SpectrumLine() {
+    }
+
+    static float toGrid(float decibels) {
+        float units = SampleConversion.GRID_HEIGHT / SampleConversion.GRID_DIVISIONS;
+        float y = SampleConversion.GRID_HEIGHT - (TOP_DECIBELS - decibels) / DECIBELS_PER_DIVISION * units;
+        return Math.max(0.0f, Math.min(SampleConversion.GRID_HEIGHT, y));
+    }
+
+    /**
+     * @param decibels one value per bin, of which the first bins are used.
+     * @return the number of heights put into out, which is none for fewer than 2 bins.
+     */
+    public static int heights(float[] decibels, int bins, FloatBuffer out) {
+        if (bins < 2) {
+            return 0;
+        }
+
+        for (int column = 0; column < COLUMNS; ++column) {
+            float decibel;
+
+            if (bins <= COLUMNS) {
+                float position = (float) column * (bins - 1) / (COLUMNS - 1);
+                int k = Math.min((int) position, bins - 2);
+                decibel = decibels[k] + (decibels[k + 1] - decibels[k]) * (position - k);
+            } else {
+                int first = (int) ((long) column * bins / COLUMNS);
+                int last = (int) ((long) (column + 1) * bins / COLUMNS);
+                decibel = decibels[first];
+
+                for (int k = first + 1; k < last; ++k) {
+                    decibel = Math.max(decibel, decibels[k]);
+                }
+            }
+
+            out.put(toGrid(decibel));
+        }
+
+        return COLUMNS;
+    }
+}
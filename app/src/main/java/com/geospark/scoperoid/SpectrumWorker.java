@@ -0,0 +1,328 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Works out the spectra a {@link WaveformRenderer} shows, on a thread of its own, so that neither
+ * the FFT of every live frame nor the much bigger one over deep memory holds up drawing.
+ *
+ * The GL thread copies frames into the worker's own pooled frames and queues them, and takes
+ * back finished spectra as grid heights ready to upload, from a pool it hands them back to. Each
+ * queue has the one producer and the one consumer. The settings may be changed from any thread.
+ */
+public class SpectrumWorker extends Thread {
+    // Where deep memory's spectrum comes back, after the channels'.
+    public static final int ENVELOPE = Scpi.CHANNEL_COUNT;
+    public static final int SLOTS = Scpi.CHANNEL_COUNT + 1;
+
+    // The most of a deep memory capture transformed at once.
+    static final int DEEP_MEMORY_FFT_SIZE = 1 << 18;
+
+    private static final int FRAME_POOL_SIZE = 16;
+    // One for the worker to hold on to, so it can go again when the window changes, and one for
+    // the GL thread to fill.
+    private static final int DEEP_POOL_SIZE = 2;
+    private static final int SPECTRUM_POOL_SIZE = 3 * SLOTS;
+
+    /**
+     * One slot's spectrum, and its held peaks, as heights in grid units. Either is empty when
+     * there is nothing to draw.
+     */
+    public static final class Spectrum {
+        public final FloatBuffer heights = newHeights();
+        public final FloatBuffer peaks = newHeights();
+        public int slot;
+        // The deep memory the envelope's spectrum is of, as given to analyze().
+        public long generation;
+
+        private static FloatBuffer newHeights() {
+            return ByteBuffer.allocateDirect(WaveformRenderer.COLUMNS * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+        }
+    }
+
+    private volatile int window = WaveformRenderer.SPECTRUM_OFF;
+    private volatile int averages = 1;
+    private volatile boolean peakHold = false;
+    private volatile int resets = 0;
+
+    private final FramePool framePool = new FramePool(FRAME_POOL_SIZE, Scope.RESULT_BUFFER_SIZE);
+    private final SpscQueue<WaveformFrame> frames = new SpscQueue<>(FRAME_POOL_SIZE);
+    private final FramePool deepPool = new FramePool(DEEP_POOL_SIZE, DEEP_MEMORY_FFT_SIZE);
+    private final SpscQueue<WaveformFrame> deepFrames = new SpscQueue<>(DEEP_POOL_SIZE);
+    private final SpscQueue<Spectrum> spare = new SpscQueue<>(SPECTRUM_POOL_SIZE);
+    private final SpscQueue<Spectrum> finished = new SpscQueue<>(SPECTRUM_POOL_SIZE);
+
+    // The rest belongs to the worker thread.
+    private int windowTaken = WaveformRenderer.SPECTRUM_OFF;
+    private int averagesTaken = 1;
+    private boolean peakHoldTaken = false;
+    private int resetsTaken = 0;
+    private final SpectrumAnalyzer[] analyzers = new SpectrumAnalyzer[SLOTS];
+    private final boolean[] changed = new boolean[SLOTS];
+    private WaveformFrame deep = null;
+    private boolean deepPending = false;
+    private float[] decibels = new float[0];
+
+    public SpectrumWorker() {
+        super("SpectrumWorker");
+        setDaemon(true);
+
+        for (int i = 0; i < SLOTS; ++i) {
+            analyzers[i] = new SpectrumAnalyzer(SpectrumAnalyzer.HANN);
+        }
+
+        for (int i = 0; i < SPECTRUM_POOL_SIZE; ++i) {
+            spare.offer(new Spectrum());
+        }
+    }
+
+    /**
+     * @param window a {@link SpectrumAnalyzer} window, or {@link WaveformRenderer#SPECTRUM_OFF}.
+     */
+    public void setWindow(int window) {
+        this.window = window;
+        LockSupport.unpark(this);
+    }
+
+    public int getWindow() {
+        return window;
+    }
+
+    public void setAverages(int averages) {
+        this.averages = averages;
+        LockSupport.unpark(this);
+    }
+
+    public int getAverages() {
+        return averages;
+    }
+
+    public void setPeakHold(boolean peakHold) {
+        this.peakHold = peakHold;
+        LockSupport.unpark(this);
+    }
+
+    public boolean isPeakHold() {
+        return peakHold;
+    }
+
+    public void reset() {
+        ++resets;
+        LockSupport.unpark(this);
+    }
+
+    /**
+     * Called from the GL thread. The samples are copied, and left where they were.
+     *
+     * @param slot the channel, from 0.
+     * @return false if the worker has fallen behind and the frame was left out.
+     */
+    public boolean add(int slot, ByteBuffer samples, Preamble preamble) {
+        WaveformFrame copy = framePool.acquire();
+
+        if (copy == null) {
+            return false;
+        }
+
+        int position = samples.position();
+        copy.begin();
+        copy.payload(samples);
+        samples.position(position);
+        copy.setChannel(slot);
+        copy.setPreamble(preamble);
+        copy.complete(0);
+        frames.offer(copy);
+        LockSupport.unpark(this);
+        return true;
+    }
+
+    /**
+     * Called from the GL thread. Copies out the largest power of two of samples [start, end), from
+     * start and up to {@link #DEEP_MEMORY_FFT_SIZE}, so the store is left alone after this returns.
+     * The spectrum comes back in the {@link #ENVELOPE} slot, tagged with generation.
+     *
+     * @return false if the worker still has the last one, so nothing was copied.
+     */
+    public boolean analyze(SampleStore store, long start, long end, Preamble preamble, long generation) {
+        WaveformFrame copy = deepPool.acquire();
+
+        if (copy == null) {
+            return false;
+        }
+
+        long length = Math.min(DEEP_MEMORY_FFT_SIZE, end - start);
+        copy.begin();
+
+        if (length >= SpectrumAnalyzer.MIN_SIZE) {
+            long index = start;
+            long last = start + Integer.highestOneBit((int) length);
+
+            while (index < last) {
+                int segment = (int) (index / SampleStore.SEGMENT_SIZE);
+                ByteBuffer samples = store.segment(segment).duplicate();
+                samples.position((int) (index - (long) segment * SampleStore.SEGMENT_SIZE));
+                samples.limit((int) Math.min(samples.limit(), samples.position() + last - index));
+                index += samples.remaining();
+                copy.payload(samples);
+            }
+        }
+
+        copy.setPreamble(preamble);
+        copy.complete(generation);
+        deepFrames.offer(copy);
+        LockSupport.unpark(this);
+        return true;
+    }
+
+    /**
+     * Called from the GL thread.
+     *
+     * @return the next finished spectrum, to be handed back with {@link #release} when done with.
+     */
+    public Spectrum poll() {
+        return finished.poll();
+    }
+
+    /**
+     * Called from the GL thread.
+     */
+    public void release(Spectrum spectrum) {
+        spare.offer(spectrum);
+        LockSupport.unpark(this);
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            if (!work()) {
+                LockSupport.park(this);
+            }
+        }
+    }
+
+    // Returns false if there was nothing new to do.
+    private boolean work() {
+        boolean busy = takeSettings();
+        WaveformFrame frame;
+
+        while ((frame = frames.poll()) != null) {
+            int slot = frame.getChannel();
+
+            if (windowTaken != WaveformRenderer.SPECTRUM_OFF) {
+                analyzers[slot].add(frame.samples(), frame.getPreamble());
+                changed[slot] = true;
+            }
+
+            frame.recycle();
+            busy = true;
+        }
+
+        while ((frame = deepFrames.poll()) != null) {
+            if (deep != null) {
+                deep.recycle();
+            }
+
+            deep = frame;
+            deepPending = true;
+            busy = true;
+        }
+
+        if (deepPending && windowTaken != WaveformRenderer.SPECTRUM_OFF) {
+            analyzers[ENVELOPE].reset();
+            analyzers[ENVELOPE].add(deep.samples(), deep.getPreamble());
+            deepPending = false;
+            changed[ENVELOPE] = true;
+        }
+
+        // Without a spare spectrum to fill, the slot waits until the GL thread hands one back.
+        for (int i = 0; i < SLOTS; ++i) {
+            if (changed[i] && publish(i)) {
+                changed[i] = false;
+            }
+        }
+
+        return busy;
+    }
+
+    // Settings are taken up here, on the thread that owns the analyzers.
+    private boolean takeSettings() {
+        int window = this.window;
+        int averages = this.averages;
+        boolean peakHold = this.peakHold;
+        int resets = this.resets;
+
+        if (window == windowTaken && averages == averagesTaken && peakHold == peakHoldTaken && resets == resetsTaken) {
+            return false;
+        }
+
+        // Starting afresh when turned on, rather than from whatever was there last time.
+        boolean reset = resets != resetsTaken || windowTaken == WaveformRenderer.SPECTRUM_OFF;
+
+        if (window != WaveformRenderer.SPECTRUM_OFF) {
+            for (int i = 0; i < SLOTS; ++i) {
+                SpectrumAnalyzer analyzer = analyzers[i];
+                boolean restart = reset || window != analyzer.getWindow();
+                analyzer.setWindow(window);
+                analyzer.setAverages(averages);
+                analyzer.setPeakHold(peakHold);
+
+                if (reset) {
+                    analyzer.reset();
+                }
+
+                changed[i] = true;
+
+                // Deep memory is transformed all over again, as there is only the one capture.
+                if (i == ENVELOPE && restart) {
+                    deepPending = deep != null;
+                }
+            }
+        }
+
+        windowTaken = window;
+        averagesTaken = averages;
+        peakHoldTaken = peakHold;
+        resetsTaken = resets;
+        return true;
+    }
+
+    private boolean publish(int slot) {
+        Spectrum spectrum = spare.poll();
+
+        if (spectrum == null) {
+            return false;
+        }
+
+        SpectrumAnalyzer analyzer = analyzers[slot];
+        int bins = analyzer.getBins();
+
+        if (decibels.length < bins) {
+            decibels = new float[bins];
+        }
+
+        spectrum.slot = slot;
+        spectrum.generation = slot == ENVELOPE && deep != null ? deep.getTimestamp() : 0;
+
+        spectrum.peaks.clear();
+
+        if (analyzer.isPeakHold()) {
+            SpectrumLine.heights(decibels, analyzer.peakDecibels(decibels), spectrum.peaks);
+        }
+
+        spectrum.peaks.flip();
+        spectrum.heights.clear();
+        SpectrumLine.heights(decibels, analyzer.averageDecibels(decibels), spectrum.heights);
+        spectrum.heights.flip();
+
+        finished.offer(spectrum);
+        return true;
+    }
+}
@@ -0,0 +1,300 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid;
+
+import android.opengl.GLES20;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * Every trace on the grid, channels, references, the deep memory envelope and spectra with their
+ * peak holds, in one shared VBO and drawn with one program and one draw call, however many are
+ * shown.
+ *
+ * Each trace has a fixed slot of vertices. A static VBO gives every vertex its column within
+ * the slot and which trace it belongs to; the shared VBO holds raw byte samples for every slot
+ * followed by float samples for every slot, and the shader picks the scaling, colour and kind
+ * of sample per trace from uniform arrays. The strips of the shown traces are joined into
+ * GL_LINES through an index buffer, which is only rebuilt when what is shown changes.
+ * Attribute and uniform locations are looked up once, when made for a new surface.
+ */
+public class TraceBatch {
+    public static final int CHANNEL_TRACES = 0;
+    public static final int REFERENCE_TRACES = Scpi.CHANNEL_COUNT;
+    public static final int ENVELOPE_TRACE = REFERENCE_TRACES + Scpi.CHANNEL_COUNT;
+    // Peak holds come before their spectra, so each spectrum is drawn over its peaks.
+    public static final int PEAK_TRACES = ENVELOPE_TRACE + 1;
+    public static final int SPECTRUM_TRACES = PEAK_TRACES + Scpi.CHANNEL_COUNT;
+    public static final int TRACE_COUNT = SPECTRUM_TRACES + Scpi.CHANNEL_COUNT;
+
+    // Vertices per trace: a min/max envelope has two per column.
+    static final int SLOT = WaveformRenderer.COLUMNS * 2;
+    private static final int FLOAT_SAMPLES = TRACE_COUNT * SLOT;
+
+    static final String rawSampleShaderCode =
+            "uniform mat4 uMVPMatrix;" +
+            "uniform float uSampleOffset;" +
+            "uniform float uYIncrement;" +
+            "uniform float uUnitsPerVolt;" +
+            "attribute float aIndex;" +
+            "attribute float aSample;" +
+            "void main() {" +
+            "  float volts = (aSample - uSampleOffset) * uYIncrement;" +
+            "  gl_Position = uMVPMatrix * vec4(aIndex, " + SampleConversion.GRID_CENTRE + " + volts * uUnitsPerVolt, 0.2, 1.0);" +
+            "}";
+
+    static final String fragmentShaderCode =
+            "precision mediump float;" +
+            "uniform vec4 vColor;" +
+            "void main() {" +
+            "  gl_FragColor = vColor;" +
+            "}";
+
+    // uTraces holds each trace's sample offset, grid units per sample count, columns per
+    // vertex and whether its samples are floats.
+    private static final String batchShaderCode =
+            "uniform mat4 uMVPMatrix;" +
+            "uniform vec4 uTraces[" + TRACE_COUNT + "];" +
+            "uniform vec4 uColours[" + TRACE_COUNT + "];" +
+            "attribute vec2 aVertex;" +
+            "attribute float aSample;" +
+            "attribute float aPreciseSample;" +
+            "varying vec4 vColour;" +
+            "void main() {" +
+            "  int trace = int(aVertex.y);" +
+            "  vec4 scale = uTraces[trace];" +
+            "  float s = mix(aSample, aPreciseSample, scale.w);" +
+            "  gl_Position = uMVPMatrix * vec4(floor(aVertex.x * scale.z), " + SampleConversion.GRID_CENTRE + " + (s - scale.x) * scale.y, 0.2, 1.0);" +
+            "  vColour = uColours[trace];" +
+            "}";
+
+    private static final String batchFragmentShaderCode =
+            "precision mediump float;" +
+            "varying vec4 vColour;" +
+            "void main() {" +
+            "  gl_FragColor = vColour;" +
+            "}";
+
+    private final int program;
+    private final int matrixHandle;
+    private final int tracesHandle;
+    private final int coloursHandle;
+    private final int vertexHandle;
+    private final int sampleHandle;
+    private final int preciseHandle;
+
+    // [0] holds each vertex's column and trace, [1] the samples, [2] the indices.
+    private final int[] buffers = new int[3];
+    private final float[] traces = new float[TRACE_COUNT * 4];
+    private final float[] colours = new float[TRACE_COUNT * 4];
+    private boolean coloursChanged = true;
+
+    private final int[] counts = new int[TRACE_COUNT];
+    private final boolean[] visible = new boolean[TRACE_COUNT];
+    private final ShortBuffer indices = ByteBuffer.allocateDirect(TRACE_COUNT * (SLOT - 1) * 2 * 2)
+            .order(ByteOrder.nativeOrder()).asShortBuffer();
+    private boolean indicesChanged = false;
+    private int indexCount = 0;
+
+    public TraceBatch() {
+        program = WaveformRenderer.loadShader(batchShaderCode, batchFragmentShaderCode);
+        matrixHandle = GLES20.glGetUniformLocation(program, "uMVPMatrix");
+        tracesHandle = GLES20.glGetUniformLocation(program, "uTraces");
+        coloursHandle = GLES20.glGetUniformLocation(program, "uColours");
+        vertexHandle = GLES20.glGetAttribLocation(program, "aVertex");
+        sampleHandle = GLES20.glGetAttribLocation(program, "aSample");
+        preciseHandle = GLES20.glGetAttribLocation(program, "aPreciseSample");
+
+        ByteBuffer bb = ByteBuffer.allocateDirect(FLOAT_SAMPLES * 2 * 4);
+        bb.order(ByteOrder.nativeOrder());
+        FloatBuffer vertices = bb.asFloatBuffer();
+
+        for (int trace = 0; trace < TRACE_COUNT; ++trace) {
+            for (int i = 0; i < SLOT; ++i) {
+                vertices.put(i).put(trace);
+            }
+        }
+
+        vertices.flip();
+
+        GLES20.glGenBuffers(3, buffers, 0);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, buffers[0]);
+        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, FLOAT_SAMPLES * 2 * 4, vertices, GLES20.GL_STATIC_DRAW);
+
+        // Zeroed, since byte traces still read a float sample, if only to weight it by nothing.
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, buffers[1]);
+        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, FLOAT_SAMPLES * 5,
+                ByteBuffer.allocateDirect(FLOAT_SAMPLES * 5), GLES20.GL_DYNAMIC_DRAW);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+
+        for (int trace = 0; trace < TRACE_COUNT; ++trace) {
+            setPreamble(trace, Preamble.DEFAULT);
+            setColour(trace, 1.0f, 1.0f, 1.0f, 1.0f);
+        }
+    }
+
+    /**
+     * Takes the vertical scaling of a trace from the preamble of its samples.
+     */
+    public void setPreamble(int trace, Preamble preamble) {
+        traces[trace * 4] = SampleConversion.sampleOffset(preamble);
+        traces[trace * 4 + 1] = (float) preamble.yIncrement * SampleConversion.unitsPerVolt(preamble);
+    }
+
+    public void setColour(int trace, float r, float g, float b, float a) {
+        colours[trace * 4] = r;
+        colours[trace * 4 + 1] = g;
+        colours[trace * 4 + 2] = b;
+        colours[trace * 4 + 3] = a;
+        coloursChanged = true;
+    }
+
+    /**
+     * Traces are drawn only while visible, so one left hidden keeps its samples for later.
+     */
+    public void setVisible(int trace, boolean shown) {
+        if (visible[trace] != shown) {
+            visible[trace] = shown;
+            indicesChanged = true;
+        }
+    }
+
+    public void setData(int trace, ByteBuffer data) {
+        prepare(trace, Math.min(WaveformRenderer.COLUMNS, data.remaining()), 1.0f, false);
+        GLES20.glBufferSubData(GLES20.GL_ARRAY_BUFFER, trace * SLOT, counts[trace], data);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+    }
+
+    /**
+     * Takes min/max pairs, one pair per column, such as a {@link MinMaxPyramid} query returns.
+     * They are drawn as one strip zig-zagging between the two, which fills in the envelope.
+     */
+    public void setEnvelope(int trace, ByteBuffer pairs) {
+        prepare(trace, Math.min(SLOT, pairs.remaining()), 0.5f, false);
+        GLES20.glBufferSubData(GLES20.GL_ARRAY_BUFFER, trace * SLOT, counts[trace], pairs);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+    }
+
+    /**
+     * Takes samples as fractional sample counts, such as a {@link FrameAverager} or
+     * {@link HiResDecimator} gives, so they keep their extra resolution all the way to the screen.
+     */
+    public void setSamples(int trace, FloatBuffer samples) {
+        prepare(trace, Math.min(WaveformRenderer.COLUMNS, samples.remaining()), 1.0f, true);
+        GLES20.glBufferSubData(GLES20.GL_ARRAY_BUFFER, FLOAT_SAMPLES + (trace * SLOT) * 4,
+                counts[trace] * 4, samples);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+    }
+
+    /**
+     * Takes heights in grid units, such as {@link SpectrumLine} gives, one per column.
+     */
+    public void setHeights(int trace, FloatBuffer heights) {
+        setSamples(trace, heights);
+        traces[trace * 4] = SampleConversion.GRID_CENTRE;
+        traces[trace * 4 + 1] = 1.0f;
+    }
+
+    // Leaves the sample buffer bound for the caller's upload.
+    private void prepare(int trace, int count, float columnsPerVertex, boolean precise) {
+        if (counts[trace] != count) {
+            counts[trace] = count;
+            indicesChanged |= visible[trace];
+        }
+
+        traces[trace * 4 + 2] = columnsPerVertex;
+        traces[trace * 4 + 3] = precise ? 1.0f : 0.0f;
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, buffers[1]);
+    }
+
+    /**
+     * Joins the strips of the visible traces, each from the start of its slot, into line
+     * segments.
+     *
+     * @return the number of indices written to out.
+     */
+    static int buildIndices(int[] counts, boolean[] visible, ShortBuffer out) {
+        out.clear();
+
+        for (int trace = 0; trace < counts.length; ++trace) {
+            if (!visible[trace]) {
+                continue;
+            }
+
+            int first = trace * SLOT;
+
+            for (int i = 1; i < counts[trace]; ++i) {
+                out.put((short) (first + i - 1));
+                out.put((short) (first + i));
+            }
+        }
+
+        out.flip();
+        return out.remaining();
+    }
+
+    /**
+     * @return how many traces are shown, for timing the draw against.
+     */
+    public int getVisibleCount() {
+        int shown = 0;
+
+        for (int trace = 0; trace < TRACE_COUNT; ++trace) {
+            if (visible[trace] && counts[trace] > 1) {
+                ++shown;
+            }
+        }
+
+        return shown;
+    }
+
+    public void draw(float[] matrix) {
+        if (indicesChanged) {
+            indexCount = buildIndices(counts, visible, indices);
+            GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, buffers[2]);
+            GLES20.glBufferData(GLES20.GL_ELEMENT_ARRAY_BUFFER, Math.max(2, indexCount * 2), indices,
+                    GLES20.GL_DYNAMIC_DRAW);
+            GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
+            indicesChanged = false;
+        }
+
+        if (indexCount == 0) {
+            return;
+        }
+
+        GLES20.glUseProgram(program);
+        GLES20.glUniformMatrix4fv(matrixHandle, 1, false, matrix, 0);
+        GLES20.glUniform4fv(tracesHandle, TRACE_COUNT, traces, 0);
+
+        // Uniforms stay with the program, and the batch has it to itself.
+        if (coloursChanged) {
+            GLES20.glUniform4fv(coloursHandle, TRACE_COUNT, colours, 0);
+            coloursChanged = false;
+        }
+
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, buffers[0]);
+        GLES20.glEnableVertexAttribArray(vertexHandle);
+        GLES20.glVertexAttribPointer(vertexHandle, 2, GLES20.GL_FLOAT, false, 8, 0);
+
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, buffers[1]);
+        GLES20.glEnableVertexAttribArray(sampleHandle);
+        GLES20.glVertexAttribPointer(sampleHandle, 1, GLES20.GL_UNSIGNED_BYTE, false, 1, 0);
+        GLES20.glEnableVertexAttribArray(preciseHandle);
+        GLES20.glVertexAttribPointer(preciseHandle, 1, GLES20.GL_FLOAT, false, 4, FLOAT_SAMPLES);
+
+        GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, buffers[2]);
+        GLES20.glDrawElements(GLES20.GL_LINES, indexCount, GLES20.GL_UNSIGNED_SHORT, 0);
+
+        GLES20.glDisableVertexAttribArray(vertexHandle);
+        GLES20.glDisableVertexAttribArray(sampleHandle);
+        GLES20.glDisableVertexAttribArray(preciseHandle);
+        GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+    }
+}
@@ -0,0 +1,82 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid;
+
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbInterface;
+import android.hardware.usb.UsbManager;
+
+import java.nio.ByteBuffer;
+
+public class UsbTransport implements Transport, UsbtmcTransfer.BulkPipe {
+    private final UsbDeviceConnection _connection;
+    private final UsbInterface _interface;
+    private final UsbEndpoint _endpoint_in;
+    private final UsbEndpoint _endpoint_out;
+    private final UsbtmcTransfer _transfer;
+    private volatile boolean _closed = false;
+
+    private UsbTransport(UsbDeviceConnection connection, UsbInterface device_interface) {
+        _connection = connection;
+        _interface = device_interface;
+        _endpoint_in = device_interface.getEndpoint(1);
+        _endpoint_out = device_interface.getEndpoint(2);
+        _transfer = new UsbtmcTransfer(this, _endpoint_in.getMaxPacketSize());
+    }
+
+    /**
+     * @return the transport, or null if the device could not be opened.
+     */
+    public static UsbTransport open(UsbManager mgr, UsbDevice device) {
+        UsbInterface device_interface = device.getInterface(0);
+        UsbDeviceConnection connection = mgr.openDevice(device);
+
+        if (connection == null) {
+            return null;
+        }
+
+        connection.claimInterface(device_interface, true);
+        return new UsbTransport(connection, device_interface);
+    }
+
+    public void setTransferSize(int size) {
+        _transfer.setTransferSize(size);
+    }
+
+    @Override
+    public boolean write(String command) {
+        return _transfer.write(command);
+    }
+
+    @Override
+    public boolean read(ByteBuffer bytes) {
+        return _transfer.read(bytes);
+    }
+
+    @Override
+    public void close() {
+        _closed = true;
+        _connection.releaseInterface(_interface);
+        _connection.close();
+    }
+
+    @Override
+    public int write(byte[] buffer, int length, int timeout) {
+        return _closed ? -1 : _connection.bulkTransfer(_endpoint_out, buffer, length, timeout);
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length, int timeout) {
+        return _closed ? -1 : _connection.bulkTransfer(_endpoint_in, buffer, offset, length, timeout);
+    }
+
+    @Override
+    public String toString() {
+        return "USB";
+    }
+}
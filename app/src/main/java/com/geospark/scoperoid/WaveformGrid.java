@@ -35,76 +35,72 @@ public class WaveformGrid {
             "}";
     private final int COORDS_PER_VERTEX = 2;
     private final int program;
+    private final int matrixHandle;
+    private final int brightnessHandle;
+    private final int textureHandle;
+    private final int positionHandle;
+    private final int coordHandle;
     private final int vertexCount = 4;
     private final int vertexStride = COORDS_PER_VERTEX * 4;
-    private float[] brightness = {0.5f};
-    private FloatBuffer vertexBuffer;
-    private FloatBuffer coordBuffer;
+    private float brightness = 0.5f;
+    private boolean brightnessChanged = true;
+    // Positions then texture coordinates, which never change.
+    private final int[] buffer = new int[1];
     private int grid_tex;
 
     public WaveformGrid(Context context) {
         grid_tex = WaveformRenderer.loadTexture(context, R.drawable.grid);
         program = WaveformRenderer.loadShader(vertexShaderCode, fragmentShaderCode);
+        matrixHandle = GLES20.glGetUniformLocation(program, "uMVPMatrix");
+        brightnessHandle = GLES20.glGetUniformLocation(program, "brightness");
+        textureHandle = GLES20.glGetUniformLocation(program, "texture");
+        positionHandle = GLES20.glGetAttribLocation(program, "vPosition");
+        coordHandle = GLES20.glGetAttribLocation(program, "aTexcoord");
 
-        ByteBuffer bb = ByteBuffer.allocateDirect(vertexCount * vertexStride);
+        ByteBuffer bb = ByteBuffer.allocateDirect(vertexCount * vertexStride * 2);
         bb.order(ByteOrder.nativeOrder());
-        vertexBuffer = bb.asFloatBuffer();
-        vertexBuffer.clear();
-        vertexBuffer.put(0.0f);
-        vertexBuffer.put(255.0f);
-        vertexBuffer.put(0.0f);
-        vertexBuffer.put(0.0f);
-        vertexBuffer.put(1200.0f);
-        vertexBuffer.put(255.0f);
-        vertexBuffer.put(1200.0f);
-        vertexBuffer.put(0.0f);
+        FloatBuffer vertexBuffer = bb.asFloatBuffer();
+        vertexBuffer.put(new float[] {0.0f, 255.0f, 0.0f, 0.0f, 1200.0f, 255.0f, 1200.0f, 0.0f});
+        vertexBuffer.put(new float[] {0.0f, 1.0f, 0.0f, 0.0f, 1.0f, 1.0f, 1.0f, 0.0f});
         vertexBuffer.flip();
 
-        ByteBuffer bbtex = ByteBuffer.allocateDirect(vertexCount * vertexStride);
-        bbtex.order(ByteOrder.nativeOrder());
-        coordBuffer = bbtex.asFloatBuffer();
-        coordBuffer.clear();
-        coordBuffer.put(0.0f);
-        coordBuffer.put(1.0f);
-        coordBuffer.put(0.0f);
-        coordBuffer.put(0.0f);
-        coordBuffer.put(1.0f);
-        coordBuffer.put(1.0f);
-        coordBuffer.put(1.0f);
-        coordBuffer.put(0.0f);
-        coordBuffer.flip();
+        GLES20.glGenBuffers(1, buffer, 0);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, buffer[0]);
+        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, vertexCount * vertexStride * 2, vertexBuffer, GLES20.GL_STATIC_DRAW);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
     }
 
     public void setBrightness(float brightness) {
-        this.brightness[0] = brightness;
+        brightnessChanged |= this.brightness != brightness;
+        this.brightness = brightness;
     }
 
     public void draw(float[] matrix) {
         GLES20.glUseProgram(program);
+        GLES20.glUniformMatrix4fv(matrixHandle, 1, false, matrix, 0);
 
-        int MVPMatrixHandle = GLES20.glGetUniformLocation(program, "uMVPMatrix");
-        GLES20.glUniformMatrix4fv(MVPMatrixHandle, 1, false, matrix, 0);
+        // Uniforms stay with the program, which only the grid uses.
+        if (brightnessChanged) {
+            GLES20.glUniform1f(brightnessHandle, brightness);
+            GLES20.glUniform1i(textureHandle, 0);
+            brightnessChanged = false;
+        }
 
-        int positionHandle = GLES20.glGetAttribLocation(program, "vPosition");
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, buffer[0]);
         GLES20.glEnableVertexAttribArray(positionHandle);
         GLES20.glVertexAttribPointer(positionHandle, COORDS_PER_VERTEX,
-                GLES20.GL_FLOAT, false, vertexStride, vertexBuffer);
-
-        int coordHandle = GLES20.glGetAttribLocation(program, "aTexcoord");
+                GLES20.GL_FLOAT, false, vertexStride, 0);
         GLES20.glEnableVertexAttribArray(coordHandle);
         GLES20.glVertexAttribPointer(coordHandle, COORDS_PER_VERTEX,
-                GLES20.GL_FLOAT, false, vertexStride, coordBuffer);
-
-        int brightnessHandle = GLES20.glGetUniformLocation(program, "brightness");
-        GLES20.glUniform1fv(brightnessHandle, 1, brightness, 0);
+                GLES20.GL_FLOAT, false, vertexStride, vertexCount * vertexStride);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
 
-        int textureHandle = GLES20.glGetUniformLocation(program, "texture");
         GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
         GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, grid_tex);
-        GLES20.glUniform1i(textureHandle, 0);
 
         GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, vertexCount);
 
         GLES20.glDisableVertexAttribArray(positionHandle);
+        GLES20.glDisableVertexAttribArray(coordHandle);
     }
 }
@@ -13,36 +13,397 @@ import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
 import android.opengl.GLUtils;
 import android.opengl.Matrix;
-import android.os.Bundle;
-import android.os.Handler;
-import android.os.Message;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
 
 public class WaveformRenderer implements GLSurfaceView.Renderer {
+    // Draws the waveforms themselves rather than their spectra.
+    public static final int SPECTRUM_OFF = -1;
+    // Samples across the grid.
+    public static final int COLUMNS = 1200;
+
     private final float[] mMVPMatrix = new float[16];
     private final float[] mProjectionMatrix = new float[16];
     private final float[] mViewMatrix = new float[16];
+    private static final int FRAME_QUEUE_SIZE = 16;
+    private static final int SCREEN_QUEUE_SIZE = 2;
+
     private Context context;
-    private byte[] waveform_data = null;
-    private WaveformLine line;
+    private static final int[] CHANNEL_COLOURS = {
+            R.color.channel1High, R.color.channel2High, R.color.channel3High, R.color.channel4High
+    };
+
+    private TraceBatch batch;
     private WaveformGrid grid;
+    private PersistenceBuffer persistence;
 
-    public Handler handler;
+    // 0 for a plain trace, otherwise the decay time in seconds, which may be infinite.
+    private volatile float persistenceTime = 0.0f;
+    private volatile int persistenceClears = 0;
+    private int persistenceCleared = 0;
+    private boolean persistenceShown = false;
+    private boolean[] persistenceChannels = null;
 
-    Handler.Callback callback = new Handler.Callback() {
-        @Override
-        public boolean handleMessage(Message msg) {
-            Bundle b = msg.getData();
-            waveform_data = b.getByteArray("waveform");
-            return true;
-        }
-    };
+    // With a window set, every frame of a shown channel is handed to the worker, and the
+    // spectrum it sends back is drawn in place of the trace. The newest of each slot is kept.
+    private final SpectrumWorker spectra = new SpectrumWorker();
+    private final SpectrumWorker.Spectrum[] shownSpectra = new SpectrumWorker.Spectrum[SpectrumWorker.SLOTS];
+    // Which slot's spectrum each channel's spectrum trace holds, or -1, as deep memory's shares
+    // channel 1's. Only a new spectrum, or a different slot, needs uploading.
+    private final int[] spectrumUploaded = new int[Scpi.CHANNEL_COUNT];
+    private boolean envelopeSpectrumPending = false;
+    private long envelopeGeneration = 0;
+
+    // Averaging of each shown channel's frames, which is off at 1 frame. Like the spectrum,
+    // every frame goes in, and the average is drawn as a float trace.
+    private volatile int averagingMode = FrameAverager.BOXCAR;
+    private volatile int averagingFrames = 1;
+    private final FrameAverager[] averagers = new FrameAverager[Scpi.CHANNEL_COUNT];
+    private final boolean[] averagePending = new boolean[Scpi.CHANNEL_COUNT];
+    private boolean averagingShown = false;
+    private final FloatBuffer averageSamples = ByteBuffer.allocateDirect(COLUMNS * 4)
+            .order(ByteOrder.nativeOrder()).asFloatBuffer();
+
+    // Copies of channels' frames drawn dimmer behind the live traces, kept here so a new
+    // surface can have them back.
+    private volatile int referenceSaves = 0;
+    private volatile int referenceClears = 0;
+    private int referenceSaved = 0;
+    private int referenceCleared = 0;
+    private final boolean[] referenceShown = new boolean[Scpi.CHANNEL_COUNT];
+    private final ByteBuffer[] referenceSamples = new ByteBuffer[Scpi.CHANNEL_COUNT];
+    private final Preamble[] referencePreambles = new Preamble[Scpi.CHANNEL_COUNT];
+
+    // Draws deep memory as the mean of each column rather than its min/max envelope.
+    private volatile boolean hiRes = false;
+    private boolean envelopeHiRes = false;
+
+    // Filled by the acquisition thread, drained by the GL thread. The rest is per channel.
+    private final SpscQueue<WaveformFrame> frames = new SpscQueue<>(FRAME_QUEUE_SIZE);
+    private final WaveformFrame[] currentFrames = new WaveformFrame[Scpi.CHANNEL_COUNT];
+    private final boolean[] uploadPending = new boolean[Scpi.CHANNEL_COUNT];
+    private final AtomicReferenceArray<Preamble> preambles = new AtomicReferenceArray<>(Scpi.CHANNEL_COUNT);
+    private volatile boolean[] channelsShown = {true, false, false, false};
+
+    // The 'scope's screen, shown instead of everything else while mirroring. Only the newest
+    // screenshot is uploaded.
+    private final SpscQueue<ScreenFrame> screens = new SpscQueue<>(SCREEN_QUEUE_SIZE);
+    private volatile boolean mirroring = false;
+    private ScreenMirror mirror;
+
+    // A deep memory capture, shown instead of the live trace while set. GL thread only.
+    private MinMaxPyramid envelope = null;
+    private long envelopeStart;
+    private long envelopeEnd;
+    private Preamble envelopePreamble;
+    private boolean envelopePending = false;
+    private final ByteBuffer envelopePairs = ByteBuffer.allocateDirect(COLUMNS * 2);
+
+    private final AtomicLong framesReceived = new AtomicLong();
+    private final AtomicLong framesRendered = new AtomicLong();
+    private final AtomicLong framesDropped = new AtomicLong();
+    private volatile PipelineStats stats = null;
+    private volatile boolean gpuTiming = false;
+    private volatile int tracesDrawn = 0;
 
     public WaveformRenderer(Context context) {
-        handler = new Handler(callback);
         this.context = context;
+
+        for (int i = 0; i < Scpi.CHANNEL_COUNT; ++i) {
+            preambles.set(i, Preamble.DEFAULT);
+            averagers[i] = new FrameAverager(FrameAverager.BOXCAR, 1);
+            referenceSamples[i] = ByteBuffer.allocateDirect(COLUMNS);
+        }
+
+        spectra.start();
+    }
+
+    /**
+     * Called from the acquisition thread.
+     *
+     * @return false if the GL thread has fallen behind and the frame was not taken.
+     */
+    public boolean offerFrame(WaveformFrame frame) {
+        framesReceived.incrementAndGet();
+        frame.setOfferTime(System.nanoTime());
+
+        if (frames.offer(frame)) {
+            return true;
+        }
+
+        framesDropped.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Called from the acquisition thread. The renderer owns the screenshot if this returns true.
+     */
+    public boolean offerScreen(ScreenFrame frame) {
+        frame.setOfferTime(System.nanoTime());
+        return screens.offer(frame);
+    }
+
+    public void setMirroring(boolean mirroring) {
+        this.mirroring = mirroring;
+    }
+
+    public boolean isMirroring() {
+        return mirroring;
+    }
+
+    public long getFramesReceived() {
+        return framesReceived.get();
+    }
+
+    public long getFramesRendered() {
+        return framesRendered.get();
+    }
+
+    /**
+     * @return frames that arrived but were never drawn, either because a newer one turned up
+     * first or because the queue was full.
+     */
+    public long getFramesDropped() {
+        return framesDropped.get();
+    }
+
+    /**
+     * Times the handoff, upload and draw stages into stats, or stops timing them if null.
+     */
+    public void setStats(PipelineStats stats) {
+        this.stats = stats;
+    }
+
+    /**
+     * Times the traces' draw into the {@link PipelineStats#GPU} stage as well, with a glFinish
+     * either side, which stalls the GL thread and so is off unless asked for.
+     */
+    public void setGpuTiming(boolean gpuTiming) {
+        this.gpuTiming = gpuTiming;
+    }
+
+    /**
+     * @return how many traces the last redraw batched into one draw call. The grid and the
+     * persistence buffer are drawn separately.
+     */
+    public int getTracesDrawn() {
+        return tracesDrawn;
+    }
+
+    /**
+     * Keeps the latest frame of each shown channel as a reference trace.
+     */
+    public void saveReferences() {
+        ++referenceSaves;
+    }
+
+    public void clearReferences() {
+        ++referenceClears;
+    }
+
+    /**
+     * @param channel numbered from 1.
+     */
+    public void setPreamble(int channel, Preamble preamble) {
+        preambles.set(channel - 1, preamble);
+    }
+
+    /**
+     * Channels left out stop being drawn, rather than leaving their last trace on the screen.
+     */
+    public void setChannels(int... channels) {
+        boolean[] shown = new boolean[Scpi.CHANNEL_COUNT];
+
+        for (int channel : channels) {
+            shown[channel - 1] = true;
+        }
+
+        channelsShown = shown;
+    }
+
+    /**
+     * @param decayTime seconds for hits to fade to 1/e, {@link PersistenceBuffer#INFINITE} to keep
+     * them, or 0 to draw only the latest trace.
+     */
+    public void setPersistence(float decayTime) {
+        persistenceTime = decayTime;
+    }
+
+    public float getPersistence() {
+        return persistenceTime;
+    }
+
+    public void clearPersistence() {
+        ++persistenceClears;
+    }
+
+    /**
+     * @param window a {@link SpectrumAnalyzer} window to show spectra with, or
+     * {@link #SPECTRUM_OFF} for the waveforms.
+     */
+    public void setSpectrum(int window) {
+        spectra.setWindow(window);
+    }
+
+    public int getSpectrum() {
+        return spectra.getWindow();
+    }
+
+    public void setSpectrumAverages(int averages) {
+        spectra.setAverages(averages);
+    }
+
+    public int getSpectrumAverages() {
+        return spectra.getAverages();
+    }
+
+    public void setSpectrumPeakHold(boolean peakHold) {
+        spectra.setPeakHold(peakHold);
+    }
+
+    public boolean isSpectrumPeakHold() {
+        return spectra.isPeakHold();
+    }
+
+    public void resetSpectrum() {
+        spectra.reset();
+    }
+
+    /**
+     * @param mode {@link FrameAverager#BOXCAR} or {@link FrameAverager#EXPONENTIAL}.
+     * @param frames to average over, or 1 to draw each frame as it comes.
+     */
+    public void setAveraging(int mode, int frames) {
+        averagingMode = mode;
+        averagingFrames = frames;
+    }
+
+    public int getAveragingMode() {
+        return averagingMode;
+    }
+
+    public int getAveragingFrames() {
+        return averagingFrames;
+    }
+
+    public void setHiRes(boolean hiRes) {
+        this.hiRes = hiRes;
+    }
+
+    public boolean isHiRes() {
+        return hiRes;
+    }
+
+    /**
+     * Must be called on the GL thread. The window [start, end) is reduced to one min/max pair
+     * per column on the next draw; pass null to go back to the live trace.
+     */
+    public void setEnvelope(MinMaxPyramid pyramid, long start, long end, Preamble preamble) {
+        envelope = pyramid;
+        envelopeStart = start;
+        envelopeEnd = end;
+        envelopePreamble = preamble;
+        envelopePending = pyramid != null;
+        envelopeSpectrumPending = pyramid != null;
+
+        // The last capture's spectrum is no good for this one.
+        ++envelopeGeneration;
+        showNoSpectrum(SpectrumWorker.ENVELOPE);
+    }
+
+    // Only the newest frame of each channel is worth drawing as a trace; older ones go straight
+    // back to the pool. With persistence on, every frame is drawn into the buffer first, with the
+    // spectrum on, every frame is copied to the spectrum worker, and with averaging on, every
+    // frame is added to its channel's averager.
+    private void takeLatestFrames(boolean accumulate, boolean spectrum, boolean averaging, boolean[] shown,
+                                  PipelineStats stats) {
+        WaveformFrame frame;
+
+        while ((frame = frames.poll()) != null) {
+            int i = Math.max(0, Math.min(frame.getChannel() - 1, Scpi.CHANNEL_COUNT - 1));
+            long start = System.nanoTime();
+
+            if (stats != null) {
+                stats.record(PipelineStats.HANDOFF, start - frame.getOfferTime());
+            }
+
+            if ((accumulate || spectrum || averaging) && shown[i]) {
+                Preamble preamble = frame.getPreamble();
+                preamble = preamble != null ? preamble : preambles.get(i);
+
+                if (accumulate) {
+                    persistence.add(i + 1, frame.samples(), preamble);
+                } else if (spectrum) {
+                    if (!spectra.add(i, frame.samples(), preamble)) {
+                        framesDropped.incrementAndGet();
+                    }
+                } else {
+                    averagers[i].add(frame.samples(), preamble);
+                    averagePending[i] = true;
+                }
+
+                framesRendered.incrementAndGet();
+
+                if (stats != null) {
+                    stats.record(PipelineStats.UPLOAD, System.nanoTime() - start);
+                }
+            }
+
+            if (currentFrames[i] != null) {
+                if (uploadPending[i] && !accumulate && !spectrum && !averaging) {
+                    framesDropped.incrementAndGet();
+                }
+
+                currentFrames[i].recycle();
+            }
+
+            currentFrames[i] = frame;
+            uploadPending[i] = true;
+        }
+    }
+
+    // Uploads the newest screenshot, if mirroring, and hands them all back. Returns true if the
+    // mirror is what should be drawn.
+    private boolean takeLatestScreen(PipelineStats stats) {
+        boolean mirrored = mirroring;
+        ScreenFrame latest = null;
+        ScreenFrame screen;
+
+        while ((screen = screens.poll()) != null) {
+            if (latest != null) {
+                latest.recycle();
+            }
+
+            latest = screen;
+        }
+
+        if (latest != null) {
+            if (mirrored) {
+                long start = System.nanoTime();
+
+                if (stats != null) {
+                    stats.record(PipelineStats.HANDOFF, start - latest.getOfferTime());
+                }
+
+                mirror.setFrame(latest);
+
+                if (stats != null) {
+                    stats.record(PipelineStats.UPLOAD, System.nanoTime() - start);
+                }
+            }
+
+            latest.recycle();
+        }
+
+        return mirrored;
     }
 
     public static int loadShader(String vertexShaderCode, String fragmentShaderCode) {
@@ -83,38 +444,351 @@ public class WaveformRenderer implements GLSurfaceView.Renderer {
         return textureHandle[0];
     }
 
+    private float[] channelColour(int colourId) {
+        int c = context.getResources().getColor(colourId);
+        float r = (float)Color.red(c) / 255.0f;
+        float g = (float)Color.green(c) / 255.0f;
+        float b = (float)Color.blue(c) / 255.0f;
+        return new float[] {r, g, b};
+    }
+
     @Override
     public void onSurfaceCreated(GL10 unused, EGLConfig config) {
         GLES20.glClearColor(0.0f, 0.0f, 0.0f, 1.0f);
         GLES20.glDisable(GLES20.GL_DEPTH_TEST);
         GLES20.glEnable(GLES20.GL_BLEND);
         GLES20.glBlendFunc(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA);
-        int c = context.getResources().getColor(R.color.channel1High);
-        float r = (float)Color.red(c) / 255.0f;
-        float g = (float)Color.green(c) / 255.0f;
-        float b = (float)Color.blue(c) / 255.0f;
-        line = new WaveformLine(r, g, b);
+
+        float[][] colours = new float[Scpi.CHANNEL_COUNT][];
+        batch = new TraceBatch();
+
+        for (int i = 0; i < Scpi.CHANNEL_COUNT; ++i) {
+            float[] c = colours[i] = channelColour(CHANNEL_COLOURS[i]);
+            batch.setColour(TraceBatch.CHANNEL_TRACES + i, c[0], c[1], c[2], 1.0f);
+            batch.setColour(TraceBatch.REFERENCE_TRACES + i, c[0], c[1], c[2], 0.4f);
+            batch.setColour(TraceBatch.SPECTRUM_TRACES + i, c[0], c[1], c[2], 1.0f);
+            batch.setColour(TraceBatch.PEAK_TRACES + i, c[0], c[1], c[2], 0.5f);
+
+            // A new surface means new, empty buffers.
+            uploadPending[i] = currentFrames[i] != null;
+            averagePending[i] = true;
+            spectrumUploaded[i] = -1;
+
+            if (referenceShown[i]) {
+                showReference(i);
+            }
+        }
+
+        // Deep memory always comes from channel 1.
+        batch.setColour(TraceBatch.ENVELOPE_TRACE, colours[0][0], colours[0][1], colours[0][2], 1.0f);
         grid = new WaveformGrid(context);
         grid.setBrightness(0.75f);
+        mirror = new ScreenMirror();
+        envelopePending = envelope != null;
+
+        persistence = new PersistenceBuffer(colours);
     }
 
     @Override
     public void onSurfaceChanged(GL10 unused, int width, int height) {
         GLES20.glViewport(0, 0, width, height);
+        persistence.resize(width, height);
+        mirror.setViewport(width, height);
         Matrix.orthoM(mProjectionMatrix, 0, 0.0f, 1200.0f, 0.0f, 255.0f, 0.1f, 10.0f);
     }
 
     @Override
     public void onDrawFrame(GL10 unused) {
+        PipelineStats stats = this.stats;
+        long start = System.nanoTime();
+
+        drawFrame(stats);
+
+        if (stats != null) {
+            stats.record(PipelineStats.DRAW, System.nanoTime() - start);
+        }
+    }
+
+    private void drawFrame(PipelineStats stats) {
         GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
         Matrix.setLookAtM(mViewMatrix, 0, 0.0f, 0.0f, 1.0f, 0.0f, 0.0f, 0.0f, 0.0f, 1.0f, 0.0f);
         Matrix.multiplyMM(mMVPMatrix, 0, mProjectionMatrix, 0, mViewMatrix, 0);
 
+        if (takeLatestScreen(stats)) {
+            mirror.draw(mMVPMatrix);
+            return;
+        }
+
         grid.draw(mMVPMatrix);
 
-        if (waveform_data != null) {
-            line.setData(waveform_data);
-            line.draw(mMVPMatrix);
+        boolean[] shown = channelsShown;
+        float decayTime = persistenceTime;
+        boolean spectrum = spectra.getWindow() != SPECTRUM_OFF;
+        boolean accumulate = decayTime > 0.0f && envelope == null && !spectrum;
+        int frames = averagingFrames;
+        boolean averaging = frames > 1 && !accumulate && !spectrum && envelope == null;
+
+        if (averaging) {
+            for (FrameAverager averager : averagers) {
+                averager.setMode(averagingMode, frames);
+
+                // Starting afresh when turned on, rather than from whatever was there last time.
+                if (!averagingShown) {
+                    averager.reset();
+                }
+            }
+        }
+
+        averagingShown = averaging;
+
+        if (accumulate) {
+            int clears = persistenceClears;
+
+            // Starting afresh whenever what is being accumulated changes.
+            if (!persistenceShown || clears != persistenceCleared || shown != persistenceChannels) {
+                persistence.clear();
+                persistenceCleared = clears;
+                persistenceChannels = shown;
+            }
+
+            persistence.begin(mMVPMatrix, System.nanoTime(), decayTime);
+        }
+
+        persistenceShown = accumulate;
+        takeLatestFrames(accumulate, spectrum, averaging, shown, stats);
+        takeSpectra(spectrum);
+        takeReferences(shown);
+
+        if (envelope != null && spectrum) {
+            // Tried again on the next draw if the worker is still busy with the last capture.
+            if (envelopeSpectrumPending) {
+                envelopeSpectrumPending = !spectra.analyze(envelope.getStore(), envelopeStart, envelopeEnd,
+                        envelopePreamble, envelopeGeneration);
+            }
+
+            for (int trace = 0; trace < TraceBatch.TRACE_COUNT; ++trace) {
+                batch.setVisible(trace, false);
+            }
+
+            showSpectrum(0, SpectrumWorker.ENVELOPE);
+            drawTraces(stats);
+            return;
+        }
+
+        if (envelope != null) {
+            boolean precise = hiRes;
+
+            if (envelopePending || precise != envelopeHiRes) {
+                showEnvelope(precise);
+            }
+
+            for (int trace = 0; trace < TraceBatch.TRACE_COUNT; ++trace) {
+                batch.setVisible(trace, trace == TraceBatch.ENVELOPE_TRACE);
+            }
+
+            batch.setPreamble(TraceBatch.ENVELOPE_TRACE, envelopePreamble);
+            drawTraces(stats);
+            return;
+        }
+
+        for (int i = 0; i < Scpi.CHANNEL_COUNT; ++i) {
+            if (!shown[i] && currentFrames[i] != null) {
+                currentFrames[i].recycle();
+                currentFrames[i] = null;
+            }
+
+            boolean drawn = false;
+            batch.setVisible(TraceBatch.SPECTRUM_TRACES + i, false);
+            batch.setVisible(TraceBatch.PEAK_TRACES + i, false);
+
+            if (spectrum && shown[i]) {
+                showSpectrum(i, i);
+            } else if (averaging && shown[i]) {
+                drawn = drawAverage(i, stats);
+            } else if (currentFrames[i] != null && !accumulate) {
+                // Recorded frames bring their own preamble; live ones may arrive before it is known.
+                Preamble preamble = currentFrames[i].getPreamble();
+                batch.setPreamble(i, preamble != null ? preamble : preambles.get(i));
+
+                // Redraws for other reasons, such as a resize, reuse what is already uploaded.
+                if (uploadPending[i]) {
+                    long start = System.nanoTime();
+                    batch.setData(i, currentFrames[i].samples());
+                    uploadPending[i] = false;
+                    framesRendered.incrementAndGet();
+
+                    if (stats != null) {
+                        stats.record(PipelineStats.UPLOAD, System.nanoTime() - start);
+                    }
+                }
+
+                drawn = true;
+            }
+
+            batch.setVisible(TraceBatch.CHANNEL_TRACES + i, drawn);
+            batch.setVisible(TraceBatch.REFERENCE_TRACES + i, referenceShown[i] && !spectrum);
+        }
+
+        batch.setVisible(TraceBatch.ENVELOPE_TRACE, false);
+        drawTraces(stats);
+
+        if (accumulate) {
+            persistence.end();
+            persistence.draw(shown);
+        }
+    }
+
+    private void showEnvelope(boolean precise) {
+        if (precise) {
+            averageSamples.clear();
+            HiResDecimator.decimate(envelope.getStore(), envelopeStart, envelopeEnd, COLUMNS, averageSamples);
+            averageSamples.flip();
+            batch.setSamples(TraceBatch.ENVELOPE_TRACE, averageSamples);
+        } else {
+            envelopePairs.clear();
+            envelope.query(envelopeStart, envelopeEnd, COLUMNS, envelopePairs);
+            envelopePairs.flip();
+            batch.setEnvelope(TraceBatch.ENVELOPE_TRACE, envelopePairs);
+        }
+
+        envelopePending = false;
+        envelopeHiRes = precise;
+    }
+
+    // Returns true if there is an average to draw.
+    private boolean drawAverage(int channel, PipelineStats stats) {
+        FrameAverager averager = averagers[channel];
+
+        if (averagePending[channel]) {
+            long start = System.nanoTime();
+            averageSamples.clear();
+            averager.average(averageSamples);
+            averageSamples.flip();
+            batch.setSamples(channel, averageSamples);
+            averagePending[channel] = false;
+            // The line no longer holds the latest frame, for when averaging is turned off.
+            uploadPending[channel] = currentFrames[channel] != null;
+            framesRendered.incrementAndGet();
+
+            if (stats != null) {
+                stats.record(PipelineStats.UPLOAD, System.nanoTime() - start);
+            }
+        }
+
+        if (averager.getPreamble() == null) {
+            return false;
+        }
+
+        batch.setPreamble(channel, averager.getPreamble());
+        return true;
+    }
+
+    // One draw call for every trace shown. GPU timing fences it with glFinish, so the time is
+    // GL's own rather than however long queueing the commands took.
+    private void drawTraces(PipelineStats stats) {
+        tracesDrawn = batch.getVisibleCount();
+
+        if (stats == null || !gpuTiming) {
+            batch.draw(mMVPMatrix);
+            return;
+        }
+
+        GLES20.glFinish();
+        long start = System.nanoTime();
+        batch.draw(mMVPMatrix);
+        GLES20.glFinish();
+        stats.record(PipelineStats.GPU, System.nanoTime() - start);
+    }
+
+    // Saves and clears asked for from other threads are taken up here, where the frames are.
+    private void takeReferences(boolean[] shown) {
+        int saves = referenceSaves;
+
+        if (saves != referenceSaved) {
+            referenceSaved = saves;
+
+            for (int i = 0; i < Scpi.CHANNEL_COUNT; ++i) {
+                if (!shown[i] || currentFrames[i] == null) {
+                    continue;
+                }
+
+                ByteBuffer samples = currentFrames[i].samples().duplicate();
+                samples.limit(samples.position() + Math.min(COLUMNS, samples.remaining()));
+                referenceSamples[i].clear();
+                referenceSamples[i].put(samples);
+                referenceSamples[i].flip();
+                Preamble preamble = currentFrames[i].getPreamble();
+                referencePreambles[i] = preamble != null ? preamble : preambles.get(i);
+                referenceShown[i] = true;
+                showReference(i);
+            }
+        }
+
+        int clears = referenceClears;
+
+        if (clears != referenceCleared) {
+            referenceCleared = clears;
+            Arrays.fill(referenceShown, false);
+        }
+    }
+
+    private void showReference(int channel) {
+        batch.setData(TraceBatch.REFERENCE_TRACES + channel, referenceSamples[channel]);
+        batch.setPreamble(TraceBatch.REFERENCE_TRACES + channel, referencePreambles[channel]);
+    }
+
+    // Keeps the newest finished spectrum of each slot, and hands the rest back. With the spectrum
+    // off they all go back, so turning it on again never shows an old one.
+    private void takeSpectra(boolean spectrum) {
+        SpectrumWorker.Spectrum finished;
+
+        while ((finished = spectra.poll()) != null) {
+            int slot = finished.slot;
+
+            if (!spectrum || (slot == SpectrumWorker.ENVELOPE && finished.generation != envelopeGeneration)) {
+                spectra.release(finished);
+                continue;
+            }
+
+            showNoSpectrum(slot);
+            shownSpectra[slot] = finished;
         }
+
+        for (int slot = 0; !spectrum && slot < SpectrumWorker.SLOTS; ++slot) {
+            showNoSpectrum(slot);
+        }
+    }
+
+    private void showNoSpectrum(int slot) {
+        if (shownSpectra[slot] != null) {
+            spectra.release(shownSpectra[slot]);
+            shownSpectra[slot] = null;
+        }
+
+        for (int channel = 0; channel < Scpi.CHANNEL_COUNT; ++channel) {
+            if (spectrumUploaded[channel] == slot) {
+                spectrumUploaded[channel] = -1;
+            }
+        }
+    }
+
+    // Uploads a channel's spectrum, and its peaks if held, if they are not there already, and
+    // has them drawn with the other traces.
+    private void showSpectrum(int channel, int slot) {
+        SpectrumWorker.Spectrum spectrum = shownSpectra[slot];
+        boolean shown = spectrum != null && spectrum.heights.hasRemaining();
+        boolean peaks = shown && spectrum.peaks.hasRemaining();
+
+        if (shown && spectrumUploaded[channel] != slot) {
+            if (peaks) {
+                batch.setHeights(TraceBatch.PEAK_TRACES + channel, spectrum.peaks);
+            }
+
+            batch.setHeights(TraceBatch.SPECTRUM_TRACES + channel, spectrum.heights);
+            spectrumUploaded[channel] = slot;
+        }
+
+        batch.setVisible(TraceBatch.PEAK_TRACES + channel, peaks);
+        batch.setVisible(TraceBatch.SPECTRUM_TRACES + channel, shown);
     }
 }
@@ -8,16 +8,10 @@ package com.geospark.scoperoid;
 import android.content.Context;
 import android.content.res.TypedArray;
 import android.opengl.GLSurfaceView;
-import android.os.Bundle;
-import android.os.Message;
 import android.util.AttributeSet;
-import android.util.Log;
 
-import java.io.UnsupportedEncodingException;
-import java.util.Arrays;
 
-
-public class WaveformView extends GLSurfaceView {
+public class WaveformView extends GLSurfaceView implements Scope.WaveformSink, Scope.ScreenSink {
     private int mAspectRatioWidth;
     private int mAspectRatioHeight;
     private final WaveformRenderer mRenderer;
@@ -38,26 +32,233 @@ public class WaveformView extends GLSurfaceView {
         mRenderer = new WaveformRenderer(context);
 
         setRenderer(mRenderer);
+        setRenderOnDemand(true);
+    }
+
+    /**
+     * When on, the GPU only redraws when a new frame or preamble arrives instead of at the full
+     * display refresh rate. Requests that arrive faster than the display are coalesced.
+     */
+    public void setRenderOnDemand(boolean onDemand) {
+        setRenderMode(onDemand ? RENDERMODE_WHEN_DIRTY : RENDERMODE_CONTINUOUSLY);
+    }
+
+    public long getFramesReceived() {
+        return mRenderer.getFramesReceived();
+    }
+
+    public long getFramesRendered() {
+        return mRenderer.getFramesRendered();
+    }
+
+    public long getFramesDropped() {
+        return mRenderer.getFramesDropped();
     }
 
-    public void setWaveformData(byte[] data) {
-        // Bit of an assumption, ideally we read in the first two bytes to determine the length
-        // of the rest of the header, but meh.
-        byte[] hdr = Arrays.copyOfRange(data, 2, 11);
-        int data_len;
+    /**
+     * Has the GL thread time the handoff, upload and draw stages into stats, which usually come
+     * from {@link Scope#getStats()} so the whole pipeline is in one place. Null stops it.
+     */
+    public void setStats(PipelineStats stats) {
+        mRenderer.setStats(stats);
+    }
+
+    /**
+     * Times GL drawing the traces too, which stalls the GL thread while on.
+     */
+    public void setGpuTiming(boolean gpuTiming) {
+        mRenderer.setGpuTiming(gpuTiming);
+        requestRender();
+    }
+
+    public int getTracesDrawn() {
+        return mRenderer.getTracesDrawn();
+    }
+
+    /**
+     * Called from the acquisition thread. The frame goes straight to the GL thread, which
+     * recycles it once something newer has been drawn.
+     */
+    @Override
+    public boolean frame(WaveformFrame frame) {
+        if (mRenderer.offerFrame(frame)) {
+            requestRender();
+            return true;
+        }
+
+        return false;
+    }
 
-        try {
-            String s = new String(hdr, "US-ASCII");
-            data_len = Integer.parseInt(s);
-        } catch (UnsupportedEncodingException e) {
-            return;
+    /**
+     * Called from the acquisition thread, like {@link #frame(WaveformFrame)}.
+     */
+    @Override
+    public boolean screen(ScreenFrame frame) {
+        if (mRenderer.offerScreen(frame)) {
+            requestRender();
+            return true;
         }
 
-        Message msg = Message.obtain(mRenderer.handler);
-        Bundle b = new Bundle();
-        b.putByteArray("waveform", Arrays.copyOfRange(data, 11, Math.min(data.length, data_len + 12)));
-        msg.setData(b);
-        msg.sendToTarget();
+        return false;
+    }
+
+    /**
+     * Shows the 'scope's own screen, from the screenshots given to {@link #screen(ScreenFrame)},
+     * in place of the traces.
+     */
+    public void setMirroring(boolean mirroring) {
+        mRenderer.setMirroring(mirroring);
+        requestRender();
+    }
+
+    public boolean isMirroring() {
+        return mRenderer.isMirroring();
+    }
+
+    /**
+     * @param channel numbered from 1.
+     */
+    public void setPreamble(int channel, Preamble preamble) {
+        mRenderer.setPreamble(channel, preamble);
+        requestRender();
+    }
+
+    public void setChannels(int... channels) {
+        mRenderer.setChannels(channels);
+        requestRender();
+    }
+
+    /**
+     * Accumulates every frame instead of showing only the latest, graded by how often each pixel
+     * is hit. Hits fade away over a finite decay time, which needs redrawing at the display rate
+     * even while no frames arrive.
+     *
+     * @param decayTime seconds for hits to fade to 1/e, {@link PersistenceBuffer#INFINITE} to keep
+     * them until cleared, or 0 to turn persistence off.
+     */
+    public void setPersistence(float decayTime) {
+        mRenderer.setPersistence(decayTime);
+        setRenderOnDemand(decayTime <= 0.0f || decayTime == PersistenceBuffer.INFINITE);
+        requestRender();
+    }
+
+    public float getPersistence() {
+        return mRenderer.getPersistence();
+    }
+
+    public void clearPersistence() {
+        mRenderer.clearPersistence();
+        requestRender();
+    }
+
+    /**
+     * Shows the spectra of the channels in place of their traces, in dBV from
+     * {@link SpectrumLine#TOP_DECIBELS} at the top of the grid, and DC to Nyquist across it. Every
+     * frame goes through the FFT, on a {@link SpectrumWorker} rather than the GL thread, so averages
+     * and held peaks take in frames that arrive faster than the display can show them.
+     *
+     * @param window a {@link SpectrumAnalyzer} window, or {@link WaveformRenderer#SPECTRUM_OFF}.
+     */
+    public void setSpectrum(int window) {
+        mRenderer.setSpectrum(window);
+        requestRender();
+    }
+
+    public int getSpectrum() {
+        return mRenderer.getSpectrum();
+    }
+
+    /**
+     * @param averages frames to average the power of, or 1 for none.
+     */
+    public void setSpectrumAverages(int averages) {
+        mRenderer.setSpectrumAverages(averages);
+        requestRender();
+    }
+
+    public int getSpectrumAverages() {
+        return mRenderer.getSpectrumAverages();
+    }
+
+    /**
+     * Draws the highest level each bin has reached, dimmer, behind the spectrum.
+     */
+    public void setSpectrumPeakHold(boolean peakHold) {
+        mRenderer.setSpectrumPeakHold(peakHold);
+        requestRender();
+    }
+
+    public boolean isSpectrumPeakHold() {
+        return mRenderer.isSpectrumPeakHold();
+    }
+
+    public void resetSpectrum() {
+        mRenderer.resetSpectrum();
+        requestRender();
+    }
+
+    /**
+     * Draws each shown channel as the average of its frames rather than the latest one.
+     *
+     * @param mode {@link FrameAverager#BOXCAR} or {@link FrameAverager#EXPONENTIAL}.
+     * @param frames to average over, or 1 to turn averaging off.
+     */
+    public void setAveraging(int mode, int frames) {
+        mRenderer.setAveraging(mode, frames);
+        requestRender();
+    }
+
+    public int getAveragingMode() {
+        return mRenderer.getAveragingMode();
+    }
+
+    public int getAveragingFrames() {
+        return mRenderer.getAveragingFrames();
+    }
+
+    /**
+     * Draws deep memory as the mean of each column, which has more bits than a sample, rather
+     * than its min/max envelope.
+     */
+    public void setHiRes(boolean hiRes) {
+        mRenderer.setHiRes(hiRes);
+        requestRender();
+    }
+
+    public boolean isHiRes() {
+        return mRenderer.isHiRes();
+    }
+
+    /**
+     * Shows samples [start, end) of a deep memory capture in place of the live trace. The
+     * pyramid is read on the GL thread, so leave it alone until {@link #clearEnvelope()}.
+     */
+    public void showEnvelope(final MinMaxPyramid pyramid, final long start, final long end, final Preamble preamble) {
+        queueEvent(new Runnable() {
+            @Override
+            public void run() {
+                mRenderer.setEnvelope(pyramid, start, end, preamble);
+            }
+        });
+
+        requestRender();
+    }
+
+    public void clearEnvelope() {
+        showEnvelope(null, 0, 0, null);
+    }
+
+    /**
+     * Keeps each shown channel's latest frame on screen, dimmer, behind its live trace.
+     */
+    public void saveReferences() {
+        mRenderer.saveReferences();
+        requestRender();
+    }
+
+    public void clearReferences() {
+        mRenderer.clearReferences();
+        requestRender();
     }
 
     @Override
@@ -0,0 +1,85 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid.benchmark;
+
+import com.geospark.scoperoid.FrameAverager;
+import com.geospark.scoperoid.HiResDecimator;
+import com.geospark.scoperoid.Preamble;
+import com.geospark.scoperoid.SampleStore;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+/**
+ * Adding a screen's frame to an average, which should cost the same however many frames it is
+ * over, and reducing deep memory to a hi-res trace.
+ */
+public class AveragingBenchmark {
+    @State(Scope.Thread)
+    public static class Frames {
+        @Param({"0", "1"})
+        public int mode;
+
+        @Param({"4", "256"})
+        public int frames;
+
+        private final Preamble _preamble = Preamble.parse(Waveforms.PREAMBLE.getBytes(Waveforms.ASCII));
+        private FrameAverager _averager;
+        private ByteBuffer _samples;
+        private final FloatBuffer _average = FloatBuffer.allocate(Integer.parseInt(Waveforms.SCREEN));
+
+        @Setup
+        public void setUp() {
+            _averager = new FrameAverager(mode, frames);
+            _samples = ByteBuffer.allocateDirect(_average.capacity());
+            _samples.put(Waveforms.samples(_average.capacity()));
+            _samples.flip();
+
+            // Full, so every add takes the oldest frame out.
+            for (int i = 0; i < frames; ++i) {
+                _averager.add(_samples, _preamble);
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class DeepMemory {
+        @Param({"1200000", "12000000"})
+        public int points;
+
+        private final SampleStore _store = new SampleStore();
+        private final FloatBuffer _trace = FloatBuffer.allocate(Integer.parseInt(Waveforms.SCREEN));
+
+        @Setup
+        public void setUp() {
+            _store.append(ByteBuffer.wrap(Waveforms.samples(points)));
+        }
+    }
+
+    @Benchmark
+    public int add(Frames state) {
+        state._averager.add(state._samples, state._preamble);
+        return state._averager.getCount();
+    }
+
+    @Benchmark
+    public int average(Frames state) {
+        state._average.clear();
+        return state._averager.average(state._average);
+    }
+
+    @Benchmark
+    public int hiRes(DeepMemory state) {
+        state._trace.clear();
+        return HiResDecimator.decimate(state._store, 0, state._store.size(), state._trace.capacity(), state._trace);
+    }
+}
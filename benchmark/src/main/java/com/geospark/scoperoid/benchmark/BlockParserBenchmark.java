@@ -0,0 +1,62 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid.benchmark;
+
+import com.geospark.scoperoid.BlockParser;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Definite-length block parsing on its own, fed in the pieces a transport would hand over: a
+ * full or high speed USB packet at a time, or a whole bulk read.
+ */
+@State(Scope.Thread)
+public class BlockParserBenchmark {
+    @Param({Waveforms.SCREEN, Waveforms.DEEP})
+    public int points;
+
+    @Param({"64", "512", "16384"})
+    public int readSize;
+
+    private final BlockParser _parser = new BlockParser();
+    private ByteBuffer _block;
+    private CountingSink _sink;
+
+    @Setup
+    public void setUp() {
+        _block = ByteBuffer.allocateDirect(points + 12);
+        _block.put(Waveforms.block(points));
+        _block.flip();
+        _sink = new CountingSink(points);
+    }
+
+    @Benchmark
+    public long parse() {
+        _parser.reset();
+        _sink.reset();
+        int end = _block.limit();
+
+        for (int start = 0; start < end; start += readSize) {
+            _block.limit(Math.min(end, start + readSize));
+            _block.position(start);
+            _parser.feed(_block, _sink);
+        }
+
+        _block.limit(end);
+
+        if (!_parser.finish()) {
+            throw new IllegalStateException("Incomplete block");
+        }
+
+        return _sink.checksum;
+    }
+}
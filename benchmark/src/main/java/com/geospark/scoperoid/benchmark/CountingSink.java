@@ -0,0 +1,42 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid.benchmark;
+
+import com.geospark.scoperoid.BlockParser;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Copies the payload somewhere, as a frame would, and adds up what it got so the JIT cannot
+ * throw the parsing away.
+ */
+class CountingSink implements BlockParser.Sink {
+    private final ByteBuffer _copy;
+    long bytes = 0;
+    long checksum = 0;
+
+    CountingSink(int capacity) {
+        _copy = ByteBuffer.allocateDirect(capacity);
+    }
+
+    void reset() {
+        _copy.clear();
+        bytes = 0;
+    }
+
+    @Override
+    public void payload(ByteBuffer payload) {
+        int count = payload.remaining();
+        bytes += count;
+
+        if (count > _copy.remaining()) {
+            _copy.clear();
+        }
+
+        _copy.put(payload);
+        checksum += _copy.get(_copy.position() - 1);
+    }
+}
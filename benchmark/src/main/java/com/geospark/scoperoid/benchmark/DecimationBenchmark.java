@@ -0,0 +1,99 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid.benchmark;
+
+import com.geospark.scoperoid.MinMaxPyramid;
+import com.geospark.scoperoid.SampleStore;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Min/max decimation of deep memory down to a screen's width: building the pyramid once a fetch
+ * is in, or chunk by chunk as it arrives, and reading a screen out of it at the full view and
+ * zoomed in.
+ */
+@State(Scope.Benchmark)
+public class DecimationBenchmark {
+    private static final int COLUMNS = Integer.parseInt(Waveforms.SCREEN);
+
+    // The most bytes a deep memory fetch asks for at once.
+    private static final int CHUNK = Integer.parseInt(Waveforms.DEEP);
+
+    @Param({"1200000", "12000000", "24000000"})
+    public int samples;
+
+    private final SampleStore _store = new SampleStore();
+    private MinMaxPyramid _pyramid;
+    private final SampleStore _fetched = new SampleStore();
+    private MinMaxPyramid _fetched_pyramid;
+    private final ByteBuffer _columns = ByteBuffer.allocateDirect(2 * COLUMNS);
+
+    @Setup
+    public void setUp() {
+        ByteBuffer chunk = ByteBuffer.wrap(Waveforms.samples(SampleStore.SEGMENT_SIZE));
+        _store.ensureCapacity(samples);
+
+        for (int remaining = samples; remaining > 0; remaining -= chunk.limit()) {
+            chunk.clear();
+            chunk.limit(Math.min(remaining, chunk.capacity()));
+            _store.append(chunk);
+        }
+
+        _pyramid = new MinMaxPyramid(_store);
+        _pyramid.ensureCapacity(samples);
+        _pyramid.update();
+
+        _fetched.ensureCapacity(samples);
+        _fetched_pyramid = new MinMaxPyramid(_fetched);
+        _fetched_pyramid.ensureCapacity(samples);
+    }
+
+    @Benchmark
+    public long build() {
+        _pyramid.reset();
+        _pyramid.update();
+        return _pyramid.size();
+    }
+
+    @Benchmark
+    public long buildAsFetched() {
+        _fetched.clear();
+        _fetched_pyramid.reset();
+
+        for (int segment = 0; segment < _store.segmentCount(); ++segment) {
+            ByteBuffer data = _store.segment(segment);
+            int limit = data.limit();
+
+            while (data.hasRemaining()) {
+                data.limit(Math.min(limit, data.position() + CHUNK));
+                _fetched.append(data);
+                _fetched_pyramid.update();
+                data.limit(limit);
+            }
+        }
+
+        return _fetched_pyramid.size();
+    }
+
+    @Benchmark
+    public int queryFull() {
+        _columns.clear();
+        return _pyramid.query(0, samples, COLUMNS, _columns);
+    }
+
+    @Benchmark
+    public int queryZoomed() {
+        _columns.clear();
+        long start = samples / 3;
+        return _pyramid.query(start, start + samples / 100, COLUMNS, _columns);
+    }
+}
@@ -0,0 +1,82 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid.benchmark;
+
+import com.geospark.scoperoid.FrameCodec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encoding and decoding a run of screens; each op is one frame of {@link Waveforms#SCREEN}
+ * samples, so ops/s times that is the MB/s. The compression ratio is printed during setup.
+ */
+public class FrameCodecBenchmark {
+    private static final int FRAMES = 64;
+
+    @State(Scope.Thread)
+    public static class Frames {
+        @Param({"square", "sine", "noise", "idle"})
+        public String signal;
+
+        private final int _points = Integer.parseInt(Waveforms.SCREEN);
+        private final FrameCodec _encoder = new FrameCodec(_points);
+        private final FrameCodec _decoder = new FrameCodec(_points);
+        private final ByteBuffer _out = ByteBuffer.allocate(FrameCodec.maxEncodedSize(_points));
+        private final ByteBuffer _samples = ByteBuffer.allocate(_points);
+        private ByteBuffer[] _frames;
+        private ByteBuffer[] _encoded;
+        private int _next = 0;
+
+        @Setup
+        public void setUp() {
+            byte[][] frames = Waveforms.frames(signal, _points, FRAMES);
+            FrameCodec encoder = new FrameCodec(_points);
+            _frames = new ByteBuffer[FRAMES];
+            _encoded = new ByteBuffer[FRAMES];
+            long size = 0;
+
+            // The decoder goes round them in order, so its last frame is always the one each was
+            // encoded against; the first is encoded on its own.
+            for (int i = 0; i < FRAMES; ++i) {
+                _frames[i] = ByteBuffer.wrap(frames[i]);
+                ByteBuffer encoded = ByteBuffer.allocate(FrameCodec.maxEncodedSize(_points));
+                encoder.encode(_frames[i], encoded);
+                encoded.flip();
+                _encoded[i] = encoded;
+                size += encoded.remaining();
+            }
+
+            System.out.println(String.format("%s: %.2f:1", signal, (double) FRAMES * _points / size));
+        }
+
+        private int next() {
+            int next = _next;
+            _next = (next + 1) % FRAMES;
+            return next;
+        }
+    }
+
+    @Benchmark
+    public int encode(Frames state) {
+        state._out.clear();
+        state._encoder.encode(state._frames[state.next()], state._out);
+        return state._out.position();
+    }
+
+    @Benchmark
+    public int decode(Frames state) {
+        ByteBuffer encoded = state._encoded[state.next()];
+        encoded.rewind();
+        state._samples.clear();
+        return state._decoder.decode(encoded, state._samples);
+    }
+}
@@ -0,0 +1,114 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid.benchmark;
+
+import com.geospark.scoperoid.FramePool;
+import com.geospark.scoperoid.FrameStreamClient;
+import com.geospark.scoperoid.FrameStreamServer;
+import com.geospark.scoperoid.Preamble;
+import com.geospark.scoperoid.WaveformFrame;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Publishing a screen of samples to viewers on loopback, a tenth of which never read. Each frame
+ * is offered until the server takes it, so this is the rate the server thread keeps up with.
+ */
+@State(Scope.Thread)
+public class FrameStreamServerBenchmark {
+    private static final int POINTS = Integer.parseInt(Waveforms.SCREEN);
+    private static final int FRAMES = 64;
+
+    @Param({"1", "10", "50"})
+    public int clients;
+
+    private FrameStreamServer _server;
+    private final ArrayList<FrameStreamClient> _readers = new ArrayList<>();
+    private final ArrayList<Socket> _stalled = new ArrayList<>();
+    private final FramePool _pool = new FramePool(1, POINTS);
+    private final byte[][] _frames = Waveforms.frames("square", POINTS, FRAMES);
+    private final Preamble _preamble = Preamble.parse(Waveforms.PREAMBLE.getBytes(Waveforms.ASCII));
+    private long _next = 0;
+
+    @Setup
+    public void setUp() throws IOException, InterruptedException {
+        _server = new FrameStreamServer(0, FrameStreamServer.DEFAULT_QUEUE_SIZE, POINTS);
+        _server.start();
+
+        for (int i = 0; i < clients; ++i) {
+            if (i % 10 == 9) {
+                _stalled.add(new Socket("127.0.0.1", _server.getPort()));
+                continue;
+            }
+
+            final FrameStreamClient client = new FrameStreamClient("127.0.0.1", _server.getPort(), POINTS);
+            _readers.add(client);
+
+            Thread reader = new Thread() {
+                @Override
+                public void run() {
+                    WaveformFrame frame = new FramePool(1, POINTS).acquire();
+
+                    try {
+                        while (true) {
+                            client.read(frame);
+                        }
+                    } catch (IOException e) {
+                        // Closed at tear down.
+                    }
+                }
+            };
+
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        while (_server.getClientCount() < clients) {
+            Thread.sleep(10);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        for (FrameStreamClient client : _readers) {
+            client.close();
+        }
+
+        for (Socket socket : _stalled) {
+            socket.close();
+        }
+
+        _readers.clear();
+        _stalled.clear();
+        _server.stop();
+    }
+
+    @Benchmark
+    public void publish() {
+        WaveformFrame frame = _pool.acquire();
+        frame.begin();
+        frame.payload(ByteBuffer.wrap(_frames[(int) (_next % FRAMES)]));
+        frame.setChannel(1);
+        frame.setPreamble(_preamble);
+        frame.complete(_next++);
+
+        while (!_server.publish(frame)) {
+            Thread.yield();
+        }
+
+        frame.recycle();
+    }
+}
@@ -0,0 +1,38 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid.benchmark;
+
+import com.geospark.scoperoid.LatencyHistogram;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Recording into one histogram from as many threads as the app feeds it from: acquisition, GL
+ * and the UI.
+ */
+@State(Scope.Benchmark)
+public class LatencyHistogramBenchmark {
+    private final LatencyHistogram _histogram = new LatencyHistogram();
+
+    @State(Scope.Thread)
+    public static class Durations {
+        int next = 0;
+    }
+
+    @Benchmark
+    public void recordAlone(Durations durations) {
+        _histogram.record(1000 + durations.next++ % 5000);
+    }
+
+    @Benchmark
+    @Threads(3)
+    public void recordShared(Durations durations) {
+        _histogram.record(1000 + durations.next++ % 5000);
+    }
+}
@@ -0,0 +1,89 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid.benchmark;
+
+import com.geospark.scoperoid.MeasurementEngine;
+import com.geospark.scoperoid.Measurements;
+import com.geospark.scoperoid.Preamble;
+import com.geospark.scoperoid.SampleStore;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Measuring a screen of samples, as is done for every frame, and 12M points of deep memory on
+ * one thread and split across several.
+ */
+public class MeasurementBenchmark {
+    private static final Preamble PREAMBLE = Preamble.parse(Waveforms.PREAMBLE.getBytes(Waveforms.ASCII));
+
+    @State(Scope.Thread)
+    public static class Screen {
+        final ByteBuffer samples = ByteBuffer.allocateDirect(Integer.parseInt(Waveforms.SCREEN));
+        final MeasurementEngine engine = new MeasurementEngine();
+        final Measurements measurements = new Measurements();
+
+        @Setup
+        public void setUp() {
+            samples.put(Waveforms.samples(samples.capacity()));
+            samples.flip();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class DeepMemory {
+        @Param({"1", "4"})
+        public int threads;
+
+        final SampleStore store = new SampleStore();
+        final Measurements measurements = new Measurements();
+        ExecutorService executor;
+        MeasurementEngine engine;
+
+        @Setup
+        public void setUp() {
+            ByteBuffer chunk = ByteBuffer.wrap(Waveforms.samples(SampleStore.SEGMENT_SIZE));
+            int points = 12000000;
+            store.ensureCapacity(points);
+
+            for (int remaining = points; remaining > 0; remaining -= chunk.limit()) {
+                chunk.clear();
+                chunk.limit(Math.min(remaining, chunk.capacity()));
+                store.append(chunk);
+            }
+
+            executor = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+            engine = new MeasurementEngine(executor);
+        }
+
+        @TearDown
+        public void tearDown() {
+            if (executor != null) {
+                executor.shutdown();
+            }
+        }
+    }
+
+    @Benchmark
+    public double screen(Screen screen) {
+        screen.engine.measure(screen.samples, PREAMBLE, screen.measurements);
+        return screen.measurements.get(Measurements.FREQUENCY);
+    }
+
+    @Benchmark
+    public double deepMemory(DeepMemory memory) {
+        memory.engine.measure(memory.store, PREAMBLE, memory.measurements);
+        return memory.measurements.get(Measurements.FREQUENCY);
+    }
+}
@@ -0,0 +1,25 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid.benchmark;
+
+import com.geospark.scoperoid.Preamble;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Parsing a :WAV:PRE? reply, which happens whenever the 'scope's settings change.
+ */
+@State(Scope.Thread)
+public class PreambleBenchmark {
+    private final byte[] _reply = Waveforms.PREAMBLE.getBytes(Waveforms.ASCII);
+
+    @Benchmark
+    public Preamble parse() {
+        return Preamble.parse(_reply);
+    }
+}
@@ -0,0 +1,45 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid.benchmark;
+
+import com.geospark.scoperoid.Preamble;
+import com.geospark.scoperoid.SampleConversion;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Turning a screen of samples into vertices on the CPU, as the float mode of the waveform line
+ * does before every upload.
+ */
+@State(Scope.Thread)
+public class SampleConversionBenchmark {
+    private static final int POINTS = Integer.parseInt(Waveforms.SCREEN);
+
+    private final ByteBuffer _samples = ByteBuffer.allocateDirect(POINTS);
+    private final FloatBuffer _vertices = ByteBuffer.allocateDirect(POINTS * 2 * 4)
+            .order(ByteOrder.nativeOrder()).asFloatBuffer();
+    private Preamble _preamble;
+
+    @Setup
+    public void setUp() {
+        _samples.put(Waveforms.samples(POINTS));
+        _samples.flip();
+        _preamble = Preamble.parse(Waveforms.PREAMBLE.getBytes(Waveforms.ASCII));
+    }
+
+    @Benchmark
+    public int toVertices() {
+        _vertices.clear();
+        return SampleConversion.toVertices(_samples, _preamble, _vertices);
+    }
+}
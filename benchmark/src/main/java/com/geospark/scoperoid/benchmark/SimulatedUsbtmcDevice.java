@@ -0,0 +1,67 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid.benchmark;
+
+import com.geospark.scoperoid.UsbtmcTransfer;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * The device end of a USBTMC bulk pipe, in memory. Every query is answered with the same reply,
+ * split into DEV_DEP_MSG_IN transfers of whatever size the host asks for, so only the host side
+ * framing is being timed.
+ */
+class SimulatedUsbtmcDevice implements UsbtmcTransfer.BulkPipe {
+    static final int MAX_PACKET_SIZE = 512;
+
+    private final ByteBuffer _reply;
+    private final ByteBuffer _pending;
+
+    SimulatedUsbtmcDevice(byte[] reply) {
+        _reply = ByteBuffer.wrap(reply);
+        _reply.position(_reply.limit());
+        _pending = ByteBuffer.allocate(UsbtmcTransfer.HEADER_SIZE + reply.length + 3);
+        _pending.order(ByteOrder.LITTLE_ENDIAN);
+        _pending.limit(0);
+    }
+
+    @Override
+    public int write(byte[] buffer, int length, int timeout) {
+        byte msgid = buffer[0];
+        byte btag = buffer[1];
+        int size = ByteBuffer.wrap(buffer, 0, length).order(ByteOrder.LITTLE_ENDIAN).getInt(4);
+
+        if (msgid == 1) {
+            if (buffer[UsbtmcTransfer.HEADER_SIZE + size - 1] == '?') {
+                _reply.rewind();
+            }
+        } else if (msgid == 2) {
+            int count = Math.min(size, _reply.remaining());
+            _pending.clear();
+            _pending.put((byte) 2).put(btag).put((byte) ~btag).put((byte) 0);
+            _pending.putInt(count);
+            _pending.put((byte) (count == _reply.remaining() ? 1 : 0)).put((byte) 0).putShort((short) 0);
+            _pending.put(_reply.array(), _reply.position(), count);
+            _reply.position(_reply.position() + count);
+
+            while ((_pending.position() & 3) != 0) {
+                _pending.put((byte) 0);
+            }
+
+            _pending.flip();
+        }
+
+        return length;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length, int timeout) {
+        int count = Math.min(length, _pending.remaining());
+        _pending.get(buffer, offset, count);
+        return count;
+    }
+}
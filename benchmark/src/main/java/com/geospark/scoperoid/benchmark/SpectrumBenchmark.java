@@ -0,0 +1,53 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid.benchmark;
+
+import com.geospark.scoperoid.Preamble;
+import com.geospark.scoperoid.SpectrumAnalyzer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Adding a frame to a spectrum, which has to keep up with the acquisition rate at a screen's
+ * 1200 points, and the larger transforms deep memory is shown with.
+ */
+@State(Scope.Thread)
+public class SpectrumBenchmark {
+    @Param({Waveforms.SCREEN, "262144", "1048576"})
+    public int points;
+
+    private final Preamble _preamble = Preamble.parse(Waveforms.PREAMBLE.getBytes(Waveforms.ASCII));
+    private final SpectrumAnalyzer _analyzer = new SpectrumAnalyzer(SpectrumAnalyzer.HANN);
+    private ByteBuffer _samples;
+    private float[] _decibels;
+
+    @Setup
+    public void setUp() {
+        _samples = ByteBuffer.allocateDirect(points);
+        _samples.put(Waveforms.samples(points));
+        _samples.flip();
+        _analyzer.setAverages(16);
+        _analyzer.add(_samples, _preamble);
+        _decibels = new float[_analyzer.getBins()];
+    }
+
+    @Benchmark
+    public int add() {
+        _analyzer.add(_samples, _preamble);
+        return _analyzer.getCount();
+    }
+
+    @Benchmark
+    public int decibels() {
+        return _analyzer.averageDecibels(_decibels);
+    }
+}
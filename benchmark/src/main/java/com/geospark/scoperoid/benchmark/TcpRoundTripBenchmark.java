@@ -0,0 +1,70 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid.benchmark;
+
+import com.geospark.scoperoid.BlockParser;
+import com.geospark.scoperoid.Scpi;
+import com.geospark.scoperoid.SimulatedScopeServer;
+import com.geospark.scoperoid.TcpTransport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A whole :WAV:DATA? round trip against the simulated 'scope over loopback: a screen in NORM
+ * mode, and the largest chunk a deep memory fetch reads at once in RAW mode.
+ */
+@State(Scope.Thread)
+public class TcpRoundTripBenchmark {
+    @Param({Waveforms.SCREEN, Waveforms.DEEP})
+    public int points;
+
+    private SimulatedScopeServer _server;
+    private TcpTransport _transport;
+    private final BlockParser _parser = new BlockParser();
+    private final ByteBuffer _scratch = ByteBuffer.allocateDirect(64 * 1024);
+    private CountingSink _sink;
+
+    @Setup
+    public void setUp() throws IOException {
+        _server = new SimulatedScopeServer(0);
+        _server.start();
+        _transport = new TcpTransport("127.0.0.1", _server.getPort());
+        _sink = new CountingSink(points);
+
+        if (points > Integer.parseInt(Waveforms.SCREEN)) {
+            _transport.write(Scpi.STOP);
+            _transport.write(Scpi.WAV_MODE + " RAW");
+            _transport.write(Scpi.WAV_START + " 1");
+            _transport.write(Scpi.WAV_STOP + " " + points);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        _transport.close();
+        _server.stop();
+    }
+
+    @Benchmark
+    public long requestData() {
+        _sink.reset();
+        _transport.write(Scpi.WAV_DATA_Q);
+
+        if (!_parser.receive(_transport, _scratch, _sink) || _sink.bytes != points) {
+            throw new IllegalStateException("Short or malformed reply");
+        }
+
+        return _sink.checksum;
+    }
+}
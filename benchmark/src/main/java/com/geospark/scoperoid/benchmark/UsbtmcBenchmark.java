@@ -0,0 +1,64 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid.benchmark;
+
+import com.geospark.scoperoid.BlockParser;
+import com.geospark.scoperoid.Scpi;
+import com.geospark.scoperoid.UsbtmcTransfer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The host side of USBTMC: wrapping a command in a DEV_DEP_MSG_OUT header, and asking for and
+ * unwrapping DEV_DEP_MSG_IN transfers until a whole waveform has been read and parsed.
+ */
+@State(Scope.Thread)
+public class UsbtmcBenchmark {
+    @Param({Waveforms.SCREEN, Waveforms.DEEP})
+    public int points;
+
+    // Bytes asked for per DEV_DEP_MSG_IN: the default, as much as fits in one bulk read, and the
+    // old one packet per request.
+    @Param({"1048576", "16372", "500"})
+    public int transferSize;
+
+    private UsbtmcTransfer _transfer;
+    private final BlockParser _parser = new BlockParser();
+    private final ByteBuffer _scratch = ByteBuffer.allocate(UsbtmcTransfer.MAX_READ_SIZE);
+    private CountingSink _sink;
+
+    @Setup
+    public void setUp() {
+        _transfer = new UsbtmcTransfer(new SimulatedUsbtmcDevice(Waveforms.block(points)),
+                SimulatedUsbtmcDevice.MAX_PACKET_SIZE);
+        _transfer.setTransferSize(transferSize);
+        _transfer.setReadSize(transferSize + UsbtmcTransfer.HEADER_SIZE);
+        _sink = new CountingSink(points);
+    }
+
+    @Benchmark
+    public boolean sendCommand() {
+        return _transfer.write(Scpi.WAV_PREAMBLE_Q);
+    }
+
+    @Benchmark
+    public long requestData() {
+        _sink.reset();
+        _transfer.write(Scpi.WAV_DATA_Q);
+
+        if (!_parser.receive(_transfer, _scratch, _sink)) {
+            throw new IllegalStateException("Malformed reply");
+        }
+
+        return _sink.checksum;
+    }
+}
@@ -0,0 +1,81 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid.benchmark;
+
+import java.nio.charset.Charset;
+import java.util.Random;
+
+/**
+ * Canned replies shaped like the ones a DS1054Z sends, so every benchmark parses the same bytes.
+ */
+final class Waveforms {
+    static final Charset ASCII = Charset.forName("US-ASCII");
+
+    // One screen of :WAV:DATA? in NORM mode, and the most a RAW mode read returns at once.
+    static final String SCREEN = "1200";
+    static final String DEEP = "250000";
+
+    static final String PREAMBLE = "0,0,1200,1,1.000000e-08,-6.000000e-06,0,4.000000e-02,0,127\n";
+
+    private Waveforms() {
+    }
+
+    static byte[] samples(int points) {
+        byte[] samples = new byte[points];
+
+        for (int i = 0; i < points; ++i) {
+            // A sine with a little noise, so nothing downstream sees a constant.
+            samples[i] = (byte) (127 + 75 * Math.sin(i * 2.0 * Math.PI / 300) + (i * 7919 % 5) - 2);
+        }
+
+        return samples;
+    }
+
+    /**
+     * @return successive screens of a trace as a 'scope would capture them: a square wave whose
+     * edges jitter, a sine that drifts, plain noise, or a mostly idle line with the odd glitch. All
+     * but the noise have a count or so of noise on top.
+     */
+    static byte[][] frames(String signal, int points, int count) {
+        Random random = new Random(1);
+        byte[][] frames = new byte[count][points];
+
+        for (byte[] frame : frames) {
+            int jitter = random.nextInt(5) - 2;
+            int glitch = random.nextInt(10) == 0 ? random.nextInt(points) : -1;
+
+            for (int i = 0; i < points; ++i) {
+                double level;
+
+                if ("square".equals(signal)) {
+                    level = (i + jitter) % 300 < 150 ? 200 : 50;
+                } else if ("sine".equals(signal)) {
+                    level = 127 + 75 * Math.sin((i + jitter) * 2.0 * Math.PI / 300);
+                } else if ("noise".equals(signal)) {
+                    level = random.nextInt(256);
+                } else {
+                    level = Math.abs(i - glitch) < 4 ? 180 : 100;
+                }
+
+                frame[i] = (byte) (level + random.nextInt(3) - 1);
+            }
+        }
+
+        return frames;
+    }
+
+    /**
+     * @return samples as an IEEE 488.2 definite-length block, newline and all.
+     */
+    static byte[] block(int points) {
+        byte[] header = String.format("#9%09d", points).getBytes(ASCII);
+        byte[] block = new byte[header.length + points + 1];
+        System.arraycopy(header, 0, block, 0, header.length);
+        System.arraycopy(samples(points), 0, block, header.length, points);
+        block[block.length - 1] = '\n';
+        return block;
+    }
+}
@@ -0,0 +1,163 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decides when fetching a waveform is worth it, from what :TRIG:STAT? last said and how long an
+ * acquisition takes at the current timebase, and spots frames that are the same acquisition
+ * read again.
+ *
+ * While the 'scope is triggering, waveforms are fetched no faster than it can acquire them, up
+ * to {@link #MAX_FETCH_INTERVAL} apart so a slow timebase or roll mode still moves. While it
+ * waits for a trigger nothing is fetched, and once it stops one last frame is, to show what it
+ * stopped on. The status is asked again about once an acquisition, within
+ * {@link #MIN_STATUS_INTERVAL} and {@link #MAX_FETCH_INTERVAL}, and less often when stopped.
+ * Times are from {@link System#nanoTime()}. Not thread safe.
+ */
+public class AcquisitionScheduler {
+    public static final long MIN_STATUS_INTERVAL = 20000000L;
+    public static final long MAX_FETCH_INTERVAL = 100000000L;
+    public static final long STOPPED_STATUS_INTERVAL = 250000000L;
+
+    private int _status = Scpi.TRIG_UNKNOWN;
+    private boolean _status_due = true;
+    private long _next_status = 0;
+    private long _next_fetch = 0;
+    private boolean _final_pending = true;
+    private long _acquisition_time = 0;
+
+    private final long[] _hashes = new long[Scpi.CHANNEL_COUNT + 1];
+    private final int[] _hashed_points = new int[Scpi.CHANNEL_COUNT + 1];
+    private final Preamble[] _hashed_preambles = new Preamble[Scpi.CHANNEL_COUNT + 1];
+    private long _duplicates = 0;
+
+    /**
+     * Takes the time an acquisition takes from a preamble: its points times its x increment.
+     * Null leaves no limit on fetching.
+     */
+    public void setPreamble(Preamble preamble) {
+        _acquisition_time = preamble == null ? 0 : (long) (preamble.points * preamble.xIncrement * 1.0e9);
+    }
+
+    public int getStatus() {
+        return _status;
+    }
+
+    /**
+     * Has the status asked for again before the next fetch, as after a setting has been sent.
+     */
+    public void invalidate() {
+        _status_due = true;
+    }
+
+    public boolean isStatusDue(long now) {
+        return _status_due || now - _next_status >= 0;
+    }
+
+    /**
+     * Records a reply to :TRIG:STAT?, or {@link Scpi#TRIG_UNKNOWN} if there was none, in which
+     * case fetching carries on as if triggered.
+     */
+    public void setStatus(int status, long now) {
+        if (status == Scpi.TRIG_STOP && _status != Scpi.TRIG_STOP) {
+            _final_pending = true;
+        }
+
+        _status = status;
+        _status_due = false;
+
+        if (status == Scpi.TRIG_STOP) {
+            _next_status = now + STOPPED_STATUS_INTERVAL;
+        } else {
+            _next_status = now + Math.max(MIN_STATUS_INTERVAL, Math.min(MAX_FETCH_INTERVAL, _acquisition_time));
+        }
+    }
+
+    /**
+     * @return 0 if a waveform should be fetched now, or else how long in nanoseconds until it is
+     * worth asking again. Only meaningful once any status due has been asked for.
+     */
+    public long delay(long now) {
+        long until_status = Math.max(1, _next_status - now);
+
+        switch (_status) {
+            case Scpi.TRIG_STOP:
+                return _final_pending ? 0 : until_status;
+            case Scpi.TRIG_WAIT:
+            case Scpi.TRIG_RUN:
+                return until_status;
+            default:
+                long until_fetch = _next_fetch - now;
+                return until_fetch > 0 ? Math.min(until_fetch, until_status) : 0;
+        }
+    }
+
+    /**
+     * @return true if a waveform could be fetched now without asking the status first.
+     */
+    public boolean isReady(long now) {
+        return !isStatusDue(now) && delay(now) == 0;
+    }
+
+    /**
+     * Notes that waveforms are being fetched, all channels' together.
+     */
+    public void fetching(long now) {
+        _next_fetch = now + Math.min(MAX_FETCH_INTERVAL, _acquisition_time);
+        _final_pending = false;
+    }
+
+    /**
+     * @return true if the samples, from their position to their limit, and the preamble are the
+     * same as the last frame of the channel, numbered from 1, checked.
+     */
+    public boolean isDuplicate(int channel, ByteBuffer samples, Preamble preamble) {
+        long hash = hash(samples);
+        int points = samples.remaining();
+        boolean duplicate = hash == _hashes[channel] && points == _hashed_points[channel]
+                && preamble != null && preamble.equals(_hashed_preambles[channel]);
+
+        _hashes[channel] = hash;
+        _hashed_points[channel] = points;
+        _hashed_preambles[channel] = preamble;
+
+        if (duplicate) {
+            ++_duplicates;
+        }
+
+        return duplicate;
+    }
+
+    /**
+     * @return frames found to be duplicates so far.
+     */
+    public long getDuplicates() {
+        return _duplicates;
+    }
+
+    /**
+     * A 64 bit hash of the samples from their position to their limit, which are left alone,
+     * taken eight at a time.
+     */
+    static long hash(ByteBuffer samples) {
+        long hash = 0xcbf29ce484222325L;
+        int i = samples.position();
+        int limit = samples.limit();
+
+        for (; i + 8 <= limit; i += 8) {
+            hash = (hash ^ samples.getLong(i)) * 0x9e3779b97f4a7c15L;
+            hash ^= hash >>> 29;
+        }
+
+        for (; i < limit; ++i) {
+            hash = (hash ^ samples.get(i)) * 0x100000001b3L;
+        }
+
+        return hash;
+    }
+}
@@ -0,0 +1,277 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Picks the payload out of one response as its bytes arrive, however they are split up.
+ *
+ * Handles IEEE 488.2 definite-length blocks with any number of length digits, the indefinite #0
+ * form, and plain replies that are not blocks at all. The payload is handed to a {@link Sink} a
+ * run of bytes at a time and never buffered here, so a response of any size goes through in
+ * whatever memory the caller feeds it with. Terminating newlines are not part of the payload.
+ *
+ * Fed bytes on their own, an indefinite block is ended by the first newline, as there is nothing
+ * else to go on over a socket. Through {@link #receive}, the transport marks the end of each
+ * message, so an indefinite block runs to that end and may hold newlines of its own; only a
+ * newline right at the end is taken as the terminator. A header that is not a header gets the
+ * rest of the line thrown away, and {@link #isMalformed()} says so.
+ */
+public class BlockParser {
+    public interface Sink {
+        /**
+         * Takes everything between the buffer's position and its limit.
+         */
+        void payload(ByteBuffer bytes);
+    }
+
+    private static final int START = 0;
+    private static final int DIGIT_COUNT = 1;
+    private static final int LENGTH = 2;
+    private static final int PAYLOAD = 3;
+    private static final int TERMINATOR = 4;
+    private static final int LINE = 5;
+    private static final int MALFORMED = 6;
+    private static final int DONE = 7;
+    private static final int INDEFINITE = 8;
+
+    private int _state = START;
+    private boolean _block = false;
+    private boolean _malformed = false;
+    private int _digits_left = 0;
+    private long _length = -1;
+    private long _remaining = 0;
+    private long _read_time = 0;
+    // Set while receiving, when the transport says where the message ends.
+    private boolean _end_marked = false;
+    private boolean _held_newline = false;
+    private final ByteBuffer _newline = ByteBuffer.wrap(new byte[] {'\n'});
+
+    public void reset() {
+        _state = START;
+        _block = false;
+        _malformed = false;
+        _digits_left = 0;
+        _length = -1;
+        _remaining = 0;
+        _end_marked = false;
+        _held_newline = false;
+    }
+
+    /**
+     * @return nanoseconds the last {@link #receive} spent waiting on the transport, as opposed to
+     * parsing.
+     */
+    public long getReadTime() {
+        return _read_time;
+    }
+
+    public boolean isStarted() {
+        return _state != START;
+    }
+
+    public boolean isComplete() {
+        return _state == DONE;
+    }
+
+    /**
+     * @return true if the response started out as a block, definite or not.
+     */
+    public boolean isBlock() {
+        return _block;
+    }
+
+    public boolean isMalformed() {
+        return _malformed;
+    }
+
+    /**
+     * @return the payload length the header declared, or -1 if there was none.
+     */
+    public long getLength() {
+        return _length;
+    }
+
+    /**
+     * @return the bytes of a definite-length payload still to come, so a caller that knows
+     * them to be payload can read them somewhere itself and then {@link #skipPayload(long)}.
+     */
+    public long payloadRemaining() {
+        return _state == PAYLOAD ? _remaining : 0;
+    }
+
+    public void skipPayload(long count) {
+        _remaining -= Math.min(count, payloadRemaining());
+
+        if (_state == PAYLOAD && _remaining == 0) {
+            _state = TERMINATOR;
+        }
+    }
+
+    /**
+     * Consumes bytes from in up to the end of the response, leaving anything after it where it
+     * is. The sink may be null to skip the payload.
+     *
+     * @return true once the response is complete.
+     */
+    public boolean feed(ByteBuffer in, Sink sink) {
+        while (_state != DONE && in.hasRemaining()) {
+            switch (_state) {
+                case START:
+                    if (in.get(in.position()) == '#') {
+                        in.get();
+                        _block = true;
+                        _state = DIGIT_COUNT;
+                    } else {
+                        _state = LINE;
+                    }
+                    break;
+
+                case DIGIT_COUNT:
+                    _digits_left = in.get() - '0';
+
+                    if (_digits_left == 0) {
+                        _state = _end_marked ? INDEFINITE : LINE;
+                    } else if (_digits_left < 0 || _digits_left > 9) {
+                        malformed();
+                    } else {
+                        _length = 0;
+                        _state = LENGTH;
+                    }
+                    break;
+
+                case LENGTH:
+                    int digit = in.get() - '0';
+
+                    if (digit < 0 || digit > 9) {
+                        _length = -1;
+                        malformed();
+                    } else {
+                        _length = _length * 10 + digit;
+
+                        if (--_digits_left == 0) {
+                            _remaining = _length;
+                            _state = _length > 0 ? PAYLOAD : TERMINATOR;
+                        }
+                    }
+                    break;
+
+                case PAYLOAD:
+                    int count = (int) Math.min(in.remaining(), _remaining);
+                    emit(in, count, sink);
+                    skipPayload(count);
+                    break;
+
+                case TERMINATOR:
+                    // The newline after a block is optional; anything else belongs to the next
+                    // response.
+                    if (in.get(in.position()) == '\n') {
+                        in.get();
+                    }
+
+                    _state = DONE;
+                    break;
+
+                case INDEFINITE:
+                    // A newline last in what has arrived so far is held back, as it is the
+                    // terminator if the message ends there and payload if more follows.
+                    if (_held_newline) {
+                        _held_newline = false;
+                        _newline.clear();
+                        emit(_newline, 1, sink);
+                    }
+
+                    _held_newline = in.get(in.limit() - 1) == '\n';
+                    emit(in, in.remaining() - (_held_newline ? 1 : 0), sink);
+
+                    if (_held_newline) {
+                        in.get();
+                    }
+                    break;
+
+                case LINE:
+                case MALFORMED:
+                    int end = in.position();
+
+                    while (end < in.limit() && in.get(end) != '\n') {
+                        ++end;
+                    }
+
+                    emit(in, end - in.position(), _state == LINE ? sink : null);
+
+                    if (in.hasRemaining()) {
+                        in.get();
+                        _state = DONE;
+                    }
+                    break;
+            }
+        }
+
+        return _state == DONE;
+    }
+
+    /**
+     * Tells the parser that the transport has marked the end of the message, as USBTMC does with
+     * EOM, so a reply that never got its newline is complete all the same.
+     *
+     * @return true if the response is complete; false if nothing arrived at all, as when a read
+     * times out, or a definite block was cut short.
+     */
+    public boolean finish() {
+        if (_state == INDEFINITE || _state == LINE || _state == MALFORMED || _state == TERMINATOR) {
+            _state = DONE;
+        }
+
+        return _state == DONE;
+    }
+
+    /**
+     * Reads one whole response from the transport, a read at a time through scratch, and feeds
+     * it through the parser. The transport is always left at the end of the response, even if
+     * the parser is satisfied sooner.
+     *
+     * @return true if the response was complete and well formed, with nothing after its end.
+     */
+    public boolean receive(Transport transport, ByteBuffer scratch, Sink sink) {
+        reset();
+        _end_marked = true;
+        boolean more = true;
+        _read_time = 0;
+
+        while (more) {
+            scratch.clear();
+            long start = System.nanoTime();
+            more = transport.read(scratch);
+            _read_time += System.nanoTime() - start;
+            scratch.flip();
+
+            // Anything after the end means the response was not what it looked like.
+            if (feed(scratch, sink) && scratch.hasRemaining()) {
+                _malformed = true;
+            }
+        }
+
+        return finish() && !_malformed;
+    }
+
+    private void malformed() {
+        _malformed = true;
+        _state = MALFORMED;
+    }
+
+    private static void emit(ByteBuffer in, int count, Sink sink) {
+        int limit = in.limit();
+        in.limit(in.position() + count);
+
+        if (sink != null) {
+            sink.payload(in);
+        }
+
+        in.position(in.limit());
+        in.limit(limit);
+    }
+}
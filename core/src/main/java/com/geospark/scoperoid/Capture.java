@@ -0,0 +1,117 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * A whole recording made by a {@code FrameRecorder}: its segments read as one run of frames,
+ * numbered from 0, that can be looked up by number or by time.
+ */
+public class Capture implements Closeable {
+    private final CaptureReader[] _segments;
+    // The number of the first frame in each segment, plus the total at the end.
+    private final int[] _first_frames;
+
+    public Capture(File directory) throws IOException {
+        ArrayList<CaptureReader> segments = new ArrayList<>();
+
+        try {
+            for (File file : CaptureReader.segments(directory)) {
+                CaptureReader segment = new CaptureReader(file);
+
+                if (segment.getFrameCount() > 0) {
+                    segments.add(segment);
+                } else {
+                    segment.close();
+                }
+            }
+        } catch (IOException e) {
+            for (CaptureReader segment : segments) {
+                segment.close();
+            }
+
+            throw e;
+        }
+
+        _segments = segments.toArray(new CaptureReader[segments.size()]);
+        _first_frames = new int[_segments.length + 1];
+
+        for (int i = 0; i < _segments.length; ++i) {
+            _first_frames[i + 1] = _first_frames[i] + _segments[i].getFrameCount();
+        }
+    }
+
+    @Override
+    public void close() {
+        for (CaptureReader segment : _segments) {
+            segment.close();
+        }
+    }
+
+    public int getFrameCount() {
+        return _first_frames[_segments.length];
+    }
+
+    public long getTimestamp(int frame) {
+        int segment = segmentOf(frame);
+        return _segments[segment].getTimestamp(frame - _first_frames[segment]);
+    }
+
+    public long getStartTime() {
+        return getFrameCount() > 0 ? getTimestamp(0) : 0;
+    }
+
+    public long getEndTime() {
+        return getFrameCount() > 0 ? getTimestamp(getFrameCount() - 1) : 0;
+    }
+
+    /**
+     * @return the last frame recorded at or before timestamp, or the first frame if it comes
+     * before all of them.
+     */
+    public int frameAt(long timestamp) {
+        int low = 0;
+        int high = getFrameCount() - 1;
+
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+
+            if (getTimestamp(middle) <= timestamp) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+
+        return low;
+    }
+
+    public void read(int frame, WaveformFrame into) throws IOException {
+        int segment = segmentOf(frame);
+        _segments[segment].read(frame - _first_frames[segment], into);
+    }
+
+    private int segmentOf(int frame) {
+        int low = 0;
+        int high = _segments.length - 1;
+
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+
+            if (_first_frames[middle] <= frame) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+
+        return low;
+    }
+}
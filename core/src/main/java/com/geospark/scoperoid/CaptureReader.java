@@ -0,0 +1,323 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Reads back one segment written by a {@code FrameRecorder}.
+ *
+ * A sealed segment is opened from its index. One that was never sealed, because the app died or
+ * the file was cut short, is walked record by record instead, and ends at the last record whose
+ * CRC checks out. Only the index is held in memory; samples are read from the file on demand, so
+ * any number of segments can be open without mapping them all.
+ */
+public class CaptureReader implements Closeable {
+    static final int SEGMENT_MAGIC = 0x53435231;
+    static final int INDEX_MAGIC = 0x53494458;
+    static final int VERSION = 1;
+    static final String SEGMENT_NAME = "segment-%05d.cap";
+
+    // Magic, version, segment number, reserved, wall clock milliseconds and System.nanoTime() at
+    // the moment the segment was opened.
+    static final int HEADER_SIZE = 32;
+    // Timestamp, record offset, record type, channel and two bytes of padding.
+    static final int INDEX_ENTRY_SIZE = 16;
+    // Record count and the index magic.
+    static final int TRAILER_SIZE = 8;
+    // Length before the body and CRC after it.
+    static final int RECORD_OVERHEAD = 8;
+
+    static final byte FRAME = 1;
+    static final byte PREAMBLE = 2;
+    // Type, channel, two bytes of padding and the timestamp; the samples follow.
+    static final int FRAME_HEADER_SIZE = 12;
+    // Type, channel, two bytes of padding, four ints and six doubles.
+    static final int PREAMBLE_SIZE = 68;
+
+    // Enough for a frame off the screen; longer records grow it.
+    private static final int RECORD_SIZE = 4096;
+
+    private final RandomAccessFile _file;
+    private final FileChannel _channel;
+    private final ByteBuffer _header = ByteBuffer.allocateDirect(4 + FRAME_HEADER_SIZE);
+    private int _segment_number;
+    private long _start_millis;
+    private long _start_nanos;
+    private boolean _sealed;
+
+    private int _frame_count = 0;
+    private int[] _offsets = new int[1024];
+    private long[] _timestamps = new long[1024];
+    private byte[] _channels = new byte[1024];
+    private Preamble[] _preambles = new Preamble[1024];
+    private final Preamble[] _current = new Preamble[Scpi.CHANNEL_COUNT + 1];
+
+    /**
+     * @return the segment files in a recording directory, in the order they were written.
+     */
+    public static File[] segments(File directory) {
+        File[] files = directory.listFiles();
+
+        if (files == null) {
+            return new File[0];
+        }
+
+        int count = 0;
+
+        for (File file : files) {
+            if (file.getName().matches("segment-\\d+\\.cap")) {
+                files[count++] = file;
+            }
+        }
+
+        files = Arrays.copyOf(files, count);
+        Arrays.sort(files);
+        return files;
+    }
+
+    public CaptureReader(File file) throws IOException {
+        _file = new RandomAccessFile(file, "r");
+        _channel = _file.getChannel();
+
+        try {
+            ByteBuffer header = read(0, HEADER_SIZE);
+
+            if (header.getInt() != SEGMENT_MAGIC) {
+                throw new IOException(file + " is not a capture segment");
+            }
+
+            if (header.getInt() != VERSION) {
+                throw new IOException(file + " has an unknown version");
+            }
+
+            _segment_number = header.getInt();
+            header.getInt();
+            _start_millis = header.getLong();
+            _start_nanos = header.getLong();
+            _sealed = readIndex();
+
+            if (!_sealed) {
+                scan();
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            _file.close();
+        } catch (IOException e) {
+            // Only ever read from, so there is nothing to lose.
+        }
+    }
+
+    public int getSegmentNumber() {
+        return _segment_number;
+    }
+
+    /**
+     * @return the wall clock time the segment was opened, to put frame timestamps in context.
+     */
+    public long getStartTimeMillis() {
+        return _start_millis;
+    }
+
+    /**
+     * @return System.nanoTime() when the segment was opened, on the same clock as the frame
+     * timestamps.
+     */
+    public long getStartNanos() {
+        return _start_nanos;
+    }
+
+    /**
+     * @return false if the segment had no index, so was recovered by walking its records.
+     */
+    public boolean isSealed() {
+        return _sealed;
+    }
+
+    public int getFrameCount() {
+        return _frame_count;
+    }
+
+    public long getTimestamp(int frame) {
+        return _timestamps[frame];
+    }
+
+    public int getChannel(int frame) {
+        return _channels[frame];
+    }
+
+    public Preamble getPreamble(int frame) {
+        return _preambles[frame];
+    }
+
+    /**
+     * Fills a pooled frame with the samples, channel, preamble and timestamp of one recorded
+     * frame. Only one thread at a time may read.
+     */
+    public void read(int frame, WaveformFrame into) throws IOException {
+        int offset = _offsets[frame];
+
+        _header.clear();
+        readFully(_header, offset);
+        int length = _header.getInt(0);
+
+        into.begin();
+        ByteBuffer samples = into.samples();
+        samples.limit(Math.min(samples.capacity(), length - FRAME_HEADER_SIZE));
+        readFully(samples, offset + _header.capacity());
+
+        into.setChannel(_channels[frame]);
+        into.setPreamble(_preambles[frame]);
+        into.complete(_timestamps[frame]);
+    }
+
+    /**
+     * @return the offset just past a frame's record.
+     */
+    int recordEnd(int frame) throws IOException {
+        return _offsets[frame] + read(_offsets[frame], 4).getInt() + RECORD_OVERHEAD;
+    }
+
+    private boolean readIndex() throws IOException {
+        long end = _channel.size();
+
+        if (end < HEADER_SIZE + TRAILER_SIZE) {
+            return false;
+        }
+
+        ByteBuffer trailer = read(end - TRAILER_SIZE, TRAILER_SIZE);
+        long count = trailer.getInt();
+        long start = end - TRAILER_SIZE - count * INDEX_ENTRY_SIZE;
+
+        if (trailer.getInt() != INDEX_MAGIC || count < 0 || start < HEADER_SIZE) {
+            return false;
+        }
+
+        ByteBuffer index = read(start, (int) count * INDEX_ENTRY_SIZE);
+
+        for (int i = 0; i < count; ++i) {
+            long timestamp = index.getLong();
+            int offset = index.getInt();
+            byte type = index.get();
+            byte channel = index.get();
+            index.getShort();
+
+            if (offset < HEADER_SIZE || offset >= start) {
+                _frame_count = 0;
+                return false;
+            }
+
+            add(type, channel, offset, timestamp);
+        }
+
+        return true;
+    }
+
+    // Stops at the first record that is cut short or fails its CRC.
+    private void scan() throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer record = ByteBuffer.allocate(FRAME_HEADER_SIZE + RECORD_SIZE
+                + RECORD_OVERHEAD);
+        long offset = HEADER_SIZE;
+        long end = _channel.size();
+
+        while (end - offset >= RECORD_OVERHEAD) {
+            int length = read(offset, 4).getInt();
+
+            if (length < 4 || length > end - offset - RECORD_OVERHEAD) {
+                break;
+            }
+
+            if (length + 4 > record.capacity()) {
+                record = ByteBuffer.allocate(length + 4);
+            }
+
+            record.clear();
+            record.limit(length + 4);
+            readFully(record, offset + 4);
+            crc.reset();
+            crc.update(record.array(), 0, length);
+
+            if ((int) crc.getValue() != record.getInt(length)) {
+                break;
+            }
+
+            long timestamp = record.get(0) == FRAME ? record.getLong(4) : 0;
+            add(record.get(0), record.get(1), (int) offset, timestamp);
+            offset += length + RECORD_OVERHEAD;
+        }
+    }
+
+    private void add(byte type, byte channel, int offset, long timestamp) throws IOException {
+        if (channel < 1 || channel > Scpi.CHANNEL_COUNT) {
+            return;
+        }
+
+        if (type == PREAMBLE) {
+            _current[channel] = readPreamble(offset + 4);
+            return;
+        }
+
+        if (type != FRAME) {
+            return;
+        }
+
+        if (_frame_count == _offsets.length) {
+            int size = 2 * _offsets.length;
+            _offsets = Arrays.copyOf(_offsets, size);
+            _timestamps = Arrays.copyOf(_timestamps, size);
+            _channels = Arrays.copyOf(_channels, size);
+            _preambles = Arrays.copyOf(_preambles, size);
+        }
+
+        _offsets[_frame_count] = offset;
+        _timestamps[_frame_count] = timestamp;
+        _channels[_frame_count] = channel;
+        _preambles[_frame_count] = _current[channel];
+        ++_frame_count;
+    }
+
+    private Preamble readPreamble(long body) throws IOException {
+        ByteBuffer fields = read(body + 4, PREAMBLE_SIZE - 4);
+        return new Preamble(fields.getInt(), fields.getInt(), fields.getInt(), fields.getInt(),
+                fields.getDouble(), fields.getDouble(), fields.getDouble(),
+                fields.getDouble(), fields.getDouble(), fields.getDouble());
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(length);
+        readFully(bytes, position);
+        bytes.flip();
+        return bytes;
+    }
+
+    private void readFully(ByteBuffer bytes, long position) throws IOException {
+        while (bytes.hasRemaining()) {
+            int count = _channel.read(bytes, position);
+
+            if (count < 0) {
+                throw new EOFException();
+            }
+
+            position += count;
+        }
+    }
+}
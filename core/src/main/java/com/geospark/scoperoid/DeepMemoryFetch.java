@@ -0,0 +1,204 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+
+/**
+ * Pulls the whole acquisition memory of one channel out of the 'scope in RAW mode.
+ *
+ * The memory is walked with :WAV:STAR/:WAV:STOP in the largest chunks the 'scope will hand over
+ * in one :WAV:DATA?, and each chunk streams through a {@link BlockParser} into a
+ * {@link SampleStore} a transport read at a time, so no chunk is ever held whole.
+ * Cancelling lets the chunk in flight finish, because abandoning a response half way leaves the
+ * 'scope's output queue in a mess, and then puts the waveform settings back the way polling
+ * expects them.
+ */
+public class DeepMemoryFetch implements Transport.Job {
+    public interface Listener {
+        void onProgress(long points, long total, float bytesPerSecond);
+        void onFinished(SampleStore store, Preamble preamble);
+        void onCancelled();
+        void onFailed();
+    }
+
+    // The most a DS1000Z will return in one read in BYTE format.
+    public static final int MAX_BYTE_CHUNK = 250000;
+
+    private static final int RECEIVE_CHUNK_SIZE = 16384;
+    private static final int PREAMBLE_BUFFER_SIZE = 256;
+
+    private final String _source;
+    private final SampleStore _store;
+    private final Listener _listener;
+    private MinMaxPyramid _pyramid = null;
+    private MeasurementEngine _engine = null;
+    private Measurements _measurements = null;
+    private int _chunk_size = MAX_BYTE_CHUNK;
+    private volatile boolean _cancelled = false;
+    private final BlockParser _parser = new BlockParser();
+    private final ByteBuffer _receive_chunk = ByteBuffer.allocateDirect(RECEIVE_CHUNK_SIZE);
+    private final ByteBuffer _reply = ByteBuffer.allocateDirect(PREAMBLE_BUFFER_SIZE);
+
+    /**
+     * @param source the channel, such as "CHAN1".
+     * @param store cleared and refilled; reuse it between fetches to avoid reallocating.
+     */
+    public DeepMemoryFetch(String source, SampleStore store, Listener listener) {
+        _source = source;
+        _store = store;
+        _listener = listener;
+    }
+
+    public void setChunkSize(int points) {
+        _chunk_size = Math.max(1, Math.min(points, MAX_BYTE_CHUNK));
+    }
+
+    /**
+     * Has the pyramid brought up to date as each chunk lands, rather than building it in one go
+     * once the fetch is over. It must be built over the same store.
+     */
+    public void setPyramid(MinMaxPyramid pyramid) {
+        _pyramid = pyramid;
+    }
+
+    /**
+     * Has the whole of the memory measured once it is in, before the listener hears of it.
+     */
+    public void setMeasurements(MeasurementEngine engine, Measurements measurements) {
+        _engine = engine;
+        _measurements = measurements;
+    }
+
+    /**
+     * Safe to call from any thread. The chunk being read is finished first.
+     */
+    public void cancel() {
+        _cancelled = true;
+    }
+
+    @Override
+    public void run(Transport transport, Executor callbacks) {
+        _store.clear();
+
+        // RAW mode only works while stopped, so remember whether to restart afterwards.
+        boolean wasRunning = !query(transport, Scpi.TRIG_STATUS_Q).startsWith("STOP");
+        Preamble preamble = null;
+        boolean complete = false;
+
+        if (transport.write(Scpi.STOP)
+                && transport.write(Scpi.WAV_SOURCE + " " + _source)
+                && transport.write(Scpi.WAV_MODE + " RAW")
+                && transport.write(Scpi.WAV_FORMAT + " BYTE")) {
+            preamble = Preamble.parse(query(transport, Scpi.WAV_PREAMBLE_Q).getBytes());
+        }
+
+        if (preamble != null) {
+            complete = fetch(transport, callbacks, preamble.points);
+        }
+
+        // Put things back the way the poll loop expects, cancelled or not.
+        transport.write(Scpi.WAV_MODE + " NORM");
+        transport.write(Scpi.WAV_START + " 1");
+        transport.write(Scpi.WAV_STOP + " 1200");
+
+        if (wasRunning) {
+            transport.write(Scpi.RUN);
+        }
+
+        final Preamble result = preamble;
+
+        if (complete && _engine != null) {
+            _measurements.reset();
+            _engine.measure(_store, preamble, _measurements);
+        }
+
+        if (complete) {
+            callbacks.execute(new Runnable() {
+                @Override
+                public void run() {
+                    _listener.onFinished(_store, result);
+                }
+            });
+        } else if (_cancelled) {
+            callbacks.execute(new Runnable() {
+                @Override
+                public void run() {
+                    _listener.onCancelled();
+                }
+            });
+        } else {
+            callbacks.execute(new Runnable() {
+                @Override
+                public void run() {
+                    _listener.onFailed();
+                }
+            });
+        }
+    }
+
+    private boolean fetch(Transport transport, Executor callbacks, final long total) {
+        _store.ensureCapacity(total);
+
+        if (_pyramid != null) {
+            _pyramid.reset();
+            _pyramid.ensureCapacity(total);
+        }
+
+        long start_time = System.nanoTime();
+
+        // The 'scope counts points from 1.
+        for (long start = 1; start <= total; start += _chunk_size) {
+            if (_cancelled) {
+                return false;
+            }
+
+            long stop = Math.min(start + _chunk_size - 1, total);
+
+            if (!transport.write(Scpi.WAV_START + " " + start)
+                    || !transport.write(Scpi.WAV_STOP + " " + stop)
+                    || !transport.write(Scpi.WAV_DATA_Q)) {
+                return false;
+            }
+
+            long before = _store.size();
+
+            if (!_parser.receive(transport, _receive_chunk, _store) || _store.size() - before != stop - start + 1) {
+                return false;
+            }
+
+            if (_pyramid != null) {
+                _pyramid.update();
+            }
+
+            final long points = _store.size();
+            final float rate = points * 1e9f / Math.max(1, System.nanoTime() - start_time);
+
+            callbacks.execute(new Runnable() {
+                @Override
+                public void run() {
+                    _listener.onProgress(points, total, rate);
+                }
+            });
+        }
+
+        return true;
+    }
+
+    private String query(Transport transport, String command) {
+        _reply.clear();
+
+        if (transport.write(command)) {
+            while (transport.read(_reply)) {}
+        }
+
+        _reply.flip();
+        byte[] bytes = new byte[_reply.remaining()];
+        _reply.get(bytes);
+        return new String(bytes).trim();
+    }
+}
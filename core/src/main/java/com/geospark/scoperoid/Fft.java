@@ -0,0 +1,120 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid;
+
+/**
+ * A radix-2 FFT of real samples, of one power-of-two size, with its twiddle factors, bit
+ * reversal and work buffers worked out up front so transforms allocate nothing.
+ *
+ * The samples are packed in pairs into a complex transform of half the size, which is then split
+ * back into the spectrum of the real signal, so a transform costs about half what a complex one
+ * of the full size would. Not thread safe.
+ */
+public class Fft {
+    private final int _size;
+    private final int _half;
+
+    // cos and sin of 2 pi k / size for k < size / 2, which covers both the half size transform
+    // and the split.
+    private final float[] _cos;
+    private final float[] _sin;
+    private final int[] _reverse;
+    private final float[] _re;
+    private final float[] _im;
+
+    /**
+     * @param size a power of two, at least 4.
+     */
+    public Fft(int size) {
+        if (size < 4 || Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException("FFT size must be a power of two of at least 4: " + size);
+        }
+
+        _size = size;
+        _half = size / 2;
+        _cos = new float[_half];
+        _sin = new float[_half];
+        _reverse = new int[_half];
+        _re = new float[_half];
+        _im = new float[_half];
+
+        for (int k = 0; k < _half; ++k) {
+            double angle = 2.0 * Math.PI * k / size;
+            _cos[k] = (float) Math.cos(angle);
+            _sin[k] = (float) Math.sin(angle);
+        }
+
+        int bits = Integer.numberOfTrailingZeros(_half);
+
+        for (int i = 0; i < _half; ++i) {
+            _reverse[i] = Integer.reverse(i) >>> (32 - bits);
+        }
+    }
+
+    public int getSize() {
+        return _size;
+    }
+
+    /**
+     * Transforms the first size samples and writes the squared magnitude of each of the
+     * size / 2 + 1 bins, from DC to Nyquist, to power.
+     */
+    public void powerSpectrum(float[] samples, float[] power) {
+        final int half = _half;
+        final float[] re = _re;
+        final float[] im = _im;
+
+        // Even samples are the real parts and odd ones the imaginary, put in bit reversed order
+        // on the way in.
+        for (int m = 0; m < half; ++m) {
+            int j = _reverse[m];
+            re[j] = samples[2 * m];
+            im[j] = samples[2 * m + 1];
+        }
+
+        for (int length = 2; length <= half; length <<= 1) {
+            int span = length >> 1;
+            int stride = _size / length;
+
+            for (int start = 0; start < half; start += length) {
+                for (int j = 0; j < span; ++j) {
+                    float wr = _cos[j * stride];
+                    float wi = -_sin[j * stride];
+                    int a = start + j;
+                    int b = a + span;
+                    float tr = wr * re[b] - wi * im[b];
+                    float ti = wr * im[b] + wi * re[b];
+                    re[b] = re[a] - tr;
+                    im[b] = im[a] - ti;
+                    re[a] += tr;
+                    im[a] += ti;
+                }
+            }
+        }
+
+        // The even and odd halves are Z[k] and Z[half - k] taken together, and the bin is the
+        // even one plus the twiddled odd one.
+        for (int k = 0; k <= half; ++k) {
+            int p = k == half ? 0 : k;
+            int q = k == 0 ? 0 : half - k;
+            float zr = re[p];
+            float zi = im[p];
+            float cr = re[q];
+            float ci = -im[q];
+
+            float er = 0.5f * (zr + cr);
+            float ei = 0.5f * (zi + ci);
+            float or = 0.5f * (zi - ci);
+            float oi = -0.5f * (zr - cr);
+
+            float wr = k == half ? -1.0f : _cos[k];
+            float wi = k == half ? 0.0f : -_sin[k];
+            float xr = er + wr * or - wi * oi;
+            float xi = ei + wr * oi + wi * or;
+            power[k] = xr * xr + xi * xi;
+        }
+    }
+}
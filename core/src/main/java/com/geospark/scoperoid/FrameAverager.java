@@ -0,0 +1,203 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+/**
+ * Averages a channel's frames point by point, to pull a repetitive signal out of the noise. The
+ * average is in fractions of a sample count, so it has more resolution than the 8 bits of any
+ * one frame.
+ *
+ * Boxcar averaging keeps the last N frames in a ring and a running sum of them, so a new frame
+ * only has to be added in and the oldest taken out, whatever N is. Exponential averaging needs
+ * no ring; each frame is weighted 1/N into a fixed point running average, which forgets old
+ * frames gradually rather than all at once. Until N frames have been seen both are the plain
+ * mean of what has. A change of frame size or preamble starts over, as the old frames no longer
+ * line up. Not thread safe.
+ */
+public class FrameAverager {
+    public static final int BOXCAR = 0;
+    public static final int EXPONENTIAL = 1;
+    public static final int MAX_FRAMES = 256;
+
+    // Fractional bits of the exponential average. 8 bits of sample leave room for 16 here.
+    private static final int FRACTION_BITS = 16;
+    private static final float FRACTION_SCALE = 1.0f / (1 << FRACTION_BITS);
+
+    private int _mode;
+    private int _frames;
+    private int _points = 0;
+    private Preamble _preamble = null;
+
+    // Boxcar: the frames, oldest at _head once full; exponential: unused.
+    private int[] _ring = new int[0];
+    private int _head = 0;
+    private int _count = 0;
+
+    // Boxcar: the sum of the frames in the ring; exponential: the fixed point average.
+    private int[] _sum = new int[0];
+
+    public FrameAverager(int mode, int frames) {
+        setMode(mode, frames);
+    }
+
+    /**
+     * @param frames clamped to between 1 and {@link #MAX_FRAMES}.
+     */
+    public void setMode(int mode, int frames) {
+        frames = Math.max(1, Math.min(MAX_FRAMES, frames));
+
+        if (mode != _mode || frames != _frames) {
+            _mode = mode;
+            _frames = frames;
+            _points = 0;
+            reset();
+        }
+    }
+
+    public int getMode() {
+        return _mode;
+    }
+
+    public int getFrames() {
+        return _frames;
+    }
+
+    public void reset() {
+        _head = 0;
+        _count = 0;
+    }
+
+    /**
+     * @return the number of frames in the average, up to N.
+     */
+    public int getCount() {
+        return _count;
+    }
+
+    /**
+     * @return the number of points in the average.
+     */
+    public int getPoints() {
+        return _count > 0 ? _points : 0;
+    }
+
+    /**
+     * @return the preamble of the frames averaged, or null if there are none.
+     */
+    public Preamble getPreamble() {
+        return _count > 0 ? _preamble : null;
+    }
+
+    /**
+     * Adds samples from their position to their limit, which are left alone.
+     */
+    public void add(ByteBuffer samples, Preamble preamble) {
+        int start = samples.position();
+        int points = samples.limit() - start;
+
+        if (points != _points || preamble == null || !preamble.equals(_preamble)) {
+            resize(points);
+            _preamble = preamble;
+        }
+
+        if (_mode == BOXCAR) {
+            addBoxcar(samples, start);
+        } else {
+            addExponential(samples, start);
+        }
+    }
+
+    private void resize(int points) {
+        if (_sum.length < points) {
+            _sum = new int[points];
+        }
+
+        if (_mode == BOXCAR && _ring.length < points * _frames) {
+            _ring = new int[points * _frames];
+        }
+
+        _points = points;
+        reset();
+    }
+
+    private void addBoxcar(ByteBuffer samples, int start) {
+        int points = _points;
+        int[] ring = _ring;
+        int[] sum = _sum;
+        int base = _head * points;
+
+        if (_count == 0) {
+            for (int i = 0; i < points; ++i) {
+                int sample = samples.get(start + i) & 0xff;
+                ring[base + i] = sample;
+                sum[i] = sample;
+            }
+        } else if (_count < _frames) {
+            for (int i = 0; i < points; ++i) {
+                int sample = samples.get(start + i) & 0xff;
+                ring[base + i] = sample;
+                sum[i] += sample;
+            }
+        } else {
+            // The slot being written holds the oldest frame, which drops out of the sum.
+            for (int i = 0; i < points; ++i) {
+                int sample = samples.get(start + i) & 0xff;
+                sum[i] += sample - ring[base + i];
+                ring[base + i] = sample;
+            }
+        }
+
+        _head = (_head + 1) % _frames;
+        _count = Math.min(_count + 1, _frames);
+    }
+
+    private void addExponential(ByteBuffer samples, int start) {
+        int points = _points;
+        int[] average = _sum;
+
+        if (_count == 0) {
+            for (int i = 0; i < points; ++i) {
+                average[i] = (samples.get(start + i) & 0xff) << FRACTION_BITS;
+            }
+        } else {
+            int weight = Math.min(_count + 1, _frames);
+
+            for (int i = 0; i < points; ++i) {
+                int sample = (samples.get(start + i) & 0xff) << FRACTION_BITS;
+                average[i] += (sample - average[i]) / weight;
+            }
+        }
+
+        _count = Math.min(_count + 1, _frames);
+    }
+
+    /**
+     * Writes the average, in sample counts, one float per point, to out.
+     *
+     * @return the number of points written.
+     */
+    public int average(FloatBuffer out) {
+        int points = Math.min(getPoints(), out.remaining());
+        int[] sum = _sum;
+
+        if (_mode == BOXCAR) {
+            float scale = 1.0f / _count;
+
+            for (int i = 0; i < points; ++i) {
+                out.put(sum[i] * scale);
+            }
+        } else {
+            for (int i = 0; i < points; ++i) {
+                out.put(sum[i] * FRACTION_SCALE);
+            }
+        }
+
+        return points;
+    }
+}
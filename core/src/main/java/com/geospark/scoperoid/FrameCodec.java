@@ -0,0 +1,220 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Compresses a stream of 8 bit frames, such as one channel's :WAV:DATA? replies, by predicting
+ * each sample and bit-packing what is left over.
+ *
+ * Samples go in blocks of {@link #BLOCK}, each predicted whichever way leaves smaller residuals:
+ * from the sample before it, which suits a trace that moves smoothly, or from the same sample of
+ * the frame before, which suits a trace that repeats. Residuals are zig-zagged, so small changes
+ * either way are small numbers, and packed at the fewest bits that hold the block's largest, from
+ * 0 for a block that is all predicted exactly up to 8. A frame is its sample count, its first
+ * sample and its blocks, each a byte of predictor and width and then width bytes per 8 samples,
+ * little end first.
+ *
+ * An encoder and its decoder each keep the last frame, so they have to see the same frames in
+ * the same order; use one of each per channel, and {@link #reset()} both to start afresh. Each
+ * sample is read, predicted and written in one pass, and the kept frame is updated in place as
+ * it goes, so samples are never copied whole. Not thread safe, and nothing is allocated per frame.
+ */
+public class FrameCodec {
+    public static final int BLOCK = 64;
+    // The first four bits of a block's header say how it is predicted, the last four its width.
+    static final int INTRA = 0;
+    static final int INTER = 1;
+    // Sample count and first sample.
+    static final int HEADER_SIZE = 5;
+
+    private final byte[] _previous;
+    private int _previous_size = -1;
+    private final int[] _intra = new int[BLOCK];
+    private final int[] _inter = new int[BLOCK];
+
+    /**
+     * @param capacity the most samples in a frame.
+     */
+    public FrameCodec(int capacity) {
+        _previous = new byte[capacity];
+    }
+
+    /**
+     * @return the most bytes a frame of the given samples can encode to.
+     */
+    public static int maxEncodedSize(int samples) {
+        return HEADER_SIZE + (samples + BLOCK - 1) / BLOCK * (1 + BLOCK);
+    }
+
+    /**
+     * Forgets the last frame, so the next is encoded, or has to have been encoded, on its own.
+     */
+    public void reset() {
+        _previous_size = -1;
+    }
+
+    /**
+     * Encodes the samples from their position to their limit into out, which needs room for
+     * {@link #maxEncodedSize(int)}. The samples' position is left alone.
+     */
+    public void encode(ByteBuffer samples, ByteBuffer out) {
+        int size = samples.remaining();
+        int position = samples.position();
+
+        if (size > _previous.length) {
+            throw new IllegalArgumentException("Frame of " + size + " samples");
+        }
+
+        boolean inter = size == _previous_size;
+        byte[] previous = _previous;
+        int first = size > 0 ? samples.get(position) : 0;
+        out.putInt(size).put((byte) first);
+        _previous_size = -1;
+
+        // Each block is predicted from the sample before it, so the first is predicted exactly.
+        int predicted = first;
+
+        for (int start = 0; start < size; start += BLOCK) {
+            int count = Math.min(BLOCK, size - start);
+            int intraBits = 0;
+            int interBits = 0;
+
+            for (int i = 0; i < count; ++i) {
+                int sample = samples.get(position + start + i);
+                _intra[i] = zigZag(sample - predicted);
+                intraBits |= _intra[i];
+                predicted = sample;
+
+                if (inter) {
+                    _inter[i] = zigZag(sample - previous[start + i]);
+                    interBits |= _inter[i];
+                }
+
+                previous[start + i] = (byte) sample;
+            }
+
+            int intraWidth = 32 - Integer.numberOfLeadingZeros(intraBits);
+            int interWidth = 32 - Integer.numberOfLeadingZeros(interBits);
+
+            if (inter && interWidth < intraWidth) {
+                pack(out, INTER, interWidth, _inter, count);
+            } else {
+                pack(out, INTRA, intraWidth, _intra, count);
+            }
+        }
+
+        _previous_size = size;
+    }
+
+    // A short last block is padded out with zeros, so every block is a whole number of bytes.
+    private static void pack(ByteBuffer out, int predictor, int width, int[] residuals, int count) {
+        out.put((byte) (predictor << 4 | width));
+
+        if (width == 0) {
+            return;
+        }
+
+        long bits = 0;
+        int held = 0;
+
+        for (int i = 0; i < BLOCK; ++i) {
+            bits |= (long) (i < count ? residuals[i] : 0) << held;
+            held += width;
+
+            while (held >= 8) {
+                out.put((byte) bits);
+                bits >>>= 8;
+                held -= 8;
+            }
+        }
+    }
+
+    /**
+     * Decodes one frame from in, and puts its samples straight into out.
+     *
+     * @return the number of samples.
+     * @throws IllegalArgumentException if the frame is corrupt, or needs a frame before it that
+     * this decoder hasn't seen.
+     * @throws BufferOverflowException if out hasn't room for the frame.
+     */
+    public int decode(ByteBuffer in, ByteBuffer out) {
+        int size = in.getInt();
+        int predicted = in.get();
+
+        if (size < 0 || size > _previous.length) {
+            throw new IllegalArgumentException("Frame of " + size + " samples");
+        }
+
+        if (out.remaining() < size) {
+            throw new BufferOverflowException();
+        }
+
+        byte[] previous = _previous;
+        boolean inter = size == _previous_size;
+        int position = out.position();
+        // Half decoded, the kept frame is neither one thing nor the other.
+        _previous_size = -1;
+
+        for (int start = 0; start < size; start += BLOCK) {
+            int count = Math.min(BLOCK, size - start);
+            int header = in.get();
+            int width = header & 0x0f;
+            int mask = (1 << width) - 1;
+            boolean fromPrevious = (header >>> 4) == INTER;
+
+            if (width > 8 || (fromPrevious && !inter)) {
+                throw new IllegalArgumentException("Bad block at sample " + start);
+            }
+
+            if (width == 0) {
+                if (!fromPrevious) {
+                    Arrays.fill(previous, start, start + count, (byte) predicted);
+                }
+
+                out.position(position + start);
+                out.put(previous, start, count);
+                predicted = previous[start + count - 1];
+                continue;
+            }
+
+            long bits = 0;
+            int held = 0;
+
+            for (int i = 0; i < BLOCK; ++i) {
+                while (held < width) {
+                    bits |= (long) (in.get() & 0xff) << held;
+                    held += 8;
+                }
+
+                int residual = (int) bits & mask;
+                bits >>>= width;
+                held -= width;
+
+                if (i < count) {
+                    int delta = (residual >>> 1) ^ -(residual & 1);
+                    predicted = (byte) ((fromPrevious ? previous[start + i] : predicted) + delta);
+                    previous[start + i] = (byte) predicted;
+                    out.put(position + start + i, (byte) predicted);
+                }
+            }
+        }
+
+        out.position(position + size);
+        _previous_size = size;
+        return size;
+    }
+
+    // Wraps a difference of two samples into a byte, and interleaves it so -1 is 1, 1 is 2 and so
+    // on up to 255.
+    static int zigZag(int difference) {
+        int wrapped = (byte) difference;
+        return ((wrapped << 1) ^ (wrapped >> 31)) & 0xff;
+    }
+}
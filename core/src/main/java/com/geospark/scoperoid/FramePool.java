@@ -0,0 +1,33 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid;
+
+/**
+ * A fixed set of frames allocated up front. The acquisition thread takes frames out and the
+ * consuming thread puts them back, so the free list only ever has one producer and one consumer.
+ */
+public class FramePool {
+    private final SpscQueue<WaveformFrame> _free;
+
+    public FramePool(int count, int capacity) {
+        _free = new SpscQueue<>(count);
+
+        for (int i = 0; i < count; ++i) {
+            _free.offer(new WaveformFrame(this, capacity));
+        }
+    }
+
+    /**
+     * @return a free frame, or null if they are all in flight.
+     */
+    public WaveformFrame acquire() {
+        return _free.poll();
+    }
+
+    void release(WaveformFrame frame) {
+        _free.offer(frame);
+    }
+}
@@ -0,0 +1,146 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+/**
+ * Watches a {@link FrameStreamServer}, turning its records back into whole frames with their
+ * preambles. Blocking, and for one thread.
+ */
+public class FrameStreamClient implements Closeable {
+    private final Socket _socket;
+    private final DataInputStream _in;
+    private final byte[][] _samples = new byte[Scpi.CHANNEL_COUNT + 1][];
+    private final int[] _sizes = new int[Scpi.CHANNEL_COUNT + 1];
+    private final Preamble[] _preambles = new Preamble[Scpi.CHANNEL_COUNT + 1];
+    private long _frames = 0;
+    private long _deltas = 0;
+
+    /**
+     * @param capacity the most samples in a frame.
+     */
+    public FrameStreamClient(String host, int port, int capacity) throws IOException {
+        _socket = new Socket();
+
+        try {
+            _socket.setTcpNoDelay(true);
+            _socket.connect(new InetSocketAddress(host, port));
+            _in = new DataInputStream(new BufferedInputStream(_socket.getInputStream()));
+
+            if (_in.readInt() != FrameStreamServer.MAGIC || _in.readInt() != FrameStreamServer.VERSION) {
+                throw new IOException("Not a frame stream");
+            }
+        } catch (IOException e) {
+            _socket.close();
+            throw e;
+        }
+
+        for (int channel = 0; channel <= Scpi.CHANNEL_COUNT; ++channel) {
+            _samples[channel] = new byte[capacity];
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        _socket.close();
+    }
+
+    /**
+     * @param millis how long {@link #read(WaveformFrame)} waits before giving up, or 0 for ever.
+     */
+    public void setTimeout(int millis) throws IOException {
+        _socket.setSoTimeout(millis);
+    }
+
+    public long getFrames() {
+        return _frames;
+    }
+
+    /**
+     * @return frames that came as a delta from the one before.
+     */
+    public long getDeltas() {
+        return _deltas;
+    }
+
+    /**
+     * Waits for the next frame and puts it in into, with the channel's latest preamble.
+     */
+    public void read(WaveformFrame into) throws IOException {
+        while (true) {
+            int length = _in.readInt();
+            byte type = _in.readByte();
+            int channel = _in.readUnsignedByte();
+            _in.readShort();
+
+            if (channel > Scpi.CHANNEL_COUNT || length < 4) {
+                throw new IOException("Bad record for channel " + channel);
+            }
+
+            if (type == FrameStreamServer.PREAMBLE) {
+                _preambles[channel] = new Preamble(_in.readInt(), _in.readInt(), _in.readInt(), _in.readInt(),
+                        _in.readDouble(), _in.readDouble(), _in.readDouble(),
+                        _in.readDouble(), _in.readDouble(), _in.readDouble());
+                continue;
+            }
+
+            int size = length - (FrameStreamServer.FRAME_HEADER_SIZE - 4);
+
+            if (type == FrameStreamServer.FRAME && size >= 0 && size <= _samples[channel].length) {
+                long timestamp = _in.readLong();
+                _in.readFully(_samples[channel], 0, size);
+                _sizes[channel] = size;
+                deliver(channel, timestamp, into);
+                return;
+            }
+
+            if (type == FrameStreamServer.DELTA && size >= 0) {
+                long timestamp = _in.readLong();
+                applyDelta(channel, size);
+                ++_deltas;
+                deliver(channel, timestamp, into);
+                return;
+            }
+
+            throw new IOException("Bad record of type " + type);
+        }
+    }
+
+    // Runs of unchanged samples, each followed by changed ones, over the channel's last frame.
+    private void applyDelta(int channel, int length) throws IOException {
+        byte[] samples = _samples[channel];
+        int i = 0;
+
+        while (length > 0) {
+            i += _in.readUnsignedByte();
+            int changed = _in.readUnsignedByte();
+
+            if (i + changed > _sizes[channel]) {
+                throw new IOException("Delta runs past the frame");
+            }
+
+            _in.readFully(samples, i, changed);
+            i += changed;
+            length -= 2 + changed;
+        }
+    }
+
+    private void deliver(int channel, long timestamp, WaveformFrame into) {
+        into.begin();
+        into.payload(ByteBuffer.wrap(_samples[channel], 0, _sizes[channel]));
+        into.setChannel(channel);
+        into.setPreamble(_preambles[channel]);
+        into.complete(timestamp);
+        ++_frames;
+    }
+}
@@ -0,0 +1,569 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Streams live frames to any number of viewers on the local network, so one host can own the
+ * 'scope and still share its waveforms. See {@link FrameStreamClient} for the other end.
+ *
+ * The acquisition thread only copies each frame into one of the server's pooled frames and
+ * queues it, as the frame recorder does; if they are all in flight, the frame is dropped and
+ * counted. A single thread runs every connection with a selector: it encodes each frame once and
+ * queues it to every client, whose queue is bounded and loses its oldest frame rather than grow
+ * when the client is too slow to keep up. Encoded frames are pooled and shared between clients.
+ *
+ * The stream opens with a magic number and version, then is a run of records, each of them the
+ * length of the rest, a type, a channel and two bytes of padding, all big endian:
+ * <ul>
+ * <li>{@link #PREAMBLE}: four ints and six doubles, the fields of a {@link Preamble} in order,
+ * sent before a channel's first frame and whenever its preamble changes.
+ * <li>{@link #FRAME}: the timestamp and the samples.
+ * <li>{@link #DELTA}: the timestamp and the samples as changes to the channel's last frame sent
+ * to the same client, in runs of up to 255 unchanged samples, a count of up to 255 changed ones,
+ * and the changed samples. Only sent when smaller than the frame itself.
+ * </ul>
+ */
+public class FrameStreamServer implements Runnable {
+    static final int MAGIC = 0x53435354;
+    static final int VERSION = 1;
+    static final int HELLO_SIZE = 8;
+
+    static final byte FRAME = 1;
+    static final byte PREAMBLE = 2;
+    static final byte DELTA = 3;
+    // Length, type, channel, two bytes of padding and the timestamp.
+    static final int FRAME_HEADER_SIZE = 16;
+    // Length, type, channel, two bytes of padding, four ints and six doubles.
+    static final int PREAMBLE_SIZE = 72;
+
+    public static final int DEFAULT_PORT = 5566;
+    // Frames queued for each client: two a channel.
+    public static final int DEFAULT_QUEUE_SIZE = 2 * Scpi.CHANNEL_COUNT;
+    private static final int POOL_SIZE = 64;
+
+    private final ServerSocketChannel _server;
+    private final Selector _selector;
+    private final int _queue_size;
+    private final int _frame_capacity;
+    private final FramePool _pool;
+    private final SpscQueue<WaveformFrame> _incoming = new SpscQueue<>(POOL_SIZE);
+    private volatile boolean _delta = true;
+    private volatile boolean _running = false;
+    private Thread _thread = null;
+
+    private volatile int _client_count = 0;
+    private volatile long _published = 0;
+    private volatile long _dropped = 0;
+    private volatile long _client_drops = 0;
+    private volatile long _deltas = 0;
+    private volatile long _bytes_sent = 0;
+
+    // The rest belongs to the server thread.
+    private final ArrayList<Client> _clients = new ArrayList<>();
+    private final ArrayDeque<Message> _free_messages = new ArrayDeque<>();
+    private final ByteBuffer _discard = ByteBuffer.allocate(256);
+    // Each channel's last frame encoded, which the next is a delta from.
+    private final byte[][] _bases = new byte[Scpi.CHANNEL_COUNT + 1][];
+    private final int[] _base_sizes = new int[Scpi.CHANNEL_COUNT + 1];
+    private final long[] _base_sequences = new long[Scpi.CHANNEL_COUNT + 1];
+    private long _sequence = 0;
+
+    /**
+     * Binds to port on every interface, or to any free port if 0.
+     *
+     * @param queueSize the most frames waiting for any one client.
+     * @param frameCapacity the most samples in a frame; bigger frames are dropped.
+     */
+    public FrameStreamServer(int port, int queueSize, int frameCapacity) throws IOException {
+        _queue_size = queueSize;
+        _frame_capacity = frameCapacity;
+        _pool = new FramePool(POOL_SIZE, frameCapacity);
+
+        for (int channel = 0; channel <= Scpi.CHANNEL_COUNT; ++channel) {
+            _bases[channel] = new byte[frameCapacity];
+        }
+
+        Arrays.fill(_base_sequences, -1);
+
+        _selector = Selector.open();
+        _server = ServerSocketChannel.open();
+        _server.socket().setReuseAddress(true);
+        _server.socket().bind(new InetSocketAddress(port));
+        _server.configureBlocking(false);
+        _server.register(_selector, SelectionKey.OP_ACCEPT);
+    }
+
+    public int getPort() {
+        return _server.socket().getLocalPort();
+    }
+
+    /**
+     * Sends frames that barely differ from the one before as a delta, which is on by default.
+     */
+    public void setDelta(boolean delta) {
+        _delta = delta;
+    }
+
+    public synchronized void start() {
+        if (_thread == null) {
+            _running = true;
+            _thread = new Thread(this, "FrameStream");
+            _thread.setDaemon(true);
+            _thread.start();
+        }
+    }
+
+    /**
+     * Disconnects every client and closes the server, which can't be started again.
+     */
+    public synchronized void stop() {
+        _running = false;
+        _selector.wakeup();
+
+        if (_thread == null) {
+            close();
+            return;
+        }
+
+        try {
+            _thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        _thread = null;
+    }
+
+    public int getClientCount() {
+        return _client_count;
+    }
+
+    public long getPublishedFrames() {
+        return _published;
+    }
+
+    /**
+     * @return frames that arrived while every pooled frame was still waiting to be encoded.
+     */
+    public long getDroppedFrames() {
+        return _dropped;
+    }
+
+    /**
+     * @return frames dropped from the queues of clients that fell behind, over all clients.
+     */
+    public long getClientDrops() {
+        return _client_drops;
+    }
+
+    /**
+     * @return frames sent as deltas, over all clients.
+     */
+    public long getDeltas() {
+        return _deltas;
+    }
+
+    public long getBytesSent() {
+        return _bytes_sent;
+    }
+
+    /**
+     * Called from the acquisition thread; never blocks, and the frame is left as it was. Does
+     * nothing while no one is connected.
+     *
+     * @return false if the frame was dropped.
+     */
+    public boolean publish(WaveformFrame frame) {
+        if (_client_count == 0) {
+            return false;
+        }
+
+        // Only the server thread may put a frame back in the pool, so size is checked first.
+        WaveformFrame copy = frame.size() <= _frame_capacity ? _pool.acquire() : null;
+
+        if (copy == null) {
+            ++_dropped;
+            return false;
+        }
+
+        ByteBuffer samples = frame.samples();
+        int position = samples.position();
+        copy.begin();
+        copy.payload(samples);
+        samples.position(position);
+        copy.setChannel(frame.getChannel());
+        copy.setPreamble(frame.getPreamble());
+        copy.complete(frame.getTimestamp());
+        _incoming.offer(copy);
+        ++_published;
+        _selector.wakeup();
+        return true;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (_running) {
+                _selector.select();
+
+                for (SelectionKey key : _selector.selectedKeys()) {
+                    if (!key.isValid()) {
+                        continue;
+                    }
+
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else {
+                        Client client = (Client) key.attachment();
+
+                        if (key.isReadable()) {
+                            client.read();
+                        }
+
+                        if (key.isValid() && key.isWritable()) {
+                            client.flush();
+                        }
+                    }
+                }
+
+                _selector.selectedKeys().clear();
+                drainIncoming();
+            }
+        } catch (IOException e) {
+            // The selector or the server socket failed, which leaves nothing to serve.
+        } finally {
+            close();
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+
+        while ((channel = _server.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            Client client = new Client(channel);
+            _clients.add(client);
+            _client_count = _clients.size();
+            client.flush();
+        }
+    }
+
+    private void drainIncoming() {
+        WaveformFrame frame;
+
+        while ((frame = _incoming.poll()) != null) {
+            try {
+                if (!_clients.isEmpty()) {
+                    broadcast(encode(frame));
+                }
+            } finally {
+                frame.recycle();
+            }
+        }
+    }
+
+    private void broadcast(Message message) {
+        message.references = _clients.size();
+
+        // Backwards, as a client whose connection fails is removed.
+        for (int i = _clients.size() - 1; i >= 0; --i) {
+            Client client = _clients.get(i);
+            client.offer(message);
+            client.flush();
+        }
+    }
+
+    private Message encode(WaveformFrame frame) {
+        Message message = _free_messages.poll();
+
+        if (message == null) {
+            message = new Message(_frame_capacity);
+        }
+
+        int channel = frame.getChannel();
+        int size = frame.size();
+        Preamble preamble = frame.getPreamble();
+        ByteBuffer buffer = message.buffer;
+        buffer.clear();
+
+        if (preamble != null) {
+            buffer.putInt(PREAMBLE_SIZE - 4).put(PREAMBLE).put((byte) channel).putShort((short) 0)
+                    .putInt(preamble.format).putInt(preamble.type).putInt(preamble.points).putInt(preamble.count)
+                    .putDouble(preamble.xIncrement).putDouble(preamble.xOrigin).putDouble(preamble.xReference)
+                    .putDouble(preamble.yIncrement).putDouble(preamble.yOrigin).putDouble(preamble.yReference);
+        }
+
+        message.frame_start = buffer.position();
+        buffer.putInt(FRAME_HEADER_SIZE - 4 + size).put(FRAME).put((byte) channel).putShort((short) 0)
+                .putLong(frame.getTimestamp());
+        buffer.put(frame.samples());
+        message.delta_start = buffer.position();
+        message.previous = -1;
+
+        byte[] base = _bases[channel];
+
+        if (_delta && _base_sequences[channel] >= 0 && _base_sizes[channel] == size
+                && encodeDelta(buffer, message.frame_start + FRAME_HEADER_SIZE, base, size, channel, frame.getTimestamp())) {
+            message.previous = _base_sequences[channel];
+        } else {
+            buffer.position(message.delta_start);
+        }
+
+        message.end = buffer.position();
+        message.channel = channel;
+        message.preamble = preamble;
+        message.sequence = ++_sequence;
+
+        for (int i = 0; i < size; ++i) {
+            base[i] = buffer.get(message.frame_start + FRAME_HEADER_SIZE + i);
+        }
+
+        _base_sizes[channel] = size;
+        _base_sequences[channel] = message.sequence;
+        return message;
+    }
+
+    // Returns false if the delta would be no smaller than the frame.
+    private static boolean encodeDelta(ByteBuffer buffer, int samples, byte[] base, int size, int channel,
+                                       long timestamp) {
+        int start = buffer.position();
+        int limit = start + FRAME_HEADER_SIZE + size;
+        buffer.putInt(0).put(DELTA).put((byte) channel).putShort((short) 0).putLong(timestamp);
+        int i = 0;
+
+        while (i < size) {
+            int unchanged = 0;
+
+            while (i < size && unchanged < 255 && buffer.get(samples + i) == base[i]) {
+                ++unchanged;
+                ++i;
+            }
+
+            int first = i;
+
+            while (i < size && i - first < 255 && buffer.get(samples + i) != base[i]) {
+                ++i;
+            }
+
+            if (buffer.position() + 2 + i - first >= limit) {
+                return false;
+            }
+
+            buffer.put((byte) unchanged).put((byte) (i - first));
+
+            for (int j = first; j < i; ++j) {
+                buffer.put(buffer.get(samples + j));
+            }
+        }
+
+        buffer.putInt(start, buffer.position() - start - 4);
+        return true;
+    }
+
+    private void release(Message message) {
+        if (--message.references == 0) {
+            _free_messages.offer(message);
+        }
+    }
+
+    private void close() {
+        for (Client client : _clients) {
+            client.close();
+        }
+
+        _clients.clear();
+        _client_count = 0;
+
+        try {
+            _server.close();
+            _selector.close();
+        } catch (IOException e) {
+            // Already gone.
+        }
+
+        WaveformFrame frame;
+
+        while ((frame = _incoming.poll()) != null) {
+            frame.recycle();
+        }
+    }
+
+    // One frame, encoded once for every client: its preamble, if it has one, then the whole
+    // frame, then perhaps a delta from the channel's frame before.
+    private static class Message {
+        final ByteBuffer buffer;
+        int frame_start;
+        int delta_start;
+        int end;
+        int channel;
+        Preamble preamble;
+        long sequence;
+        // The sequence number of the frame the delta is from, or -1 if there is no delta.
+        long previous;
+        // Clients yet to finish with it.
+        int references;
+
+        Message(int capacity) {
+            buffer = ByteBuffer.allocateDirect(PREAMBLE_SIZE + 2 * (FRAME_HEADER_SIZE + capacity));
+        }
+    }
+
+    private class Client {
+        private final SocketChannel _channel;
+        private final SelectionKey _key;
+        private final ByteBuffer _hello = ByteBuffer.allocate(HELLO_SIZE);
+        private final ArrayDeque<Message> _queue = new ArrayDeque<>();
+        // What this client was last sent of each channel.
+        private final long[] _sent = new long[Scpi.CHANNEL_COUNT + 1];
+        private final Preamble[] _preambles = new Preamble[Scpi.CHANNEL_COUNT + 1];
+
+        // The message being written, and the ranges of its buffer still to go.
+        private Message _current = null;
+        private final int[] _ranges = new int[4];
+        private int _range = 0;
+
+        Client(SocketChannel channel) throws IOException {
+            _channel = channel;
+            _key = channel.register(_selector, SelectionKey.OP_READ, this);
+            _hello.putInt(MAGIC).putInt(VERSION).flip();
+            Arrays.fill(_sent, -1);
+        }
+
+        // Stale frames make way for new ones, so a slow client sees the latest.
+        void offer(Message message) {
+            if (_queue.size() == _queue_size) {
+                release(_queue.poll());
+                ++_client_drops;
+            }
+
+            _queue.offer(message);
+        }
+
+        // Anything read is ignored; reading is only how a closed connection shows.
+        void read() {
+            try {
+                _discard.clear();
+
+                if (_channel.read(_discard) < 0) {
+                    disconnect();
+                }
+            } catch (IOException e) {
+                disconnect();
+            }
+        }
+
+        // Writes until the socket is full or there is nothing left, and only asks to be told
+        // when it is writable again in the first case.
+        void flush() {
+            try {
+                if (_hello.hasRemaining()) {
+                    _bytes_sent += _channel.write(_hello);
+
+                    if (_hello.hasRemaining()) {
+                        _key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+
+                while (true) {
+                    if (_current == null && !next()) {
+                        _key.interestOps(SelectionKey.OP_READ);
+                        return;
+                    }
+
+                    ByteBuffer buffer = _current.buffer;
+                    buffer.limit(_ranges[_range + 1]);
+                    buffer.position(_ranges[_range]);
+                    int written = _channel.write(buffer);
+                    _bytes_sent += written;
+                    _ranges[_range] += written;
+
+                    if (buffer.hasRemaining()) {
+                        _key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    }
+
+                    _range += 2;
+
+                    if (_range == 4) {
+                        _sent[_current.channel] = _current.sequence;
+                        _preambles[_current.channel] = _current.preamble;
+                        release(_current);
+                        _current = null;
+                    }
+                }
+            } catch (IOException e) {
+                disconnect();
+            }
+        }
+
+        // Picks what of the next message this client needs: the preamble only if it is new to
+        // the client, and the delta only if the client has the frame it is from.
+        private boolean next() {
+            Message message = _queue.poll();
+
+            if (message == null) {
+                return false;
+            }
+
+            int channel = message.channel;
+            boolean preamble = message.preamble != null && message.preamble != _preambles[channel];
+            boolean delta = message.previous >= 0 && message.previous == _sent[channel];
+
+            _ranges[0] = 0;
+            _ranges[1] = preamble ? message.frame_start : 0;
+            _ranges[2] = delta ? message.delta_start : message.frame_start;
+            _ranges[3] = delta ? message.end : message.delta_start;
+            _range = 0;
+            _current = message;
+
+            if (delta) {
+                ++_deltas;
+            }
+
+            return true;
+        }
+
+        void disconnect() {
+            close();
+            _clients.remove(this);
+            _client_count = _clients.size();
+        }
+
+        void close() {
+            _key.cancel();
+
+            try {
+                _channel.close();
+            } catch (IOException e) {
+                // Already gone.
+            }
+
+            if (_current != null) {
+                release(_current);
+                _current = null;
+            }
+
+            Message message;
+
+            while ((message = _queue.poll()) != null) {
+                release(message);
+            }
+        }
+    }
+}
@@ -0,0 +1,115 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts durations in nanoseconds into log-linear buckets, without locks or allocation, so it
+ * can be fed from the acquisition and GL threads at full frame rate and read from the UI thread.
+ *
+ * Each power of two is split into eight buckets, so a percentile comes back at most an eighth
+ * above the true value. The maximum is exact.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Enough for any positive long.
+    private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray _buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong _count = new AtomicLong();
+    private final AtomicLong _total = new AtomicLong();
+    private final AtomicLong _max = new AtomicLong();
+
+    static int bucketOf(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) Math.max(0, nanos);
+        }
+
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        int sub = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return the largest duration that falls in the bucket.
+     */
+    static long bucketLimit(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+
+        int shift = bucket / SUB_BUCKETS - 1;
+        long start = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return start + (1L << shift) - 1;
+    }
+
+    public void record(long nanos) {
+        _buckets.incrementAndGet(bucketOf(nanos));
+        _total.addAndGet(nanos);
+        _count.incrementAndGet();
+
+        long max = _max.get();
+
+        while (nanos > max && !_max.compareAndSet(max, nanos)) {
+            max = _max.get();
+        }
+    }
+
+    public long getCount() {
+        return _count.get();
+    }
+
+    public long getMax() {
+        return _max.get();
+    }
+
+    public long getMean() {
+        long count = _count.get();
+        return count > 0 ? _total.get() / count : 0;
+    }
+
+    /**
+     * @param fraction from 0 to 1, so 0.99 for the 99th percentile.
+     * @return the duration that fraction of those recorded were no longer than, or 0 if there
+     * have been none.
+     */
+    public long getPercentile(double fraction) {
+        long count = _count.get();
+
+        if (count == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(fraction * count));
+        long seen = 0;
+
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            seen += _buckets.get(i);
+
+            if (seen >= rank) {
+                return Math.min(bucketLimit(i), _max.get());
+            }
+        }
+
+        return _max.get();
+    }
+
+    /**
+     * Starts counting afresh. Durations recorded while this runs may be half counted.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            _buckets.set(i, 0);
+        }
+
+        _count.set(0);
+        _total.set(0);
+        _max.set(0);
+    }
+}
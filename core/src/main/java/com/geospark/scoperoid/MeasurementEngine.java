@@ -0,0 +1,487 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Measures a channel's waveform in one pass over its raw samples: maximum, minimum, amplitude,
+ * mean and RMS, and from the edges, frequency, period, duty cycle and rise and fall times.
+ *
+ * Edges are found with hysteresis between the 10% and 90% levels of the amplitude, so noise
+ * about the middle does not count as an edge, and are timed where they cross 50%. Because the
+ * levels are not known until the samples have been seen, each pass uses the levels of the frame
+ * before, and only goes over the samples again when the signal has moved enough for them to be
+ * wrong. Times are resolved to a sample interval, which over the many cycles a frame usually
+ * holds still gives a period far finer than that.
+ *
+ * Deep memory is measured a {@link SampleStore} segment at a time on the executor, if there is
+ * one, and the segments' edges are joined up afterwards as if it had been a single pass.
+ * Nothing is allocated per frame, bar the executor's own bookkeeping. One engine serves one
+ * channel on one thread.
+ */
+public class MeasurementEngine {
+    // Less of a swing than this, in counts, is treated as a flat line with no edges.
+    private static final int MIN_EDGE_AMPLITUDE = 8;
+
+    private static final int UNKNOWN = 0;
+    private static final int LOW = 1;
+    private static final int HIGH = 2;
+
+    private final Executor _executor;
+    private final Chunk _total = new Chunk();
+    private Chunk[] _chunks = new Chunk[0];
+    private final double[] _values = new double[Measurements.QUANTITY_COUNT];
+    private final AtomicInteger _pending = new AtomicInteger();
+    private volatile Thread _waiter = null;
+
+    private boolean _has_levels = false;
+    private int _low;
+    private int _middle;
+    private int _high;
+
+    public MeasurementEngine() {
+        this(null);
+    }
+
+    /**
+     * @param executor runs the segments of deep memory in parallel, or null to do them in turn on
+     * the calling thread.
+     */
+    public MeasurementEngine(Executor executor) {
+        _executor = executor;
+    }
+
+    /**
+     * Forgets the levels edges were found at, as when the channel's settings change.
+     */
+    public void reset() {
+        _has_levels = false;
+    }
+
+    /**
+     * Measures samples from their position to their limit, which are left alone, and adds the
+     * result to out.
+     */
+    public void measure(ByteBuffer samples, Preamble preamble, Measurements out) {
+        int start = samples.position();
+        int end = samples.limit();
+
+        _total.begin(_low, _middle, _high, _has_levels, 0);
+        _total.scan(samples, start, end);
+
+        if (updateLevels(_total)) {
+            _total.begin(_low, _middle, _high, _has_levels, 0);
+            _total.scan(samples, start, end);
+        }
+
+        finish(preamble, out);
+    }
+
+    /**
+     * Measures everything in the store, a segment at a time.
+     */
+    public void measure(SampleStore store, Preamble preamble, Measurements out) {
+        int count = store.segmentCount();
+
+        if (_chunks.length < count) {
+            Chunk[] chunks = new Chunk[count];
+            System.arraycopy(_chunks, 0, chunks, 0, _chunks.length);
+
+            for (int i = _chunks.length; i < count; ++i) {
+                chunks[i] = new Chunk();
+            }
+
+            _chunks = chunks;
+        }
+
+        scanSegments(store, count);
+
+        if (updateLevels(_total)) {
+            scanSegments(store, count);
+        }
+
+        finish(preamble, out);
+    }
+
+    private void scanSegments(SampleStore store, int count) {
+        for (int i = 0; i < count; ++i) {
+            _chunks[i].begin(_low, _middle, _high, _has_levels, (long) i * SampleStore.SEGMENT_SIZE);
+            _chunks[i].segment = store.segment(i);
+        }
+
+        if (_executor != null && count > 1) {
+            _waiter = Thread.currentThread();
+            _pending.set(count);
+
+            for (int i = 0; i < count; ++i) {
+                _executor.execute(_chunks[i]);
+            }
+
+            while (_pending.get() > 0) {
+                LockSupport.park(this);
+            }
+        } else {
+            for (int i = 0; i < count; ++i) {
+                _chunks[i].run();
+            }
+        }
+
+        _total.begin(_low, _middle, _high, _has_levels, 0);
+
+        for (int i = 0; i < count; ++i) {
+            _chunks[i].segment = null;
+            _total.append(_chunks[i]);
+        }
+    }
+
+    // Puts the edge levels where the pass says they should be, and says whether they moved far
+    // enough that the edges found with the old ones cannot be trusted.
+    private boolean updateLevels(Chunk pass) {
+        if (pass.count == 0) {
+            return false;
+        }
+
+        int amplitude = pass.max - pass.min;
+        int low = pass.min + amplitude / 10;
+        int middle = pass.min + amplitude / 2;
+        int high = pass.max - amplitude / 10;
+
+        if (amplitude < MIN_EDGE_AMPLITUDE) {
+            // No edges to find, so nothing to look again for.
+            boolean had_levels = _has_levels;
+            _has_levels = false;
+            return had_levels;
+        }
+
+        int tolerance = Math.max(2, amplitude / 32);
+        boolean moved = !_has_levels || Math.abs(low - _low) > tolerance || Math.abs(high - _high) > tolerance;
+
+        if (moved) {
+            _low = low;
+            _middle = middle;
+            _high = high;
+            _has_levels = true;
+        }
+
+        return moved;
+    }
+
+    private void finish(Preamble preamble, Measurements out) {
+        Chunk pass = _total;
+        double[] values = _values;
+
+        for (int i = 0; i < values.length; ++i) {
+            values[i] = Double.NaN;
+        }
+
+        if (pass.count > 0) {
+            double offset = SampleConversion.sampleOffset(preamble);
+            double mean = (double) pass.sum / pass.count;
+            double square = (double) pass.sum_squares / pass.count - 2.0 * offset * mean + offset * offset;
+
+            values[Measurements.MAXIMUM] = (pass.max - offset) * preamble.yIncrement;
+            values[Measurements.MINIMUM] = (pass.min - offset) * preamble.yIncrement;
+            values[Measurements.AMPLITUDE] = (pass.max - pass.min) * preamble.yIncrement;
+            values[Measurements.MEAN] = (mean - offset) * preamble.yIncrement;
+            values[Measurements.RMS] = Math.sqrt(Math.max(0.0, square)) * preamble.yIncrement;
+        }
+
+        double period = Double.NaN;
+
+        if (pass.rising_count > 1) {
+            period = (pass.last_rising - pass.first_rising) / (pass.rising_count - 1);
+        } else if (pass.falling_count > 1) {
+            period = (pass.last_falling - pass.first_falling) / (pass.falling_count - 1);
+        }
+
+        if (period > 0.0) {
+            values[Measurements.PERIOD] = period * preamble.xIncrement;
+            values[Measurements.FREQUENCY] = 1.0 / (period * preamble.xIncrement);
+
+            if (pass.width_count > 0) {
+                values[Measurements.DUTY_CYCLE] = Math.min(1.0, pass.width_sum / pass.width_count / period);
+            }
+        }
+
+        if (pass.rise_count > 0) {
+            values[Measurements.RISE_TIME] = pass.rise_sum / pass.rise_count * preamble.xIncrement;
+        }
+
+        if (pass.fall_count > 0) {
+            values[Measurements.FALL_TIME] = pass.fall_sum / pass.fall_count * preamble.xIncrement;
+        }
+
+        out.add(values);
+    }
+
+    // What one pass found over a run of samples. A run that starts part way through the waveform
+    // does not know whether it starts high or low until the signal reaches one of the levels, so
+    // it keeps what it saw before then for append() to decide with.
+    private class Chunk implements Runnable {
+        int low;
+        int middle;
+        int high;
+        boolean edges;
+        long offset;
+        ByteBuffer segment;
+
+        int min;
+        int max;
+        long sum;
+        long sum_squares;
+        long count;
+
+        int state;
+        // Where the state first became known, to what, and what led up to it.
+        long settled_at;
+        int settled_state;
+        long settled_from;
+        long settled_middle;
+
+        // The last samples at or past each level, or -1 for none yet.
+        long last_low;
+        long last_below_middle;
+        long last_high;
+        long last_above_middle;
+
+        int rising_count;
+        double first_rising;
+        double last_rising;
+        int falling_count;
+        double first_falling;
+        double last_falling;
+        double rise_sum;
+        int rise_count;
+        double fall_sum;
+        int fall_count;
+
+        // High pulse widths, rising edge to falling edge.
+        double width_sum;
+        int width_count;
+        int first_edge;
+        double first_edge_time;
+        int last_edge;
+        double last_edge_time;
+
+        void begin(int low, int middle, int high, boolean edges, long offset) {
+            this.low = low;
+            this.middle = middle;
+            this.high = high;
+            this.edges = edges;
+            this.offset = offset;
+
+            min = 255;
+            max = 0;
+            sum = 0;
+            sum_squares = 0;
+            count = 0;
+
+            state = UNKNOWN;
+            settled_at = -1;
+            settled_state = UNKNOWN;
+            settled_from = -1;
+            settled_middle = -1;
+            last_low = -1;
+            last_below_middle = -1;
+            last_high = -1;
+            last_above_middle = -1;
+
+            rising_count = 0;
+            falling_count = 0;
+            rise_sum = 0.0;
+            rise_count = 0;
+            fall_sum = 0.0;
+            fall_count = 0;
+            width_sum = 0.0;
+            width_count = 0;
+            first_edge = UNKNOWN;
+            last_edge = UNKNOWN;
+        }
+
+        @Override
+        public void run() {
+            scan(segment, 0, segment.limit());
+
+            if (_pending.decrementAndGet() <= 0) {
+                LockSupport.unpark(_waiter);
+            }
+        }
+
+        void scan(ByteBuffer samples, int start, int end) {
+            int min = this.min;
+            int max = this.max;
+            long sum = this.sum;
+            long sum_squares = this.sum_squares;
+
+            for (int i = start; i < end; ++i) {
+                int sample = samples.get(i) & 0xff;
+                min = Math.min(min, sample);
+                max = Math.max(max, sample);
+                sum += sample;
+                sum_squares += sample * sample;
+
+                if (edges) {
+                    track(sample, offset + i - start);
+                }
+            }
+
+            this.min = min;
+            this.max = max;
+            this.sum = sum;
+            this.sum_squares = sum_squares;
+            count += end - start;
+        }
+
+        private void track(int sample, long index) {
+            if (sample <= low) {
+                last_low = index;
+            } else if (sample >= high) {
+                last_high = index;
+            }
+
+            if (sample < middle) {
+                last_below_middle = index;
+            } else if (sample > middle) {
+                last_above_middle = index;
+            }
+
+            if (state == HIGH && sample <= low) {
+                edge(false, last_above_middle + 0.5, index - last_high);
+                state = LOW;
+            } else if (state == LOW && sample >= high) {
+                edge(true, last_below_middle + 0.5, index - last_low);
+                state = HIGH;
+            } else if (state == UNKNOWN && (sample <= low || sample >= high)) {
+                state = sample >= high ? HIGH : LOW;
+                settled_at = index;
+                settled_state = state;
+                settled_from = state == HIGH ? last_low : last_high;
+                settled_middle = state == HIGH ? last_below_middle : last_above_middle;
+            }
+        }
+
+        // time is where the edge crossed the middle, transition how long it took between levels.
+        private void edge(boolean rising, double time, double transition) {
+            if (rising) {
+                if (rising_count++ == 0) {
+                    first_rising = time;
+                }
+
+                last_rising = time;
+
+                if (transition > 0.0) {
+                    rise_sum += transition;
+                    ++rise_count;
+                }
+            } else {
+                if (falling_count++ == 0) {
+                    first_falling = time;
+                }
+
+                last_falling = time;
+
+                if (transition > 0.0) {
+                    fall_sum += transition;
+                    ++fall_count;
+                }
+
+                if (last_edge == HIGH) {
+                    width_sum += time - last_edge_time;
+                    ++width_count;
+                }
+            }
+
+            if (first_edge == UNKNOWN) {
+                first_edge = rising ? HIGH : LOW;
+                first_edge_time = time;
+            }
+
+            last_edge = rising ? HIGH : LOW;
+            last_edge_time = time;
+        }
+
+        // Carries on from where this run left off with the run that follows it.
+        void append(Chunk next) {
+            if (next.count == 0) {
+                return;
+            }
+
+            min = Math.min(min, next.min);
+            max = Math.max(max, next.max);
+            sum += next.sum;
+            sum_squares += next.sum_squares;
+            count += next.count;
+
+            if (next.settled_state != UNKNOWN) {
+                // The edge that settled the next run's state started in this one, unless the
+                // next run saw it start too.
+                if (state != UNKNOWN && state != next.settled_state) {
+                    boolean rising = next.settled_state == HIGH;
+                    long from = next.settled_from >= 0 ? next.settled_from : (rising ? last_low : last_high);
+                    long middle = next.settled_middle >= 0 ? next.settled_middle
+                            : (rising ? last_below_middle : last_above_middle);
+                    edge(rising, middle + 0.5, from >= 0 ? next.settled_at - from : 0.0);
+                }
+
+                appendEdges(next);
+                state = next.state;
+            }
+
+            last_low = Math.max(last_low, next.last_low);
+            last_below_middle = Math.max(last_below_middle, next.last_below_middle);
+            last_high = Math.max(last_high, next.last_high);
+            last_above_middle = Math.max(last_above_middle, next.last_above_middle);
+        }
+
+        private void appendEdges(Chunk next) {
+            if (next.rising_count > 0) {
+                if (rising_count == 0) {
+                    first_rising = next.first_rising;
+                }
+
+                last_rising = next.last_rising;
+                rising_count += next.rising_count;
+            }
+
+            if (next.falling_count > 0) {
+                if (falling_count == 0) {
+                    first_falling = next.first_falling;
+                }
+
+                last_falling = next.last_falling;
+                falling_count += next.falling_count;
+            }
+
+            rise_sum += next.rise_sum;
+            rise_count += next.rise_count;
+            fall_sum += next.fall_sum;
+            fall_count += next.fall_count;
+            width_sum += next.width_sum;
+            width_count += next.width_count;
+
+            if (next.first_edge == UNKNOWN) {
+                return;
+            }
+
+            if (last_edge == HIGH && next.first_edge == LOW) {
+                width_sum += next.first_edge_time - last_edge_time;
+                ++width_count;
+            }
+
+            if (first_edge == UNKNOWN) {
+                first_edge = next.first_edge;
+                first_edge_time = next.first_edge_time;
+            }
+
+            last_edge = next.last_edge;
+            last_edge_time = next.last_edge_time;
+        }
+    }
+}
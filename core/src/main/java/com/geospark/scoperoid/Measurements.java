@@ -0,0 +1,141 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid;
+
+import java.util.Locale;
+
+/**
+ * The latest measurements of one channel, and their minimum, maximum and mean over every frame
+ * since the last reset, as the 'scope's own statistics display keeps them.
+ *
+ * A {@link MeasurementEngine} adds a frame's worth at a time from the acquisition thread, and the
+ * UI reads them from its own, so every method is synchronized. That is one uncontended lock per
+ * frame. A quantity that could not be measured in a frame, such as the frequency of a flat line,
+ * is NaN and is left out of the statistics.
+ */
+public class Measurements {
+    public static final int MAXIMUM = 0;
+    public static final int MINIMUM = 1;
+    public static final int AMPLITUDE = 2;
+    public static final int MEAN = 3;
+    public static final int RMS = 4;
+    public static final int FREQUENCY = 5;
+    public static final int PERIOD = 6;
+    /** The fraction of each period spent high, from 0 to 1. */
+    public static final int DUTY_CYCLE = 7;
+    /** 10% to 90% of the amplitude. */
+    public static final int RISE_TIME = 8;
+    /** 90% to 10% of the amplitude. */
+    public static final int FALL_TIME = 9;
+    public static final int QUANTITY_COUNT = 10;
+
+    private static final String[] NAMES = {"Vmax", "Vmin", "Vpp", "Vavg", "Vrms", "Freq", "Period", "+Duty", "Rise", "Fall"};
+    private static final String[] UNITS = {"V", "V", "V", "V", "V", "Hz", "s", "%", "s", "s"};
+    private static final String[] PREFIXES = {"p", "n", "u", "m", "", "k", "M", "G"};
+
+    private final double[] _values = new double[QUANTITY_COUNT];
+    private final double[] _min = new double[QUANTITY_COUNT];
+    private final double[] _max = new double[QUANTITY_COUNT];
+    private final double[] _sum = new double[QUANTITY_COUNT];
+    private final long[] _count = new long[QUANTITY_COUNT];
+
+    public Measurements() {
+        reset();
+    }
+
+    public static String getName(int quantity) {
+        return NAMES[quantity];
+    }
+
+    /**
+     * Takes one frame's measurements, indexed by quantity.
+     */
+    public synchronized void add(double[] values) {
+        for (int i = 0; i < QUANTITY_COUNT; ++i) {
+            double value = values[i];
+            _values[i] = value;
+
+            if (!Double.isNaN(value)) {
+                _min[i] = Math.min(_min[i], value);
+                _max[i] = Math.max(_max[i], value);
+                _sum[i] += value;
+                ++_count[i];
+            }
+        }
+    }
+
+    /**
+     * @return the quantity from the latest frame.
+     */
+    public synchronized double get(int quantity) {
+        return _values[quantity];
+    }
+
+    public synchronized double getMin(int quantity) {
+        return _count[quantity] > 0 ? _min[quantity] : Double.NaN;
+    }
+
+    public synchronized double getMax(int quantity) {
+        return _count[quantity] > 0 ? _max[quantity] : Double.NaN;
+    }
+
+    public synchronized double getMean(int quantity) {
+        return _count[quantity] > 0 ? _sum[quantity] / _count[quantity] : Double.NaN;
+    }
+
+    /**
+     * @return the number of frames the quantity could be measured in.
+     */
+    public synchronized long getCount(int quantity) {
+        return _count[quantity];
+    }
+
+    public synchronized void reset() {
+        for (int i = 0; i < QUANTITY_COUNT; ++i) {
+            _values[i] = Double.NaN;
+            _min[i] = Double.POSITIVE_INFINITY;
+            _max[i] = Double.NEGATIVE_INFINITY;
+            _sum[i] = 0.0;
+            _count[i] = 0;
+        }
+    }
+
+    /**
+     * @return a table of each quantity's current value, minimum, maximum and mean, one line per
+     * quantity, in engineering units.
+     */
+    public synchronized String format() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "%-6s %9s %9s %9s %9s", "", "now", "min", "max", "mean"));
+
+        for (int i = 0; i < QUANTITY_COUNT; ++i) {
+            sb.append(String.format(Locale.US, "\n%-6s %9s %9s %9s %9s", NAMES[i], format(i, _values[i]),
+                    format(i, getMin(i)), format(i, getMax(i)), format(i, getMean(i))));
+        }
+
+        return sb.toString();
+    }
+
+    static String format(int quantity, double value) {
+        if (Double.isNaN(value)) {
+            return "****";
+        }
+
+        if (quantity == DUTY_CYCLE) {
+            return String.format(Locale.US, "%.1f%%", value * 100.0);
+        }
+
+        int prefix = 4;
+
+        if (value != 0.0) {
+            prefix += (int) Math.floor(Math.log10(Math.abs(value)) / 3.0);
+            prefix = Math.max(0, Math.min(PREFIXES.length - 1, prefix));
+        }
+
+        double scaled = value / Math.pow(1000.0, prefix - 4);
+        return String.format(Locale.US, "%.4g%s%s", scaled, PREFIXES[prefix], UNITS[quantity]);
+    }
+}
@@ -0,0 +1,246 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Peak-detect decimation of a {@link SampleStore}, so a capture of any depth can be drawn at
+ * screen resolution without losing glitches.
+ *
+ * Level 0 holds the min and max of every 16 samples, and each level above it summarises four
+ * blocks of the one below. A query picks the coarsest level whose blocks still fit inside one
+ * screen column, so every column reads a handful of blocks whatever the zoom.
+ *
+ * Not thread-safe: update and query from the same thread, or query only once the store has
+ * stopped growing.
+ */
+public class MinMaxPyramid {
+    private static final int BASE_SHIFT = 4;
+    private static final int LEVEL_SHIFT = 2;
+
+    private final SampleStore _store;
+    private final ArrayList<byte[]> _min = new ArrayList<>();
+    private final ArrayList<byte[]> _max = new ArrayList<>();
+    private long _size = 0;
+
+    public MinMaxPyramid(SampleStore store) {
+        _store = store;
+    }
+
+    public SampleStore getStore() {
+        return _store;
+    }
+
+    public void reset() {
+        _size = 0;
+    }
+
+    /**
+     * @return how many samples of the store have been summarised.
+     */
+    public long size() {
+        return _size;
+    }
+
+    public int levelCount() {
+        return levelsFor(_size);
+    }
+
+    /**
+     * Allocates every level up front, so a download of known size never stops to grow them.
+     */
+    public void ensureCapacity(long samples) {
+        int levels = levelsFor(samples);
+
+        for (int level = 0; level < levels; ++level) {
+            int blocks = (int) blockCount(level, samples);
+
+            if (level == _min.size()) {
+                _min.add(new byte[blocks]);
+                _max.add(new byte[blocks]);
+            } else if (_min.get(level).length < blocks) {
+                int length = Math.max(blocks, _min.get(level).length * 2);
+                _min.set(level, Arrays.copyOf(_min.get(level), length));
+                _max.set(level, Arrays.copyOf(_max.get(level), length));
+            }
+        }
+    }
+
+    /**
+     * Summarises whatever has been appended to the store since the last call. Only the blocks
+     * the new samples land in are touched, so calling this after every chunk costs no more in
+     * total than building once at the end.
+     */
+    public void update() {
+        long end = _store.size();
+
+        if (end < _size) {
+            _size = 0;
+        }
+
+        if (end == _size) {
+            return;
+        }
+
+        ensureCapacity(end);
+        long first = _size;
+        updateBase(first, end);
+
+        int levels = levelsFor(end);
+
+        for (int level = 1; level < levels; ++level) {
+            updateLevel(level, first, end);
+        }
+
+        _size = end;
+    }
+
+    private void updateBase(long first, long end) {
+        byte[] min = _min.get(0);
+        byte[] max = _max.get(0);
+        long index = first;
+
+        while (index < end) {
+            ByteBuffer segment = _store.segment((int) (index / SampleStore.SEGMENT_SIZE));
+            int offset = (int) (index % SampleStore.SEGMENT_SIZE);
+            int count = (int) Math.min(segment.limit() - offset, end - index);
+
+            for (int i = 0; i < count; ++i, ++index) {
+                byte sample = segment.get(offset + i);
+                int block = (int) (index >>> BASE_SHIFT);
+
+                // A block starts out as its first sample; a partial block left by the last
+                // update carries on from where it was.
+                if ((index & ((1 << BASE_SHIFT) - 1)) == 0) {
+                    min[block] = sample;
+                    max[block] = sample;
+                } else {
+                    if ((sample & 0xff) < (min[block] & 0xff)) {
+                        min[block] = sample;
+                    }
+
+                    if ((sample & 0xff) > (max[block] & 0xff)) {
+                        max[block] = sample;
+                    }
+                }
+            }
+        }
+    }
+
+    private void updateLevel(int level, long first, long end) {
+        byte[] childMin = _min.get(level - 1);
+        byte[] childMax = _max.get(level - 1);
+        byte[] min = _min.get(level);
+        byte[] max = _max.get(level);
+        int children = (int) blockCount(level - 1, end);
+        int shift = blockShift(level);
+
+        for (int block = (int) (first >>> shift); block <= (int) ((end - 1) >>> shift); ++block) {
+            int child = block << LEVEL_SHIFT;
+            int last = Math.min(child + (1 << LEVEL_SHIFT), children);
+            int lo = childMin[child] & 0xff;
+            int hi = childMax[child] & 0xff;
+
+            for (++child; child < last; ++child) {
+                lo = Math.min(lo, childMin[child] & 0xff);
+                hi = Math.max(hi, childMax[child] & 0xff);
+            }
+
+            min[block] = (byte) lo;
+            max[block] = (byte) hi;
+        }
+    }
+
+    /**
+     * Reduces samples [start, end) to a min and a max per column, written to out as unsigned
+     * byte pairs. Column edges are rounded out to the blocks of the level used, so a column may
+     * see up to one block of its neighbours, which is the usual peak-detect compromise.
+     *
+     * @return the number of columns written, which is fewer than asked for when the window
+     * holds fewer samples than that.
+     */
+    public int query(long start, long end, int columns, ByteBuffer out) {
+        start = Math.max(0, start);
+        end = Math.min(end, _size);
+
+        if (end <= start || columns <= 0) {
+            return 0;
+        }
+
+        columns = (int) Math.min(columns, end - start);
+        double perColumn = (double) (end - start) / columns;
+        int level = -1;
+
+        while (level + 1 < levelCount() && (1L << blockShift(level + 1)) <= perColumn) {
+            ++level;
+        }
+
+        for (int column = 0; column < columns; ++column) {
+            long first = start + (long) (column * perColumn);
+            long last = Math.max(first + 1, start + (long) ((column + 1) * perColumn));
+
+            if (level < 0) {
+                queryRaw(first, last, out);
+            } else {
+                queryLevel(level, first, last, out);
+            }
+        }
+
+        return columns;
+    }
+
+    private void queryRaw(long first, long last, ByteBuffer out) {
+        int lo = 255;
+        int hi = 0;
+
+        for (long i = first; i < last; ++i) {
+            int sample = _store.get(i);
+            lo = Math.min(lo, sample);
+            hi = Math.max(hi, sample);
+        }
+
+        out.put((byte) lo);
+        out.put((byte) hi);
+    }
+
+    private void queryLevel(int level, long first, long last, ByteBuffer out) {
+        byte[] min = _min.get(level);
+        byte[] max = _max.get(level);
+        int shift = blockShift(level);
+        int lo = 255;
+        int hi = 0;
+
+        for (int block = (int) (first >>> shift); block <= (int) ((last - 1) >>> shift); ++block) {
+            lo = Math.min(lo, min[block] & 0xff);
+            hi = Math.max(hi, max[block] & 0xff);
+        }
+
+        out.put((byte) lo);
+        out.put((byte) hi);
+    }
+
+    private static int blockShift(int level) {
+        return BASE_SHIFT + LEVEL_SHIFT * level;
+    }
+
+    private static long blockCount(int level, long samples) {
+        return (samples + (1L << blockShift(level)) - 1) >>> blockShift(level);
+    }
+
+    // Levels go up until one block covers everything.
+    private static int levelsFor(long samples) {
+        int levels = 1;
+
+        while (blockCount(levels - 1, samples) > 1) {
+            ++levels;
+        }
+
+        return levels;
+    }
+}
@@ -0,0 +1,83 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid;
+
+import java.util.Locale;
+
+/**
+ * How long each stage of getting a waveform from the 'scope onto the screen takes, so a slow
+ * display can be put down to USB, parsing, the handoff to the GL thread or GL itself.
+ *
+ * Stages are timed with System.nanoTime() by the thread doing the work and counted into a
+ * {@link LatencyHistogram} each, so recording costs a few atomic increments per frame.
+ */
+public class PipelineStats {
+    /** Writing the command that asks for a waveform. */
+    public static final int SEND = 0;
+    /** Waiting on the transport for the reply: bulk-IN transfers over USB, socket reads over LAN. */
+    public static final int TRANSFER = 1;
+    /** Picking the samples out of the IEEE 488.2 block into a frame. */
+    public static final int PARSE = 2;
+    /** From the frame being queued for the renderer to the GL thread taking it. */
+    public static final int HANDOFF = 3;
+    /** Handing the samples to GL, per frame. */
+    public static final int UPLOAD = 4;
+    /** Everything the GL thread does for one redraw, whatever the number of frames. */
+    public static final int DRAW = 5;
+    /** GL drawing the traces, fenced by glFinish; only timed while asked for, as that stalls. */
+    public static final int GPU = 6;
+    public static final int STAGE_COUNT = 7;
+
+    private static final String[] STAGE_NAMES = {"send", "transfer", "parse", "handoff", "upload", "draw", "gpu"};
+
+    private final LatencyHistogram[] _stages = new LatencyHistogram[STAGE_COUNT];
+    private volatile long _since = System.nanoTime();
+
+    public PipelineStats() {
+        for (int i = 0; i < STAGE_COUNT; ++i) {
+            _stages[i] = new LatencyHistogram();
+        }
+    }
+
+    public void record(int stage, long nanos) {
+        _stages[stage].record(nanos);
+    }
+
+    public LatencyHistogram getStage(int stage) {
+        return _stages[stage];
+    }
+
+    public static String getStageName(int stage) {
+        return STAGE_NAMES[stage];
+    }
+
+    public void reset() {
+        for (LatencyHistogram stage : _stages) {
+            stage.reset();
+        }
+
+        _since = System.nanoTime();
+    }
+
+    /**
+     * @return a table of each stage's rate, p50, p99 and maximum in microseconds, since the stats
+     * were made or last reset. One line per stage, to fit a screenshot or a log.
+     */
+    public String format() {
+        double seconds = Math.max(1, System.nanoTime() - _since) / 1.0e9;
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "%-8s %8s %9s %9s %9s", "us", "n/s", "p50", "p99", "max"));
+
+        for (int i = 0; i < STAGE_COUNT; ++i) {
+            LatencyHistogram stage = _stages[i];
+            sb.append(String.format(Locale.US, "\n%-8s %8.1f %9.1f %9.1f %9.1f", STAGE_NAMES[i],
+                    stage.getCount() / seconds, stage.getPercentile(0.5) / 1.0e3,
+                    stage.getPercentile(0.99) / 1.0e3, stage.getMax() / 1.0e3));
+        }
+
+        return sb.toString();
+    }
+}
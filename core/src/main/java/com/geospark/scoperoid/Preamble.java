@@ -0,0 +1,113 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid;
+
+/**
+ * The parsed reply to :WAV:PRE?, which says how to turn raw samples into volts and seconds:
+ * volts = (sample - YORigin - YREFerence) * YINCrement.
+ */
+public class Preamble {
+    public static final int FIELD_COUNT = 10;
+
+    // The documentation says a vertical division is 25 sample counts, and a horizontal one is
+    // 100 sample intervals.
+    public static final double COUNTS_PER_DIVISION = 25.0;
+    public static final double POINTS_PER_DIVISION = 100.0;
+
+    public final int format;
+    public final int type;
+    public final int points;
+    public final int count;
+    public final double xIncrement;
+    public final double xOrigin;
+    public final double xReference;
+    public final double yIncrement;
+    public final double yOrigin;
+    public final double yReference;
+
+    /**
+     * What we assume until the 'scope tells us otherwise: a screen centred on sample value 127.
+     */
+    public static final Preamble DEFAULT = new Preamble(0, 0, 1200, 1, 1.0e-8, 0.0, 0.0, 1.0 / COUNTS_PER_DIVISION, 0.0, 127.0);
+
+    public Preamble(int format, int type, int points, int count, double xIncrement, double xOrigin, double xReference,
+                    double yIncrement, double yOrigin, double yReference) {
+        this.format = format;
+        this.type = type;
+        this.points = points;
+        this.count = count;
+        this.xIncrement = xIncrement;
+        this.xOrigin = xOrigin;
+        this.xReference = xReference;
+        this.yIncrement = yIncrement;
+        this.yOrigin = yOrigin;
+        this.yReference = yReference;
+    }
+
+    /**
+     * @return the preamble, or null if the reply is short or garbled.
+     */
+    public static Preamble parse(byte[] data) {
+        double[] fields = new double[FIELD_COUNT];
+        int field = 0;
+        int start = 0;
+
+        try {
+            for (int i = 0; i <= data.length && field < FIELD_COUNT; ++i) {
+                if (i == data.length || data[i] == ',' || data[i] == '\n') {
+                    fields[field++] = Double.parseDouble(new String(data, start, i - start, "US-ASCII").trim());
+                    start = i + 1;
+                }
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        } catch (java.io.UnsupportedEncodingException e) {
+            return null;
+        }
+
+        if (field < FIELD_COUNT) {
+            return null;
+        }
+
+        return new Preamble((int) fields[Scpi.WAV_PREAMBLE_FORMAT], (int) fields[Scpi.WAV_PREAMBLE_TYPE],
+                (int) fields[Scpi.WAV_PREAMBLE_POINTS], (int) fields[Scpi.WAV_PREAMBLE_COUNT],
+                fields[Scpi.WAV_PREAMBLE_XINCREMENT], fields[Scpi.WAV_PREAMBLE_XORIGIN],
+                fields[Scpi.WAV_PREAMBLE_XREFERENCE], fields[Scpi.WAV_PREAMBLE_YINCREMENT],
+                fields[Scpi.WAV_PREAMBLE_YORIGIN], fields[Scpi.WAV_PREAMBLE_YREFERENCE]);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+
+        if (!(o instanceof Preamble)) {
+            return false;
+        }
+
+        Preamble p = (Preamble) o;
+        return format == p.format && type == p.type && points == p.points && count == p.count
+                && xIncrement == p.xIncrement && xOrigin == p.xOrigin && xReference == p.xReference
+                && yIncrement == p.yIncrement && yOrigin == p.yOrigin && yReference == p.yReference;
+    }
+
+    @Override
+    public int hashCode() {
+        long bits = Double.doubleToLongBits(xIncrement) * 31 + Double.doubleToLongBits(xOrigin);
+        bits = bits * 31 + Double.doubleToLongBits(yIncrement);
+        bits = bits * 31 + Double.doubleToLongBits(yOrigin);
+        return (int) (bits ^ (bits >>> 32)) * 31 + points;
+    }
+
+    public double getVerticalScale() {
+        return yIncrement * COUNTS_PER_DIVISION;
+    }
+
+    public double getTimebase() {
+        return xIncrement * POINTS_PER_DIVISION;
+    }
+}
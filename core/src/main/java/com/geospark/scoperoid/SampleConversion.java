@@ -0,0 +1,62 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+/**
+ * Turns raw BYTE-format samples into volts, and into positions on the grid the waveform is drawn
+ * on, by the scaling a {@link Preamble} gives. The raw sample shader does the same sums on the
+ * GPU from the uniforms worked out here.
+ */
+public final class SampleConversion {
+    // The grid is drawn 255 units high, and has 8 vertical divisions.
+    public static final float GRID_HEIGHT = 255.0f;
+    public static final float GRID_CENTRE = GRID_HEIGHT / 2.0f;
+    public static final float GRID_DIVISIONS = 8.0f;
+
+    private SampleConversion() {
+    }
+
+    /**
+     * @return the sample value that is 0V.
+     */
+    public static float sampleOffset(Preamble preamble) {
+        return (float) (preamble.yOrigin + preamble.yReference);
+    }
+
+    /**
+     * @return grid units per volt at the preamble's vertical scale.
+     */
+    public static float unitsPerVolt(Preamble preamble) {
+        return (float) ((GRID_HEIGHT / GRID_DIVISIONS) / preamble.getVerticalScale());
+    }
+
+    public static double toVolts(int sample, Preamble preamble) {
+        return ((sample & 0xff) - preamble.yOrigin - preamble.yReference) * preamble.yIncrement;
+    }
+
+    /**
+     * Writes an x, y vertex for each sample from the position of samples, which is left alone,
+     * with x counting up from 0.
+     *
+     * @return the number of vertices written, which is as many as both buffers have room for.
+     */
+    public static int toVertices(ByteBuffer samples, Preamble preamble, FloatBuffer vertices) {
+        int count = Math.min(samples.remaining(), vertices.remaining() / 2);
+        int start = samples.position();
+        float offset = sampleOffset(preamble);
+        float scale = (float) preamble.yIncrement * unitsPerVolt(preamble);
+
+        for (int i = 0; i < count; ++i) {
+            vertices.put((float) i);
+            vertices.put(GRID_CENTRE + ((samples.get(start + i) & 0xff) - offset) * scale);
+        }
+
+        return count;
+    }
+}
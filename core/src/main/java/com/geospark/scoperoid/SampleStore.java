@@ -0,0 +1,88 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * A growable run of 8-bit samples kept off the Java heap. It grows a segment at a time, so
+ * nothing already stored is ever copied, and clearing it keeps the segments for next time.
+ */
+public class SampleStore implements BlockParser.Sink {
+    public static final int SEGMENT_SIZE = 1 << 20;
+
+    private static final int SEGMENT_SHIFT = 20;
+    private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+    private final ArrayList<ByteBuffer> _segments = new ArrayList<>();
+    private long _size = 0;
+
+    public void clear() {
+        _size = 0;
+    }
+
+    public long size() {
+        return _size;
+    }
+
+    /**
+     * Allocates up front so a download of known size never stops to grow the store.
+     */
+    public void ensureCapacity(long capacity) {
+        while ((long) _segments.size() * SEGMENT_SIZE < capacity) {
+            _segments.add(ByteBuffer.allocateDirect(SEGMENT_SIZE));
+        }
+    }
+
+    /**
+     * Appends everything remaining in src, leaving src's position at its limit.
+     */
+    public void append(ByteBuffer src) {
+        ensureCapacity(_size + src.remaining());
+        int limit = src.limit();
+
+        while (src.hasRemaining()) {
+            ByteBuffer segment = _segments.get((int) (_size >>> SEGMENT_SHIFT));
+            segment.clear();
+            segment.position((int) (_size & SEGMENT_MASK));
+
+            int n = Math.min(segment.remaining(), src.remaining());
+            src.limit(src.position() + n);
+            segment.put(src);
+            src.limit(limit);
+            _size += n;
+        }
+    }
+
+    @Override
+    public void payload(ByteBuffer bytes) {
+        append(bytes);
+    }
+
+    /**
+     * @return the sample at index as an unsigned value.
+     */
+    public int get(long index) {
+        return _segments.get((int) (index >>> SEGMENT_SHIFT)).get((int) (index & SEGMENT_MASK)) & 0xff;
+    }
+
+    public int segmentCount() {
+        return (int) ((_size + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT);
+    }
+
+    /**
+     * @return a view of the filled part of one segment, for walking the store without a call
+     * per sample.
+     */
+    public ByteBuffer segment(int index) {
+        ByteBuffer segment = _segments.get(index).duplicate();
+        long start = (long) index << SEGMENT_SHIFT;
+        segment.limit((int) Math.min(SEGMENT_SIZE, _size - start));
+        segment.position(0);
+        return segment;
+    }
+}
@@ -0,0 +1,121 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * What we last heard from the 'scope about its settings, so the acquisition thread only asks
+ * again when something may have changed.
+ *
+ * A channel's preamble is stale once a setting has been sent, or once the refresh interval has
+ * passed, which is how changes made on the front panel get noticed. Listeners only hear about
+ * preambles, and trigger statuses, that are actually different.
+ */
+public class ScopeState {
+    public interface Listener {
+        void preambleChanged(int channel, Preamble preamble);
+
+        /**
+         * @param status one of the Scpi.TRIG_ constants.
+         */
+        void triggerStatusChanged(int status);
+    }
+
+    public static final long DEFAULT_REFRESH_INTERVAL_MS = 1000;
+
+    private final AtomicReferenceArray<Preamble> _preambles = new AtomicReferenceArray<>(Scpi.CHANNEL_COUNT + 1);
+    // Starts ahead of the per-channel copies, so every channel begins stale.
+    private final AtomicInteger _generation = new AtomicInteger(1);
+    private volatile long _refresh_interval = DEFAULT_REFRESH_INTERVAL_MS * 1000000L;
+    private volatile int _trigger_status = Scpi.TRIG_UNKNOWN;
+
+    // Only touched by the acquisition thread.
+    private final long[] _refreshed_at = new long[Scpi.CHANNEL_COUNT + 1];
+    private final int[] _refreshed_generation = new int[Scpi.CHANNEL_COUNT + 1];
+
+    /**
+     * @return the last preamble read for a channel numbered from 1, or null if there is none yet.
+     */
+    public Preamble getPreamble(int channel) {
+        return _preambles.get(channel);
+    }
+
+    /**
+     * @return the Scpi.TRIG_ constant :TRIG:STAT? last replied with.
+     */
+    public int getTriggerStatus() {
+        return _trigger_status;
+    }
+
+    /**
+     * Sets how long a preamble is trusted when no settings have been sent, which bounds how long
+     * a change made on the 'scope itself takes to show up.
+     */
+    public void setRefreshInterval(long millis) {
+        _refresh_interval = millis * 1000000L;
+    }
+
+    /**
+     * Marks every preamble stale. Safe to call from any thread.
+     */
+    public void invalidate() {
+        _generation.incrementAndGet();
+    }
+
+    /**
+     * Forgets everything, as after connecting to a different 'scope.
+     */
+    public void clear() {
+        for (int channel = 0; channel <= Scpi.CHANNEL_COUNT; ++channel) {
+            _preambles.set(channel, null);
+        }
+
+        _trigger_status = Scpi.TRIG_UNKNOWN;
+
+        invalidate();
+    }
+
+    boolean needsRefresh(int channel, long now) {
+        return _refreshed_generation[channel] != _generation.get()
+                || now - _refreshed_at[channel] >= _refresh_interval;
+    }
+
+    /**
+     * Records a fresh reading, or a failed one as null, which keeps the old value but still
+     * waits out the interval before asking again.
+     *
+     * @return true if the preamble differs from the one already held.
+     */
+    boolean update(int channel, Preamble preamble, long now, int generation) {
+        _refreshed_at[channel] = now;
+        _refreshed_generation[channel] = generation;
+
+        if (preamble == null || preamble.equals(_preambles.get(channel))) {
+            return false;
+        }
+
+        _preambles.set(channel, preamble);
+        return true;
+    }
+
+    /**
+     * @return true if the status differs from the one already held.
+     */
+    boolean updateTriggerStatus(int status) {
+        if (status == _trigger_status) {
+            return false;
+        }
+
+        _trigger_status = status;
+        return true;
+    }
+
+    int generation() {
+        return _generation.get();
+    }
+}
@@ -0,0 +1,124 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The SCPI commands and queries we send to DS1000Z-series 'scopes, and the layout of the replies
+ * that need one.
+ */
+public final class Scpi {
+    public static final String IEEE4882_CLS = "*CLS";
+    public static final String IEEE4882_ESE = "*ESE";
+    public static final String IEEE4882_ESE_Q = "*ESE?";
+    public static final String IEEE4882_ESR_Q = "*ESR?";
+    public static final String IEEE4882_IDN_Q = "*IDN?";
+    public static final String IEEE4882_OPC = "*OPC";
+    public static final String IEEE4882_OPC_Q = "*OPC?";
+    public static final String IEEE4882_RST = "*RST";
+    public static final String IEEE4882_SRE = "*SRE";
+    public static final String IEEE4882_SRE_Q = "*SRE?";
+    public static final String IEEE4882_STB_Q = "*STB?";
+    public static final String IEEE4882_TST_Q = "*TST?";
+    public static final String IEEE4882_WAI = "*WAI";
+
+    public static final String RUN = ":RUN";
+    public static final String STOP = ":STOP";
+    public static final String TRIG_STATUS_Q = ":TRIG:STAT?";
+
+    public static final String WAV_SOURCE = ":WAV:SOUR";
+    public static final String WAV_MODE = ":WAV:MODE";
+    public static final String WAV_FORMAT = ":WAV:FORM";
+    public static final String WAV_DATA_Q = ":WAV:DATA?";
+    public static final String WAV_XINCREMENT_Q = ":WAV:XINC?";
+    public static final String WAV_XORIGIN_Q = ":WAV:XOR?";
+    public static final String WAV_XREFERENCE_Q = ":WAV:XREF?";
+    public static final String WAV_YINCREMENT_Q = ":WAV:YINC?";
+    public static final String WAV_YORIGIN_Q = ":WAV:YOR?";
+    public static final String WAV_YREFERENCE_Q = ":WAV:YREF?";
+    public static final String WAV_START = ":WAV:STAR";
+    public static final String WAV_STOP = ":WAV:STOP";
+    public static final String WAV_PREAMBLE_Q = ":WAV:PRE?";
+
+    public static final String DISP_GBR = ":DISP:GBR";
+    public static final String DISP_DATA_Q = ":DISP:DATA?";
+
+    public static final int WAV_PREAMBLE_FORMAT = 0;
+    public static final int WAV_PREAMBLE_TYPE = 1;
+    public static final int WAV_PREAMBLE_POINTS = 2;
+    public static final int WAV_PREAMBLE_COUNT = 3;
+    public static final int WAV_PREAMBLE_XINCREMENT = 4;
+    public static final int WAV_PREAMBLE_XORIGIN = 5;
+    public static final int WAV_PREAMBLE_XREFERENCE = 6;
+    public static final int WAV_PREAMBLE_YINCREMENT = 7;
+    public static final int WAV_PREAMBLE_YORIGIN = 8;
+    public static final int WAV_PREAMBLE_YREFERENCE = 9;
+
+    // What :TRIG:STAT? says the 'scope is doing.
+    public static final int TRIG_UNKNOWN = 0;
+    /** TD: triggered, so a new acquisition is on its way or has just finished. */
+    public static final int TRIG_TRIGGERED = 1;
+    /** WAIT: waiting for a trigger, so there is nothing new. */
+    public static final int TRIG_WAIT = 2;
+    /** RUN: filling the pre-trigger part of the memory. */
+    public static final int TRIG_RUN = 3;
+    /** AUTO: acquiring without a trigger. */
+    public static final int TRIG_AUTO = 4;
+    /** STOP: stopped, so the same acquisition comes back every time. */
+    public static final int TRIG_STOP = 5;
+
+    public static final int CHANNEL_COUNT = 4;
+
+    private Scpi() {
+    }
+
+    /**
+     * @return the :WAV:SOUR name of a channel numbered from 1.
+     */
+    public static String channelSource(int channel) {
+        return "CHAN" + channel;
+    }
+
+    /**
+     * @return the channel a command names with :WAV:SOUR, or 0 if it names none.
+     */
+    public static int channelOf(String command) {
+        int i = command.indexOf("CHAN");
+
+        if (i < 0 || i + 4 >= command.length()) {
+            return 0;
+        }
+
+        int channel = command.charAt(i + 4) - '0';
+        return channel >= 1 && channel <= CHANNEL_COUNT ? channel : 0;
+    }
+
+    /**
+     * @return the TRIG_ constant for a reply to :TRIG:STAT?, from its position, which is left
+     * alone. The replies all start with a different letter, so that is all that is read.
+     */
+    public static int triggerStatus(ByteBuffer reply) {
+        if (!reply.hasRemaining()) {
+            return TRIG_UNKNOWN;
+        }
+
+        switch (reply.get(reply.position())) {
+            case 'T':
+                return TRIG_TRIGGERED;
+            case 'W':
+                return TRIG_WAIT;
+            case 'R':
+                return TRIG_RUN;
+            case 'A':
+                return TRIG_AUTO;
+            case 'S':
+                return TRIG_STOP;
+            default:
+                return TRIG_UNKNOWN;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid;
+
+import java.nio.ByteBuffer;
+
+/**
+ * One :DISP:DATA? screenshot, decoded from the 24 bit BMP the 'scope sends as it streams in,
+ * so the whole file is never held. Rows go straight into a preallocated direct buffer, bottom
+ * row first as a GL texture wants them, without the padding at the end of each; pixels stay in
+ * BMP's blue, green, red order, which is cheaper to swap when drawn than here.
+ *
+ * Frames are recycled onto the free list they were made for by whoever consumes them.
+ */
+public class ScreenFrame implements BlockParser.Sink {
+    // The file header and the BITMAPINFOHEADER, which is all that is needed of any later one.
+    static final int HEADER_SIZE = 54;
+
+    private final SpscQueue<ScreenFrame> _free;
+    private final ByteBuffer _pixels;
+    private final byte[] _header = new byte[HEADER_SIZE];
+    private long _timestamp;
+    private long _offered = 0;
+
+    private long _offset;
+    private boolean _valid;
+    private int _width;
+    private int _height;
+    private boolean _bottom_up;
+    private int _pixel_offset;
+    private int _stride;
+
+    /**
+     * @param free where {@link #recycle()} puts the frame.
+     * @param capacity the most pixel bytes the frame holds: three a pixel.
+     */
+    public ScreenFrame(SpscQueue<ScreenFrame> free, int capacity) {
+        _free = free;
+        _pixels = ByteBuffer.allocateDirect(capacity);
+    }
+
+    /**
+     * @return the pixels, between position and limit once complete.
+     */
+    public ByteBuffer pixels() {
+        return _pixels;
+    }
+
+    public int getWidth() {
+        return _width;
+    }
+
+    public int getHeight() {
+        return _height;
+    }
+
+    /**
+     * @return the bytes of memory the frame holds on to.
+     */
+    public int capacity() {
+        return _pixels.capacity();
+    }
+
+    public long getTimestamp() {
+        return _timestamp;
+    }
+
+    /**
+     * @return System.nanoTime() when the frame was queued for its consumer.
+     */
+    public long getOfferTime() {
+        return _offered;
+    }
+
+    public void setOfferTime(long nanos) {
+        _offered = nanos;
+    }
+
+    /**
+     * Empties the frame ready for a new response.
+     */
+    public void begin() {
+        _offset = 0;
+        _valid = false;
+        _width = 0;
+        _height = 0;
+        _pixels.clear();
+    }
+
+    @Override
+    public void payload(ByteBuffer bytes) {
+        while (bytes.hasRemaining()) {
+            if (_offset < HEADER_SIZE) {
+                int count = (int) Math.min(bytes.remaining(), HEADER_SIZE - _offset);
+                bytes.get(_header, (int) _offset, count);
+                _offset += count;
+
+                if (_offset == HEADER_SIZE) {
+                    parseHeader();
+                }
+            } else if (!_valid || _offset < _pixel_offset) {
+                // Anything between the headers and the pixels, or a file we can't decode.
+                int count = _valid ? (int) Math.min(bytes.remaining(), _pixel_offset - _offset) : bytes.remaining();
+                bytes.position(bytes.position() + count);
+                _offset += count;
+            } else {
+                decodeRows(bytes);
+            }
+        }
+    }
+
+    // Takes whatever is left of the current row, and copies what isn't padding.
+    private void decodeRows(ByteBuffer bytes) {
+        long pixel = _offset - _pixel_offset;
+        long row = pixel / _stride;
+        int column = (int) (pixel % _stride);
+        int count = Math.min(bytes.remaining(), _stride - column);
+        int start = bytes.position();
+        int row_bytes = _width * 3;
+
+        if (row < _height && column < row_bytes) {
+            long target = (_bottom_up ? row : _height - 1 - row) * row_bytes + column;
+            int limit = bytes.limit();
+
+            bytes.limit(start + Math.min(count, row_bytes - column));
+            _pixels.position((int) target);
+            _pixels.put(bytes);
+            bytes.limit(limit);
+        }
+
+        bytes.position(start + count);
+        _offset += count;
+    }
+
+    private void parseHeader() {
+        int bits = readShort(28);
+        int height = readInt(22);
+        _width = readInt(18);
+        _height = Math.abs(height);
+        _bottom_up = height > 0;
+        _pixel_offset = readInt(10);
+        _stride = (_width * 3 + 3) & ~3;
+
+        _valid = _header[0] == 'B' && _header[1] == 'M' && bits == 24 && readInt(30) == 0
+                && _width > 0 && _height > 0 && _pixel_offset >= HEADER_SIZE
+                && (long) _width * _height * 3 <= _pixels.capacity();
+    }
+
+    private int readShort(int offset) {
+        return (_header[offset] & 0xff) | (_header[offset + 1] & 0xff) << 8;
+    }
+
+    private int readInt(int offset) {
+        return readShort(offset) | readShort(offset + 2) << 16;
+    }
+
+    /**
+     * @return false unless the response was a 24 bit BMP that fitted and had every row.
+     */
+    public boolean complete(long timestamp) {
+        _timestamp = timestamp;
+        boolean complete = _valid && _offset >= _pixel_offset + (long) _stride * _height;
+        _pixels.limit(complete ? _width * _height * 3 : 0);
+        _pixels.position(0);
+        return complete;
+    }
+
+    /**
+     * Hands the frame back to its free list. Only the consuming thread may call this.
+     */
+    public void recycle() {
+        _free.offer(this);
+    }
+}
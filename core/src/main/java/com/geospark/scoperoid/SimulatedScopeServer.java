@@ -0,0 +1,251 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+
+/**
+ * A stand-in for a LAN 'scope that answers the handful of SCPI queries we use with canned
+ * responses, so the TCP transport can be exercised and timed without any hardware.
+ */
+public class SimulatedScopeServer implements Runnable {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final int POINTS = 1200;
+    private static final int PERIOD = 300;
+    private static final int MAX_CHUNK = 250000;
+    private static final String IDN = "RIGOL TECHNOLOGIES,DS1054Z,SIMULATED,00.04.03\n";
+    private static final int SCREEN_WIDTH = 800;
+    private static final int SCREEN_HEIGHT = 480;
+    private static final String PREAMBLE = "0,0,%d,1,1.000000e-08,-6.000000e-06,0,4.000000e-02,0,127\n";
+
+    private final ServerSocketChannel _server;
+    private final ByteBuffer _command = ByteBuffer.allocate(1024);
+    private final ByteBuffer _waveform;
+    private final byte[] _period = new byte[PERIOD];
+    private Thread _thread = null;
+    private int _phase = 0;
+    private ByteBuffer _screen = null;
+    private int _screen_column = 0;
+
+    // Enough of the waveform state to let deep memory fetches run against us.
+    private int _memory_depth = 12000000;
+    private boolean _raw = false;
+    private boolean _running = true;
+    private long _start = 1;
+    private long _stop = POINTS;
+    private int _channel = 1;
+
+    public SimulatedScopeServer(int port) throws IOException {
+        _server = ServerSocketChannel.open();
+        _server.socket().setReuseAddress(true);
+        _server.socket().bind(new InetSocketAddress("127.0.0.1", port));
+
+        _waveform = ByteBuffer.allocateDirect(11 + MAX_CHUNK + 1);
+
+        for (int i = 0; i < PERIOD; ++i) {
+            _period[i] = (byte) (127 + 75 * Math.sin(i * 2.0 * Math.PI / PERIOD));
+        }
+    }
+
+    public void setMemoryDepth(int points) {
+        _memory_depth = points;
+    }
+
+    public int getPort() {
+        return _server.socket().getLocalPort();
+    }
+
+    public synchronized void start() {
+        if (_thread == null) {
+            _thread = new Thread(this, "SimulatedScope");
+            _thread.setDaemon(true);
+            _thread.start();
+        }
+    }
+
+    public synchronized void stop() {
+        try {
+            _server.close();
+        } catch (IOException e) {
+            // Already gone.
+        }
+
+        _thread = null;
+    }
+
+    @Override
+    public void run() {
+        while (_server.isOpen()) {
+            try {
+                SocketChannel client = _server.accept();
+                client.socket().setTcpNoDelay(true);
+                serve(client);
+            } catch (IOException e) {
+                // Either the client went away or we were stopped; the loop condition sorts it out.
+            }
+        }
+    }
+
+    private void serve(SocketChannel client) throws IOException {
+        _command.clear();
+
+        try {
+            while (client.read(_command) >= 0) {
+                int end;
+
+                while ((end = indexOf(_command, '\n')) >= 0) {
+                    String command = new String(_command.array(), 0, end, ASCII).trim();
+                    _command.flip();
+                    _command.position(end + 1);
+                    _command.compact();
+                    respond(client, command);
+                }
+            }
+        } finally {
+            client.close();
+        }
+    }
+
+    // A program message can hold several commands, such as ":WAV:SOUR CHAN2;:WAV:DATA?".
+    private void respond(SocketChannel client, String message) throws IOException {
+        for (String command : message.split(";")) {
+            respondTo(client, command.trim());
+        }
+    }
+
+    private void respondTo(SocketChannel client, String command) throws IOException {
+        if (!command.endsWith("?")) {
+            setting(command);
+            return;
+        }
+
+        ByteBuffer response;
+
+        if (command.equals(Scpi.WAV_DATA_Q)) {
+            nextWaveform();
+            response = _waveform;
+        } else if (command.equals(Scpi.WAV_PREAMBLE_Q)) {
+            response = ByteBuffer.wrap(String.format(PREAMBLE, _raw ? _memory_depth : POINTS).getBytes(ASCII));
+        } else if (command.equals(Scpi.DISP_DATA_Q)) {
+            nextScreen();
+            response = _screen;
+        } else if (command.equals(Scpi.TRIG_STATUS_Q)) {
+            response = ByteBuffer.wrap((_running ? "TD\n" : "STOP\n").getBytes(ASCII));
+        } else if (command.equals(Scpi.IEEE4882_IDN_Q)) {
+            response = ByteBuffer.wrap(IDN.getBytes(ASCII));
+        } else {
+            response = ByteBuffer.wrap("0\n".getBytes(ASCII));
+        }
+
+        while (response.hasRemaining()) {
+            client.write(response);
+        }
+    }
+
+    private void setting(String command) {
+        String[] parts = command.split(" ");
+
+        try {
+            if (parts[0].equals(Scpi.RUN)) {
+                _running = true;
+            } else if (parts[0].equals(Scpi.STOP)) {
+                _running = false;
+            } else if (parts[0].equals(Scpi.WAV_SOURCE)) {
+                _channel = Math.max(1, Scpi.channelOf(parts[1]));
+            } else if (parts[0].equals(Scpi.WAV_MODE)) {
+                _raw = parts[1].equals("RAW");
+            } else if (parts[0].equals(Scpi.WAV_START)) {
+                _start = Long.parseLong(parts[1]);
+            } else if (parts[0].equals(Scpi.WAV_STOP)) {
+                _stop = Long.parseLong(parts[1]);
+            }
+        } catch (RuntimeException e) {
+            // A real 'scope would just flag a command error.
+        }
+    }
+
+    // A slowly scrolling sine, so it is obvious on screen that frames are arriving, which holds
+    // still when stopped. In RAW mode
+    // it is the requested slice of a long, still sine. Each channel is a quarter period behind
+    // the one before.
+    private void nextWaveform() {
+        long first = 1;
+        long last = POINTS;
+
+        if (_raw) {
+            first = Math.max(1, _start);
+            last = Math.min(Math.min(_stop, _memory_depth), first + MAX_CHUNK - 1);
+        } else if (_running) {
+            _phase = (_phase + 7) % PERIOD;
+        }
+
+        int points = (int) Math.max(0, last - first + 1);
+        _waveform.clear();
+        _waveform.put(String.format("#9%09d", points).getBytes(ASCII));
+
+        int shift = _phase + (_channel - 1) * PERIOD / 4;
+
+        for (long i = first - 1; i < last; ++i) {
+            _waveform.put(_period[(int) ((i + shift) % PERIOD)]);
+        }
+
+        _waveform.put((byte) '\n');
+        _waveform.flip();
+    }
+
+    // A dark screen with a bar sweeping across it, as a 24 bit bottom-up BMP. Made on first use,
+    // as few clients ever ask for one.
+    private void nextScreen() {
+        int row_bytes = SCREEN_WIDTH * 3;
+        int size = ScreenFrame.HEADER_SIZE + row_bytes * SCREEN_HEIGHT;
+
+        if (_screen == null) {
+            _screen = ByteBuffer.allocateDirect(11 + size + 1).order(ByteOrder.LITTLE_ENDIAN);
+            _screen.put(String.format("#9%09d", size).getBytes(ASCII));
+            _screen.put((byte) 'B').put((byte) 'M').putInt(size).putInt(0).putInt(ScreenFrame.HEADER_SIZE);
+            _screen.putInt(40).putInt(SCREEN_WIDTH).putInt(SCREEN_HEIGHT).putShort((short) 1).putShort((short) 24);
+            _screen.putInt(0).putInt(row_bytes * SCREEN_HEIGHT).putInt(2835).putInt(2835).putInt(0).putInt(0);
+
+            for (int i = 0; i < row_bytes * SCREEN_HEIGHT; ++i) {
+                _screen.put((byte) 0x20);
+            }
+
+            _screen.put((byte) '\n');
+        }
+
+        paintColumn(_screen_column, (byte) 0x20);
+        _screen_column = (_screen_column + 1) % SCREEN_WIDTH;
+        paintColumn(_screen_column, (byte) 0xf8);
+        _screen.clear();
+    }
+
+    private void paintColumn(int x, byte value) {
+        int pixels = 11 + ScreenFrame.HEADER_SIZE;
+
+        for (int y = 0; y < SCREEN_HEIGHT; ++y) {
+            int i = pixels + (y * SCREEN_WIDTH + x) * 3;
+            _screen.put(i, value);
+            _screen.put(i + 1, value);
+            _screen.put(i + 2, value);
+        }
+    }
+
+    private static int indexOf(ByteBuffer buffer, char c) {
+        for (int i = 0; i < buffer.position(); ++i) {
+            if (buffer.get(i) == c) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+}
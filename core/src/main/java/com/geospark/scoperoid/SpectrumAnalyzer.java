@@ -0,0 +1,300 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The spectrum of a channel's waveforms, windowed, with the power averaged over frames and the
+ * peaks held.
+ *
+ * Each frame is scaled to volts by its preamble, windowed over however many samples it has, and
+ * zero padded up to the next power of two for the {@link Fft}. Bins are kept as power in Vrms
+ * squared, corrected for the window's gain so a sine reads the same whichever window is used,
+ * and only turned into dBV when asked for, which need only be as often as it is drawn. Buffers
+ * are only reallocated when the size of the frames changes. Not thread safe.
+ */
+public class SpectrumAnalyzer {
+    /** Narrow peaks with low leakage; the usual choice. */
+    public static final int HANN = 0;
+    /** Very low sidelobes, for finding small tones next to large ones. */
+    public static final int BLACKMAN_HARRIS = 1;
+    /** Wide, flat peaks, for reading the amplitude of a tone accurately. */
+    public static final int FLAT_TOP = 2;
+    public static final int WINDOW_COUNT = 3;
+
+    public static final int MIN_SIZE = 4;
+    public static final int MAX_SIZE = SampleStore.SEGMENT_SIZE;
+
+    // Where power that rounds to nothing is shown, in dBV.
+    public static final float FLOOR_DECIBELS = -200.0f;
+
+    private static final double[][] WINDOW_COEFFICIENTS = {
+            {0.5, 0.5},
+            {0.35875, 0.48829, 0.14128, 0.01168},
+            {0.21557895, 0.41663158, 0.277263158, 0.083578947, 0.006947368},
+    };
+
+    private int _window_type;
+    private int _averages = 1;
+    private boolean _peak_hold = false;
+
+    private Fft _fft = null;
+    private float[] _samples = new float[0];
+    private float[] _window = new float[0];
+    private float[] _power = new float[0];
+    private float[] _average = new float[0];
+    private float[] _peak = new float[0];
+    private int _points = 0;
+    private double _power_scale;
+    private Preamble _preamble = null;
+    private int _count = 0;
+
+    public SpectrumAnalyzer(int window) {
+        _window_type = window;
+    }
+
+    /**
+     * @return the FFT size for a frame of this many points: the next power of two up, within
+     * {@link #MIN_SIZE} and {@link #MAX_SIZE}.
+     */
+    public static int sizeFor(int points) {
+        int size = Integer.highestOneBit(Math.max(1, points - 1)) << 1;
+        return Math.max(MIN_SIZE, Math.min(MAX_SIZE, size));
+    }
+
+    public int getWindow() {
+        return _window_type;
+    }
+
+    public void setWindow(int window) {
+        if (window != _window_type) {
+            _window_type = window;
+            _points = 0;
+            reset();
+        }
+    }
+
+    /**
+     * @param averages how many frames' power to average over, exponentially once that many have
+     * been seen. 1 shows each frame as it is.
+     */
+    public void setAverages(int averages) {
+        _averages = Math.max(1, averages);
+    }
+
+    public int getAverages() {
+        return _averages;
+    }
+
+    public void setPeakHold(boolean peakHold) {
+        if (peakHold && !_peak_hold) {
+            System.arraycopy(_average, 0, _peak, 0, _peak.length);
+        }
+
+        _peak_hold = peakHold;
+    }
+
+    public boolean isPeakHold() {
+        return _peak_hold;
+    }
+
+    /**
+     * Starts the average and the held peaks afresh.
+     */
+    public void reset() {
+        _count = 0;
+    }
+
+    /**
+     * @return frames added since the last reset.
+     */
+    public int getCount() {
+        return _count;
+    }
+
+    /**
+     * @return the number of bins, from DC to Nyquist, or 0 before the first frame.
+     */
+    public int getBins() {
+        return _fft == null ? 0 : _fft.getSize() / 2 + 1;
+    }
+
+    /**
+     * @return the width of each bin in Hz.
+     */
+    public double getBinWidth() {
+        return _fft == null || _preamble == null ? 0.0 : 1.0 / (_fft.getSize() * _preamble.xIncrement);
+    }
+
+    /**
+     * Adds the spectrum of samples from their position to their limit, which are left alone. Only
+     * the first {@link #MAX_SIZE} are used.
+     */
+    public void add(ByteBuffer samples, Preamble preamble) {
+        int start = samples.position();
+        int points = Math.min(MAX_SIZE, samples.limit() - start);
+
+        if (!prepare(points, preamble)) {
+            return;
+        }
+
+        float offset = SampleConversion.sampleOffset(preamble);
+        float scale = (float) preamble.yIncrement;
+
+        for (int i = 0; i < points; ++i) {
+            _samples[i] = ((samples.get(start + i) & 0xff) - offset) * scale * _window[i];
+        }
+
+        transform();
+    }
+
+    /**
+     * Adds the spectrum of points samples of deep memory from start, which may span segments.
+     */
+    public void add(SampleStore store, long start, int points, Preamble preamble) {
+        start = Math.max(0, start);
+        points = (int) Math.min(Math.min(points, MAX_SIZE), store.size() - start);
+
+        if (!prepare(points, preamble)) {
+            return;
+        }
+
+        float offset = SampleConversion.sampleOffset(preamble);
+        float scale = (float) preamble.yIncrement;
+        int i = 0;
+
+        while (i < points) {
+            long index = start + i;
+            int segment = (int) (index / SampleStore.SEGMENT_SIZE);
+            ByteBuffer samples = store.segment(segment);
+            int from = (int) (index - (long) segment * SampleStore.SEGMENT_SIZE);
+            int count = Math.min(points - i, samples.limit() - from);
+
+            for (int j = 0; j < count; ++j, ++i) {
+                _samples[i] = ((samples.get(from + j) & 0xff) - offset) * scale * _window[i];
+            }
+        }
+
+        transform();
+    }
+
+    /**
+     * Writes the averaged spectrum in dBV, one value per bin, to decibels.
+     *
+     * @return the number of bins written.
+     */
+    public int averageDecibels(float[] decibels) {
+        return toDecibels(_average, decibels);
+    }
+
+    /**
+     * Writes the highest power each bin has reached since the last reset, or since peak hold was
+     * turned on, in dBV.
+     *
+     * @return the number of bins written.
+     */
+    public int peakDecibels(float[] decibels) {
+        return toDecibels(_peak_hold ? _peak : _average, decibels);
+    }
+
+    // Sizes the buffers and the window for frames of this many points, and says whether there
+    // is anything to do.
+    private boolean prepare(int points, Preamble preamble) {
+        if (points < 2 || preamble == null) {
+            return false;
+        }
+
+        int size = sizeFor(points);
+
+        if (_fft == null || _fft.getSize() != size) {
+            _fft = new Fft(size);
+            _samples = new float[size];
+            _power = new float[size / 2 + 1];
+            _average = new float[size / 2 + 1];
+            _peak = new float[size / 2 + 1];
+            _window = new float[size];
+            _points = 0;
+        }
+
+        if (points != _points) {
+            fillWindow(_window, points, _window_type);
+            _points = points;
+            _count = 0;
+
+            double sum = 0.0;
+
+            for (int i = 0; i < points; ++i) {
+                sum += _window[i];
+            }
+
+            // |X| of a sine of amplitude A is A times half the window's sum, and it is Vrms
+            // squared, A squared over 2, that is wanted.
+            _power_scale = 2.0 / (sum * sum);
+        }
+
+        if (!preamble.equals(_preamble)) {
+            _preamble = preamble;
+            _count = 0;
+        }
+
+        // Zero padding.
+        for (int i = points; i < _samples.length; ++i) {
+            _samples[i] = 0.0f;
+        }
+
+        return true;
+    }
+
+    private void transform() {
+        _fft.powerSpectrum(_samples, _power);
+
+        int bins = _power.length;
+        float scale = (float) _power_scale;
+        ++_count;
+        float weight = 1.0f / Math.min(_count, _averages);
+
+        for (int k = 0; k < bins; ++k) {
+            // DC and Nyquist have no mirror image to share their power with.
+            float power = _power[k] * (k == 0 || k == bins - 1 ? 0.5f * scale : scale);
+            float average = _count == 1 ? power : _average[k] + (power - _average[k]) * weight;
+            _average[k] = average;
+
+            if (_count == 1 || power > _peak[k]) {
+                _peak[k] = power;
+            }
+        }
+    }
+
+    private int toDecibels(float[] power, float[] decibels) {
+        int bins = _count > 0 ? Math.min(power.length, decibels.length) : 0;
+
+        for (int k = 0; k < bins; ++k) {
+            float p = power[k];
+            decibels[k] = p > 0.0f ? Math.max(FLOOR_DECIBELS, (float) (10.0 * Math.log10(p))) : FLOOR_DECIBELS;
+        }
+
+        return bins;
+    }
+
+    /**
+     * Fills the first points of window with a symmetric window of the given type.
+     */
+    static void fillWindow(float[] window, int points, int type) {
+        double[] coefficients = WINDOW_COEFFICIENTS[type];
+
+        for (int i = 0; i < points; ++i) {
+            double x = 2.0 * Math.PI * i / (points - 1);
+            double value = 0.0;
+
+            for (int c = 0; c < coefficients.length; ++c) {
+                value += ((c & 1) == 0 ? 1 : -1) * coefficients[c] * Math.cos(c * x);
+            }
+
+            window[i] = (float) value;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded lock-free queue for exactly one producer thread and one consumer thread. Neither side
+ * allocates or blocks, which is what lets frames move between the acquisition and GL threads
+ * without any garbage.
+ */
+public class SpscQueue<T> {
+    private final AtomicReferenceArray<T> _slots;
+    private final int _mask;
+
+    // Next slot the consumer reads, and next slot the producer writes.
+    private final AtomicLong _head = new AtomicLong(0);
+    private final AtomicLong _tail = new AtomicLong(0);
+
+    /**
+     * @param capacity rounded up to a power of two.
+     */
+    public SpscQueue(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        _slots = new AtomicReferenceArray<>(size);
+        _mask = size - 1;
+    }
+
+    public int capacity() {
+        return _slots.length();
+    }
+
+    /**
+     * Producer side.
+     *
+     * @return false if the queue is full.
+     */
+    public boolean offer(T item) {
+        long tail = _tail.get();
+
+        if (tail - _head.get() == _slots.length()) {
+            return false;
+        }
+
+        _slots.lazySet((int) tail & _mask, item);
+        _tail.lazySet(tail + 1);
+        return true;
+    }
+
+    /**
+     * Consumer side.
+     *
+     * @return the oldest item, or null if the queue is empty.
+     */
+    public T poll() {
+        long head = _head.get();
+
+        if (head == _tail.get()) {
+            return null;
+        }
+
+        int index = (int) head & _mask;
+        T item = _slots.get(index);
+        _slots.lazySet(index, null);
+        _head.lazySet(head + 1);
+        return item;
+    }
+
+    public boolean isEmpty() {
+        return _head.get() == _tail.get();
+    }
+}
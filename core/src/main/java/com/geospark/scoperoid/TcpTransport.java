@@ -0,0 +1,243 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Raw SCPI over a TCP socket, as served on port 5555 by the LAN-equipped Rigols.
+ *
+ * There is no USBTMC-style EOM on a socket, so a {@link BlockParser} works out where each
+ * response ends. Responses are handed over raw, header and all, and block payloads are read from
+ * the channel straight into the caller's buffer, which should be a direct buffer to avoid NIO's
+ * hidden copy. Every query's response must be read, in order.
+ */
+public class TcpTransport implements Transport {
+    public static final int DEFAULT_PORT = 5555;
+
+    private static final int CONNECT_TIMEOUT = 3000;
+    private static final int READ_TIMEOUT = 1000;
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final String _host;
+    private final int _port;
+    private SocketChannel _channel = null;
+    private Selector _selector = null;
+    private final ByteBuffer _tx = ByteBuffer.allocateDirect(1024);
+    private final ByteBuffer _rx = ByteBuffer.allocateDirect(8192);
+
+    // Tracks where the response being read ends.
+    private final BlockParser _parser = new BlockParser();
+    private boolean _abandoned = false;
+
+    private String _last_command = null;
+
+    public TcpTransport(String host, int port) {
+        _host = host;
+        _port = port;
+        _rx.flip();
+    }
+
+    // Connects on first use, so the caller's thread rather than the UI thread takes the hit.
+    private boolean ensureConnected() {
+        if (_channel != null) {
+            return true;
+        }
+
+        try {
+            _channel = SocketChannel.open();
+            _channel.socket().setTcpNoDelay(true);
+            _channel.socket().connect(new InetSocketAddress(_host, _port), CONNECT_TIMEOUT);
+
+            // Socket timeouts do not apply to channel reads, so wait on a selector instead.
+            _channel.configureBlocking(false);
+            _selector = Selector.open();
+            _channel.register(_selector, SelectionKey.OP_READ);
+            return true;
+        } catch (IOException e) {
+            close();
+            return false;
+        }
+    }
+
+    @Override
+    public boolean write(String command) {
+        if (!ensureConnected()) {
+            return false;
+        }
+
+        // Poll commands are the same few strings over and over, so the last one stays encoded.
+        if (!command.equals(_last_command)) {
+            byte[] bytes = command.getBytes(ASCII);
+
+            if (bytes.length + 1 > _tx.capacity()) {
+                return false;
+            }
+
+            _last_command = command;
+            _tx.clear();
+            _tx.put(bytes);
+            _tx.put((byte) '\n');
+            _tx.flip();
+        }
+
+        _tx.rewind();
+
+        // A new command abandons whatever is left of a response read part way. Anything already
+        // buffered past the end of the last response is the start of the next one, sent ahead of
+        // time, so it stays.
+        if (_parser.isStarted() && !_parser.isComplete()) {
+            _abandoned = true;
+        }
+
+        try {
+            while (_tx.hasRemaining()) {
+                _channel.write(_tx);
+            }
+
+            return true;
+        } catch (IOException e) {
+            close();
+            return false;
+        }
+    }
+
+    @Override
+    public boolean read(ByteBuffer bytes) {
+        if (_channel == null) {
+            return false;
+        }
+
+        try {
+            if (_abandoned) {
+                _abandoned = false;
+
+                if (!skipResponse()) {
+                    return false;
+                }
+            }
+
+            if (_parser.isComplete()) {
+                _parser.reset();
+            }
+
+            long payload = _parser.payloadRemaining();
+
+            if (payload > 0 && !_rx.hasRemaining() && bytes.hasRemaining()) {
+                // Nothing is buffered, so the payload can go straight from the socket to the caller.
+                int limit = bytes.limit();
+                bytes.limit(bytes.position() + (int) Math.min(bytes.remaining(), payload));
+                int n = receive(bytes);
+                bytes.limit(limit);
+
+                if (n < 0) {
+                    close();
+                    return false;
+                }
+
+                _parser.skipPayload(n);
+            } else {
+                if (!_rx.hasRemaining() && !fill(1)) {
+                    return false;
+                }
+
+                passThrough(bytes);
+            }
+
+            return !_parser.isComplete();
+        } catch (IOException e) {
+            close();
+            return false;
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            if (_selector != null) {
+                _selector.close();
+            }
+
+            if (_channel != null) {
+                _channel.close();
+            }
+        } catch (IOException e) {
+            // Nothing more we can do.
+        }
+
+        _selector = null;
+        _channel = null;
+    }
+
+    @Override
+    public String toString() {
+        return "TCP " + _host + ":" + _port;
+    }
+
+    // Hands over what is buffered, up to the end of the response. Whatever does not fit in bytes
+    // is dropped.
+    private void passThrough(ByteBuffer bytes) {
+        int start = _rx.position();
+        _parser.feed(_rx, null);
+        int end = _rx.position();
+        int limit = _rx.limit();
+
+        _rx.position(start);
+        _rx.limit(start + Math.min(end - start, bytes.remaining()));
+        bytes.put(_rx);
+        _rx.limit(limit);
+        _rx.position(end);
+    }
+
+    private boolean skipResponse() throws IOException {
+        while (!_parser.isComplete()) {
+            if (!_rx.hasRemaining() && !fill(1)) {
+                return false;
+            }
+
+            _parser.feed(_rx, null);
+        }
+
+        return true;
+    }
+
+    private int receive(ByteBuffer dst) throws IOException {
+        int n = _channel.read(dst);
+
+        if (n == 0) {
+            if (_selector.select(READ_TIMEOUT) == 0) {
+                throw new IOException("Timed out reading from " + this);
+            }
+
+            _selector.selectedKeys().clear();
+            n = _channel.read(dst);
+        }
+
+        return n;
+    }
+
+    // Makes sure at least count bytes are buffered.
+    private boolean fill(int count) throws IOException {
+        while (_rx.remaining() < count) {
+            _rx.compact();
+            int n = receive(_rx);
+            _rx.flip();
+
+            if (n < 0) {
+                close();
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
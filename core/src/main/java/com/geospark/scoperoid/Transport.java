@@ -0,0 +1,35 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+
+/**
+ * A link to the 'scope that can send a SCPI command and read back the raw response bytes. The
+ * bytes handed back are the same whatever the link, so callers never see USBTMC headers or
+ * socket framing.
+ */
+public interface Transport {
+    boolean write(String command);
+
+    /**
+     * Reads the next part of the current response into bytes.
+     *
+     * @return true if there is more of the response still to come.
+     */
+    boolean read(ByteBuffer bytes);
+
+    void close();
+
+    /**
+     * A longer conversation with the 'scope, which has the transport to itself until it returns.
+     * Scope runs these on its acquisition thread, with polling held off.
+     */
+    interface Job {
+        void run(Transport transport, Executor callbacks);
+    }
+}
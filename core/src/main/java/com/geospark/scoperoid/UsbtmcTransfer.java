@@ -0,0 +1,184 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * USBTMC bulk transfer engine.
+ *
+ * Each DEV_DEP_MSG_IN request asks for as much of the response as will fit (capped by the
+ * transfer size), and the reply is then drained with multi-packet bulk-IN reads. The 12-byte
+ * header only appears at the start of the first packet of each reply, and its TransferSize and
+ * EOM fields tell us how much payload follows and whether another request is needed.
+ */
+public class UsbtmcTransfer implements Transport {
+    public interface BulkPipe {
+        int write(byte[] buffer, int length, int timeout);
+        int read(byte[] buffer, int offset, int length, int timeout);
+    }
+
+    public static final int HEADER_SIZE = 12;
+    public static final int DEFAULT_TRANSFER_SIZE = 1024 * 1024;
+
+    // Android's bulkTransfer refuses anything bigger than this on older releases.
+    public static final int MAX_READ_SIZE = 16384;
+
+    private static final byte MSGID_DEV_DEP_MSG_OUT = 1;
+    private static final byte MSGID_DEV_DEP_MSG_IN = 2;
+    private static final int USB_TIMEOUT = 1000;
+    private static final int MAX_COMMAND_LENGTH = 1024;
+
+    private final BulkPipe _pipe;
+    private final int _max_packet_size;
+    private final ByteBuffer _out_buffer;
+    private final byte[] _in_buffer;
+    private int _transfer_size = DEFAULT_TRANSFER_SIZE;
+    private int _read_size;
+    private byte _btag = 0;
+
+    // Poll commands are the same few strings over and over, so keep the last encoding around.
+    private String _last_command = null;
+    private byte[] _last_command_bytes = null;
+
+    public UsbtmcTransfer(BulkPipe pipe, int max_packet_size) {
+        _pipe = pipe;
+        _max_packet_size = max_packet_size;
+        _out_buffer = ByteBuffer.allocate(HEADER_SIZE + MAX_COMMAND_LENGTH + 3);
+        _out_buffer.order(ByteOrder.LITTLE_ENDIAN);
+        _in_buffer = new byte[MAX_READ_SIZE];
+        _read_size = MAX_READ_SIZE - (MAX_READ_SIZE % max_packet_size);
+    }
+
+    /**
+     * Sets the largest payload asked for in a single DEV_DEP_MSG_IN request. Setting it to
+     * {@code max_packet_size - 12} gives the old one-packet-per-request behaviour.
+     */
+    public void setTransferSize(int size) {
+        _transfer_size = Math.max(1, size);
+    }
+
+    public int getTransferSize() {
+        return _transfer_size;
+    }
+
+    /**
+     * Sets the largest single bulk-IN read. It is rounded down to a whole number of packets so the
+     * device never has to split a packet across reads.
+     */
+    public void setReadSize(int size) {
+        size = Math.min(size, MAX_READ_SIZE);
+        _read_size = Math.max(_max_packet_size, size - (size % _max_packet_size));
+    }
+
+    public int getMaxPacketSize() {
+        return _max_packet_size;
+    }
+
+    @Override
+    public boolean write(String command) {
+        if (!command.equals(_last_command)) {
+            _last_command = command;
+            _last_command_bytes = command.getBytes();
+        }
+
+        byte[] bytes = _last_command_bytes;
+
+        if (bytes.length > MAX_COMMAND_LENGTH) {
+            return false;
+        }
+
+        putHeader(MSGID_DEV_DEP_MSG_OUT, bytes.length);
+        _out_buffer.put(bytes);
+
+        // Pad to a four byte boundary.
+        while ((_out_buffer.position() & 3) != 0) {
+            _out_buffer.put((byte) 0x00);
+        }
+
+        return _pipe.write(_out_buffer.array(), _out_buffer.position(), USB_TIMEOUT) >= 0;
+    }
+
+    /**
+     * Reads one USBTMC transfer into bytes. Payload that does not fit is drained and discarded so
+     * the device is never left with a half-read reply.
+     *
+     * @return true if the device has more of the message to send (EOM was not set).
+     */
+    @Override
+    public boolean read(ByteBuffer bytes) {
+        int size = bytes.hasRemaining() ? Math.min(bytes.remaining(), _transfer_size) : _transfer_size;
+        byte btag = putHeader(MSGID_DEV_DEP_MSG_IN, size);
+
+        if (_pipe.write(_out_buffer.array(), HEADER_SIZE, USB_TIMEOUT) < 0) {
+            return false;
+        }
+
+        int ret_size = _pipe.read(_in_buffer, 0, readLength(HEADER_SIZE + size), USB_TIMEOUT);
+
+        if (ret_size < HEADER_SIZE) {
+            return false;
+        }
+
+        if (_in_buffer[0] != MSGID_DEV_DEP_MSG_IN || _in_buffer[1] != btag || _in_buffer[2] != (byte) ~btag) {
+            return false;
+        }
+
+        int xfer_size = (_in_buffer[4] & 0xff)
+                | ((_in_buffer[5] & 0xff) << 8)
+                | ((_in_buffer[6] & 0xff) << 16)
+                | ((_in_buffer[7] & 0xff) << 24);
+        boolean eom = (_in_buffer[8] & 0x01) == 1;
+
+        int remaining = xfer_size - copy(bytes, HEADER_SIZE, Math.min(xfer_size, ret_size - HEADER_SIZE));
+
+        while (remaining > 0) {
+            ret_size = _pipe.read(_in_buffer, 0, readLength(remaining), USB_TIMEOUT);
+
+            if (ret_size <= 0) {
+                return false;
+            }
+
+            remaining -= copy(bytes, 0, Math.min(remaining, ret_size));
+        }
+
+        return !eom;
+    }
+
+    // The pipe belongs to whoever created us, so there is nothing to release here.
+    @Override
+    public void close() {
+    }
+
+    private byte putHeader(byte msgid, int size) {
+        _btag = (byte) ((_btag & 0xff) % 255 + 1);
+        _out_buffer.clear();
+        _out_buffer.put(msgid);
+        _out_buffer.put(_btag);
+        _out_buffer.put((byte) ~_btag);
+        _out_buffer.put((byte) 0x00);
+
+        _out_buffer.putInt(size);
+        _out_buffer.put((byte) 0x01); // EoM
+        _out_buffer.put((byte) 0x00);
+        _out_buffer.put((byte) 0x00);
+        _out_buffer.put((byte) 0x00);
+
+        return _btag;
+    }
+
+    // Rounds up to whole packets, because asking for a partial packet risks a babble error.
+    private int readLength(int wanted) {
+        int packets = (wanted + _max_packet_size - 1) / _max_packet_size;
+        return Math.min(_read_size, packets * _max_packet_size);
+    }
+
+    private int copy(ByteBuffer bytes, int offset, int length) {
+        bytes.put(_in_buffer, offset, Math.min(length, bytes.remaining()));
+        return length;
+    }
+}
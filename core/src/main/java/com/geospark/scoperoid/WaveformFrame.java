@@ -0,0 +1,113 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The samples of one :WAV:DATA? response, streamed by a {@link BlockParser} into a preallocated
+ * direct buffer. Once complete, the buffer's position and limit bracket the samples.
+ *
+ * Frames belong to a {@link FramePool} and must be recycled by whoever consumes them.
+ */
+public class WaveformFrame implements BlockParser.Sink {
+    private final FramePool _pool;
+    private final ByteBuffer _buffer;
+    private long _timestamp;
+    private int _channel = 1;
+    private Preamble _preamble = null;
+    private long _overflow = 0;
+    private long _offered = 0;
+
+    WaveformFrame(FramePool pool, int capacity) {
+        _pool = pool;
+        _buffer = ByteBuffer.allocateDirect(capacity);
+    }
+
+    public ByteBuffer samples() {
+        return _buffer;
+    }
+
+    public int size() {
+        return _buffer.remaining();
+    }
+
+    public long getTimestamp() {
+        return _timestamp;
+    }
+
+    /**
+     * @return the channel the samples came from, numbered from 1.
+     */
+    public int getChannel() {
+        return _channel;
+    }
+
+    public void setChannel(int channel) {
+        _channel = channel;
+    }
+
+    /**
+     * @return the preamble the channel had when the samples were read, or null if it was not
+     * known yet.
+     */
+    public Preamble getPreamble() {
+        return _preamble;
+    }
+
+    public void setPreamble(Preamble preamble) {
+        _preamble = preamble;
+    }
+
+    /**
+     * @return System.nanoTime() when the frame was queued for its consumer, which may not be the
+     * time it was read, as with recordings.
+     */
+    public long getOfferTime() {
+        return _offered;
+    }
+
+    public void setOfferTime(long nanos) {
+        _offered = nanos;
+    }
+
+    /**
+     * Empties the frame ready for a new response.
+     */
+    public void begin() {
+        _buffer.clear();
+        _overflow = 0;
+    }
+
+    @Override
+    public void payload(ByteBuffer bytes) {
+        int count = Math.min(bytes.remaining(), _buffer.remaining());
+        int limit = bytes.limit();
+
+        bytes.limit(bytes.position() + count);
+        _buffer.put(bytes);
+        bytes.limit(limit);
+
+        _overflow += bytes.remaining();
+        bytes.position(limit);
+    }
+
+    /**
+     * @return false if there were more samples than the frame could hold.
+     */
+    public boolean complete(long timestamp) {
+        _timestamp = timestamp;
+        _buffer.flip();
+        return _overflow == 0;
+    }
+
+    /**
+     * Hands the frame back to its pool. Only the consuming thread may call this.
+     */
+    public void recycle() {
+        _pool.release(this);
+    }
+}
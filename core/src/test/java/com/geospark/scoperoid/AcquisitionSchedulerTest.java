@@ -0,0 +1,102 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+public class AcquisitionSchedulerTest extends TestCase {
+    private static final long MS = 1000000L;
+
+    // 1200 points at 10us each: 12ms an acquisition.
+    private static final Preamble SLOW = new Preamble(0, 0, 1200, 1, 1.0e-5, 0.0, 0.0, 0.04, 0.0, 127.0);
+
+    private static ByteBuffer reply(String text) {
+        return ByteBuffer.wrap(text.getBytes(Charset.forName("US-ASCII")));
+    }
+
+    public void testTriggerStatus() {
+        assertEquals(Scpi.TRIG_TRIGGERED, Scpi.triggerStatus(reply("TD\n")));
+        assertEquals(Scpi.TRIG_WAIT, Scpi.triggerStatus(reply("WAIT\n")));
+        assertEquals(Scpi.TRIG_RUN, Scpi.triggerStatus(reply("RUN\n")));
+        assertEquals(Scpi.TRIG_AUTO, Scpi.triggerStatus(reply("AUTO\n")));
+        assertEquals(Scpi.TRIG_STOP, Scpi.triggerStatus(reply("STOP\n")));
+        assertEquals(Scpi.TRIG_UNKNOWN, Scpi.triggerStatus(reply("")));
+    }
+
+    public void testFetchesOncePerAcquisition() {
+        AcquisitionScheduler scheduler = new AcquisitionScheduler();
+        scheduler.setPreamble(SLOW);
+        long now = 1000 * MS;
+
+        assertTrue(scheduler.isStatusDue(now));
+        scheduler.setStatus(Scpi.TRIG_TRIGGERED, now);
+        assertEquals(0, scheduler.delay(now));
+        scheduler.fetching(now);
+
+        assertEquals(12 * MS, scheduler.delay(now));
+        assertFalse(scheduler.isReady(now + 11 * MS));
+        assertTrue(scheduler.isReady(now + 12 * MS));
+
+        // 12ms is under the shortest status interval.
+        assertTrue(scheduler.isStatusDue(now + AcquisitionScheduler.MIN_STATUS_INTERVAL));
+    }
+
+    public void testWaitsForTrigger() {
+        AcquisitionScheduler scheduler = new AcquisitionScheduler();
+        scheduler.setPreamble(SLOW);
+        long now = 1000 * MS;
+
+        scheduler.setStatus(Scpi.TRIG_WAIT, now);
+        assertEquals(AcquisitionScheduler.MIN_STATUS_INTERVAL, scheduler.delay(now));
+
+        // A setting sent has the status asked again straight away.
+        scheduler.invalidate();
+        assertTrue(scheduler.isStatusDue(now));
+        scheduler.setStatus(Scpi.TRIG_AUTO, now);
+        assertEquals(0, scheduler.delay(now));
+    }
+
+    public void testOneFrameOnceStopped() {
+        AcquisitionScheduler scheduler = new AcquisitionScheduler();
+        long now = 1000 * MS;
+
+        scheduler.setStatus(Scpi.TRIG_TRIGGERED, now);
+        scheduler.fetching(now);
+        scheduler.setStatus(Scpi.TRIG_STOP, now);
+        assertEquals(0, scheduler.delay(now));
+        scheduler.fetching(now);
+
+        assertEquals(AcquisitionScheduler.STOPPED_STATUS_INTERVAL, scheduler.delay(now));
+        assertFalse(scheduler.isStatusDue(now + AcquisitionScheduler.STOPPED_STATUS_INTERVAL - 1));
+
+        // Still stopped is nothing new.
+        scheduler.setStatus(Scpi.TRIG_STOP, now + AcquisitionScheduler.STOPPED_STATUS_INTERVAL);
+        assertTrue(scheduler.delay(now + AcquisitionScheduler.STOPPED_STATUS_INTERVAL) > 0);
+    }
+
+    public void testDuplicates() {
+        AcquisitionScheduler scheduler = new AcquisitionScheduler();
+        ByteBuffer samples = ByteBuffer.allocate(1203);
+
+        for (int i = 0; i < samples.capacity(); ++i) {
+            samples.put(i, (byte) (i * 7));
+        }
+
+        assertFalse(scheduler.isDuplicate(1, samples, SLOW));
+        assertTrue(scheduler.isDuplicate(1, samples, SLOW));
+        assertFalse(scheduler.isDuplicate(2, samples, SLOW));
+        assertFalse(scheduler.isDuplicate(1, samples, Preamble.DEFAULT));
+
+        // A change in the last, odd, sample counts.
+        samples.put(1202, (byte) 0);
+        assertFalse(scheduler.isDuplicate(1, samples, Preamble.DEFAULT));
+        assertEquals(1, scheduler.getDuplicates());
+        assertEquals(0, samples.position());
+    }
+}
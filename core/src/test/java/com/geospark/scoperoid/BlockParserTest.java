@@ -0,0 +1,278 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Feeds the parser streams of responses cut up at random, and random garbage. BlockParserBenchmark
+ * times it.
+ */
+public class BlockParserTest extends TestCase {
+    static class Collector implements BlockParser.Sink {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        @Override
+        public void payload(ByteBuffer payload) {
+            while (payload.hasRemaining()) {
+                bytes.write(payload.get());
+            }
+        }
+    }
+
+    private static byte[] randomPayload(Random random, int length, boolean newlines) {
+        byte[] payload = new byte[length];
+        random.nextBytes(payload);
+
+        for (int i = 0; !newlines && i < length; ++i) {
+            if (payload[i] == '\n') {
+                payload[i] = ' ';
+            }
+        }
+
+        return payload;
+    }
+
+    // A definite block with any digit count, an indefinite block, or a plain reply.
+    private static byte[] randomResponse(Random random, byte[] payload, int kind) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        if (kind == 0) {
+            String length = Integer.toString(payload.length);
+            int digits = length.length() + random.nextInt(10 - length.length());
+            String header = String.format("#%d%0" + digits + "d", digits, payload.length);
+            out.write(header.getBytes(), 0, header.length());
+        } else if (kind == 1) {
+            out.write('#');
+            out.write('0');
+        }
+
+        out.write(payload, 0, payload.length);
+        out.write('\n');
+        return out.toByteArray();
+    }
+
+    public void testRandomlySplitStreams() {
+        Random random = new Random(1);
+
+        for (int round = 0; round < 500; ++round) {
+            ArrayList<byte[]> expected = new ArrayList<>();
+            ByteArrayOutputStream stream = new ByteArrayOutputStream();
+
+            for (int i = 0; i < 1 + random.nextInt(5); ++i) {
+                int kind = random.nextInt(3);
+                byte[] payload = randomPayload(random, random.nextInt(3000), kind == 0);
+
+                // A plain reply that happened to start with a '#' would be read as a block.
+                if (kind == 2 && payload.length > 0 && payload[0] == '#') {
+                    payload[0] = '+';
+                }
+
+                expected.add(payload);
+                byte[] response = randomResponse(random, payload, kind);
+                stream.write(response, 0, response.length);
+            }
+
+            byte[] bytes = stream.toByteArray();
+            BlockParser parser = new BlockParser();
+            Collector collector = new Collector();
+            ArrayList<byte[]> actual = new ArrayList<>();
+            int offset = 0;
+
+            while (offset < bytes.length) {
+                int length = Math.min(bytes.length - offset, 1 + random.nextInt(random.nextBoolean() ? 8 : 2000));
+                ByteBuffer packet = ByteBuffer.wrap(bytes, offset, length);
+
+                while (packet.hasRemaining()) {
+                    if (parser.feed(packet, collector)) {
+                        assertFalse(parser.isMalformed());
+                        actual.add(collector.bytes.toByteArray());
+                        collector.bytes.reset();
+                        parser.reset();
+                    }
+                }
+
+                offset += length;
+            }
+
+            // The last definite block may still be waiting to see whether a newline follows.
+            if (parser.isStarted() && parser.finish()) {
+                actual.add(collector.bytes.toByteArray());
+            }
+
+            assertEquals(expected.size(), actual.size());
+
+            for (int i = 0; i < expected.size(); ++i) {
+                assertTrue(Arrays.equals(expected.get(i), actual.get(i)));
+            }
+        }
+    }
+
+    public void testGarbageNeverHangsOrThrows() {
+        Random random = new Random(2);
+        BlockParser parser = new BlockParser();
+        Collector collector = new Collector();
+        byte[] alphabet = {'#', '0', '1', '5', '9', 'x', '\n', ' ', (byte) 0xff};
+
+        for (int round = 0; round < 2000; ++round) {
+            byte[] bytes = new byte[random.nextInt(64)];
+
+            for (int i = 0; i < bytes.length; ++i) {
+                bytes[i] = random.nextBoolean() ? alphabet[random.nextInt(alphabet.length)] : (byte) random.nextInt();
+            }
+
+            ByteBuffer packet = ByteBuffer.wrap(bytes);
+
+            while (packet.hasRemaining()) {
+                int before = packet.position();
+
+                if (parser.feed(packet, collector)) {
+                    parser.reset();
+                } else {
+                    // Short of completing, a feed always uses up everything it is given.
+                    assertFalse(packet.hasRemaining());
+                }
+
+                assertTrue(packet.position() > before || !packet.hasRemaining());
+            }
+        }
+    }
+
+    public void testMalformedHeaderSkipsToNewline() {
+        BlockParser parser = new BlockParser();
+        Collector collector = new Collector();
+        ByteBuffer bytes = ByteBuffer.wrap("#4x2junk\n1.5\n".getBytes());
+
+        assertTrue(parser.feed(bytes, collector));
+        assertTrue(parser.isMalformed());
+        assertEquals(0, collector.bytes.size());
+
+        parser.reset();
+        assertTrue(parser.feed(bytes, collector));
+        assertFalse(parser.isMalformed());
+        assertEquals("1.5", collector.bytes.toString());
+    }
+
+    public void testTruncatedBlockIsIncomplete() {
+        BlockParser parser = new BlockParser();
+        parser.feed(ByteBuffer.wrap("#9000001200abc".getBytes()), null);
+
+        assertEquals(1200, parser.getLength());
+        assertEquals(1197, parser.payloadRemaining());
+        assertFalse(parser.finish());
+    }
+
+    public void testNothingIsIncomplete() {
+        BlockParser parser = new BlockParser();
+        parser.feed(ByteBuffer.allocate(0), null);
+        assertFalse(parser.finish());
+
+        // An empty reply still has its newline.
+        parser.reset();
+        assertTrue(parser.feed(ByteBuffer.wrap("\n".getBytes()), null));
+        assertTrue(parser.finish());
+    }
+
+    public void testTimedOutReadIsIncomplete() {
+        Transport silent = new Transport() {
+            @Override
+            public boolean write(String command) {
+                return true;
+            }
+
+            @Override
+            public boolean read(ByteBuffer dst) {
+                return false;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+
+        BlockParser parser = new BlockParser();
+        Collector collector = new Collector();
+        assertFalse(parser.receive(silent, ByteBuffer.allocate(64), collector));
+        assertFalse(parser.isComplete());
+        assertEquals(0, collector.bytes.size());
+    }
+
+    // Hands back a message a few bytes at a time, then marks its end as USBTMC EOM does.
+    static class Message implements Transport {
+        private final ByteBuffer _bytes;
+        private final int _read_size;
+
+        Message(byte[] bytes, int readSize) {
+            _bytes = ByteBuffer.wrap(bytes);
+            _read_size = readSize;
+        }
+
+        @Override
+        public boolean write(String command) {
+            return true;
+        }
+
+        @Override
+        public boolean read(ByteBuffer dst) {
+            int count = Math.min(Math.min(_read_size, dst.remaining()), _bytes.remaining());
+            int limit = _bytes.limit();
+            _bytes.limit(_bytes.position() + count);
+            dst.put(_bytes);
+            _bytes.limit(limit);
+            return _bytes.hasRemaining();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    public void testIndefiniteBlockRunsToEndOfMessage() {
+        byte[] payload = "ab\ncd\n\nef\n".getBytes();
+        byte[] response = new byte[payload.length + 3];
+        response[0] = '#';
+        response[1] = '0';
+        System.arraycopy(payload, 0, response, 2, payload.length);
+        response[response.length - 1] = '\n';
+
+        BlockParser parser = new BlockParser();
+
+        // Every read size, so the newlines fall at the ends of reads as well as in the middle.
+        for (int size = 1; size <= response.length; ++size) {
+            Collector collector = new Collector();
+            assertTrue(parser.receive(new Message(response, size), ByteBuffer.allocate(64), collector));
+            assertFalse(parser.isMalformed());
+            assertTrue(Arrays.equals(payload, collector.bytes.toByteArray()));
+        }
+
+        // Without its terminator, all of it is payload.
+        Collector collector = new Collector();
+        byte[] bare = Arrays.copyOf(response, response.length - 1);
+        assertTrue(parser.receive(new Message(bare, 5), ByteBuffer.allocate(64), collector));
+        assertTrue(Arrays.equals(Arrays.copyOf(payload, payload.length - 1), collector.bytes.toByteArray()));
+
+        // Fed on its own, as over a socket, the first newline is the end.
+        parser.reset();
+        collector = new Collector();
+        assertTrue(parser.feed(ByteBuffer.wrap(response), collector));
+        assertEquals("ab", collector.bytes.toString());
+    }
+
+    public void testBytesAfterTheEndAreMalformed() {
+        BlockParser parser = new BlockParser();
+        Collector collector = new Collector();
+        byte[] response = "#13abc\nxyz".getBytes();
+        assertFalse(parser.receive(new Message(response, 64), ByteBuffer.allocate(64), collector));
+        assertTrue(parser.isMalformed());
+        assertEquals("abc", collector.bytes.toString());
+    }
+}
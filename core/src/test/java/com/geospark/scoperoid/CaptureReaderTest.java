@@ -0,0 +1,196 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * Writes segments by hand, sealed, unsealed and damaged, and reads them back on their own and as
+ * a whole {@link Capture}. FrameRecorderTest covers segments written by the recorder itself.
+ */
+public class CaptureReaderTest extends TestCase {
+    private static final int POINTS = 100;
+    private static final Preamble PREAMBLE = new Preamble(0, 0, POINTS, 1, 1.0e-8, -6.0e-6, 0.0, 0.04, 0.0, 127.0);
+
+    private File _directory;
+
+    @Override
+    protected void setUp() {
+        _directory = new File(System.getProperty("java.io.tmpdir"), "capture-reader-test");
+        delete(_directory);
+        _directory.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() {
+        delete(_directory);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+
+        file.delete();
+    }
+
+    private static void record(ByteBuffer segment, ByteBuffer index, ByteBuffer body, byte type, long timestamp) {
+        body.flip();
+        CRC32 crc = new CRC32();
+        crc.update(body.array(), 0, body.limit());
+
+        index.putLong(timestamp).putInt(segment.position()).put(type).put((byte) 1).putShort((short) 0);
+        segment.putInt(body.limit());
+        segment.put(body);
+        segment.putInt((int) crc.getValue());
+    }
+
+    // Frames first to first + count - 1, timestamped 1000 apart, with samples made from the number.
+    private File segment(int number, int first, int count, boolean sealed) throws IOException {
+        ByteBuffer segment = ByteBuffer.allocate(1 << 20);
+        ByteBuffer index = ByteBuffer.allocate((count + 1) * CaptureReader.INDEX_ENTRY_SIZE);
+        ByteBuffer body = ByteBuffer.allocate(CaptureReader.FRAME_HEADER_SIZE + POINTS);
+
+        segment.putInt(CaptureReader.SEGMENT_MAGIC).putInt(CaptureReader.VERSION).putInt(number).putInt(0);
+        segment.putLong(0).putLong(0);
+
+        body.put(CaptureReader.PREAMBLE).put((byte) 1).putShort((short) 0)
+                .putInt(PREAMBLE.format).putInt(PREAMBLE.type).putInt(PREAMBLE.points).putInt(PREAMBLE.count)
+                .putDouble(PREAMBLE.xIncrement).putDouble(PREAMBLE.xOrigin).putDouble(PREAMBLE.xReference)
+                .putDouble(PREAMBLE.yIncrement).putDouble(PREAMBLE.yOrigin).putDouble(PREAMBLE.yReference);
+        record(segment, index, body, CaptureReader.PREAMBLE, 0);
+
+        for (int i = first; i < first + count; ++i) {
+            body.clear();
+            body.put(CaptureReader.FRAME).put((byte) 1).putShort((short) 0).putLong(1000L * i);
+
+            for (int j = 0; j < POINTS; ++j) {
+                body.put((byte) (i + j));
+            }
+
+            record(segment, index, body, CaptureReader.FRAME, 1000L * i);
+        }
+
+        if (sealed) {
+            index.flip();
+            int entries = index.remaining() / CaptureReader.INDEX_ENTRY_SIZE;
+            segment.put(index);
+            segment.putInt(entries).putInt(CaptureReader.INDEX_MAGIC);
+        }
+
+        File file = new File(_directory, String.format(CaptureReader.SEGMENT_NAME, number));
+        FileOutputStream out = new FileOutputStream(file);
+
+        try {
+            out.write(segment.array(), 0, segment.position());
+        } finally {
+            out.close();
+        }
+
+        return file;
+    }
+
+    private static void check(WaveformFrame frame, int number) {
+        ByteBuffer samples = frame.samples();
+        assertEquals(POINTS, samples.remaining());
+        assertEquals(1000L * number, frame.getTimestamp());
+        assertEquals(1, frame.getChannel());
+        assertEquals(PREAMBLE, frame.getPreamble());
+
+        for (int j = 0; j < POINTS; ++j) {
+            assertEquals((byte) (number + j), samples.get(samples.position() + j));
+        }
+    }
+
+    public void testSealedAndUnsealedReadTheSame() throws IOException {
+        WaveformFrame frame = new FramePool(1, POINTS).acquire();
+
+        for (boolean sealed : new boolean[] {true, false}) {
+            CaptureReader reader = new CaptureReader(segment(0, 0, 50, sealed));
+
+            try {
+                assertEquals(sealed, reader.isSealed());
+                assertEquals(50, reader.getFrameCount());
+
+                for (int i = 0; i < 50; ++i) {
+                    reader.read(i, frame);
+                    check(frame, i);
+                }
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
+    public void testDamagedRecordEndsTheSegment() throws IOException {
+        File file = segment(0, 0, 50, false);
+        CaptureReader whole = new CaptureReader(file);
+        int end = whole.recordEnd(19);
+        whole.close();
+
+        // One bit flipped in the 21st frame's samples.
+        RandomAccessFile damaged = new RandomAccessFile(file, "rw");
+
+        try {
+            damaged.seek(end + 4 + CaptureReader.FRAME_HEADER_SIZE + 10);
+            int sample = damaged.read();
+            damaged.seek(end + 4 + CaptureReader.FRAME_HEADER_SIZE + 10);
+            damaged.write(sample ^ 1);
+        } finally {
+            damaged.close();
+        }
+
+        CaptureReader reader = new CaptureReader(file);
+
+        try {
+            assertFalse(reader.isSealed());
+            assertEquals(20, reader.getFrameCount());
+        } finally {
+            reader.close();
+        }
+    }
+
+    public void testCaptureSpansSegments() throws IOException {
+        segment(0, 0, 30, true);
+        segment(1, 30, 30, false);
+        segment(2, 60, 40, true);
+        // Not a segment, so left alone.
+        new File(_directory, "notes.txt").createNewFile();
+
+        WaveformFrame frame = new FramePool(1, POINTS).acquire();
+        Capture capture = new Capture(_directory);
+
+        try {
+            assertEquals(100, capture.getFrameCount());
+            assertEquals(0, capture.getStartTime());
+            assertEquals(99000, capture.getEndTime());
+
+            for (int i = 0; i < 100; ++i) {
+                assertEquals(1000L * i, capture.getTimestamp(i));
+                capture.read(i, frame);
+                check(frame, i);
+            }
+
+            assertEquals(0, capture.frameAt(-5));
+            assertEquals(29, capture.frameAt(29999));
+            assertEquals(30, capture.frameAt(30000));
+            assertEquals(99, capture.frameAt(Long.MAX_VALUE));
+        } finally {
+            capture.close();
+        }
+    }
+}
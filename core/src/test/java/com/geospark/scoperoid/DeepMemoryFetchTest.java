@@ -0,0 +1,126 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+
+/**
+ * Fetches the whole memory of the simulated 'scope, which is a still sine in RAW mode, and checks
+ * it arrives in order and that the 'scope is put back the way polling left it.
+ */
+public class DeepMemoryFetchTest extends TestCase {
+    private static final int DEPTH = 600000;
+    private static final int PERIOD = 300;
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    static class Outcome implements DeepMemoryFetch.Listener {
+        int progress = 0;
+        long last_points = 0;
+        SampleStore finished = null;
+        Preamble preamble = null;
+        boolean cancelled = false;
+        boolean failed = false;
+
+        @Override
+        public void onProgress(long points, long total, float bytesPerSecond) {
+            assertTrue(points > last_points);
+            assertEquals(DEPTH, total);
+            last_points = points;
+            ++progress;
+        }
+
+        @Override
+        public void onFinished(SampleStore store, Preamble preamble) {
+            finished = store;
+            this.preamble = preamble;
+        }
+
+        @Override
+        public void onCancelled() {
+            cancelled = true;
+        }
+
+        @Override
+        public void onFailed() {
+            failed = true;
+        }
+    }
+
+    private SimulatedScopeServer _server;
+    private TcpTransport _transport;
+
+    @Override
+    protected void setUp() throws IOException {
+        _server = new SimulatedScopeServer(0);
+        _server.setMemoryDepth(DEPTH);
+        _server.start();
+        _transport = new TcpTransport("127.0.0.1", _server.getPort());
+    }
+
+    @Override
+    protected void tearDown() {
+        _transport.close();
+        _server.stop();
+    }
+
+    private String query(String command) {
+        BlockParser parser = new BlockParser();
+        BlockParserTest.Collector collector = new BlockParserTest.Collector();
+        assertTrue(_transport.write(command));
+        assertTrue(parser.receive(_transport, ByteBuffer.allocate(256), collector));
+        return collector.bytes.toString().trim();
+    }
+
+    public void testFetchesWholeMemory() {
+        SampleStore store = new SampleStore();
+        MinMaxPyramid pyramid = new MinMaxPyramid(store);
+        Outcome outcome = new Outcome();
+        DeepMemoryFetch fetch = new DeepMemoryFetch("CHAN1", store, outcome);
+        fetch.setPyramid(pyramid);
+        fetch.run(_transport, DIRECT);
+
+        assertSame(store, outcome.finished);
+        assertFalse(outcome.failed);
+        assertEquals(DEPTH, outcome.preamble.points);
+        assertEquals(DEPTH, store.size());
+        assertEquals(DEPTH, pyramid.size());
+        // In chunks as big as the 'scope allows.
+        assertEquals((DEPTH + DeepMemoryFetch.MAX_BYTE_CHUNK - 1) / DeepMemoryFetch.MAX_BYTE_CHUNK, outcome.progress);
+
+        for (long i = 0; i < DEPTH; i += 997) {
+            int expected = (int) (127 + 75 * Math.sin((i % PERIOD) * 2.0 * Math.PI / PERIOD)) & 0xff;
+            assertEquals(expected, store.get(i));
+        }
+
+        // Running again, and back to normal mode for polling.
+        assertEquals("TD", query(Scpi.TRIG_STATUS_Q));
+        assertEquals(1200, Preamble.parse(query(Scpi.WAV_PREAMBLE_Q).getBytes()).points);
+    }
+
+    public void testCancelledBeforeStart() {
+        SampleStore store = new SampleStore();
+        Outcome outcome = new Outcome();
+        DeepMemoryFetch fetch = new DeepMemoryFetch("CHAN1", store, outcome);
+        fetch.cancel();
+        fetch.run(_transport, DIRECT);
+
+        assertTrue(outcome.cancelled);
+        assertNull(outcome.finished);
+        assertEquals(0, outcome.progress);
+        assertEquals("TD", query(Scpi.TRIG_STATUS_Q));
+        assertEquals(1200, Preamble.parse(query(Scpi.WAV_PREAMBLE_Q).getBytes()).points);
+    }
+}
@@ -0,0 +1,53 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+public class FftTest extends TestCase {
+    private static void assertMatchesDft(int size) {
+        Random random = new Random(size);
+        float[] samples = new float[size];
+
+        for (int i = 0; i < size; ++i) {
+            samples[i] = random.nextFloat() * 2.0f - 1.0f;
+        }
+
+        float[] power = new float[size / 2 + 1];
+        new Fft(size).powerSpectrum(samples, power);
+
+        for (int k = 0; k <= size / 2; ++k) {
+            double re = 0.0;
+            double im = 0.0;
+
+            for (int n = 0; n < size; ++n) {
+                re += samples[n] * Math.cos(2.0 * Math.PI * k * n / size);
+                im -= samples[n] * Math.sin(2.0 * Math.PI * k * n / size);
+            }
+
+            double expected = re * re + im * im;
+            assertEquals("bin " + k + " of " + size, expected, power[k], 1e-3 * Math.max(1.0, expected));
+        }
+    }
+
+    public void testMatchesDft() {
+        assertMatchesDft(4);
+        assertMatchesDft(8);
+        assertMatchesDft(64);
+        assertMatchesDft(2048);
+    }
+
+    public void testSizeMustBePowerOfTwo() {
+        try {
+            new Fft(1200);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+}
@@ -0,0 +1,136 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+public class FrameAveragerTest extends TestCase {
+    private static final Preamble PREAMBLE = Preamble.DEFAULT;
+
+    private static ByteBuffer frame(int points, int value) {
+        ByteBuffer samples = ByteBuffer.allocate(points);
+
+        for (int i = 0; i < points; ++i) {
+            samples.put((byte) (value + i % 2));
+        }
+
+        samples.flip();
+        return samples;
+    }
+
+    private static float[] average(FrameAverager averager) {
+        FloatBuffer out = FloatBuffer.allocate(2000);
+        averager.average(out);
+        out.flip();
+        float[] values = new float[out.remaining()];
+        out.get(values);
+        return values;
+    }
+
+    public void testBoxcarForgetsTheOldestFrame() {
+        FrameAverager averager = new FrameAverager(FrameAverager.BOXCAR, 4);
+        averager.add(frame(1200, 100), PREAMBLE);
+        averager.add(frame(1200, 110), PREAMBLE);
+        assertEquals(2, averager.getCount());
+        assertEquals(105.0f, average(averager)[0], 1e-4f);
+        assertEquals(106.0f, average(averager)[1], 1e-4f);
+
+        averager.add(frame(1200, 120), PREAMBLE);
+        averager.add(frame(1200, 130), PREAMBLE);
+        averager.add(frame(1200, 140), PREAMBLE);
+
+        // 110 to 140; the 100 has gone.
+        assertEquals(4, averager.getCount());
+        assertEquals(125.0f, average(averager)[0], 1e-4f);
+        assertEquals(1200, average(averager).length);
+    }
+
+    public void testBoxcarMatchesMeanOverManyFrames() {
+        FrameAverager averager = new FrameAverager(FrameAverager.BOXCAR, 16);
+        Random random = new Random(7);
+        int[][] frames = new int[100][1200];
+
+        for (int f = 0; f < frames.length; ++f) {
+            ByteBuffer samples = ByteBuffer.allocate(1200);
+
+            for (int i = 0; i < 1200; ++i) {
+                frames[f][i] = random.nextInt(256);
+                samples.put((byte) frames[f][i]);
+            }
+
+            samples.flip();
+            averager.add(samples, PREAMBLE);
+        }
+
+        float[] values = average(averager);
+
+        for (int i = 0; i < 1200; i += 97) {
+            int sum = 0;
+
+            for (int f = frames.length - 16; f < frames.length; ++f) {
+                sum += frames[f][i];
+            }
+
+            assertEquals(sum / 16.0f, values[i], 1e-4f);
+        }
+    }
+
+    public void testExponential() {
+        FrameAverager averager = new FrameAverager(FrameAverager.EXPONENTIAL, 4);
+        averager.add(frame(1200, 100), PREAMBLE);
+        averager.add(frame(1200, 110), PREAMBLE);
+
+        // The plain mean until N frames are in.
+        assertEquals(105.0f, average(averager)[0], 1e-3f);
+
+        for (int i = 0; i < 100; ++i) {
+            averager.add(frame(1200, 200), PREAMBLE);
+        }
+
+        assertEquals(200.0f, average(averager)[0], 1e-2f);
+        averager.add(frame(1200, 100), PREAMBLE);
+        assertEquals(175.0f, average(averager)[0], 1e-2f);
+    }
+
+    public void testNoiseAveragesOut() {
+        FrameAverager averager = new FrameAverager(FrameAverager.EXPONENTIAL, 64);
+        Random random = new Random(11);
+
+        for (int f = 0; f < 1000; ++f) {
+            ByteBuffer samples = ByteBuffer.allocate(1200);
+
+            for (int i = 0; i < 1200; ++i) {
+                samples.put((byte) (127 + random.nextInt(21) - 10));
+            }
+
+            samples.flip();
+            averager.add(samples, PREAMBLE);
+        }
+
+        for (float value : average(averager)) {
+            assertEquals(127.0f, value, 3.0f);
+        }
+    }
+
+    public void testStartsOverOnChanges() {
+        FrameAverager averager = new FrameAverager(FrameAverager.BOXCAR, 4);
+        averager.add(frame(1200, 100), PREAMBLE);
+        averager.add(frame(600, 50), PREAMBLE);
+        assertEquals(1, averager.getCount());
+        assertEquals(600, averager.getPoints());
+
+        averager.add(frame(600, 50), new Preamble(0, 0, 600, 1, 2.0e-8, 0.0, 0.0, 0.04, 0.0, 127.0));
+        assertEquals(1, averager.getCount());
+
+        averager.setMode(FrameAverager.EXPONENTIAL, 4);
+        assertEquals(0, averager.getCount());
+        assertEquals(0, averager.getPoints());
+    }
+}
@@ -0,0 +1,167 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid;
+
+import junit.framework.TestCase;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+public class FrameCodecTest extends TestCase {
+    private static final int CAPACITY = 4096;
+
+    private final FrameCodec _encoder = new FrameCodec(CAPACITY);
+    private final FrameCodec _decoder = new FrameCodec(CAPACITY);
+    private final ByteBuffer _encoded = ByteBuffer.allocate(FrameCodec.maxEncodedSize(CAPACITY));
+    private final ByteBuffer _decoded = ByteBuffer.allocate(CAPACITY);
+
+    // Encodes and decodes samples, checks they come back the same, and returns the encoded size.
+    private int roundTrip(byte[] samples) {
+        ByteBuffer in = ByteBuffer.wrap(samples);
+        _encoded.clear();
+        _encoder.encode(in, _encoded);
+        assertEquals(0, in.position());
+        assertTrue(_encoded.position() <= FrameCodec.maxEncodedSize(samples.length));
+
+        _encoded.flip();
+        _decoded.clear();
+        assertEquals(samples.length, _decoder.decode(_encoded, _decoded));
+        assertFalse(_encoded.hasRemaining());
+        assertTrue(Arrays.equals(samples, Arrays.copyOf(_decoded.array(), _decoded.position())));
+        return _encoded.limit();
+    }
+
+    private static byte[] sine(int size, int phase) {
+        byte[] samples = new byte[size];
+
+        for (int i = 0; i < size; ++i) {
+            samples[i] = (byte) (128 + 100 * Math.sin((i + phase) * 2 * Math.PI / 300));
+        }
+
+        return samples;
+    }
+
+    public void testZigZag() {
+        assertEquals(0, FrameCodec.zigZag(0));
+        assertEquals(1, FrameCodec.zigZag(-1));
+        assertEquals(2, FrameCodec.zigZag(1));
+        assertEquals(255, FrameCodec.zigZag(-128));
+        assertEquals(254, FrameCodec.zigZag(127));
+        // From 0 to 255 wraps round to -1.
+        assertEquals(1, FrameCodec.zigZag(255));
+    }
+
+    public void testRoundTrips() {
+        Random random = new Random(1);
+
+        for (int n = 0; n < 20; ++n) {
+            byte[] samples = sine(1200, n);
+
+            for (int i = 0; i < samples.length; ++i) {
+                samples[i] += random.nextInt(3) - 1;
+            }
+
+            // Whole blocks of the full range, which need every bit.
+            if (n % 5 == 0) {
+                for (int i = 256; i < 512; ++i) {
+                    samples[i] = (byte) random.nextInt();
+                }
+            }
+
+            roundTrip(samples);
+        }
+    }
+
+    public void testShortFrames() {
+        roundTrip(new byte[0]);
+        roundTrip(new byte[]{42});
+        roundTrip(sine(100, 0));
+        // A different size can't be predicted from the last frame.
+        roundTrip(sine(130, 0));
+        roundTrip(sine(130, 1));
+        roundTrip(new byte[0]);
+    }
+
+    public void testIdleFramesShrink() {
+        byte[] samples = sine(1200, 0);
+        int first = roundTrip(samples);
+        assertTrue(first < 1200 / 2);
+
+        // The same again is just headers.
+        int again = roundTrip(samples);
+        assertEquals(FrameCodec.HEADER_SIZE + (1200 + FrameCodec.BLOCK - 1) / FrameCodec.BLOCK, again);
+
+        byte[] flat = new byte[1200];
+        Arrays.fill(flat, (byte) 128);
+        _encoder.reset();
+        _decoder.reset();
+        assertTrue(roundTrip(flat) < 32);
+    }
+
+    public void testNoiseStaysBounded() {
+        Random random = new Random(2);
+        byte[] samples = new byte[1200];
+
+        for (int n = 0; n < 3; ++n) {
+            random.nextBytes(samples);
+            assertTrue(roundTrip(samples) <= FrameCodec.maxEncodedSize(1200));
+        }
+    }
+
+    public void testDecodesInPlace() {
+        byte[] first = sine(1200, 0);
+        byte[] second = sine(1200, 3);
+        ByteBuffer out = ByteBuffer.allocateDirect(1300);
+
+        for (byte[] samples : new byte[][] {first, second}) {
+            _encoded.clear();
+            _encoder.encode(ByteBuffer.wrap(samples), _encoded);
+            _encoded.flip();
+
+            // Straight into a direct buffer, after what is already there.
+            out.clear();
+            out.position(100);
+            assertEquals(1200, _decoder.decode(_encoded, out));
+            assertEquals(1300, out.position());
+
+            for (int i = 0; i < 1200; ++i) {
+                assertEquals(samples[i], out.get(100 + i));
+            }
+        }
+
+        _encoded.clear();
+        _encoder.encode(ByteBuffer.wrap(first), _encoded);
+        _encoded.flip();
+        out.clear();
+        out.limit(1199);
+
+        try {
+            _decoder.decode(_encoded, out);
+            fail();
+        } catch (BufferOverflowException e) {
+            // Expected.
+        }
+    }
+
+    public void testNeedsTheFrameBefore() {
+        byte[] samples = sine(1200, 0);
+        roundTrip(samples);
+
+        _encoded.clear();
+        _encoder.encode(ByteBuffer.wrap(samples), _encoded);
+        _encoded.flip();
+        _decoder.reset();
+
+        try {
+            _decoder.decode(_encoded, _decoded);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+}
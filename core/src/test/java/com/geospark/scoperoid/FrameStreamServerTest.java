@@ -0,0 +1,206 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class FrameStreamServerTest extends TestCase {
+    private static final int POINTS = 1200;
+    private static final int CAPACITY = 4096;
+    private static final Preamble SLOW = new Preamble(0, 0, POINTS, 1, 1.0e-5, 0.0, 0.0, 0.04, 0.0, 127.0);
+
+    // Frame n differs from the one before in two stretches of 100 samples, which a delta can
+    // carry in a fraction of the frame.
+    private static byte sample(long n, int i) {
+        return (byte) (i * 7 + (i / 100 == n % 12 ? n : 0));
+    }
+
+    private static WaveformFrame frame(FramePool pool, int channel, long n, Preamble preamble) {
+        WaveformFrame frame = pool.acquire();
+        byte[] samples = new byte[POINTS];
+
+        for (int i = 0; i < POINTS; ++i) {
+            samples[i] = sample(n, i);
+        }
+
+        frame.begin();
+        frame.payload(ByteBuffer.wrap(samples));
+        frame.setChannel(channel);
+        frame.setPreamble(preamble);
+        frame.complete(n);
+        return frame;
+    }
+
+    private static void assertFrame(WaveformFrame frame, int channel, long n) {
+        assertEquals(channel, frame.getChannel());
+        assertEquals(n, frame.getTimestamp());
+        ByteBuffer samples = frame.samples();
+        assertEquals(POINTS, samples.remaining());
+
+        for (int i = 0; i < POINTS; ++i) {
+            assertEquals(sample(n, i), samples.get(samples.position() + i));
+        }
+    }
+
+    private static void awaitClients(FrameStreamServer server, int count) throws InterruptedException {
+        for (int i = 0; i < 500 && server.getClientCount() < count; ++i) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(count, server.getClientCount());
+    }
+
+    public void testRoundTrip() throws IOException, InterruptedException {
+        FrameStreamServer server = new FrameStreamServer(0, FrameStreamServer.DEFAULT_QUEUE_SIZE, CAPACITY);
+        server.start();
+        FramePool pool = new FramePool(2, CAPACITY);
+        WaveformFrame received = new FramePool(1, CAPACITY).acquire();
+
+        try (FrameStreamClient client = new FrameStreamClient("127.0.0.1", server.getPort(), CAPACITY)) {
+            client.setTimeout(5000);
+            awaitClients(server, 1);
+
+            for (long n = 0; n < 30; ++n) {
+                // A new preamble part way through has to reach the client before its frame.
+                Preamble preamble = n < 20 ? SLOW : Preamble.DEFAULT;
+                int channel = 1 + (int) (n % 2);
+                WaveformFrame frame = frame(pool, channel, n, preamble);
+                assertTrue(server.publish(frame));
+                frame.recycle();
+
+                client.read(received);
+                assertFrame(received, channel, n);
+                assertEquals(preamble, received.getPreamble());
+            }
+
+            // Each channel's first frame goes whole; the rest are deltas.
+            assertEquals(28, client.getDeltas());
+
+            server.setDelta(false);
+            WaveformFrame frame = frame(pool, 1, 30, SLOW);
+            assertTrue(server.publish(frame));
+            frame.recycle();
+            client.read(received);
+            assertFrame(received, 1, 30);
+            assertEquals(28, client.getDeltas());
+        } finally {
+            server.stop();
+        }
+    }
+
+    /**
+     * 50 viewers on loopback, 5 of which never read: publishing must never wait on them, and
+     * everyone else must see frames intact and in order, ending with the last.
+     */
+    public void testFiftyClients() throws Exception {
+        final int clients = 50;
+        final int stalled = 5;
+        final long frames = 20000;
+        final FrameStreamServer server = new FrameStreamServer(0, FrameStreamServer.DEFAULT_QUEUE_SIZE, CAPACITY);
+        server.start();
+
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final AtomicLong received = new AtomicLong();
+        ArrayList<Thread> readers = new ArrayList<>();
+        ArrayList<Socket> idle = new ArrayList<>();
+
+        try {
+            for (int i = 0; i < stalled; ++i) {
+                idle.add(new Socket("127.0.0.1", server.getPort()));
+            }
+
+            for (int i = 0; i < clients - stalled; ++i) {
+                final FrameStreamClient client = new FrameStreamClient("127.0.0.1", server.getPort(), CAPACITY);
+                client.setTimeout(10000);
+
+                Thread reader = new Thread() {
+                    @Override
+                    public void run() {
+                        WaveformFrame frame = new FramePool(1, CAPACITY).acquire();
+                        long last = -1;
+
+                        try {
+                            while (last != frames - 1) {
+                                client.read(frame);
+                                assertTrue(frame.getTimestamp() > last);
+                                last = frame.getTimestamp();
+                                assertFrame(frame, 1, last);
+                                received.incrementAndGet();
+                            }
+                        } catch (Throwable e) {
+                            failure.compareAndSet(null, e);
+                        } finally {
+                            try {
+                                client.close();
+                            } catch (IOException e) {
+                                // Done with it anyway.
+                            }
+                        }
+                    }
+                };
+
+                reader.start();
+                readers.add(reader);
+            }
+
+            awaitClients(server, clients);
+
+            // Frames go back to the pool as soon as they are published, as they would after
+            // being drawn.
+            FramePool pool = new FramePool(1, CAPACITY);
+            long slowest = 0;
+
+            // Every frame is offered until taken, at whatever rate the server thread keeps up
+            // with, so the stalled clients fall well behind.
+            for (long n = 0; n < frames; ++n) {
+                WaveformFrame frame = frame(pool, 1, n, SLOW);
+
+                while (true) {
+                    long start = System.nanoTime();
+                    boolean taken = server.publish(frame);
+                    slowest = Math.max(slowest, System.nanoTime() - start);
+
+                    if (taken) {
+                        break;
+                    }
+
+                    Thread.yield();
+                }
+
+                frame.recycle();
+            }
+
+            for (Thread reader : readers) {
+                reader.join(30000);
+                assertFalse(reader.isAlive());
+            }
+
+            if (failure.get() != null) {
+                throw new AssertionError(failure.get());
+            }
+
+            // Well under a frame time, whatever the stalled clients are doing.
+            assertTrue(slowest < 100000000L);
+
+            assertTrue(received.get() >= clients - stalled);
+            assertTrue(server.getClientDrops() > 0);
+            assertTrue(server.getDeltas() > 0);
+        } finally {
+            for (Socket socket : idle) {
+                socket.close();
+            }
+
+            server.stop();
+        }
+    }
+}
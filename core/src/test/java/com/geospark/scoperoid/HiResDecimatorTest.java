@@ -0,0 +1,61 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+public class HiResDecimatorTest extends TestCase {
+    public void testColumnMeansAcrossSegments() {
+        // A slow ramp dithered by a sample either way, which the means should see through.
+        int points = SampleStore.SEGMENT_SIZE + 600000;
+        ByteBuffer samples = ByteBuffer.allocate(points);
+
+        for (int i = 0; i < points; ++i) {
+            samples.put((byte) (100 + i / 100000 + (i % 2 == 0 ? 1 : -1)));
+        }
+
+        samples.flip();
+        SampleStore store = new SampleStore();
+        store.append(samples);
+
+        FloatBuffer out = FloatBuffer.allocate(1200);
+        assertEquals(1200, HiResDecimator.decimate(store, 0, points, 1200, out));
+        assertFalse(out.hasRemaining());
+
+        long length = points;
+
+        for (int column = 0; column < 1200; ++column) {
+            long start = length * column / 1200;
+            long end = length * (column + 1) / 1200;
+            double sum = 0.0;
+
+            for (long i = start; i < end; ++i) {
+                sum += store.get(i);
+            }
+
+            assertEquals(sum / (end - start), out.get(column), 1e-3);
+        }
+    }
+
+    public void testShortWindow() {
+        SampleStore store = new SampleStore();
+        store.append(ByteBuffer.wrap(new byte[] {1, 2, 3, 4, 5}));
+        FloatBuffer out = FloatBuffer.allocate(1200);
+
+        assertEquals(3, HiResDecimator.decimate(store, 1, 4, 1200, out));
+        assertEquals(2.0f, out.get(0));
+        assertEquals(4.0f, out.get(2));
+        assertEquals(0, HiResDecimator.decimate(store, 5, 10, 1200, out));
+    }
+
+    public void testEffectiveBits() {
+        assertEquals(8.0, HiResDecimator.effectiveBits(1), 1e-9);
+        assertEquals(12.0, HiResDecimator.effectiveBits(256), 1e-9);
+    }
+}
@@ -0,0 +1,81 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+/**
+ * Checks percentiles against a sorted copy of what was recorded, and that nothing is lost
+ * recording from several threads at once. LatencyHistogramBenchmark times it.
+ */
+public class LatencyHistogramTest extends TestCase {
+
+    public void testBuckets() {
+        for (long nanos = 0; nanos < 100000; ++nanos) {
+            int bucket = LatencyHistogram.bucketOf(nanos);
+            assertTrue(nanos <= LatencyHistogram.bucketLimit(bucket));
+            assertTrue(bucket == 0 || nanos > LatencyHistogram.bucketLimit(bucket - 1));
+        }
+
+        assertEquals(Long.MAX_VALUE, LatencyHistogram.bucketLimit(LatencyHistogram.bucketOf(Long.MAX_VALUE)));
+    }
+
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Random random = new Random(3);
+        long[] recorded = new long[10000];
+
+        for (int i = 0; i < recorded.length; ++i) {
+            // Mostly around 100us, with a long tail.
+            recorded[i] = (long) (100000 * Math.exp(random.nextGaussian()));
+            histogram.record(recorded[i]);
+        }
+
+        java.util.Arrays.sort(recorded);
+
+        assertEquals(recorded.length, histogram.getCount());
+        assertEquals(recorded[recorded.length - 1], histogram.getMax());
+
+        for (double fraction : new double[] {0.5, 0.9, 0.99, 0.999}) {
+            long expected = recorded[(int) Math.ceil(fraction * recorded.length) - 1];
+            long actual = histogram.getPercentile(fraction);
+            assertTrue(actual >= expected);
+            assertTrue(actual <= expected + expected / 8);
+        }
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(0.5));
+    }
+
+    public void testConcurrentRecording() throws InterruptedException {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        final int perThread = 1000000;
+        Thread[] threads = new Thread[3];
+
+        for (int t = 0; t < threads.length; ++t) {
+            final int offset = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perThread; ++i) {
+                        histogram.record(1000 + (i + offset) % 5000);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(threads.length * perThread, histogram.getCount());
+        assertEquals(5999, histogram.getMax());
+    }
+}
@@ -0,0 +1,152 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class MeasurementEngineTest extends TestCase {
+    // 1us a sample, 40mV a count, with 0V at 127.
+    private static final Preamble PREAMBLE = new Preamble(0, 0, 1200, 1, 1.0e-6, 0.0, 0.0, 0.04, 0.0, 127.0);
+    private static final int PERIOD = 100;
+
+    // A pulse train between 50 and 200 with 10 sample edges, high for 35 samples between the
+    // middles of its edges.
+    private static int pulse(long index) {
+        int phase = (int) ((index + 60) % PERIOD);
+
+        if (phase < 10) {
+            return 50 + 15 * phase;
+        } else if (phase < 35) {
+            return 200;
+        } else if (phase < 45) {
+            return 200 - 15 * (phase - 35);
+        }
+
+        return 50;
+    }
+
+    private static ByteBuffer pulses(int points, int noise) {
+        ByteBuffer samples = ByteBuffer.allocate(points);
+        Random random = new Random(3);
+
+        for (int i = 0; i < points; ++i) {
+            samples.put((byte) (pulse(i) + (noise > 0 ? random.nextInt(2 * noise + 1) - noise : 0)));
+        }
+
+        samples.flip();
+        return samples;
+    }
+
+    private static void assertPulses(Measurements measurements) {
+        assertEquals(6.0, measurements.get(Measurements.AMPLITUDE), 1e-9);
+        assertEquals(2.92, measurements.get(Measurements.MAXIMUM), 1e-9);
+        assertEquals(10000.0, measurements.get(Measurements.FREQUENCY), 1e-6);
+        assertEquals(1.0e-4, measurements.get(Measurements.PERIOD), 1e-12);
+        assertEquals(0.35, measurements.get(Measurements.DUTY_CYCLE), 1e-9);
+        assertEquals(8.0e-6, measurements.get(Measurements.RISE_TIME), 1e-12);
+        assertEquals(8.0e-6, measurements.get(Measurements.FALL_TIME), 1e-12);
+    }
+
+    public void testPulses() {
+        ByteBuffer samples = pulses(1200, 0);
+        Measurements measurements = new Measurements();
+        new MeasurementEngine().measure(samples, PREAMBLE, measurements);
+
+        assertPulses(measurements);
+        assertEquals(0, samples.position());
+
+        double sum = 0.0;
+        double squares = 0.0;
+
+        for (int i = 0; i < 1200; ++i) {
+            double volts = SampleConversion.toVolts(samples.get(i), PREAMBLE);
+            sum += volts;
+            squares += volts * volts;
+        }
+
+        assertEquals(sum / 1200, measurements.get(Measurements.MEAN), 1e-9);
+        assertEquals(Math.sqrt(squares / 1200), measurements.get(Measurements.RMS), 1e-9);
+    }
+
+    public void testNoiseIsNotAnEdge() {
+        Measurements measurements = new Measurements();
+        new MeasurementEngine().measure(pulses(1200, 10), PREAMBLE, measurements);
+
+        assertEquals(10000.0, measurements.get(Measurements.FREQUENCY), 200.0);
+        assertEquals(0.35, measurements.get(Measurements.DUTY_CYCLE), 0.02);
+    }
+
+    public void testFlatLine() {
+        ByteBuffer samples = ByteBuffer.allocate(1200);
+
+        for (int i = 0; i < 1200; ++i) {
+            samples.put(i, (byte) (127 + i % 3));
+        }
+
+        Measurements measurements = new Measurements();
+        new MeasurementEngine().measure(samples, PREAMBLE, measurements);
+
+        assertEquals(0.04, measurements.get(Measurements.MEAN), 1e-9);
+        assertTrue(Double.isNaN(measurements.get(Measurements.FREQUENCY)));
+        assertTrue(Double.isNaN(measurements.get(Measurements.RISE_TIME)));
+    }
+
+    public void testStatisticsAcrossFrames() {
+        MeasurementEngine engine = new MeasurementEngine();
+        Measurements measurements = new Measurements();
+        ByteBuffer samples = pulses(1200, 0);
+
+        for (int i = 0; i < 3; ++i) {
+            engine.measure(samples, PREAMBLE, measurements);
+        }
+
+        samples.limit(600);
+        engine.measure(samples, PREAMBLE, measurements);
+
+        assertEquals(4, measurements.getCount(Measurements.AMPLITUDE));
+        assertEquals(6.0, measurements.getMean(Measurements.AMPLITUDE), 1e-9);
+        assertEquals(1.0e-4, measurements.getMax(Measurements.PERIOD), 1e-12);
+
+        measurements.reset();
+        assertEquals(0, measurements.getCount(Measurements.AMPLITUDE));
+        assertTrue(Double.isNaN(measurements.getMin(Measurements.AMPLITUDE)));
+    }
+
+    public void testDeepMemoryInParallel() {
+        // Segments end part way through pulses and edges.
+        int points = 3 * SampleStore.SEGMENT_SIZE + 12345;
+        SampleStore store = new SampleStore();
+        store.append(pulses(points, 0));
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+
+        try {
+            Measurements serial = new Measurements();
+            Measurements parallel = new Measurements();
+            new MeasurementEngine().measure(store, PREAMBLE, serial);
+            MeasurementEngine engine = new MeasurementEngine(executor);
+            engine.measure(store, PREAMBLE, parallel);
+            engine.measure(store, PREAMBLE, parallel);
+
+            assertPulses(serial);
+            assertPulses(parallel);
+
+            Measurements whole = new Measurements();
+            new MeasurementEngine().measure(pulses(points, 0), PREAMBLE, whole);
+
+            for (int i = 0; i < Measurements.QUANTITY_COUNT; ++i) {
+                assertEquals(whole.get(i), parallel.get(i), 1e-12);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
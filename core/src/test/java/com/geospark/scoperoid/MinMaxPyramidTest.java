@@ -0,0 +1,131 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Checks the pyramid against a brute-force min/max, and built chunk by chunk, the way a deep
+ * memory fetch does, against built in one go. DecimationBenchmark times it.
+ */
+public class MinMaxPyramidTest extends TestCase {
+    private static final int COLUMNS = 1200;
+    // The most bytes DeepMemoryFetch asks for at once.
+    private static final int CHUNK = 250000;
+
+    private static SampleStore noise(long points, long seed) {
+        Random random = new Random(seed);
+        ByteBuffer chunk = ByteBuffer.allocate(CHUNK);
+        SampleStore store = new SampleStore();
+
+        while (store.size() < points) {
+            chunk.clear();
+            random.nextBytes(chunk.array());
+            chunk.limit((int) Math.min(CHUNK, points - store.size()));
+            store.append(chunk);
+        }
+
+        return store;
+    }
+
+    public void testMatchesBruteForce() {
+        SampleStore store = noise(100003, 1);
+        MinMaxPyramid pyramid = new MinMaxPyramid(store);
+        pyramid.update();
+        Random random = new Random(2);
+        ByteBuffer out = ByteBuffer.allocate(COLUMNS * 2);
+
+        for (int q = 0; q < 200; ++q) {
+            long start = random.nextInt((int) store.size());
+            long end = start + 1 + random.nextInt((int) (store.size() - start));
+            out.clear();
+            int columns = pyramid.query(start, end, COLUMNS, out);
+            double perColumn = (double) (end - start) / columns;
+
+            for (int column = 0; column < columns; ++column) {
+                long first = start + (long) (column * perColumn);
+                long last = Math.max(first + 1, start + (long) ((column + 1) * perColumn));
+                int lo = 255;
+                int hi = 0;
+
+                for (long i = first; i < last; ++i) {
+                    lo = Math.min(lo, store.get(i));
+                    hi = Math.max(hi, store.get(i));
+                }
+
+                // Columns are rounded out to whole blocks, so they can only ever be wider.
+                assertTrue((out.get(column * 2) & 0xff) <= lo);
+                assertTrue((out.get(column * 2 + 1) & 0xff) >= hi);
+            }
+        }
+    }
+
+    public void testGlitchSurvivesDecimation() {
+        SampleStore store = new SampleStore();
+        ByteBuffer flat = ByteBuffer.allocate(1000000);
+
+        for (int i = 0; i < flat.capacity(); ++i) {
+            flat.put(i, (byte) 127);
+        }
+
+        flat.put(654321, (byte) 250);
+        store.append(flat);
+
+        MinMaxPyramid pyramid = new MinMaxPyramid(store);
+        pyramid.update();
+        ByteBuffer out = ByteBuffer.allocate(COLUMNS * 2);
+        pyramid.query(0, store.size(), COLUMNS, out);
+        int peak = 0;
+
+        for (int i = 0; i < out.position(); ++i) {
+            peak = Math.max(peak, out.get(i) & 0xff);
+        }
+
+        assertEquals(250, peak);
+    }
+
+    public void testIncrementalMatchesOneShot() {
+        SampleStore store = noise(1000000, 3);
+        MinMaxPyramid oneShot = new MinMaxPyramid(store);
+        oneShot.update();
+
+        SampleStore growing = new SampleStore();
+        MinMaxPyramid incremental = new MinMaxPyramid(growing);
+
+        // Odd sized pieces, so partial blocks get carried across updates.
+        for (long start = 0; start < store.size(); start += 77777) {
+            long end = Math.min(start + 77777, store.size());
+            ByteBuffer piece = ByteBuffer.allocate((int) (end - start));
+
+            for (long i = start; i < end; ++i) {
+                piece.put((byte) store.get(i));
+            }
+
+            piece.flip();
+            growing.append(piece);
+            incremental.update();
+        }
+
+        assertEquals(oneShot.levelCount(), incremental.levelCount());
+
+        ByteBuffer a = ByteBuffer.allocate(COLUMNS * 2);
+        ByteBuffer b = ByteBuffer.allocate(COLUMNS * 2);
+        long[][] windows = {{0, store.size()}, {12345, 56789}, {500000, 500600}, {999000, 1000000}};
+
+        for (long[] window : windows) {
+            a.clear();
+            b.clear();
+            oneShot.query(window[0], window[1], COLUMNS, a);
+            incremental.query(window[0], window[1], COLUMNS, b);
+            a.flip();
+            b.flip();
+            assertEquals(a, b);
+        }
+    }
+}
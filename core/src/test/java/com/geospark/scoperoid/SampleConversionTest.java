@@ -0,0 +1,55 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+public class SampleConversionTest extends TestCase {
+    // 0.5V a division, with 0V at sample value 100.
+    private static final Preamble PREAMBLE = new Preamble(0, 0, 1200, 1, 1.0e-6, 0.0, 0.0,
+            0.5 / Preamble.COUNTS_PER_DIVISION, -27.0, 127.0);
+
+    public void testVolts() {
+        assertEquals(0.0, SampleConversion.toVolts(100, PREAMBLE), 1e-9);
+        assertEquals(0.5, SampleConversion.toVolts(125, PREAMBLE), 1e-9);
+        assertEquals(-2.0, SampleConversion.toVolts(0, PREAMBLE), 1e-9);
+        assertEquals(3.1, SampleConversion.toVolts((byte) 255, PREAMBLE), 1e-9);
+    }
+
+    public void testVertices() {
+        ByteBuffer samples = ByteBuffer.allocate(1300);
+
+        for (int i = 0; i < samples.capacity(); ++i) {
+            samples.put((byte) i);
+        }
+
+        samples.position(100);
+        FloatBuffer vertices = FloatBuffer.allocate(2 * 1200);
+        assertEquals(1200, SampleConversion.toVertices(samples, PREAMBLE, vertices));
+        assertEquals(100, samples.position());
+        assertFalse(vertices.hasRemaining());
+
+        // A division is an eighth of the grid, and the sample at 0V sits in the middle of it.
+        float division = SampleConversion.GRID_HEIGHT / SampleConversion.GRID_DIVISIONS;
+
+        for (int i = 0; i < 1200; ++i) {
+            int sample = (100 + i) & 0xff;
+            assertEquals((float) i, vertices.get(2 * i));
+            assertEquals(SampleConversion.GRID_CENTRE + (sample - 100) / 25.0f * division, vertices.get(2 * i + 1), 1e-3f);
+        }
+    }
+
+    public void testMatchesShaderUniforms() {
+        // The shader works out centre + (sample - offset) * yIncrement * unitsPerVolt.
+        float offset = SampleConversion.sampleOffset(PREAMBLE);
+        float units = SampleConversion.unitsPerVolt(PREAMBLE);
+        assertEquals(100.0f, offset);
+        assertEquals(SampleConversion.GRID_HEIGHT / SampleConversion.GRID_DIVISIONS / 0.5f, units, 1e-4f);
+    }
+}
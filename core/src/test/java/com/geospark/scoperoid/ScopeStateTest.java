@@ -0,0 +1,63 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks when the cached preambles go stale. ScopePollingTest runs them against the simulated
+ * 'scope.
+ */
+public class ScopeStateTest extends TestCase {
+    private static final long MILLI = 1000000L;
+
+    private static Preamble preamble(double xIncrement) {
+        return new Preamble(0, 0, 1200, 1, xIncrement, 0.0, 0.0, 0.04, 0.0, 127.0);
+    }
+
+    public void testStartsStale() {
+        ScopeState state = new ScopeState();
+
+        for (int channel = 1; channel <= Scpi.CHANNEL_COUNT; ++channel) {
+            assertTrue(state.needsRefresh(channel, 0));
+            assertNull(state.getPreamble(channel));
+        }
+    }
+
+    public void testIntervalAndInvalidate() {
+        ScopeState state = new ScopeState();
+        state.setRefreshInterval(1000);
+
+        assertTrue(state.update(1, preamble(1.0e-8), 0, state.generation()));
+        assertFalse(state.needsRefresh(1, 999 * MILLI));
+        assertTrue(state.needsRefresh(1, 1000 * MILLI));
+        assertTrue(state.needsRefresh(2, 0));
+
+        state.invalidate();
+        assertTrue(state.needsRefresh(1, 0));
+    }
+
+    public void testOnlyChangesAreReported() {
+        ScopeState state = new ScopeState();
+
+        assertTrue(state.update(1, preamble(1.0e-8), 0, state.generation()));
+        assertFalse(state.update(1, preamble(1.0e-8), 1, state.generation()));
+        assertTrue(state.update(1, preamble(2.0e-8), 2, state.generation()));
+
+        // A failed read keeps what we had.
+        assertFalse(state.update(1, null, 3, state.generation()));
+        assertEquals(preamble(2.0e-8), state.getPreamble(1));
+    }
+
+    public void testSettingSentWhileReadingStaysStale() {
+        ScopeState state = new ScopeState();
+        int generation = state.generation();
+
+        state.invalidate();
+        state.update(1, preamble(1.0e-8), 0, generation);
+        assertTrue(state.needsRefresh(1, 0));
+    }
+}
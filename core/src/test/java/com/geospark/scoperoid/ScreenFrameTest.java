@@ -0,0 +1,107 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+public class ScreenFrameTest extends TestCase {
+    // 5 pixels is 15 bytes a row, padded to 16 in the file.
+    private static final int WIDTH = 5;
+    private static final int HEIGHT = 3;
+    private static final int STRIDE = 16;
+
+    private static byte pixel(int x, int y, int component) {
+        return (byte) (y * 64 + x * 4 + component);
+    }
+
+    // A 24 bit BMP with a gap before the pixels, with rows in file order bottom first unless
+    // top down.
+    private static ByteBuffer bmp(boolean topDown) {
+        int offset = ScreenFrame.HEADER_SIZE + 6;
+        ByteBuffer file = ByteBuffer.allocate(offset + STRIDE * HEIGHT).order(ByteOrder.LITTLE_ENDIAN);
+        file.put((byte) 'B').put((byte) 'M').putInt(file.capacity()).putInt(0).putInt(offset);
+        file.putInt(40).putInt(WIDTH).putInt(topDown ? -HEIGHT : HEIGHT).putShort((short) 1).putShort((short) 24);
+        file.putInt(0).putInt(STRIDE * HEIGHT).putInt(0).putInt(0).putInt(0).putInt(0);
+        file.position(offset);
+
+        for (int row = 0; row < HEIGHT; ++row) {
+            int y = topDown ? HEIGHT - 1 - row : row;
+
+            for (int x = 0; x < WIDTH; ++x) {
+                file.put(pixel(x, y, 0)).put(pixel(x, y, 1)).put(pixel(x, y, 2));
+            }
+
+            file.put((byte) 0x55);
+        }
+
+        file.flip();
+        return file;
+    }
+
+    // Feeds the file in chunks of a size that falls all over the rows.
+    private static ScreenFrame decode(ByteBuffer file, int chunk, int capacity) {
+        ScreenFrame frame = new ScreenFrame(new SpscQueue<ScreenFrame>(1), capacity);
+        frame.begin();
+
+        while (file.hasRemaining()) {
+            ByteBuffer bytes = file.slice();
+            bytes.limit(Math.min(chunk, bytes.remaining()));
+            frame.payload(bytes);
+            assertFalse(bytes.hasRemaining());
+            file.position(file.position() + bytes.limit());
+        }
+
+        return frame;
+    }
+
+    private static void assertPixels(ScreenFrame frame) {
+        ByteBuffer pixels = frame.pixels();
+        assertEquals(WIDTH, frame.getWidth());
+        assertEquals(HEIGHT, frame.getHeight());
+        assertEquals(WIDTH * HEIGHT * 3, pixels.remaining());
+
+        for (int y = 0; y < HEIGHT; ++y) {
+            for (int x = 0; x < WIDTH; ++x) {
+                for (int c = 0; c < 3; ++c) {
+                    assertEquals(pixel(x, y, c), pixels.get((y * WIDTH + x) * 3 + c));
+                }
+            }
+        }
+    }
+
+    public void testBottomUp() {
+        for (int chunk : new int[] {1, 7, 1000}) {
+            ScreenFrame frame = decode(bmp(false), chunk, 1024);
+            assertTrue(frame.complete(0));
+            assertPixels(frame);
+        }
+    }
+
+    public void testTopDownIsStoredBottomUp() {
+        ScreenFrame frame = decode(bmp(true), 13, 1024);
+        assertTrue(frame.complete(0));
+        assertPixels(frame);
+    }
+
+    public void testTruncatedOrTooBig() {
+        ByteBuffer file = bmp(false);
+        file.limit(file.limit() - 1);
+        assertFalse(decode(file, 100, 1024).complete(0));
+
+        ScreenFrame frame = decode(bmp(false), 100, WIDTH * HEIGHT * 3 - 1);
+        assertFalse(frame.complete(0));
+        assertEquals(0, frame.pixels().remaining());
+    }
+
+    public void testNotABitmap() {
+        ByteBuffer file = bmp(false);
+        file.put(0, (byte) 'P');
+        assertFalse(decode(file, 100, 1024).complete(0));
+    }
+}
@@ -0,0 +1,123 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+
+public class SpectrumAnalyzerTest extends TestCase {
+    // 1us a sample, 10mV a count, with 0V at 127.
+    private static final Preamble PREAMBLE = new Preamble(0, 0, 1200, 1, 1.0e-6, 0.0, 0.0, 0.01, 0.0, 127.0);
+    // A 1V sine is 0.707Vrms.
+    private static final float ONE_VOLT_DBV = -3.0103f;
+
+    private static ByteBuffer sine(int points, double period, double amplitude) {
+        ByteBuffer samples = ByteBuffer.allocate(points);
+
+        for (int i = 0; i < points; ++i) {
+            samples.put((byte) Math.round(127 + amplitude * 100 * Math.sin(2.0 * Math.PI * i / period)));
+        }
+
+        samples.flip();
+        return samples;
+    }
+
+    private static int peakBin(float[] decibels, int bins) {
+        int peak = 1;
+
+        for (int k = 1; k < bins; ++k) {
+            if (decibels[k] > decibels[peak]) {
+                peak = k;
+            }
+        }
+
+        return peak;
+    }
+
+    public void testSizes() {
+        assertEquals(2048, SpectrumAnalyzer.sizeFor(1200));
+        assertEquals(1024, SpectrumAnalyzer.sizeFor(1024));
+        assertEquals(SpectrumAnalyzer.MIN_SIZE, SpectrumAnalyzer.sizeFor(1));
+        assertEquals(SpectrumAnalyzer.MAX_SIZE, SpectrumAnalyzer.sizeFor(12000000));
+    }
+
+    public void testSineOnABin() {
+        float[] decibels = new float[1025];
+
+        for (int window = 0; window < SpectrumAnalyzer.WINDOW_COUNT; ++window) {
+            SpectrumAnalyzer analyzer = new SpectrumAnalyzer(window);
+            analyzer.add(sine(2048, 32.0, 1.0), PREAMBLE);
+
+            assertEquals(1025, analyzer.averageDecibels(decibels));
+            assertEquals(64, peakBin(decibels, 1025));
+            assertEquals(ONE_VOLT_DBV, decibels[64], 0.02f);
+            assertEquals(1.0e6 / 2048, analyzer.getBinWidth(), 1e-9);
+        }
+    }
+
+    public void testFlatTopBetweenBins() {
+        // A screen's worth, zero padded, with the tone a third of the way between two bins.
+        SpectrumAnalyzer analyzer = new SpectrumAnalyzer(SpectrumAnalyzer.FLAT_TOP);
+        analyzer.add(sine(1200, 24.0, 1.0), PREAMBLE);
+
+        float[] decibels = new float[analyzer.getBins()];
+        int bins = analyzer.averageDecibels(decibels);
+
+        assertEquals(1025, bins);
+        assertEquals(85, peakBin(decibels, bins));
+        assertEquals(ONE_VOLT_DBV, decibels[85], 0.05f);
+        assertTrue(decibels[300] < ONE_VOLT_DBV - 60.0f);
+    }
+
+    public void testAveragingAndPeakHold() {
+        SpectrumAnalyzer analyzer = new SpectrumAnalyzer(SpectrumAnalyzer.HANN);
+        analyzer.setAverages(4);
+        analyzer.setPeakHold(true);
+        float[] decibels = new float[1025];
+
+        for (int i = 0; i < 40; ++i) {
+            analyzer.add(sine(2048, 32.0, i % 2 == 0 ? 1.0 : 0.5), PREAMBLE);
+        }
+
+        // Power is averaged exponentially, which after a half volt frame settles at 4/7 of a
+        // volt's power.
+        analyzer.averageDecibels(decibels);
+        assertEquals(ONE_VOLT_DBV + 10.0 * Math.log10(4.0 / 7.0), decibels[64], 0.05);
+
+        analyzer.peakDecibels(decibels);
+        assertEquals(ONE_VOLT_DBV, decibels[64], 0.02f);
+
+        analyzer.reset();
+        assertEquals(0, analyzer.peakDecibels(decibels));
+    }
+
+    public void testDeepMemoryAcrossSegments() {
+        int points = 1 << 16;
+        long start = SampleStore.SEGMENT_SIZE - points / 2;
+        ByteBuffer samples = sine(SampleStore.SEGMENT_SIZE + points, 64.0, 0.8);
+        SampleStore store = new SampleStore();
+        store.append(samples);
+
+        samples.position((int) start);
+        samples.limit((int) start + points);
+        SpectrumAnalyzer buffered = new SpectrumAnalyzer(SpectrumAnalyzer.BLACKMAN_HARRIS);
+        buffered.add(samples, PREAMBLE);
+        SpectrumAnalyzer stored = new SpectrumAnalyzer(SpectrumAnalyzer.BLACKMAN_HARRIS);
+        stored.add(store, start, points, PREAMBLE);
+
+        float[] expected = new float[points / 2 + 1];
+        float[] actual = new float[points / 2 + 1];
+        buffered.averageDecibels(expected);
+        stored.averageDecibels(actual);
+
+        for (int k = 0; k < expected.length; ++k) {
+            assertEquals(expected[k], actual[k], 1e-4f);
+        }
+
+        assertEquals(1024, peakBin(actual, actual.length));
+    }
+}
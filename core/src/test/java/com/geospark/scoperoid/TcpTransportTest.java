@@ -0,0 +1,61 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Raw SCPI over loopback against the simulated 'scope. TcpRoundTripBenchmark times it.
+ */
+public class TcpTransportTest extends TestCase {
+    private static final int FRAMES = 50;
+
+    private SimulatedScopeServer _server;
+    private TcpTransport _transport;
+
+    @Override
+    protected void setUp() throws Exception {
+        _server = new SimulatedScopeServer(0);
+        _server.start();
+        _transport = new TcpTransport("127.0.0.1", _server.getPort());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        _transport.close();
+        _server.stop();
+    }
+
+    private int query(String command, ByteBuffer result) {
+        result.clear();
+        assertTrue(_transport.write(command));
+        while (_transport.read(result)) {}
+        return result.position();
+    }
+
+    public void testLineAndBlockResponses() {
+        ByteBuffer result = ByteBuffer.allocateDirect(4096);
+
+        assertTrue(query(Scpi.WAV_PREAMBLE_Q, result) > 0);
+        assertEquals('\n', result.get(result.position() - 1));
+
+        assertEquals(11 + 1200 + 1, query(Scpi.WAV_DATA_Q, result));
+        assertEquals('#', result.get(0));
+        assertEquals('\n', result.get(result.position() - 1));
+    }
+
+    public void testBackToBackFrames() {
+        ByteBuffer result = ByteBuffer.allocateDirect(4096);
+
+        // Each reply ends where it should, with nothing of the next one run into it.
+        for (int i = 0; i < FRAMES; ++i) {
+            assertEquals(11 + 1200 + 1, query(Scpi.WAV_DATA_Q, result));
+            assertEquals('#', result.get(0));
+        }
+    }
+}
@@ -0,0 +1,158 @@
+// Copyright (c) 2015 GeoSpark
+//
+// Released under the MIT License (MIT)
+// See the LICENSE file, or visit http://opensource.org/licenses/MIT
+
+package com.geospark.scoperoid;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Checks whole-response requests against the old one-packet-per-request bulk-IN behaviour on a
+ * simulated USBTMC device, which keeps a virtual bus clock so the comparison doesn't depend on
+ * how busy the machine happens to be. UsbtmcBenchmark times both for real.
+ */
+public class UsbtmcTransferTest extends TestCase {
+    private static final int POINTS = 1200;
+    private static final int FRAMES = 200;
+
+    // Rough costs of one bulkTransfer call through the Android USB host stack, and of the bytes
+    // themselves on a high-speed link.
+    private static final long CALL_OVERHEAD_NS = 250000;
+    private static final long NS_PER_BYTE = 30;
+
+    static class SimulatedDevice implements UsbtmcTransfer.BulkPipe {
+        private final ByteBuffer _response;
+        private final ByteBuffer _pending;
+        long busTimeNs = 0;
+        int calls = 0;
+
+        SimulatedDevice(byte[] response) {
+            _response = ByteBuffer.wrap(response);
+            _response.position(_response.limit());
+            _pending = ByteBuffer.allocate(UsbtmcTransfer.HEADER_SIZE + response.length + 3);
+            _pending.limit(0);
+        }
+
+        @Override
+        public int write(byte[] buffer, int length, int timeout) {
+            charge(length);
+            ByteBuffer header = ByteBuffer.wrap(buffer, 0, length).order(ByteOrder.LITTLE_ENDIAN);
+            byte msgid = header.get();
+            byte btag = header.get();
+            int size = header.getInt(4);
+
+            if (msgid == 1) {
+                if (buffer[UsbtmcTransfer.HEADER_SIZE + size - 1] == '?') {
+                    _response.rewind();
+                }
+            } else if (msgid == 2) {
+                int xfer_size = Math.min(size, _response.remaining());
+                _pending.clear();
+                _pending.order(ByteOrder.LITTLE_ENDIAN);
+                _pending.put((byte) 2);
+                _pending.put(btag);
+                _pending.put((byte) ~btag);
+                _pending.put((byte) 0);
+                _pending.putInt(xfer_size);
+                _pending.put((byte) (xfer_size == _response.remaining() ? 1 : 0));
+                _pending.put(new byte[3]);
+
+                for (int i = 0; i < xfer_size; ++i) {
+                    _pending.put(_response.get());
+                }
+
+                while ((_pending.position() & 3) != 0) {
+                    _pending.put((byte) 0);
+                }
+
+                _pending.flip();
+            }
+
+            return length;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length, int timeout) {
+            int n = Math.min(length, _pending.remaining());
+            _pending.get(buffer, offset, n);
+            charge(n);
+            return n;
+        }
+
+        private void charge(int bytes) {
+            busTimeNs += CALL_OVERHEAD_NS + bytes * NS_PER_BYTE;
+            ++calls;
+        }
+    }
+
+    private static byte[] waveformResponse() {
+        String header = String.format("#9%09d", POINTS);
+        byte[] response = new byte[header.length() + POINTS + 1];
+        System.arraycopy(header.getBytes(), 0, response, 0, header.length());
+
+        for (int i = 0; i < POINTS; ++i) {
+            response[header.length() + i] = (byte) (128 + 100 * Math.sin(i * 2.0 * Math.PI / 100.0));
+        }
+
+        response[response.length - 1] = '\n';
+        return response;
+    }
+
+    private static void readFrames(UsbtmcTransfer transfer, byte[] expected) {
+        ByteBuffer result = ByteBuffer.allocate(4096);
+
+        for (int i = 0; i < FRAMES; ++i) {
+            result.clear();
+            transfer.write(Scpi.WAV_DATA_Q);
+            while (transfer.read(result)) {}
+
+            assertEquals(expected.length, result.position());
+            result.flip();
+            assertEquals(ByteBuffer.wrap(expected), result);
+        }
+    }
+
+    private void compare(int max_packet_size) {
+        byte[] response = waveformResponse();
+
+        SimulatedDevice legacy_device = new SimulatedDevice(response);
+        UsbtmcTransfer legacy = new UsbtmcTransfer(legacy_device, max_packet_size);
+        legacy.setTransferSize(max_packet_size - UsbtmcTransfer.HEADER_SIZE);
+        legacy.setReadSize(max_packet_size);
+        readFrames(legacy, response);
+
+        SimulatedDevice device = new SimulatedDevice(response);
+        UsbtmcTransfer transfer = new UsbtmcTransfer(device, max_packet_size);
+        readFrames(transfer, response);
+
+        // Three calls a frame: the command, the request, and one read of the whole reply.
+        assertEquals(3 * FRAMES, device.calls);
+        assertTrue(device.calls < legacy_device.calls);
+        assertTrue(device.busTimeNs < legacy_device.busTimeNs);
+    }
+
+    public void testFullSpeedFewerCalls() {
+        compare(64);
+    }
+
+    public void testHighSpeedFewerCalls() {
+        compare(512);
+    }
+
+    public void testSmallResultBufferDrainsWholeReply() {
+        byte[] response = waveformResponse();
+        SimulatedDevice device = new SimulatedDevice(response);
+        UsbtmcTransfer transfer = new UsbtmcTransfer(device, 64);
+        ByteBuffer result = ByteBuffer.allocate(100);
+
+        transfer.write(Scpi.WAV_DATA_Q);
+        while (transfer.read(result)) {}
+
+        assertEquals(100, result.position());
+        assertEquals(0, device._pending.remaining());
+    }
+}